@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+
+/**
+ * PacketReader whose packets may be produced on other threads or become due over time. Instead of
+ * blocking when no packet is ready, {@link #readNext()} returns {@code null} and {@link #isReady()}
+ * returns false until the ready listener has been called.
+ *
+ * @author Philip DeCamp
+ */
+public interface AsyncPacketReader extends PacketReader {
+
+    /**
+     * @param optListener Called from any thread once a packet may be ready after {@link #isReady()} has
+     *                    returned false. Must not block. {@code null} to remove listener.
+     */
+    public void readyListener( Runnable optListener );
+
+    /**
+     * @return false if the last call to {@link #readNext()} returned {@code null} because no packet was ready,
+     *         and the ready listener has not been called since. Callers that see false may wait for the
+     *         listener rather than polling.
+     */
+    public boolean isReady();
+
+}
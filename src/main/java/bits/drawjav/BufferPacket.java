@@ -0,0 +1,100 @@
+package bits.drawjav;
+
+import bits.util.ref.AbstractRefable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Packet backed by a Java heap buffer. BufferPackets do not require the native jav libraries, which
+ * makes them usable for tests and benchmarks that run anywhere.
+ * <p>
+ * Audio data is packed, with {@link #sampleNum()} samples per channel. Video data is packed, with
+ * rows of {@code width * bytesPerPixel} bytes.
+ *
+ * @author Philip DeCamp
+ */
+public class BufferPacket extends AbstractRefable implements Packet {
+
+    /**
+     * @param optPool  Pool to take packet from, and to which packet returns when released.
+     * @param capacity Minimum capacity of packet buffer in bytes.
+     * @return writable packet with buffer position at 0 and limit at {@code capacity}.
+     */
+    public static BufferPacket alloc( CostPool<BufferPacket> optPool, int capacity ) {
+        if( optPool == null ) {
+            return new BufferPacket( null, capacity );
+        }
+
+        BufferPacket ret = optPool.poll();
+        if( ret != null ) {
+            if( ret.mBuf.capacity() >= capacity ) {
+                ret.mBuf.clear().limit( capacity );
+                return ret;
+            }
+            optPool.dispose( ret );
+        }
+
+        ret = new BufferPacket( optPool, capacity );
+        optPool.allocated( ret );
+        return ret;
+    }
+
+
+    private final ByteBuffer mBuf;
+
+    private Stream mStream;
+    private long   mStartMicros;
+    private long   mStopMicros;
+    private int    mSampleNum;
+
+
+    protected BufferPacket( CostPool<BufferPacket> optPool, int capacity ) {
+        super( optPool );
+        mBuf = ByteBuffer.allocate( capacity ).order( ByteOrder.nativeOrder() );
+    }
+
+
+    public void init( Stream stream, long startMicros, long stopMicros, int sampleNum ) {
+        mStream      = stream;
+        mStartMicros = startMicros;
+        mStopMicros  = stopMicros;
+        mSampleNum   = sampleNum;
+    }
+
+    @Override
+    public Stream stream() {
+        return mStream;
+    }
+
+    @Override
+    public long startMicros() {
+        return mStartMicros;
+    }
+
+    @Override
+    public long stopMicros() {
+        return mStopMicros;
+    }
+
+    /**
+     * @return number of samples per channel for audio packets, otherwise 0.
+     */
+    public int sampleNum() {
+        return mSampleNum;
+    }
+
+    /**
+     * @return buffer holding packet data. Native byte order.
+     */
+    public ByteBuffer buffer() {
+        return mBuf;
+    }
+
+    @Override
+    protected void freeObject() {
+        mStream = null;
+    }
+
+}
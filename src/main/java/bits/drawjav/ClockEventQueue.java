@@ -4,25 +4,51 @@ import bits.drawjav.pipe.ClearGraphEvent;
 import bits.microtime.*;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
 
 
 /**
+ * Queues clock events for processing on a graph thread.
+ * <p>
+ * Posting an event never blocks on the consumer. Events are held in a lock-free {@link MpscQueue}, and
+ * the consumer is woken through an optional {@link WakeSignal}. Producers only synchronize with each
+ * other, so that event groups (seek + clear) are queued contiguously.
+ * <p>
+ * Seeks are coalesced: if a seek is still pending at the tail of the queue when another seek
+ * arrives, the pending seek is replaced rather than followed. While scrubbing, this means the
+ * graph only ever processes the latest seek target rather than every intermediate position.
+ *
  * @author Philip DeCamp
  */
 public class ClockEventQueue implements SyncClockControl {
 
-    private final Object mLock;
-    private final PlayClock mClock;
-    private final Queue<Object> mQueue = new LinkedList<Object>();
-
+    private static final Logger sLog = Logger.getLogger( ClockEventQueue.class.getName() );
 
-    public ClockEventQueue( Object lock, PlayClock clock, int maxCap ) {
-        if( lock == null ) {
-            throw new NullPointerException();
+    private final WakeSignal mOptSignal;
+    private final PlayClock mClock;
+    private final MpscQueue<Object> mQueue;
+
+    // Slot holding seek event that is at the tail of mQueue, followed only by a ClearGraphEvent.
+    // Null if any other event has been queued since. Guarded by this.
+    private SeekSlot mTailSeek = null;
+    private volatile long vCoalescedSeekNum = 0;
+    private boolean mHasWarned = false;
+
+
+    /**
+     * @param optSignal Signal to raise whenever an event is queued. May be {@code null}.
+     * @param clock     Clock to listen to. May be {@code null}.
+     * @param maxCap    Max number of events held in queue. Events offered to a full queue are dropped.
+     */
+    public ClockEventQueue( WakeSignal optSignal, PlayClock clock, int maxCap ) {
+        if( maxCap < 2 ) {
+            throw new IllegalArgumentException( "maxCap must be at least 2." );
         }
 
-        mLock  = lock;
-        mClock = clock;
+        mOptSignal = optSignal;
+        mClock     = clock;
+        mQueue     = new MpscQueue<Object>( maxCap );
 
         if( clock != null ) {
             clock.addListener( this );
@@ -42,17 +68,13 @@ public class ClockEventQueue implements SyncClockControl {
 
     @Override
     public void clockSeek( long exec, long seek ) {
-        synchronized( this ) {
-            offer( ClockEvent.createClockSeek( this, exec, seek ) );
-            // TODO: Clear logic should probably not be here.
-            offer( ClearGraphEvent.INSTANCE );
-        }
+        offerSeek( ClockEvent.createClockSeek( this, exec, seek ) );
     }
 
     @Override
     public void clockRate( long exec, Frac rate ) {
         Object a;
-        Object b;
+        ClockEvent b;
 
         synchronized( mClock ) {
             a = ClockEvent.createClockRate( this, exec, rate );
@@ -64,39 +86,117 @@ public class ClockEventQueue implements SyncClockControl {
 
         synchronized( this ) {
             offer( a );
-            offer( b );
-            offer( ClearGraphEvent.INSTANCE );
+            offerSeek( b );
         }
     }
 
-
-    public void offer( Object event ) {
-        synchronized( mLock ) {
-            if( mQueue.isEmpty() ) {
-                mLock.notifyAll();
+    /**
+     * May be called from any thread.
+     *
+     * @return true if event was queued, false if queue was full and event was dropped.
+     */
+    public boolean offer( Object event ) {
+        synchronized( this ) {
+            if( !mQueue.offer( event ) ) {
+                warnFull();
+                return false;
             }
-            mQueue.offer( event );
+            mTailSeek = null;
         }
-    }
 
+        if( mOptSignal != null ) {
+            mOptSignal.signal();
+        }
+        return true;
+    }
 
+    /**
+     * Consumer thread only.
+     */
     public Object peek() {
-        synchronized( mLock ) {
-            return mQueue.peek();
+        Object ret = mQueue.peek();
+        return ret instanceof SeekSlot ? ((SeekSlot)ret).get() : ret;
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public Object poll() {
+        Object ret = mQueue.poll();
+        return ret instanceof SeekSlot ? ((SeekSlot)ret).getAndSet( null ) : ret;
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public Object remove() {
+        Object ret = poll();
+        if( ret == null ) {
+            throw new NoSuchElementException();
         }
+        return ret;
     }
 
+    /**
+     * @return approximate number of events in queue.
+     */
+    public int size() {
+        return mQueue.size();
+    }
 
-    public Object poll() {
-        synchronized( mLock ) {
-            return mQueue.poll();
+    /**
+     * @return number of seek events that were replaced by a later seek before being processed.
+     */
+    public long coalescedSeekNum() {
+        return vCoalescedSeekNum;
+    }
+
+
+    private boolean offerSeek( ClockEvent seek ) {
+        synchronized( this ) {
+            SeekSlot slot = mTailSeek;
+            if( slot != null ) {
+                // Replace previous seek if it has not been consumed. The ClearGraphEvent that
+                // follows it is reused.
+                Object prev = slot.get();
+                if( prev != null && slot.compareAndSet( prev, seek ) ) {
+                    vCoalescedSeekNum++;
+                    return true;
+                }
+            }
+
+            // Seek and clear must be queued together.
+            if( mQueue.size() + 2 > mQueue.capacity() ) {
+                warnFull();
+                return false;
+            }
+
+            slot = new SeekSlot( seek );
+            mQueue.offer( slot );
+            // TODO: Clear logic should probably not be here.
+            mQueue.offer( ClearGraphEvent.INSTANCE );
+            mTailSeek = slot;
+        }
+
+        if( mOptSignal != null ) {
+            mOptSignal.signal();
         }
+        return true;
     }
 
 
-    public Object remove() {
-        synchronized( mLock ) {
-            return mQueue.remove();
+    private void warnFull() {
+        if( !mHasWarned ) {
+            mHasWarned = true;
+            sLog.warning( "Clock event queue is full. Events are being dropped." );
+        }
+    }
+
+
+    @SuppressWarnings( "serial" )
+    private static final class SeekSlot extends AtomicReference<Object> {
+        SeekSlot( Object seek ) {
+            super( seek );
         }
     }
 
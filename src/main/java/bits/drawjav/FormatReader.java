@@ -16,11 +16,31 @@ import static bits.jav.Jav.*;
 
 import bits.jav.codec.*;
 import bits.jav.format.*;
+import bits.jav.util.JavOption;
 import bits.jav.util.Rational;
 
 
 /**
  * Not thread-safe.
+ * <p>
+ * <b>Read-ahead</b>: By default, {@link #readNext()} demuxes and decodes on the calling thread, so any
+ * stall in file I/O stalls the caller. After {@link #startReadAhead(long)}, a dedicated thread demuxes
+ * compressed packets into a byte-limited queue ahead of decode. {@code readNext()} then returns {@code null}
+ * without waiting if the queue is empty, and calls the {@link #readyListener ready listener} once a packet
+ * arrives. Seeks discard any queued packets.
+ * <p>
+ * <b>Separate decode</b>: Instead of {@code readNext()}, callers may retrieve compressed packets with
+ * {@link #readRaw()} and decode them with {@link #decode}. Each stream may be decoded on a different thread,
+ * but calls for any one stream must not overlap, and no stream may be decoding during a seek.
+ * <p>
+ * <b>Keyframe index</b>: If given a {@link KeyframeIndex}, seeks go straight to the keyframe preceding the
+ * target. {@link #seekAll} then needs a single format seek instead of probing every open stream.
+ * <p>
+ * <b>Accurate seek</b>: With {@link #accurateSeek(boolean)} enabled, the first packet returned on each stream
+ * after a seek is the one covering the seek time. Frames before the target are decoded into a single scratch
+ * frame per stream and never returned, and the video decoder skips non-reference frames until the target
+ * is near. Frames decoded within the decoder's reorder delay of the target are allocated normally and
+ * recycled if they turn out to precede it.
  *
  * @bug When more than one stream is open, seek may miss some viable data
  * on one stream or another. This is quite hard to
@@ -28,7 +48,7 @@ import bits.jav.util.Rational;
  *
  * @author decamp
  */
-public class FormatReader implements PacketReader {
+public class FormatReader implements AsyncPacketReader {
 
     public static FormatReader openFile( File file ) throws IOException {
         return openFile( file, false, 0L, null );
@@ -65,8 +85,17 @@ public class FormatReader implements PacketReader {
     }
 
 
+    /**
+     * Default absolute playback rate at or above which video is decoded keyframe-only.
+     */
+    public static final double DEFAULT_KEYFRAME_ONLY_RATE = 4.0;
+
     private static final Rational MICROS = new Rational( 1, 1000000 );
 
+    // Longest time readRaw() waits on an empty read-ahead queue before returning null.
+    // readNext() does not wait.
+    private static final long READ_AHEAD_WAIT_NANOS = 5000000L;
+
 
     private final JavFormatContext mFormat;
     private final MemoryManager    mMem;
@@ -76,7 +105,22 @@ public class FormatReader implements PacketReader {
     private final ReaderStream   mEarliestStream;
 
     private final JavPacket mNullPacket;
-    private       JavPacket mPacket;
+    private final JavPacket mPacket;
+    private       JavPacket mCurrent;
+
+    // Guards mFormat when read-ahead is running.
+    private final    Object           mFormatLock = new Object();
+    private volatile ReadAheadDemuxer mReadAhead  = null;
+    private volatile Runnable         mListener   = null;
+    private          RawPacketAllocator mRawAlloc = null;
+    private          RawPacketCache     mCache    = null;
+    private volatile KeyframeIndex      mIndex    = null;
+    private          boolean            mAccurateSeek = false;
+
+    private volatile double  mKeyOnlyRate = DEFAULT_KEYFRAME_ONLY_RATE;
+    private volatile boolean mKeyOnly     = false;
+    // Set when keyframe-only decoding ends, to reposition at last returned video frame.
+    private volatile boolean mResumeSeek  = false;
 
     private boolean mPacketValid = false;
     private boolean mEof         = false;
@@ -96,6 +140,7 @@ public class FormatReader implements PacketReader {
         mMem = optMem;
         mFormat = format;
         mPacket = JavPacket.alloc();
+        mCurrent = mPacket;
         mNullPacket = JavPacket.alloc();
         mStreams = new ReaderStream[format.streamCount()];
 
@@ -157,6 +202,19 @@ public class FormatReader implements PacketReader {
         }
 
         mIsOpen = false;
+        if( mReadAhead != null ) {
+            mReadAhead.close();
+            mReadAhead = null;
+        }
+        releaseCurrent();
+        if( mRawAlloc != null ) {
+            mRawAlloc.deref();
+            mRawAlloc = null;
+        }
+        if( mCache != null ) {
+            mCache.close();
+            mCache = null;
+        }
         for( ReaderStream s : mStreams ) {
             try {
                 if( s.isOpen() ) {
@@ -213,20 +271,23 @@ public class FormatReader implements PacketReader {
             return;
         }
 
-        switch( ss.mFormat.mType ) {
-        case AVMEDIA_TYPE_AUDIO: {
-            AudioStream s = (AudioStream)ss;
-            s.open( mMem.allocator( stream.format() ) );
-            updateSeekStream();
-            return;
-        }
-        case AVMEDIA_TYPE_VIDEO: {
-            VideoStream s = (VideoStream)ss;
-            s.open( mMem.allocator( stream.format() ) );
-            updateSeekStream();
-            return;
-        }
-        default:
+        synchronized( mFormatLock ) {
+            streamsChanged();
+            switch( ss.mFormat.mType ) {
+            case AVMEDIA_TYPE_AUDIO: {
+                AudioStream s = (AudioStream)ss;
+                s.open( mMem.allocator( stream.format() ) );
+                updateSeekStream();
+                return;
+            }
+            case AVMEDIA_TYPE_VIDEO: {
+                VideoStream s = (VideoStream)ss;
+                s.open( mMem.allocator( stream.format() ) );
+                updateSeekStream();
+                return;
+            }
+            default:
+            }
         }
     }
 
@@ -234,8 +295,11 @@ public class FormatReader implements PacketReader {
     public void openStream( Stream stream, PacketAllocator alloc ) throws IOException {
         assertOpen();
         ReaderStream ss = mStreams[((ReaderStream)stream).index()];
-        ss.open( alloc );
-        updateSeekStream();
+        synchronized( mFormatLock ) {
+            streamsChanged();
+            ss.open( alloc );
+            updateSeekStream();
+        }
     }
 
     @Override
@@ -244,8 +308,11 @@ public class FormatReader implements PacketReader {
         if( !ss.isOpen() ) {
             return;
         }
-        ss.close();
-        updateSeekStream();
+        synchronized( mFormatLock ) {
+            streamsChanged();
+            ss.close();
+            updateSeekStream();
+        }
     }
 
 
@@ -273,9 +340,22 @@ public class FormatReader implements PacketReader {
         Rational timeBase = s.timeBase();
         long     pts      = s.microsToPts( micros );
 
-        preSeek();
-        mFormat.seek( s.index(), pts, Jav.AVSEEK_FLAG_BACKWARD );
-        postSeek( timeBase, pts );
+        KeyframeIndex index = mIndex;
+        if( index != null ) {
+            int entry = index.entryBefore( s.index(), pts );
+            if( entry >= 0 ) {
+                pts = index.entryPts( s.index(), entry );
+            }
+        }
+
+        synchronized( mFormatLock ) {
+            preSeek();
+            if( mCache == null || !mCache.seek( s.index(), s.ptsToMicros( pts ), openMask(), false ) ) {
+                mFormat.seek( s.index(), pts, Jav.AVSEEK_FLAG_BACKWARD );
+            }
+            postSeek( timeBase, pts );
+            skipUntil( micros );
+        }
     }
 
     /**
@@ -294,66 +374,281 @@ public class FormatReader implements PacketReader {
             return;
         }
 
-        ReaderStream firstStream = null;
-        long firstPos      = Long.MAX_VALUE;
-        preSeek();
+        synchronized( mFormatLock ) {
+            doSeekAll( micros );
+            skipUntil( micros );
+        }
+    }
 
-        // mSeekStreams is ordered in likelihood of having the earliest packet required.
-        // Seek through the streams from least to most likely to maximize possibility
-        // of not needing to read last packet twice.
-        for( int i = mSeekStreams.length - 1; i >= 0; i-- ) {
-            ReaderStream s = mSeekStreams[i];
-            if( !s.isOpen() ) {
-                continue;
-            }
+    /**
+     * @param accurate If true, packets preceding the target of each later seek are decoded without
+     *                 being allocated or returned.
+     */
+    public void accurateSeek( boolean accurate ) {
+        mAccurateSeek = accurate;
+    }
 
-            mFormat.seek( s.index(), s.microsToPts( micros ), Jav.AVSEEK_FLAG_BACKWARD );
-            int err = mFormat.readPacket( mPacket );
-            if( err != 0 ) {
-                if( err != Jav.AVERROR_EOF ) {
-                    throw new JavException( err );
+
+    public boolean accurateSeek() {
+        return mAccurateSeek;
+    }
+
+    /**
+     * Sets the keyframe index used for seeking. May be called at any time, such as when an index being
+     * built on another thread completes.
+     *
+     * @param index Index for this file, or {@code null} to seek without index.
+     * @throws IllegalArgumentException if index does not match streams of this file.
+     */
+    public void keyframeIndex( KeyframeIndex index ) {
+        if( index != null ) {
+            if( index.streamCount() != mStreams.length ) {
+                throw new IllegalArgumentException( "Keyframe index has wrong number of streams." );
+            }
+            for( int i = 0; i < mStreams.length; i++ ) {
+                if( !index.timeBase( i ).equals( mStreams[i].timeBase() ) ) {
+                    throw new IllegalArgumentException( "Keyframe index has wrong time base for stream " + i );
                 }
-                s.mSeekResults = Long.MAX_VALUE;
+            }
+        }
+        mIndex = index;
+    }
 
-            } else {
-               long pos = mPacket.pos();
-                if( pos <= firstPos ) {
-                    firstStream = s;
-                    firstPos    = pos;
+
+    public KeyframeIndex keyframeIndex() {
+        return mIndex;
+    }
+
+    /**
+     * @return start of keyframe at or before {@code micros} on stream, or {@code Long.MIN_VALUE} if
+     *         unknown because there is no keyframe index or no preceding keyframe.
+     */
+    public long keyframeMicros( Stream stream, long micros ) {
+        KeyframeIndex index = mIndex;
+        if( index == null ) {
+            return Long.MIN_VALUE;
+        }
+        ReaderStream s = mStreams[((ReaderStream)stream).index()];
+        int entry = index.entryBefore( s.index(), s.microsToPts( micros ) );
+        if( entry < 0 ) {
+            return Long.MIN_VALUE;
+        }
+        return s.ptsToMicros( index.entryPts( s.index(), entry ) );
+    }
+
+    /**
+     * Keeps compressed packets read by {@link #readNext()} in a cache over recently played ranges.
+     * A seek that lands inside a cached range is served from the cache without demuxing, until the end of
+     * that range. When over budget, packets farthest from the playhead are evicted. Calling this method
+     * replaces any existing cache. Files with more than 64 streams are not cached.
+     *
+     * @param maxBytes Byte budget of cache, or {@code 0} to disable caching.
+     */
+    public void packetCache( long maxBytes ) {
+        synchronized( mFormatLock ) {
+            if( mCache != null ) {
+                // Cached position would be lost.
+                if( mCache.isServing() ) {
+                    throw new IllegalStateException( "Cannot replace cache while reading from it." );
                 }
-                s.mSeekResults = pos;
+                mCache.close();
+                mCache = null;
+            }
+            if( maxBytes > 0 && mStreams.length <= 64 ) {
+                mCache = new RawPacketCache( mStreams.length, maxBytes );
             }
         }
+    }
 
-        if( firstStream == null ) {
-            mEof = true;
+    /**
+     * @return bytes of compressed data held by packet cache, or 0 if not caching.
+     */
+    public long packetCacheBytes() {
+        RawPacketCache c = mCache;
+        return c == null ? 0 : c.bytes();
+    }
+
+    /**
+     * @return number of seeks served by packet cache.
+     */
+    public long packetCacheHits() {
+        RawPacketCache c = mCache;
+        return c == null ? 0 : c.hitNum();
+    }
+
+    /**
+     * @return number of seeks that could not be served by packet cache.
+     */
+    public long packetCacheMisses() {
+        RawPacketCache c = mCache;
+        return c == null ? 0 : c.missNum();
+    }
+
+    /**
+     * @param rate Absolute playback rate at or above which {@link #playbackRate(double)} enables
+     *             keyframe-only decoding. {@code Double.POSITIVE_INFINITY} disables automatic switching.
+     */
+    public void keyframeOnlyRate( double rate ) {
+        mKeyOnlyRate = rate;
+    }
+
+
+    public double keyframeOnlyRate() {
+        return mKeyOnlyRate;
+    }
+
+    /**
+     * Notifies reader of the rate of playback. Enables keyframe-only decoding when the absolute rate is
+     * at or above {@link #keyframeOnlyRate()}, and disables it otherwise. May be called from any thread.
+     */
+    public void playbackRate( double rate ) {
+        keyframeOnly( Math.abs( rate ) >= mKeyOnlyRate );
+    }
+
+    /**
+     * In keyframe-only mode, video packets that are not keyframes are discarded before decoding, and
+     * each returned frame is stretched to the interval between keyframes. When keyframe-only mode ends,
+     * {@link #readNext()} repositions at the end of the last returned video frame and skips data before it,
+     * as for an accurate seek, so decoding continues without a gap. Readers using {@link #decode} instead
+     * resume at the next keyframe. May be called from any thread.
+     */
+    public void keyframeOnly( boolean keyOnly ) {
+        if( keyOnly == mKeyOnly ) {
             return;
         }
+        mKeyOnly = keyOnly;
+        for( ReaderStream ss : mStreams ) {
+            if( ss instanceof VideoStream ) {
+                ( (VideoStream)ss ).keyframeOnly( keyOnly );
+            }
+        }
+        mResumeSeek = !keyOnly;
+    }
 
-        if( firstStream == mSeekStreams[0] ) {
-            // We are still in position, so no final seek is necessary.
-            mPacketValid = true;
-        } else {
-            updateSeekStream();
-            mFormat.seek( firstStream.index(), firstStream.microsToPts( micros ), Jav.AVSEEK_FLAG_BACKWARD );
+
+    public boolean isKeyframeOnly() {
+        return mKeyOnly;
+    }
+
+    /**
+     * Starts demuxing on a background thread. Once started, read-ahead remains active until this reader is
+     * closed. Calling this method more than once has no effect.
+     *
+     * @param maxQueueBytes Maximum bytes of compressed data to demux ahead of decode.
+     */
+    public void startReadAhead( long maxQueueBytes ) throws IOException {
+        assertOpen();
+        if( mReadAhead != null ) {
+            return;
         }
+        mReadAhead = new ReadAheadDemuxer( mFormat, mFormatLock, maxQueueBytes );
+        mReadAhead.readyListener( mListener );
+        mReadAhead.start();
+    }
 
-        postSeek( firstStream.timeBase(), firstStream.microsToPts( micros ) );
+
+    public boolean isReadAhead() {
+        return mReadAhead != null;
+    }
+
+    /**
+     * Sets listener called when a packet arrives on the read-ahead queue after {@link #readNext()} found it
+     * empty. Has no effect until read-ahead is started.
+     */
+    @Override
+    public void readyListener( Runnable optListener ) {
+        mListener = optListener;
+        ReadAheadDemuxer ra = mReadAhead;
+        if( ra != null ) {
+            ra.readyListener( optListener );
+        }
+    }
+
+    /**
+     * @return false if the last call to {@link #readNext()} found the read-ahead queue empty and no
+     *         packet has arrived since. Always true without read-ahead.
+     */
+    @Override
+    public boolean isReady() {
+        ReadAheadDemuxer ra = mReadAhead;
+        return ra == null || ra.isReady();
+    }
+
+    /**
+     * @return number of compressed packets currently queued by read-ahead, or 0 if read-ahead is not active.
+     */
+    public int readAheadPacketNum() {
+        ReadAheadDemuxer ra = mReadAhead;
+        return ra == null ? 0 : ra.queuedPacketNum();
+    }
+
+    /**
+     * @return bytes currently queued by read-ahead, or 0 if read-ahead is not active.
+     */
+    public long readAheadBytes() {
+        ReadAheadDemuxer ra = mReadAhead;
+        return ra == null ? 0 : ra.queuedBytes();
+    }
+
+    /**
+     * @return largest number of bytes queued by read-ahead at once, or 0 if read-ahead is not active.
+     */
+    public long readAheadPeakBytes() {
+        ReadAheadDemuxer ra = mReadAhead;
+        return ra == null ? 0 : ra.peakQueuedBytes();
+    }
+
+    /**
+     * @return number of times decode found the read-ahead queue empty, or 0 if read-ahead is not active.
+     */
+    public long readAheadUnderrunNum() {
+        ReadAheadDemuxer ra = mReadAhead;
+        return ra == null ? 0 : ra.underrunNum();
     }
 
     @Override
     public Packet readNext() throws IOException {
         assertOpen();
 
+        if( mResumeSeek ) {
+            mResumeSeek = false;
+            resumeAfterKeyframeOnly();
+        }
+
         if( mEof ) {
             return flush();
         }
 
         // Check if we still have packet.
         if( !mPacketValid ) {
-            int err = mFormat.readPacket( mPacket );
+            int err;
+            JavPacket cached = mCache == null ? null : readCached();
+            if( cached != null ) {
+                mCurrent = cached;
+                err = 0;
+            } else if( mCache != null && mCache.servedEof() ) {
+                mCache.endRun();
+                err = Jav.AVERROR_EOF;
+            } else if( mReadAhead == null ) {
+                err = mFormat.readPacket( mPacket );
+            } else {
+                try {
+                    JavPacket p = mReadAhead.poll( 0L );
+                    if( p == null ) {
+                        return null;
+                    }
+                    mCurrent = p;
+                    err = 0;
+                } catch( EOFException ex ) {
+                    err = Jav.AVERROR_EOF;
+                }
+            }
+
             if( err != 0 ) {
                 if( err == Jav.AVERROR_EOF ) {
+                    if( mCache != null ) {
+                        mCache.recordEof();
+                    }
                     mEof = true;
                     mFlushStream = 0;
                     return flush();
@@ -363,19 +658,164 @@ public class FormatReader implements PacketReader {
             }
 
             mPacketValid = true;
+            if( cached == null && mCache != null && !recordPacket() ) {
+                mPacketValid = false;
+                releaseCurrent();
+                return null;
+            }
         }
 
-        int idx = mPacket.streamIndex();
+        int idx = mCurrent.streamIndex();
         if( idx < 0 || idx >= mStreams.length ) {
             mPacketValid = false;
+            releaseCurrent();
             return null;
         }
 
-        Packet ret = mStreams[idx].process( mPacket, false );
-        mPacketValid = mPacket.size() > 0;
+        Packet ret = mStreams[idx].process( mCurrent, false );
+        mPacketValid = mCurrent.size() > 0;
+        if( !mPacketValid ) {
+            releaseCurrent();
+        }
+        return ret;
+    }
+
+
+    /**
+     * Reads the next compressed packet without decoding it. Must not be mixed with {@link #readNext()}
+     * between seeks. Caller must deref returned packet.
+     *
+     * @return next compressed packet, or {@code null} if read-ahead has not yet demuxed one.
+     * @throws EOFException at end of file.
+     */
+    public JavPacket readRaw() throws IOException {
+        assertOpen();
+        // Decode threads resume at next keyframe instead.
+        mResumeSeek = false;
+        if( mCache != null && mCache.isServing() ) {
+            // Packet cache is only used by readNext().
+            resumeDemux( mCache.stopServing() );
+            mCache.endRun();
+        }
+        if( mReadAhead != null ) {
+            return mReadAhead.poll( READ_AHEAD_WAIT_NANOS );
+        }
+
+        if( mRawAlloc == null ) {
+            mRawAlloc = RawPacketAllocator.createPacketLimited( 64 );
+        }
+        JavPacket ret = mRawAlloc.alloc();
+        int err = mFormat.readPacket( ret );
+        if( err != 0 ) {
+            ret.deref();
+            if( err == Jav.AVERROR_EOF ) {
+                throw new EOFException();
+            }
+            throw new JavException( err );
+        }
         return ret;
     }
 
+    /**
+     * Decodes a compressed packet from {@link #readRaw()} and appends any decoded packets to {@code out}.
+     * May be called concurrently for different streams.
+     *
+     * @param stream Stream of packet.
+     * @param packet Packet to decode, or {@code null} to flush any frames held by the decoder at end of file.
+     *               Not dereferenced by this call.
+     * @param out    Receives decoded packets.
+     * @return number of packets added to {@code out}.
+     */
+    public int decode( Stream stream, JavPacket packet, List<? super Packet> out ) throws IOException {
+        assertOpen();
+        ReaderStream s = mStreams[((ReaderStream)stream).index()];
+        int count = 0;
+
+        if( packet == null ) {
+            JavPacket nullPacket = JavPacket.alloc();
+            try {
+                Packet p;
+                while( ( p = s.process( nullPacket, true ) ) != null ) {
+                    out.add( p );
+                    count++;
+                }
+            } finally {
+                nullPacket.deref();
+            }
+            return count;
+        }
+
+        while( packet.size() > 0 ) {
+            int size = packet.size();
+            Packet p = s.process( packet, false );
+            if( p != null ) {
+                out.add( p );
+                count++;
+            } else if( packet.size() == size ) {
+                break;
+            }
+        }
+        return count;
+    }
+
+
+    private void doSeekAll( long micros ) throws IOException {
+        ReaderStream first = mSeekStreams[0];
+        if( mCache != null && mCache.seek( first.index(), micros, openMask(), true ) ) {
+            preSeek();
+            postSeek( first.timeBase(), first.microsToPts( micros ) );
+            return;
+        }
+        if( seekAllIndexed( micros ) ) {
+            return;
+        }
+
+        ReaderStream firstStream = null;
+        long firstPos      = Long.MAX_VALUE;
+        preSeek();
+
+        // mSeekStreams is ordered in likelihood of having the earliest packet required.
+        // Seek through the streams from least to most likely to maximize possibility
+        // of not needing to read last packet twice.
+        for( int i = mSeekStreams.length - 1; i >= 0; i-- ) {
+            ReaderStream s = mSeekStreams[i];
+            if( !s.isOpen() ) {
+                continue;
+            }
+
+            mFormat.seek( s.index(), s.microsToPts( micros ), Jav.AVSEEK_FLAG_BACKWARD );
+            int err = mFormat.readPacket( mPacket );
+            if( err != 0 ) {
+                if( err != Jav.AVERROR_EOF ) {
+                    throw new JavException( err );
+                }
+                s.mSeekResults = Long.MAX_VALUE;
+
+            } else {
+               long pos = mPacket.pos();
+                if( pos <= firstPos ) {
+                    firstStream = s;
+                    firstPos    = pos;
+                }
+                s.mSeekResults = pos;
+            }
+        }
+
+        if( firstStream == null ) {
+            mEof = true;
+            return;
+        }
+
+        if( firstStream == mSeekStreams[0] ) {
+            // We are still in position, so no final seek is necessary.
+            mPacketValid = true;
+        } else {
+            updateSeekStream();
+            mFormat.seek( firstStream.index(), firstStream.microsToPts( micros ), Jav.AVSEEK_FLAG_BACKWARD );
+        }
+
+        postSeek( firstStream.timeBase(), firstStream.microsToPts( micros ) );
+    }
 
     public void overrideTimestamps( long mediaStartMicros ) {
         ReaderStream first     = mEarliestStream;
@@ -397,6 +837,52 @@ public class FormatReader implements PacketReader {
 
 
 
+    /**
+     * Seeks to the earliest keyframe in file that precedes {@code micros} on each open stream.
+     *
+     * @return false if index is missing or lacks an entry for an open stream, and nothing was done.
+     */
+    private boolean seekAllIndexed( long micros ) throws IOException {
+        KeyframeIndex index = mIndex;
+        if( index == null ) {
+            return false;
+        }
+
+        ReaderStream firstStream = null;
+        long firstPos = Long.MAX_VALUE;
+        long firstPts = 0;
+
+        for( ReaderStream s : mSeekStreams ) {
+            if( !s.isOpen() ) {
+                continue;
+            }
+            int entry = index.entryBefore( s.index(), s.microsToPts( micros ) );
+            if( entry < 0 ) {
+                return false;
+            }
+            long pos = index.entryPos( s.index(), entry );
+            if( pos < 0 ) {
+                // Position unknown. Cannot compare streams.
+                return false;
+            }
+            if( firstStream == null || pos < firstPos ) {
+                firstStream = s;
+                firstPos    = pos;
+                firstPts    = index.entryPts( s.index(), entry );
+            }
+        }
+
+        if( firstStream == null ) {
+            return false;
+        }
+
+        preSeek();
+        mFormat.seek( firstStream.index(), firstPts, Jav.AVSEEK_FLAG_BACKWARD );
+        postSeek( firstStream.timeBase(), firstPts );
+        return true;
+    }
+
+
     private void assertOpen() throws IOException {
         if( !mIsOpen ) {
             throw new ClosedChannelException();
@@ -405,9 +891,22 @@ public class FormatReader implements PacketReader {
 
 
     private void preSeek() {
+        mResumeSeek  = false;
         mEof         = false;
         mPacketValid = false;
         mFlushStream = -1;
+        releaseCurrent();
+        if( mReadAhead != null ) {
+            mReadAhead.clear();
+        }
+    }
+
+
+    private void releaseCurrent() {
+        if( mCurrent != mPacket ) {
+            mCurrent.deref();
+            mCurrent = mPacket;
+        }
     }
 
 
@@ -424,6 +923,117 @@ public class FormatReader implements PacketReader {
     }
 
 
+    private void skipUntil( long micros ) {
+        if( !mAccurateSeek ) {
+            return;
+        }
+        for( ReaderStream ss : mStreams ) {
+            ss.skipUntil( micros );
+        }
+    }
+
+
+    /**
+     * @return next packet from cache, or {@code null} if packets must be demuxed. If the served range
+     *         has ended before end of file, the demuxer is positioned to continue after it.
+     */
+    private JavPacket readCached() throws IOException {
+        if( !mCache.isServing() ) {
+            return null;
+        }
+        JavPacket ret = mCache.next( openMask() );
+        if( ret != null || mCache.servedEof() ) {
+            return ret;
+        }
+
+        resumeDemux( mCache.resume() );
+        return null;
+    }
+
+    /**
+     * Positions demuxer to continue after packets served from cache.
+     */
+    private void resumeDemux( long micros ) {
+        ReaderStream s = mSeekStreams[0];
+        if( micros == Long.MIN_VALUE || !s.isOpen() ) {
+            mCache.endRun();
+            return;
+        }
+        // Decoders are not flushed. Packets already served are dropped by recordPacket().
+        synchronized( mFormatLock ) {
+            mFormat.seek( s.index(), s.microsToPts( micros ), Jav.AVSEEK_FLAG_BACKWARD );
+            if( mReadAhead != null ) {
+                mReadAhead.clear();
+            }
+        }
+    }
+
+    /**
+     * Records demuxed packet in cache.
+     *
+     * @return false if packet was already served from the cache and should be dropped.
+     */
+    private boolean recordPacket() {
+        int idx = mCurrent.streamIndex();
+        if( idx < 0 || idx >= mStreams.length ) {
+            return true;
+        }
+        if( mCache.skipResumed( mCurrent, idx ) ) {
+            return false;
+        }
+        long pts = mCurrent.pts();
+        if( pts == Jav.AV_NOPTS_VALUE ) {
+            pts = mCurrent.dts();
+        }
+        long micros = pts == Jav.AV_NOPTS_VALUE ? Long.MIN_VALUE : mStreams[idx].ptsToMicros( pts );
+        mCache.record( mCurrent, idx, micros, openMask() );
+        return true;
+    }
+
+
+    private long openMask() {
+        long mask = 0;
+        for( int i = 0; i < mStreams.length; i++ ) {
+            if( mStreams[i].isOpen() ) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+
+    private void streamsChanged() throws IOException {
+        if( mCache == null ) {
+            return;
+        }
+        if( mCache.isServing() ) {
+            // Cached range does not match new set of streams. Continue from demuxer.
+            resumeDemux( mCache.stopServing() );
+        }
+        mCache.endRecording();
+    }
+
+
+    private void resumeAfterKeyframeOnly() throws IOException {
+        long micros = Long.MIN_VALUE;
+        for( ReaderStream ss : mStreams ) {
+            if( ss instanceof VideoStream && ss.isOpen() ) {
+                micros = Math.max( micros, ( (VideoStream)ss ).mLastStop );
+            }
+        }
+        if( micros == Long.MIN_VALUE ) {
+            return;
+        }
+
+        synchronized( mFormatLock ) {
+            doSeekAll( micros );
+            for( ReaderStream ss : mStreams ) {
+                ss.skipUntil( micros );
+            }
+        }
+    }
+
+
     private ReaderStream updateSeekStream() {
         if( mSeekStreams.length == 0 ) {
             return null;
@@ -460,6 +1070,11 @@ public class FormatReader implements PacketReader {
 
         long mSeekResults = Long.MIN_VALUE;
 
+        // Accurate seek target. Long.MIN_VALUE when not skipping.
+        long mSkipMicros = Long.MIN_VALUE;
+        long mSkipPts    = Long.MIN_VALUE;
+        long mFedEndPts  = Long.MIN_VALUE;
+
         ReaderStream( JavStream stream ) {
             mStream = stream;
             mGuid   = Guid.create();
@@ -501,7 +1116,6 @@ public class FormatReader implements PacketReader {
             mTimer.init( startSrcPts, startDstMicros );
         }
 
-        @SuppressWarnings( "unused" )
         public long ptsToMicros( long pts ) {
             return mTimer.ptsToMicros( pts );
         }
@@ -517,6 +1131,44 @@ public class FormatReader implements PacketReader {
         }
 
 
+        /**
+         * Starts discarding decoded data that ends at or before {@code micros}.
+         */
+        void skipUntil( long micros ) {
+            mSkipMicros = micros;
+            mSkipPts    = mTimer.microsToPts( micros );
+            mFedEndPts  = Long.MIN_VALUE;
+        }
+
+
+        void endSkip() {
+            mSkipMicros = Long.MIN_VALUE;
+        }
+
+        /**
+         * Records a packet about to be decoded.
+         *
+         * @return true if no frame the decoder can output after receiving this packet reaches the
+         *         skip target, so output may go to the scratch frame.
+         */
+        boolean feedBeforeTarget( JavPacket packet, boolean flushing ) {
+            if( flushing ) {
+                return false;
+            }
+            long pts = packet.pts();
+            if( pts == Jav.AV_NOPTS_VALUE ) {
+                pts = packet.dts();
+            }
+            if( pts == Jav.AV_NOPTS_VALUE ) {
+                return false;
+            }
+            long end = pts + Math.max( 0, packet.duration() );
+            if( end > mFedEndPts ) {
+                mFedEndPts = end;
+            }
+            return mFedEndPts <= mSkipPts;
+        }
+
         public abstract void open( PacketAllocator<DrawPacket> alloc ) throws JavException;
 
         public abstract boolean isOpen();
@@ -544,6 +1196,17 @@ public class FormatReader implements PacketReader {
         private PacketAllocator<DrawPacket> mAlloc        = null;
         private boolean                     mHasKeyFrame  = false;
         private DrawPacket                  mCurrentFrame = null;
+        private DrawPacket                  mScratch      = null;
+        private boolean                     mSkipNonRef   = false;
+
+        private volatile boolean mKeyOnly     = false;
+        private boolean          mWasKeyOnly  = false;
+        // Discard non-key packets until the decoder has a reference frame again.
+        private boolean          mAwaitKey    = false;
+        private long             mLastKeyStart = Long.MIN_VALUE;
+        private long             mKeyInterval  = 0;
+        // Unstretched end of last returned frame.
+        long mLastStop = Long.MIN_VALUE;
 
 
         VideoStream( JavStream stream ) {
@@ -610,6 +1273,14 @@ public class FormatReader implements PacketReader {
                 mCurrentFrame.deref();
                 mCurrentFrame = null;
             }
+            if( mScratch != null ) {
+                mScratch.deref();
+                mScratch = null;
+            }
+            mSkipNonRef = false;
+            mAwaitKey   = false;
+            mLastStop   = Long.MIN_VALUE;
+            endSkip();
         }
 
         @Override
@@ -622,6 +1293,27 @@ public class FormatReader implements PacketReader {
                 return null;
             }
 
+            boolean keyOnly = mKeyOnly;
+            if( keyOnly != mWasKeyOnly ) {
+                mWasKeyOnly   = keyOnly;
+                mAwaitKey     = !keyOnly;
+                mLastKeyStart = Long.MIN_VALUE;
+                mKeyInterval  = 0;
+            }
+            if( !flushing && ( keyOnly || mAwaitKey ) ) {
+                if( ( packet.flags() & Jav.AV_PKT_FLAG_KEY ) == 0 ) {
+                    mTimer.packetSkipped( packet.pts(), packet.duration(), mRange );
+                    packet.moveDataPointer( packet.size() );
+                    return null;
+                }
+                mAwaitKey = false;
+            }
+
+            if( mSkipMicros != Long.MIN_VALUE && feedBeforeTarget( packet, flushing ) ) {
+                return processScratch( packet );
+            }
+            skipNonRef( false );
+
             DrawPacket ret = mCurrentFrame;
             mCurrentFrame = null;
             if( ret == null ) {
@@ -647,7 +1339,27 @@ public class FormatReader implements PacketReader {
             }
 
             mHasKeyFrame = true;
-            ret.init( mFormat, mRange[0], mRange[1], false );
+            if( mSkipMicros != Long.MIN_VALUE ) {
+                if( mRange[1] <= mSkipMicros ) {
+                    ret.deref();
+                    return null;
+                }
+                endSkip();
+            }
+
+            long start = mRange[0];
+            long stop  = mRange[1];
+            mLastStop = stop;
+            if( keyOnly ) {
+                // Cover span of skipped frames, estimated from previous keyframe interval.
+                if( mLastKeyStart != Long.MIN_VALUE && start > mLastKeyStart ) {
+                    mKeyInterval = start - mLastKeyStart;
+                }
+                mLastKeyStart = start;
+                stop = Math.max( stop, start + mKeyInterval );
+            }
+
+            ret.init( mFormat, start, stop, false );
             ret.stream( this );
 
             return ret;
@@ -656,6 +1368,8 @@ public class FormatReader implements PacketReader {
         @Override
         public void seekPts( long pts ) {
             mTimer.seekPts( pts );
+            endSkip();
+            mLastKeyStart = Long.MIN_VALUE;
             if( mIsOpen ) {
                 mCodecContext.flushBuffers();
             }
@@ -664,11 +1378,53 @@ public class FormatReader implements PacketReader {
         @Override
         public void seekMicros( long micros ) {
             mTimer.seekMicros( micros );
+            endSkip();
+            mLastKeyStart = Long.MIN_VALUE;
             if( mIsOpen ) {
                 mCodecContext.flushBuffers();
             }
         }
 
+
+        void keyframeOnly( boolean keyOnly ) {
+            mKeyOnly = keyOnly;
+        }
+
+
+        private Packet processScratch( JavPacket packet ) throws IOException {
+            if( mScratch == null ) {
+                mScratch = DrawPacket.createEmpty( null );
+            }
+            skipNonRef( true );
+            mScratch.unrefData();
+
+            int n = mCodecContext.decodeVideo( packet, mScratch, mGotFrame );
+            if( n < 0 ) {
+                throw new JavException( n );
+            }
+            packet.moveDataPointer( n );
+
+            if( mGotFrame[0] != 0 ) {
+                mTimer.packetDecoded( mScratch.bestEffortTimestamp(), mScratch.packetDuration(), mRange );
+                if( mScratch.isKeyFrame() ) {
+                    mHasKeyFrame = true;
+                }
+            }
+            return null;
+        }
+
+
+        private void skipNonRef( boolean skip ) {
+            if( skip == mSkipNonRef ) {
+                return;
+            }
+            mSkipNonRef = skip;
+            JavOption.setLong( mCodecContext,
+                               "skip_frame",
+                               skip ? Jav.AVDISCARD_NONREF : Jav.AVDISCARD_DEFAULT,
+                               0 );
+        }
+
     }
 
 
@@ -682,6 +1438,7 @@ public class FormatReader implements PacketReader {
         private boolean                     mIsOpen       = false;
         private PacketAllocator<DrawPacket> mAlloc        = null;
         private DrawPacket                  mCurrentFrame = null;
+        private DrawPacket                  mScratch      = null;
 
 
         AudioStream( JavStream stream ) {
@@ -735,6 +1492,11 @@ public class FormatReader implements PacketReader {
                 } catch( Exception ignore ) {
                 }
             }
+            if( mScratch != null ) {
+                mScratch.deref();
+                mScratch = null;
+            }
+            endSkip();
         }
 
         @Override
@@ -747,11 +1509,21 @@ public class FormatReader implements PacketReader {
                 return null;
             }
 
-            DrawPacket ret = mCurrentFrame;
-            mCurrentFrame = null;
+            boolean scratch = mSkipMicros != Long.MIN_VALUE && feedBeforeTarget( packet, flushing );
+            DrawPacket ret;
 
-            if( ret == null ) {
-                ret = mAlloc.alloc( mFormat, -1 );
+            if( scratch ) {
+                if( mScratch == null ) {
+                    mScratch = DrawPacket.createEmpty( null );
+                }
+                ret = mScratch;
+                ret.unrefData();
+            } else {
+                ret = mCurrentFrame;
+                mCurrentFrame = null;
+                if( ret == null ) {
+                    ret = mAlloc.alloc( mFormat, -1 );
+                }
             }
 
             int n = mCodecContext.decodeAudio( packet, ret, mGotFrame );
@@ -761,11 +1533,24 @@ public class FormatReader implements PacketReader {
                 packet.moveDataPointer( n );
             }
             if( mGotFrame[0] == 0 ) {
-                mCurrentFrame = ret;
+                if( !scratch ) {
+                    mCurrentFrame = ret;
+                }
                 return null;
             }
 
             mTimer.packetDecoded( ret.bestEffortTimestamp(), ret.packetDuration(), mRange );
+            if( scratch ) {
+                return null;
+            }
+            if( mSkipMicros != Long.MIN_VALUE ) {
+                if( mRange[1] <= mSkipMicros ) {
+                    ret.deref();
+                    return null;
+                }
+                endSkip();
+            }
+
             ret.init( mFormat, mRange[0], mRange[1], false );
             ret.stream( this );
             return ret;
@@ -774,6 +1559,7 @@ public class FormatReader implements PacketReader {
         @Override
         public void seekPts( long pts ) {
             mTimer.seekPts( pts );
+            endSkip();
             if( mIsOpen ) {
                 mCodecContext.flushBuffers();
             }
@@ -782,6 +1568,7 @@ public class FormatReader implements PacketReader {
         @Override
         public void seekMicros( long micros ) {
             mTimer.seekMicros( micros );
+            endSkip();
             if( mIsOpen ) {
                 mCodecContext.flushBuffers();
             }
@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import bits.jav.Jav;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Keeps FormatReaders open and warmed so that switching between clips does not pay for opening the
+ * file, probing streams, opening codecs and decoding the first keyframe. A warmed reader has its first
+ * video and first audio stream open, has decoded the first packet of each, and is positioned back at
+ * its start, so its decoders are open and its packet pools hold memory for at least one frame.
+ * <p>
+ * Files are warmed on a background thread when hinted with {@link #hint(File)}, and readers given back
+ * with {@link #release(FormatReader)} are repositioned at their start and kept. {@link #acquire(File)}
+ * takes a warmed reader if one is available, waits for one being warmed, and otherwise opens the file on
+ * the calling thread. Idle readers are closed in least-recently-used order when there are more than
+ * {@code maxOpen} of them, or when their estimated memory exceeds {@code maxBytes}. Memory of a reader
+ * is estimated by {@link PacketBytes} of its first decoded packets.
+ * <p>
+ * Readers are owned by the caller between acquire and release. A reader that is not released must be
+ * closed by the caller.
+ *
+ * @author Philip DeCamp
+ */
+public class FormatReaderPool {
+
+    private static final Logger sLog = Logger.getLogger( FormatReaderPool.class.getName() );
+
+    // Maximum packets read while looking for first packet of each stream.
+    private static final int MAX_PRIME_PACKETS = 512;
+
+
+    private final int           mMaxOpen;
+    private final long          mMaxBytes;
+    private final boolean       mZeroStart;
+    private final MemoryManager mMem;
+
+    // Idle and pending entries in LRU order.
+    private final LinkedHashMap<String, Entry> vIdle     = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+    private final Map<FormatReader, Entry>     vAcquired = new IdentityHashMap<FormatReader, Entry>();
+    private final ArrayDeque<Entry>            vQueue    = new ArrayDeque<Entry>();
+
+    private final Thread mThread;
+
+    private boolean vOpen   = true;
+    private long    vBytes  = 0;
+    private long    vHits   = 0;
+    private long    vMisses = 0;
+
+
+    /**
+     * @param maxOpen  Maximum number of idle readers kept open, including those being warmed.
+     * @param maxBytes Maximum estimated memory of idle readers.
+     */
+    public FormatReaderPool( int maxOpen, long maxBytes ) {
+        this( maxOpen, maxBytes, false, null );
+    }
+
+    /**
+     * @param maxOpen   Maximum number of idle readers kept open, including those being warmed.
+     * @param maxBytes  Maximum estimated memory of idle readers.
+     * @param zeroStart If true, timestamps of each file are shifted to start at 0.
+     * @param optMem    Memory manager shared by all readers, or {@code null} for one per reader.
+     */
+    public FormatReaderPool( int maxOpen, long maxBytes, boolean zeroStart, MemoryManager optMem ) {
+        mMaxOpen   = maxOpen;
+        mMaxBytes  = maxBytes;
+        mZeroStart = zeroStart;
+        mMem       = optMem;
+        mThread   = new Thread( "FormatReaderPool" ) {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        };
+        mThread.setDaemon( true );
+        mThread.start();
+    }
+
+    /**
+     * Requests that {@code file} be opened and warmed in the background. Has no effect if the file is
+     * already idle or pending.
+     */
+    public synchronized void hint( File file ) {
+        if( !vOpen ) {
+            return;
+        }
+        String key = keyOf( file );
+        Entry e = vIdle.get( key );
+        if( e != null ) {
+            return;
+        }
+        e = new Entry( key, file );
+        vIdle.put( key, e );
+        vQueue.offer( e );
+        notifyAll();
+        evict();
+    }
+
+    /**
+     * @return warmed reader for {@code file}, positioned at its start. Caller owns returned reader until it
+     *         is given to {@link #release(FormatReader)}.
+     */
+    public FormatReader acquire( File file ) throws IOException {
+        String key = keyOf( file );
+        Entry e;
+
+        synchronized( this ) {
+            if( !vOpen ) {
+                throw new IOException( "Pool closed." );
+            }
+
+            while( true ) {
+                e = vIdle.get( key );
+                if( e == null || e.mState != Entry.WARMING ) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch( InterruptedException ex ) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            if( e != null ) {
+                vIdle.remove( key );
+                vQueue.remove( e );
+                if( e.mState == Entry.READY ) {
+                    vBytes -= e.mCost;
+                    if( e.mError != null ) {
+                        // Failed warming. Try again on this thread.
+                        e = null;
+                    } else {
+                        vHits++;
+                        e.mState = Entry.ACQUIRED;
+                        vAcquired.put( e.mReader, e );
+                        return e.mReader;
+                    }
+                } else if( e.mReader == null ) {
+                    // Queued but not started.
+                    e = null;
+                }
+            }
+            // A released reader waiting to be repositioned is still open.
+            if( e == null ) {
+                vMisses++;
+            } else {
+                vHits++;
+            }
+        }
+
+        if( e == null ) {
+            e = new Entry( key, file );
+        }
+        warm( e );
+        if( e.mError != null ) {
+            throw e.mError;
+        }
+
+        synchronized( this ) {
+            e.mState = Entry.ACQUIRED;
+            vAcquired.put( e.mReader, e );
+        }
+        return e.mReader;
+    }
+
+    /**
+     * Returns reader to pool. The reader is repositioned at its start in the background and kept for
+     * later use. Readers not acquired from this pool are closed.
+     */
+    public void release( FormatReader reader ) throws IOException {
+        synchronized( this ) {
+            Entry e = vAcquired.remove( reader );
+            if( e != null && vOpen && !vIdle.containsKey( e.mKey ) ) {
+                e.mState = Entry.QUEUED;
+                vIdle.put( e.mKey, e );
+                vQueue.offer( e );
+                notifyAll();
+                evict();
+                return;
+            }
+        }
+        reader.close();
+    }
+
+    /**
+     * @return number of idle readers, including those pending or being warmed.
+     */
+    public synchronized int idleNum() {
+        return vIdle.size();
+    }
+
+    /**
+     * @return estimated memory of idle readers.
+     */
+    public synchronized long idleBytes() {
+        return vBytes;
+    }
+
+    /**
+     * @return number of calls to acquire that found an open reader.
+     */
+    public synchronized long hitNum() {
+        return vHits;
+    }
+
+    /**
+     * @return number of calls to acquire that opened the file on the calling thread.
+     */
+    public synchronized long missNum() {
+        return vMisses;
+    }
+
+    /**
+     * Closes all idle readers and stops background warming. Acquired readers remain open and owned
+     * by the caller.
+     */
+    public void close() {
+        List<Entry> idle;
+        synchronized( this ) {
+            if( !vOpen ) {
+                return;
+            }
+            vOpen = false;
+            vQueue.clear();
+            notifyAll();
+        }
+
+        boolean interrupted = false;
+        while( mThread.isAlive() ) {
+            try {
+                mThread.join();
+            } catch( InterruptedException ex ) {
+                interrupted = true;
+            }
+        }
+        if( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized( this ) {
+            idle = new ArrayList<Entry>( vIdle.values() );
+            vIdle.clear();
+            vAcquired.clear();
+            vBytes = 0;
+        }
+        for( Entry e : idle ) {
+            closeQuietly( e );
+        }
+    }
+
+
+
+    private void runLoop() {
+        while( true ) {
+            Entry e;
+            synchronized( this ) {
+                while( vOpen && vQueue.isEmpty() ) {
+                    try {
+                        wait();
+                    } catch( InterruptedException ignored ) {}
+                }
+                if( !vOpen ) {
+                    return;
+                }
+                e = vQueue.poll();
+                e.mState = Entry.WARMING;
+            }
+
+            warm( e );
+
+            boolean keep;
+            synchronized( this ) {
+                e.mState = Entry.READY;
+                keep = vOpen && vIdle.get( e.mKey ) == e;
+                if( keep ) {
+                    vBytes += e.mCost;
+                    evict();
+                }
+                notifyAll();
+            }
+            if( !keep ) {
+                closeQuietly( e );
+            }
+        }
+    }
+
+    /**
+     * Opens reader of entry if needed, primes it and positions it at start. Errors are stored in entry.
+     */
+    private void warm( Entry e ) {
+        try {
+            if( e.mReader == null ) {
+                e.mReader = FormatReader.openFile( e.mFile, mZeroStart, 0L, mMem );
+                prime( e );
+            } else {
+                e.mReader.seekAll( e.mStartMicros );
+            }
+            e.mError = null;
+        } catch( IOException ex ) {
+            sLog.log( Level.FINE, "Could not warm reader: " + e.mFile, ex );
+            e.mError = ex;
+            e.mCost  = 0;
+            if( e.mReader != null ) {
+                closeQuietly( e );
+            }
+        }
+    }
+
+
+    private static void prime( Entry e ) throws IOException {
+        FormatReader reader = e.mReader;
+        List<Stream> streams = new ArrayList<Stream>( 2 );
+        Stream video = reader.stream( Jav.AVMEDIA_TYPE_VIDEO, 0 );
+        Stream audio = reader.stream( Jav.AVMEDIA_TYPE_AUDIO, 0 );
+        if( video != null ) {
+            streams.add( video );
+        }
+        if( audio != null ) {
+            streams.add( audio );
+        }
+        for( Stream s : streams ) {
+            reader.openStream( s );
+        }
+
+        long start = Long.MAX_VALUE;
+        long cost  = 0;
+        int  count = 0;
+        while( !streams.isEmpty() && count++ < MAX_PRIME_PACKETS ) {
+            Packet p;
+            try {
+                p = reader.readNext();
+            } catch( EOFException ex ) {
+                break;
+            }
+            if( p == null ) {
+                continue;
+            }
+            if( streams.remove( p.stream() ) ) {
+                start = Math.min( start, p.startMicros() );
+                cost += PacketBytes.costOf( p );
+            }
+            p.deref();
+        }
+
+        e.mStartMicros = start == Long.MAX_VALUE ? 0 : start;
+        e.mCost = cost;
+        reader.seekAll( e.mStartMicros );
+    }
+
+    /**
+     * Closes least recently used idle readers until within budget. Readers being warmed are not closed
+     * here, and are dropped when warming completes if they have been removed.
+     */
+    private void evict() {
+        Iterator<Entry> iter = vIdle.values().iterator();
+        while( ( vIdle.size() > mMaxOpen || vBytes > mMaxBytes ) && iter.hasNext() ) {
+            Entry e = iter.next();
+            if( e.mState == Entry.WARMING ) {
+                continue;
+            }
+            iter.remove();
+            vQueue.remove( e );
+            if( e.mState == Entry.READY ) {
+                vBytes -= e.mCost;
+            }
+            closeQuietly( e );
+        }
+    }
+
+
+    private static void closeQuietly( Entry e ) {
+        FormatReader r = e.mReader;
+        e.mReader = null;
+        if( r == null ) {
+            return;
+        }
+        try {
+            r.close();
+        } catch( IOException ex ) {
+            sLog.log( Level.FINE, "Failed to close reader: " + e.mFile, ex );
+        }
+    }
+
+
+    private static String keyOf( File file ) {
+        return file.getAbsolutePath();
+    }
+
+
+    private static final class Entry {
+        static final int QUEUED   = 0;
+        static final int WARMING  = 1;
+        static final int READY    = 2;
+        static final int ACQUIRED = 3;
+
+        final String mKey;
+        final File   mFile;
+
+        int          mState       = QUEUED;
+        FormatReader mReader      = null;
+        long         mStartMicros = 0;
+        long         mCost        = 0;
+        IOException  mError       = null;
+
+        Entry( String key, File file ) {
+            mKey  = key;
+            mFile = file;
+        }
+    }
+
+}
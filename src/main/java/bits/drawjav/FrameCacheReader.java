@@ -0,0 +1,447 @@
+package bits.drawjav;
+
+import bits.jav.Jav;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * PacketReader that keeps recently decoded packets from an underlying reader in a byte-limited LRU cache,
+ * so that seeks and frame steps back over recently played material are served without touching the
+ * underlying demuxer or decoder.
+ * <p>
+ * Packets are cached per stream and indexed by presentation time. Packets read consecutively from the
+ * underlying reader are linked into runs. A seek is served from the cache when, for every open stream,
+ * a cached packet covers the target. Packets are then returned from the cached runs in timestamp order.
+ * When a run ends, the underlying reader is seeked to the end of the run and packets already returned
+ * are skipped, after which reading continues as normal.
+ * <p>
+ * By default only video streams are cached. Seeks cannot be served from the cache while an uncached
+ * stream is open. Each cached packet holds one reference. Returned packets carry their own reference.
+ *
+ * @author Philip DeCamp
+ */
+public class FrameCacheReader implements AsyncPacketReader {
+
+    private final PacketReader mReader;
+    private final long         mMaxBytes;
+
+    private final Map<Stream, StreamCache> mCaches = new HashMap<Stream, StreamCache>();
+    private final LinkedHashSet<Entry>     mLru    = new LinkedHashSet<Entry>();
+
+    private long mBytes = 0;
+
+    // True while packets are being returned from the cache.
+    private boolean mCacheMode = false;
+
+    private long mSeekHits     = 0;
+    private long mSeekMisses   = 0;
+    private long mPacketHits   = 0;
+    private long mPacketMisses = 0;
+    private long mEvictions    = 0;
+
+
+    public FrameCacheReader( PacketReader reader, long maxBytes ) {
+        this( reader, maxBytes, false );
+    }
+
+    /**
+     * @param reader     Underlying reader. Closed when this reader is closed.
+     * @param maxBytes   Byte budget of cache, measured with {@link PacketBytes}.
+     * @param cacheAudio If true, audio streams are cached along with video.
+     */
+    public FrameCacheReader( PacketReader reader, long maxBytes, boolean cacheAudio ) {
+        mReader   = reader;
+        mMaxBytes = maxBytes;
+
+        int len = reader.streamCount();
+        for( int i = 0; i < len; i++ ) {
+            Stream s = reader.stream( i );
+            StreamFormat fmt = s.format();
+            if( fmt != null && ( fmt.mType == Jav.AVMEDIA_TYPE_VIDEO || cacheAudio && fmt.mType == Jav.AVMEDIA_TYPE_AUDIO ) ) {
+                mCaches.put( s, new StreamCache() );
+            }
+        }
+    }
+
+
+    @Override
+    public int streamCount() {
+        return mReader.streamCount();
+    }
+
+    @Override
+    public Stream stream( int index ) {
+        return mReader.stream( index );
+    }
+
+    @Override
+    public List<Stream> streams() {
+        return mReader.streams();
+    }
+
+    @Override
+    public synchronized void openStream( Stream stream ) throws IOException {
+        mReader.openStream( stream );
+    }
+
+    @Override
+    public synchronized void closeStream( Stream stream ) throws IOException {
+        mReader.closeStream( stream );
+        StreamCache c = mCaches.get( stream );
+        if( c != null ) {
+            // Run linkage breaks while stream is not read.
+            c.mLast   = null;
+            c.mCursor = null;
+        }
+    }
+
+    @Override
+    public boolean isStreamOpen( Stream stream ) {
+        return mReader.isStreamOpen( stream );
+    }
+
+    @Override
+    public synchronized void seek( long micros ) throws IOException {
+        if( serveFromCache( micros ) ) {
+            mSeekHits++;
+            return;
+        }
+
+        mSeekMisses++;
+        mCacheMode = false;
+        for( StreamCache c : mCaches.values() ) {
+            c.mCursor    = null;
+            c.mLast      = null;
+            c.mSkipUntil = Long.MIN_VALUE;
+        }
+        mReader.seek( micros );
+    }
+
+    @Override
+    public synchronized Packet readNext() throws IOException {
+        if( mCacheMode ) {
+            Packet p = readCached();
+            if( p != null ) {
+                mPacketHits++;
+                return p;
+            }
+        }
+
+        Packet p = mReader.readNext();
+        if( p == null ) {
+            return null;
+        }
+
+        StreamCache c = mCaches.get( p.stream() );
+        if( c == null ) {
+            return p;
+        }
+
+        if( p.startMicros() < c.mSkipUntil ) {
+            // Already returned from cache before resuming underlying reader.
+            c.insert( p, false );
+            p.deref();
+            return null;
+        }
+
+        mPacketMisses++;
+        Entry e = c.insert( p, true );
+        if( e.mPacket != p ) {
+            // Already cached. Return cached instance so that equal frames are shared.
+            p.deref();
+            e.mPacket.ref();
+            p = e.mPacket;
+        }
+        c.mLast = e;
+        return p;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized( this ) {
+            for( Entry e : mLru ) {
+                e.mPacket.deref();
+            }
+            mLru.clear();
+            mCaches.clear();
+            mBytes = 0;
+            mCacheMode = false;
+        }
+        mReader.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mReader.isOpen();
+    }
+
+    @Override
+    public void readyListener( Runnable optListener ) {
+        if( mReader instanceof AsyncPacketReader ) {
+            ( (AsyncPacketReader)mReader ).readyListener( optListener );
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return !( mReader instanceof AsyncPacketReader ) || ( (AsyncPacketReader)mReader ).isReady();
+    }
+
+    /**
+     * Releases all cached packets.
+     */
+    public synchronized void clearCache() throws IOException {
+        if( mCacheMode ) {
+            // Remaining packets must come from underlying reader.
+            resume();
+        }
+        for( Entry e : mLru ) {
+            e.mPacket.deref();
+        }
+        mLru.clear();
+        for( StreamCache c : mCaches.values() ) {
+            c.mByStart.clear();
+            c.mLast = null;
+        }
+        mBytes = 0;
+    }
+
+
+    public synchronized long cachedBytes() {
+        return mBytes;
+    }
+
+
+    public synchronized int cachedPacketNum() {
+        return mLru.size();
+    }
+
+    /**
+     * @return number of seeks served from cache.
+     */
+    public synchronized long seekHits() {
+        return mSeekHits;
+    }
+
+    /**
+     * @return number of seeks passed to underlying reader.
+     */
+    public synchronized long seekMisses() {
+        return mSeekMisses;
+    }
+
+    /**
+     * @return fraction of seeks served from cache, or 0 if there have been no seeks.
+     */
+    public synchronized double seekHitRate() {
+        long total = mSeekHits + mSeekMisses;
+        return total == 0 ? 0.0 : (double)mSeekHits / total;
+    }
+
+    /**
+     * @return number of packets of cached streams returned from cache.
+     */
+    public synchronized long packetHits() {
+        return mPacketHits;
+    }
+
+    /**
+     * @return number of packets of cached streams returned from underlying reader.
+     */
+    public synchronized long packetMisses() {
+        return mPacketMisses;
+    }
+
+
+    public synchronized long evictionNum() {
+        return mEvictions;
+    }
+
+
+
+    private boolean serveFromCache( long micros ) {
+        boolean any = false;
+        for( Stream s : mReader.streams() ) {
+            if( !mReader.isStreamOpen( s ) ) {
+                continue;
+            }
+            StreamCache c = mCaches.get( s );
+            if( c == null || c.covering( micros ) == null ) {
+                return false;
+            }
+            any = true;
+        }
+        if( !any ) {
+            return false;
+        }
+
+        for( Map.Entry<Stream, StreamCache> item : mCaches.entrySet() ) {
+            StreamCache c = item.getValue();
+            c.mCursor    = mReader.isStreamOpen( item.getKey() ) ? c.covering( micros ) : null;
+            c.mLast      = null;
+            c.mSkipUntil = Long.MIN_VALUE;
+        }
+        mCacheMode = true;
+        return true;
+    }
+
+    /**
+     * @return next cached packet, or {@code null} if a run ended and the underlying reader has
+     *         been positioned to continue.
+     */
+    private Packet readCached() throws IOException {
+        StreamCache next = null;
+        for( StreamCache c : mCaches.values() ) {
+            if( c.mCursor != null && ( next == null || c.mCursor.mStart < next.mCursor.mStart ) ) {
+                next = c;
+            }
+        }
+
+        if( next != null ) {
+            Entry e = next.mCursor;
+            next.mLast   = e;
+            next.mCursor = e.mNext;
+            touch( e );
+            if( next.mCursor != null ) {
+                e.mPacket.ref();
+                return e.mPacket;
+            }
+            // Run ended. Return last packet and resume underlying reader after it.
+            e.mPacket.ref();
+            resume();
+            return e.mPacket;
+        }
+
+        resume();
+        return null;
+    }
+
+
+    private void resume() throws IOException {
+        mCacheMode = false;
+        long resume = Long.MAX_VALUE;
+        for( StreamCache c : mCaches.values() ) {
+            if( c.mLast != null ) {
+                c.mSkipUntil = c.mLast.mStop;
+                resume = Math.min( resume, c.mLast.mStop );
+            } else if( c.mCursor != null ) {
+                // Nothing returned yet on this stream.
+                resume = Math.min( resume, c.mCursor.mStart );
+            }
+            c.mCursor = null;
+        }
+        if( resume != Long.MAX_VALUE ) {
+            mReader.seek( resume );
+        }
+    }
+
+
+    private void touch( Entry e ) {
+        mLru.remove( e );
+        mLru.add( e );
+    }
+
+
+    private void evict() {
+        Iterator<Entry> iter = mLru.iterator();
+        while( mBytes > mMaxBytes && iter.hasNext() ) {
+            Entry e = iter.next();
+            if( mLru.size() == 1 ) {
+                break;
+            }
+            iter.remove();
+            e.mOwner.remove( e );
+            mBytes -= e.mCost;
+            mEvictions++;
+            e.mPacket.deref();
+        }
+    }
+
+
+    private static final class Entry {
+        final StreamCache mOwner;
+        final Packet      mPacket;
+        final long        mStart;
+        final long        mStop;
+        final long        mCost;
+
+        Entry mPrev = null;
+        Entry mNext = null;
+
+        Entry( StreamCache owner, Packet packet ) {
+            mOwner  = owner;
+            mPacket = packet;
+            mStart  = packet.startMicros();
+            mStop   = packet.stopMicros();
+            mCost   = PacketBytes.costOf( packet );
+        }
+    }
+
+
+    private final class StreamCache {
+        final TreeMap<Long, Entry> mByStart = new TreeMap<Long, Entry>();
+
+        // Last packet read or returned on stream. New packets from underlying reader link to it.
+        Entry mLast = null;
+        // Next packet to return from cache.
+        Entry mCursor = null;
+        // Packets from underlying reader that start before this time were already returned.
+        long mSkipUntil = Long.MIN_VALUE;
+
+
+        Entry covering( long micros ) {
+            Map.Entry<Long, Entry> item = mByStart.floorEntry( micros );
+            if( item == null || item.getValue().mStop <= micros ) {
+                return null;
+            }
+            return item.getValue();
+        }
+
+        /**
+         * Adds packet to cache. If a packet with the same start is already cached, returns that entry instead.
+         *
+         * @param link If true, links entry after {@code mLast} in a run.
+         */
+        Entry insert( Packet p, boolean link ) {
+            Entry e = mByStart.get( p.startMicros() );
+            if( e == null ) {
+                p.ref();
+                e = new Entry( this, p );
+                mByStart.put( e.mStart, e );
+                mLru.add( e );
+                mBytes += e.mCost;
+            } else {
+                touch( e );
+            }
+
+            Entry prev = link ? mLast : null;
+            if( prev != null && prev != e && prev.mNext == null && e.mPrev == null && e.mStart >= prev.mStart ) {
+                prev.mNext = e;
+                e.mPrev = prev;
+            }
+
+            evict();
+            return e;
+        }
+
+
+        void remove( Entry e ) {
+            mByStart.remove( e.mStart );
+            if( e.mPrev != null ) {
+                e.mPrev.mNext = null;
+            }
+            if( e.mNext != null ) {
+                e.mNext.mPrev = null;
+            }
+            if( mLast == e ) {
+                mLast = null;
+            }
+            if( mCursor == e ) {
+                mCursor = null;
+            }
+        }
+    }
+
+}
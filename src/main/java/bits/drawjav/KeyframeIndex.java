@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import bits.jav.Jav;
+import bits.jav.JavException;
+import bits.jav.codec.JavPacket;
+import bits.jav.format.JavFormatContext;
+import bits.jav.format.JavStream;
+import bits.jav.util.Rational;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Index of keyframe timestamps and byte positions for every stream of a media file. An index is built
+ * by scanning the file once with {@link #build(File)}, and may be saved in a sidecar file next to the
+ * media so that later sessions can load it with {@link #loadOrBuild(File)}. When given to
+ * {@link FormatReader#keyframeIndex(KeyframeIndex)}, seeks go directly to the keyframe preceding the
+ * target, without probing each stream.
+ * <p>
+ * Timestamps are stored in the time base of each stream. For streams where consecutive packets are all
+ * keyframes, such as most audio, entries are kept no closer than {@link #MIN_SPACING_MICROS}.
+ * <p>
+ * Sidecar layout, all big-endian:
+ * <pre>
+ * int MAGIC, int VERSION, long mediaLength, long mediaModified, int streamCount
+ * per stream: int tbNum, int tbDen, int entryNum, then per entry: varlong ptsDelta, varlong posDelta
+ * </pre>
+ * Deltas are zig-zag encoded against the previous entry of the stream.
+ *
+ * @author Philip DeCamp
+ */
+public class KeyframeIndex {
+
+    public static final String SIDECAR_SUFFIX     = ".kfi";
+    public static final long   MIN_SPACING_MICROS = 100000L;
+
+    private static final Logger sLog = Logger.getLogger( KeyframeIndex.class.getName() );
+
+    private static final int MAGIC   = 0x444A4B49; // "DJKI"
+    private static final int VERSION = 1;
+
+
+    /**
+     * @return sidecar file used for {@code media} by {@link #loadOrBuild(File)}.
+     */
+    public static File sidecarFile( File media ) {
+        return new File( media.getPath() + SIDECAR_SUFFIX );
+    }
+
+    /**
+     * Loads index from sidecar file of {@code media} if present and up to date. Otherwise, builds the
+     * index and attempts to write the sidecar. Failure to write sidecar is logged and otherwise ignored.
+     */
+    public static KeyframeIndex loadOrBuild( File media ) throws IOException {
+        File sidecar = sidecarFile( media );
+        if( sidecar.exists() ) {
+            try {
+                KeyframeIndex ret = read( sidecar );
+                if( ret.matches( media ) ) {
+                    return ret;
+                }
+            } catch( IOException ex ) {
+                sLog.log( Level.FINE, "Could not read keyframe index: " + sidecar, ex );
+            }
+        }
+
+        KeyframeIndex ret = build( media );
+        try {
+            ret.write( sidecar );
+        } catch( IOException ex ) {
+            sLog.log( Level.WARNING, "Could not write keyframe index: " + sidecar, ex );
+        }
+        return ret;
+    }
+
+    /**
+     * Scans {@code media} from start to end and records keyframes of every stream.
+     * Blocks until the scan is complete. Callers that do not want to wait can run it
+     * on another thread and pass the result to the reader when it finishes.
+     */
+    public static KeyframeIndex build( File media ) throws IOException {
+        Jav.init();
+        if( !media.exists() ) {
+            throw new FileNotFoundException( media.getPath() );
+        }
+
+        long length   = media.length();
+        long modified = media.lastModified();
+
+        JavFormatContext format = JavFormatContext.openInput( media );
+        JavPacket packet = JavPacket.alloc();
+
+        try {
+            int streamNum = format.streamCount();
+            Rational[] timeBases = new Rational[streamNum];
+            Builder[] builders = new Builder[streamNum];
+
+            for( int i = 0; i < streamNum; i++ ) {
+                JavStream s = format.stream( i );
+                s.discard( Jav.AVDISCARD_DEFAULT );
+                timeBases[i] = s.timeBase();
+                long spacing = Rational.rescaleQ( MIN_SPACING_MICROS, new Rational( 1, 1000000 ), timeBases[i] );
+                builders[i] = new Builder( spacing );
+            }
+
+            while( true ) {
+                int err = format.readPacket( packet );
+                if( err != 0 ) {
+                    if( err == Jav.AVERROR_EOF ) {
+                        break;
+                    }
+                    throw new JavException( err );
+                }
+
+                int idx = packet.streamIndex();
+                if( idx >= 0 && idx < streamNum ) {
+                    long pts = packet.pts();
+                    if( pts == Jav.AV_NOPTS_VALUE ) {
+                        pts = packet.dts();
+                    }
+                    builders[idx].add( pts, packet.pos(), ( packet.flags() & Jav.AV_PKT_FLAG_KEY ) != 0 );
+                }
+                packet.freeData();
+            }
+
+            long[][] pts = new long[streamNum][];
+            long[][] pos = new long[streamNum][];
+            for( int i = 0; i < streamNum; i++ ) {
+                pts[i] = Arrays.copyOf( builders[i].mPts, builders[i].mSize );
+                pos[i] = Arrays.copyOf( builders[i].mPos, builders[i].mSize );
+            }
+
+            return new KeyframeIndex( length, modified, timeBases, pts, pos );
+
+        } finally {
+            packet.deref();
+            format.close();
+        }
+    }
+
+
+    public static KeyframeIndex read( File file ) throws IOException {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        try {
+            if( in.readInt() != MAGIC ) {
+                throw new IOException( "Not a keyframe index: " + file );
+            }
+            int version = in.readInt();
+            if( version != VERSION ) {
+                throw new IOException( "Unsupported keyframe index version: " + version );
+            }
+
+            long length    = in.readLong();
+            long modified  = in.readLong();
+            int  streamNum = in.readInt();
+            if( streamNum < 0 ) {
+                throw new IOException( "Invalid stream count: " + streamNum );
+            }
+
+            Rational[] timeBases = new Rational[streamNum];
+            long[][] pts = new long[streamNum][];
+            long[][] pos = new long[streamNum][];
+
+            for( int i = 0; i < streamNum; i++ ) {
+                timeBases[i] = new Rational( in.readInt(), in.readInt() );
+                int n = in.readInt();
+                if( n < 0 ) {
+                    throw new IOException( "Invalid entry count: " + n );
+                }
+                pts[i] = new long[n];
+                pos[i] = new long[n];
+                long t = 0;
+                long p = 0;
+                for( int j = 0; j < n; j++ ) {
+                    t += readVarLong( in );
+                    p += readVarLong( in );
+                    pts[i][j] = t;
+                    pos[i][j] = p;
+                }
+            }
+
+            return new KeyframeIndex( length, modified, timeBases, pts, pos );
+        } finally {
+            in.close();
+        }
+    }
+
+
+
+    private final long       mMediaLength;
+    private final long       mMediaModified;
+    private final Rational[] mTimeBases;
+    private final long[][]   mPts;
+    private final long[][]   mPos;
+
+
+    KeyframeIndex( long mediaLength, long mediaModified, Rational[] timeBases, long[][] pts, long[][] pos ) {
+        mMediaLength   = mediaLength;
+        mMediaModified = mediaModified;
+        mTimeBases     = timeBases;
+        mPts           = pts;
+        mPos           = pos;
+    }
+
+
+    public int streamCount() {
+        return mPts.length;
+    }
+
+
+    public Rational timeBase( int stream ) {
+        return mTimeBases[stream];
+    }
+
+
+    public int entryCount( int stream ) {
+        return mPts[stream].length;
+    }
+
+    /**
+     * @return index of last keyframe of stream with timestamp {@code <= pts}, or -1 if none.
+     */
+    public int entryBefore( int stream, long pts ) {
+        long[] arr = mPts[stream];
+        int idx = Arrays.binarySearch( arr, pts );
+        if( idx >= 0 ) {
+            // Step to last of equal entries.
+            while( idx + 1 < arr.length && arr[idx + 1] == pts ) {
+                idx++;
+            }
+            return idx;
+        }
+        return -idx - 2;
+    }
+
+
+    public long entryPts( int stream, int entry ) {
+        return mPts[stream][entry];
+    }
+
+
+    public long entryPos( int stream, int entry ) {
+        return mPos[stream][entry];
+    }
+
+    /**
+     * @return true iff this index was built from a file with the same length and modification time as {@code media}.
+     */
+    public boolean matches( File media ) {
+        return media.length() == mMediaLength && media.lastModified() == mMediaModified;
+    }
+
+
+    public void write( File file ) throws IOException {
+        File tmp = new File( file.getPath() + ".tmp" );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+        boolean ok = false;
+        try {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeLong( mMediaLength );
+            out.writeLong( mMediaModified );
+            out.writeInt( mPts.length );
+            for( int i = 0; i < mPts.length; i++ ) {
+                out.writeInt( mTimeBases[i].num() );
+                out.writeInt( mTimeBases[i].den() );
+                out.writeInt( mPts[i].length );
+                long t = 0;
+                long p = 0;
+                for( int j = 0; j < mPts[i].length; j++ ) {
+                    writeVarLong( out, mPts[i][j] - t );
+                    writeVarLong( out, mPos[i][j] - p );
+                    t = mPts[i][j];
+                    p = mPos[i][j];
+                }
+            }
+            out.close();
+            ok = true;
+        } finally {
+            if( !ok ) {
+                try {
+                    out.close();
+                } catch( IOException ignored ) {}
+                tmp.delete();
+            }
+        }
+
+        if( !tmp.renameTo( file ) ) {
+            file.delete();
+            if( !tmp.renameTo( file ) ) {
+                tmp.delete();
+                throw new IOException( "Could not write keyframe index: " + file );
+            }
+        }
+    }
+
+
+
+    private static void writeVarLong( DataOutput out, long v ) throws IOException {
+        v = ( v << 1 ) ^ ( v >> 63 );
+        while( ( v & ~0x7FL ) != 0 ) {
+            out.writeByte( (int)( ( v & 0x7F ) | 0x80 ) );
+            v >>>= 7;
+        }
+        out.writeByte( (int)v );
+    }
+
+
+    private static long readVarLong( DataInput in ) throws IOException {
+        long v = 0;
+        for( int shift = 0; shift < 64; shift += 7 ) {
+            int b = in.readUnsignedByte();
+            v |= (long)( b & 0x7F ) << shift;
+            if( ( b & 0x80 ) == 0 ) {
+                return ( v >>> 1 ) ^ -( v & 1 );
+            }
+        }
+        throw new IOException( "Malformed varlong." );
+    }
+
+
+    private static final class Builder {
+        final long mSpacing;
+
+        long[] mPts = new long[64];
+        long[] mPos = new long[64];
+        int mSize = 0;
+
+        boolean mPrevKey = false;
+
+        Builder( long spacing ) {
+            mSpacing = spacing;
+        }
+
+        void add( long pts, long pos, boolean key ) {
+            boolean prevKey = mPrevKey;
+            mPrevKey = key;
+            if( !key || pts == Jav.AV_NOPTS_VALUE ) {
+                return;
+            }
+            if( mSize > 0 ) {
+                long last = mPts[mSize - 1];
+                // Out of order keyframes cannot be searched. Runs of keyframes are thinned.
+                if( pts <= last || prevKey && pts - last < mSpacing ) {
+                    return;
+                }
+            }
+            if( mSize == mPts.length ) {
+                mPts = Arrays.copyOf( mPts, mSize * 2 );
+                mPos = Arrays.copyOf( mPos, mSize * 2 );
+            }
+            mPts[mSize] = pts;
+            mPos[mSize] = pos;
+            mSize++;
+        }
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import java.util.*;
+
+
+/**
+ * Intrinsic min-heap ordered by primitive long keys. Like {@link PrioHeap}, nodes carry their own
+ * heap index so that no wrapper objects are allocated and arbitrary nodes can be removed or
+ * rescheduled in O(log n). Unlike PrioHeap, keys are stored in a parallel {@code long[]}, so
+ * sifting compares primitives without dereferencing nodes or calling a comparator.
+ * <p>
+ * The heap may be binary or 4-ary. A 4-ary layout performs fewer levels of moves per operation
+ * and keeps siblings adjacent in memory, which tends to help deep heaps.
+ * <p>
+ * As with PrioHeap, a node may only be a member of one heap at a time.
+ *
+ * @author Philip DeCamp
+ */
+@SuppressWarnings( "unchecked" )
+public class LongHeap<T extends LongHeapNode> {
+
+    private static final int DEFAULT_CAP = 16;
+
+    private final int mArity;
+    private final int mShift;
+
+    private long[]         mKeys;
+    private LongHeapNode[] mNodes;
+    private int mSize = 0;
+
+
+    public LongHeap() {
+        this( 2, DEFAULT_CAP );
+    }
+
+    /**
+     * @param arity      Number of children per node. Must be 2 or 4.
+     * @param initialCap Initial capacity.
+     */
+    public LongHeap( int arity, int initialCap ) {
+        if( arity == 2 ) {
+            mShift = 1;
+        } else if( arity == 4 ) {
+            mShift = 2;
+        } else {
+            throw new IllegalArgumentException( "Arity must be 2 or 4: " + arity );
+        }
+        mArity = arity;
+        initialCap = Math.max( 1, initialCap );
+        mKeys  = new long[initialCap];
+        mNodes = new LongHeapNode[initialCap];
+    }
+
+
+
+    public int arity() {
+        return mArity;
+    }
+
+
+    public void offer( T node, long key ) {
+        ensureCapacity( mSize + 1 );
+        node.mHeapKey = key;
+        siftUp( node, key, mSize++ );
+    }
+
+
+    public T peek() {
+        return mSize > 0 ? (T)mNodes[0] : null;
+    }
+
+    /**
+     * @return key of head node, or {@code Long.MAX_VALUE} if empty.
+     */
+    public long peekKey() {
+        return mSize > 0 ? mKeys[0] : Long.MAX_VALUE;
+    }
+
+
+    public T poll() {
+        return mSize == 0 ? null : (T)deleteNode( 0 );
+    }
+
+
+    public T remove() {
+        if( mSize == 0 ) {
+            throw new NoSuchElementException();
+        }
+        return (T)deleteNode( 0 );
+    }
+
+
+    public T remove( int idx ) {
+        if( idx < 0 || idx >= mSize ) {
+            throw new NoSuchElementException();
+        }
+        return (T)deleteNode( idx );
+    }
+
+
+    public boolean remove( T node ) {
+        int idx = node.mHeapIndex;
+        if( idx < 0 || idx >= mSize || mNodes[idx] != node ) {
+            return false;
+        }
+        deleteNode( idx );
+        return true;
+    }
+
+    /**
+     * Changes the key of a node already in this heap.
+     *
+     * @throws NoSuchElementException if node is not in this heap.
+     */
+    public void update( T node, long key ) {
+        int idx = node.mHeapIndex;
+        if( idx < 0 || idx >= mSize || mNodes[idx] != node ) {
+            throw new NoSuchElementException( "Invalid node index." );
+        }
+
+        long prev = mKeys[idx];
+        node.mHeapKey = key;
+        if( key < prev ) {
+            siftUp( node, key, idx );
+        } else if( key > prev ) {
+            siftDown( node, key, idx );
+        }
+    }
+
+
+    public boolean contains( T node ) {
+        int idx = node.mHeapIndex;
+        return idx >= 0 && idx < mSize && mNodes[idx] == node;
+    }
+
+
+    public T get( int idx ) {
+        return (T)mNodes[idx];
+    }
+
+
+    public long key( int idx ) {
+        return mKeys[idx];
+    }
+
+
+    public void clear() {
+        for( int i = 0; i < mSize; i++ ) {
+            mNodes[i].mHeapIndex = -1;
+            mNodes[i] = null;
+        }
+        mSize = 0;
+    }
+
+
+    public int size() {
+        return mSize;
+    }
+
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+
+    public void ensureCapacity( int minCap ) {
+        final int oldCap = mNodes.length;
+        if( minCap <= oldCap ) {
+            return;
+        }
+
+        int newCap = oldCap * 2;
+        if( newCap < minCap ) {
+            newCap = minCap;
+        }
+
+        mKeys  = Arrays.copyOf( mKeys, newCap );
+        mNodes = Arrays.copyOf( mNodes, newCap );
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder( "LongHeap: " );
+        int start = 0;
+        int stop  = Math.min( 1, mSize );
+
+        while( start < mSize ) {
+            s.append( "\n  " );
+
+            for( int i = start; i < stop; i++ ) {
+                if( i > start ) {
+                    s.append( ", " );
+                }
+                s.append( mKeys[i] );
+            }
+
+            int len = ( stop - start ) * mArity;
+            start = stop;
+            stop  = Math.min( mSize, start + len );
+        }
+
+        return s.toString();
+    }
+
+
+
+    private LongHeapNode deleteNode( int idx ) {
+        LongHeapNode ret = mNodes[idx];
+        ret.mHeapIndex = -1;
+
+        int last = --mSize;
+        LongHeapNode node = mNodes[last];
+        long key = mKeys[last];
+        mNodes[last] = null;
+
+        if( idx != last ) {
+            if( idx > 0 && mKeys[( idx - 1 ) >> mShift] > key ) {
+                siftUp( node, key, idx );
+            } else {
+                siftDown( node, key, idx );
+            }
+        }
+
+        return ret;
+    }
+
+
+    private void siftUp( LongHeapNode node, long key, int idx ) {
+        final long[] keys = mKeys;
+        final LongHeapNode[] nodes = mNodes;
+
+        while( idx > 0 ) {
+            int p = ( idx - 1 ) >> mShift;
+            long pk = keys[p];
+            if( pk <= key ) {
+                break;
+            }
+            LongHeapNode pn = nodes[p];
+            keys[idx]  = pk;
+            nodes[idx] = pn;
+            pn.mHeapIndex = idx;
+            idx = p;
+        }
+
+        keys[idx]  = key;
+        nodes[idx] = node;
+        node.mHeapIndex = idx;
+    }
+
+
+    private void siftDown( LongHeapNode node, long key, int idx ) {
+        final long[] keys = mKeys;
+        final LongHeapNode[] nodes = mNodes;
+        final int size = mSize;
+
+        while( true ) {
+            int c = ( idx << mShift ) + 1;
+            if( c >= size ) {
+                break;
+            }
+
+            // Find smallest child.
+            int end  = Math.min( c + mArity, size );
+            int best = c;
+            long bk  = keys[c];
+            for( int j = c + 1; j < end; j++ ) {
+                long k = keys[j];
+                if( k < bk ) {
+                    bk   = k;
+                    best = j;
+                }
+            }
+
+            if( key <= bk ) {
+                break;
+            }
+
+            LongHeapNode bn = nodes[best];
+            keys[idx]  = bk;
+            nodes[idx] = bn;
+            bn.mHeapIndex = idx;
+            idx = best;
+        }
+
+        keys[idx]  = key;
+        nodes[idx] = node;
+        node.mHeapIndex = idx;
+    }
+
+}
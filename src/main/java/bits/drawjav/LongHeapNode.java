@@ -0,0 +1,17 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+/**
+ * Node for {@link LongHeap}.
+ *
+ * @author Philip DeCamp
+ */
+public class LongHeapNode {
+    public int  mHeapIndex = -1;
+    public long mHeapKey;
+}
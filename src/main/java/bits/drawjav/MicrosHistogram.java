@@ -0,0 +1,177 @@
+package bits.drawjav;
+
+import java.util.Arrays;
+
+
+/**
+ * Histogram of signed time intervals in microseconds, suitable for tracking timing error.
+ * Values are grouped into power-of-two buckets by magnitude, separately for positive and negative
+ * values, so resolution is relative: about one bucket per doubling from 1 us to several hours.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author Philip DeCamp
+ */
+public final class MicrosHistogram {
+
+    private static final int MAG_NUM = 34;
+
+    private final long[] mCounts = new long[MAG_NUM * 2 + 1];
+
+    private long   mCount = 0;
+    private long   mMin   = Long.MAX_VALUE;
+    private long   mMax   = Long.MIN_VALUE;
+    private double mSum   = 0.0;
+    private double mSumSq = 0.0;
+
+
+    public MicrosHistogram() {}
+
+
+    public MicrosHistogram( MicrosHistogram copy ) {
+        set( copy );
+    }
+
+
+    public void add( long micros ) {
+        mCounts[indexOf( micros )]++;
+        mCount++;
+        if( micros < mMin ) {
+            mMin = micros;
+        }
+        if( micros > mMax ) {
+            mMax = micros;
+        }
+        mSum   += micros;
+        mSumSq += (double)micros * micros;
+    }
+
+
+    public long count() {
+        return mCount;
+    }
+
+
+    public long min() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+
+    public long max() {
+        return mCount == 0 ? 0 : mMax;
+    }
+
+
+    public double mean() {
+        return mCount == 0 ? 0.0 : mSum / mCount;
+    }
+
+
+    public double stdDev() {
+        if( mCount < 2 ) {
+            return 0.0;
+        }
+        double mean = mSum / mCount;
+        double var  = mSumSq / mCount - mean * mean;
+        return var <= 0.0 ? 0.0 : Math.sqrt( var );
+    }
+
+    /**
+     * @param p Percentile in range [0,1].
+     * @return approximate value at percentile {@code p}, accurate to within one bucket.
+     */
+    public long percentile( double p ) {
+        if( mCount == 0 ) {
+            return 0;
+        }
+
+        long target = (long)Math.ceil( p * mCount );
+        if( target < 1 ) {
+            target = 1;
+        }
+
+        long sum = 0;
+        for( int i = 0; i < mCounts.length; i++ ) {
+            sum += mCounts[i];
+            if( sum >= target ) {
+                long v = bucketMax( i );
+                return v < mMin ? mMin : v > mMax ? mMax : v;
+            }
+        }
+
+        return mMax;
+    }
+
+
+    public int bucketNum() {
+        return mCounts.length;
+    }
+
+
+    public long bucketCount( int idx ) {
+        return mCounts[idx];
+    }
+
+    /**
+     * @return smallest value that falls into bucket.
+     */
+    public long bucketMin( int idx ) {
+        int k = idx - MAG_NUM;
+        if( k == 0 ) {
+            return 0;
+        }
+        return k > 0 ? 1L << ( k - 1 ) : -( ( 1L << -k ) - 1 );
+    }
+
+    /**
+     * @return largest value that falls into bucket.
+     */
+    public long bucketMax( int idx ) {
+        int k = idx - MAG_NUM;
+        if( k == 0 ) {
+            return 0;
+        }
+        return k > 0 ? ( 1L << k ) - 1 : -( 1L << ( -k - 1 ) );
+    }
+
+
+    public void set( MicrosHistogram h ) {
+        System.arraycopy( h.mCounts, 0, mCounts, 0, mCounts.length );
+        mCount = h.mCount;
+        mMin   = h.mMin;
+        mMax   = h.mMax;
+        mSum   = h.mSum;
+        mSumSq = h.mSumSq;
+    }
+
+
+    public void clear() {
+        Arrays.fill( mCounts, 0 );
+        mCount = 0;
+        mMin   = Long.MAX_VALUE;
+        mMax   = Long.MIN_VALUE;
+        mSum   = 0.0;
+        mSumSq = 0.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format( "MicrosHistogram[count=%d, mean=%.1f, std=%.1f, min=%d, p50=%d, p99=%d, max=%d]",
+                              mCount, mean(), stdDev(), min(), percentile( 0.5 ), percentile( 0.99 ), max() );
+    }
+
+
+
+    private static int indexOf( long micros ) {
+        if( micros == 0 ) {
+            return MAG_NUM;
+        }
+        long mag = micros > 0 ? micros : -micros;
+        int k = 64 - Long.numberOfLeadingZeros( mag < 0 ? Long.MAX_VALUE : mag );
+        if( k > MAG_NUM ) {
+            k = MAG_NUM;
+        }
+        return micros > 0 ? MAG_NUM + k : MAG_NUM - k;
+    }
+
+}
@@ -0,0 +1,129 @@
+package bits.drawjav;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Lock-free, multi-producer, single-consumer queue. Any number of threads may call {@code offer()}
+ * concurrently, but {@code peek()}, {@code poll()} and {@code isEmpty()} may only be called by one
+ * consumer thread at a time.
+ * <p>
+ * Based on Dmitry Vyukov's non-intrusive MPSC node queue. Each offer allocates one small node,
+ * and neither producers nor the consumer ever block.
+ *
+ * @author Philip DeCamp
+ */
+public final class MpscQueue<T> {
+
+    private final int mCap;
+    private final AtomicInteger mSize = new AtomicInteger( 0 );
+    private final AtomicReference<Node<T>> mTail;
+    private Node<T> mHead;
+
+
+    public MpscQueue() {
+        this( -1 );
+    }
+
+    /**
+     * @param cap Max number of items the queue may hold, or -1 if unbounded.
+     */
+    public MpscQueue( int cap ) {
+        mCap  = cap;
+        mHead = new Node<T>( null );
+        mTail = new AtomicReference<Node<T>>( mHead );
+    }
+
+
+    /**
+     * May be called by any thread.
+     *
+     * @return true if item was added, false if queue is full.
+     */
+    public boolean offer( T item ) {
+        if( item == null ) {
+            throw new NullPointerException();
+        }
+
+        if( mCap >= 0 ) {
+            while( true ) {
+                int size = mSize.get();
+                if( size >= mCap ) {
+                    return false;
+                }
+                if( mSize.compareAndSet( size, size + 1 ) ) {
+                    break;
+                }
+            }
+        } else {
+            mSize.incrementAndGet();
+        }
+
+        Node<T> node = new Node<T>( item );
+        Node<T> prev = mTail.getAndSet( node );
+        // Queue is briefly disconnected here. The consumer will see the queue as
+        // ending at prev until the link is set.
+        prev.mNext = node;
+        return true;
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public T peek() {
+        Node<T> next = mHead.mNext;
+        return next == null ? null : next.mItem;
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public T poll() {
+        Node<T> next = mHead.mNext;
+        if( next == null ) {
+            return null;
+        }
+
+        T ret = next.mItem;
+        next.mItem = null;
+        mHead = next;
+        mSize.decrementAndGet();
+        return ret;
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    public boolean isEmpty() {
+        return mHead.mNext == null;
+    }
+
+    /**
+     * May be called by any thread.
+     *
+     * @return approximate number of items in queue.
+     */
+    public int size() {
+        return mSize.get();
+    }
+
+    /**
+     * @return max number of items queue may hold, or -1 if unbounded.
+     */
+    public int capacity() {
+        return mCap;
+    }
+
+
+
+    private static final class Node<T> {
+        T mItem;
+        volatile Node<T> mNext = null;
+
+        Node( T item ) {
+            mItem = item;
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package bits.drawjav;
+
+
+/**
+ * Estimates the memory held by packets, for byte-limited queues and caches.
+ * <p>
+ * A DrawPacket costs the size of its data buffers plus a fixed overhead for the frame. A BufferPacket
+ * costs its buffer capacity plus overhead. Any other packet costs only the overhead.
+ *
+ * @author Philip DeCamp
+ */
+public final class PacketBytes {
+
+    /**
+     * Cost of any packet in addition to its data.
+     */
+    public static final long OVERHEAD = 512;
+
+    // AV_NUM_DATA_POINTERS
+    private static final int MAX_PLANES = 8;
+
+
+    public static final CostMetric<Packet> METRIC = new CostMetric<Packet>() {
+        @Override
+        public long costOf( Packet p ) {
+            return PacketBytes.costOf( p );
+        }
+    };
+
+
+    public static long costOf( Packet p ) {
+        if( p instanceof DrawPacket ) {
+            DrawPacket dp = (DrawPacket)p;
+            long sum = OVERHEAD;
+            for( int i = 0; i < MAX_PLANES; i++ ) {
+                int n = dp.bufElemSize( i );
+                if( n <= 0 ) {
+                    break;
+                }
+                sum += n;
+            }
+            return sum;
+        }
+        if( p instanceof BufferPacket ) {
+            return OVERHEAD + ( (BufferPacket)p ).buffer().capacity();
+        }
+        return OVERHEAD;
+    }
+
+
+    private PacketBytes() {}
+
+}
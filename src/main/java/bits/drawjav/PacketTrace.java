@@ -0,0 +1,86 @@
+package bits.drawjav;
+
+import bits.jav.util.Rational;
+
+import java.io.*;
+
+
+/**
+ * Binary layout shared by {@link PacketTraceRecorder} and {@link PacketTraceReader}.
+ * <p>
+ * A trace is a header followed by records. Each record is a one-byte tag, the time in nanoseconds
+ * since recording began, and a tag-specific body. All values are big-endian.
+ * <pre>
+ * header:  int MAGIC, int VERSION
+ * STREAM:  int index, byte hasFormat, [int type, int channels, int sampleRate, int sampleFormat,
+ *          long channelLayout, int width, int height, int pixelFormat, int aspectNum, int aspectDen]
+ * PACKET:  int stream, long startMicros, long stopMicros, int sampleNum, int size, byte flags, [byte[size] payload]
+ * SEEK:    long micros
+ * CLOCK:   byte id, long execMicros, long seekMicros, int rateNum, int rateDen
+ * EOF:     (empty)
+ * </pre>
+ *
+ * @author Philip DeCamp
+ */
+final class PacketTrace {
+
+    static final int MAGIC   = 0x444A5452; // "DJTR"
+    static final int VERSION = 1;
+
+    static final int TAG_STREAM = 1;
+    static final int TAG_PACKET = 2;
+    static final int TAG_SEEK   = 3;
+    static final int TAG_CLOCK  = 4;
+    static final int TAG_EOF    = 5;
+
+    static final int FLAG_PAYLOAD = 0x01;
+
+
+    static void writeFormat( DataOutput out, StreamFormat format ) throws IOException {
+        if( format == null ) {
+            out.writeByte( 0 );
+            return;
+        }
+        out.writeByte( 1 );
+        out.writeInt( format.mType );
+        out.writeInt( format.mChannels );
+        out.writeInt( format.mSampleRate );
+        out.writeInt( format.mSampleFormat );
+        out.writeLong( format.mChannelLayout );
+        out.writeInt( format.mWidth );
+        out.writeInt( format.mHeight );
+        out.writeInt( format.mPixelFormat );
+        out.writeInt( format.mSampleAspect.num() );
+        out.writeInt( format.mSampleAspect.den() );
+    }
+
+
+    static StreamFormat readFormat( DataInput in ) throws IOException {
+        if( in.readByte() == 0 ) {
+            return null;
+        }
+        int type         = in.readInt();
+        int channels     = in.readInt();
+        int sampleRate   = in.readInt();
+        int sampleFormat = in.readInt();
+        long layout      = in.readLong();
+        int width        = in.readInt();
+        int height       = in.readInt();
+        int pixelFormat  = in.readInt();
+        int aspectNum    = in.readInt();
+        int aspectDen    = in.readInt();
+        return new StreamFormat( type,
+                                 channels,
+                                 sampleRate,
+                                 sampleFormat,
+                                 layout,
+                                 width,
+                                 height,
+                                 pixelFormat,
+                                 new Rational( aspectNum, aspectDen ) );
+    }
+
+
+    private PacketTrace() {}
+
+}
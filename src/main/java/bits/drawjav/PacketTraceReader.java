@@ -0,0 +1,462 @@
+package bits.drawjav;
+
+import bits.microtime.*;
+
+import java.io.*;
+import java.util.*;
+
+import static bits.drawjav.PacketTrace.*;
+
+
+/**
+ * Replays a trace written by {@link PacketTraceRecorder}. Packets are returned as {@link BufferPacket}s in
+ * the recorded order. When a trace holds payloads, packet buffers hold the recorded bytes. Otherwise, packet
+ * buffers have the recorded size but undefined content.
+ * <p>
+ * <b>Timing</b>: With a speed of 1, each record is replayed no earlier than it was recorded, relative to the
+ * first call to {@link #readNext()} or {@link #tick()}. A speed of 2 replays twice as fast. A speed of 0 or less
+ * replays as fast as the reader is polled. {@code readNext()} never sleeps. If the next record is not yet due,
+ * it returns {@code null}, and the ready listener, if any, is called from a timer thread when the record
+ * becomes due.
+ * <p>
+ * <b>Clock events</b>: If a ClockControl is provided, recorded clock events are applied to it as they become
+ * due. They are applied when the replay reaches them, either from {@code readNext()} or from {@code tick()},
+ * so add this reader as a ticker if the graph may stop polling it. Recorded seeks are matched against calls
+ * to {@link #seek(long)}: the replay waits briefly at each recorded seek for the graph to seek, and a seek
+ * from the graph skips ahead to the next recorded seek. This keeps the packet sequence identical to
+ * the recording when the replayed clock events drive the same seeks.
+ *
+ * @author Philip DeCamp
+ */
+public class PacketTraceReader implements AsyncPacketReader, Ticker {
+
+    // How long replay waits at a recorded seek for the graph to request one.
+    private static final long SEEK_WAIT_NANOS  = 1000000000L;
+    // How far ahead, in trace time, a seek from the graph will skip to find a recorded seek.
+    private static final long SEEK_SKIP_NANOS  = 1000000000L;
+    private static final int  POOL_CAP         = 256;
+
+    private final DataInputStream        mIn;
+    private final double                 mSpeed;
+    private final ClockControl           mClock;
+    private final List<Stream>           mStreams     = new ArrayList<Stream>();
+    private final Set<Stream>            mClosed      = new HashSet<Stream>();
+    private final CostPool<BufferPacket> mPool        = new CostPool<BufferPacket>( POOL_CAP, POOL_CAP * 100, null );
+
+    private int  mHeadTag;
+    private long mHeadNanos;
+
+    private long mStartNanos    = -1;
+    private long mSeekCalls     = 0;
+    private long mSeekRecords   = 0;
+    private long mSeekWaitStart = -1;
+
+    private boolean mOpen    = true;
+    private boolean mStalled = false;
+
+    private volatile Runnable mListener = null;
+    private Timer     mTimer    = null;
+    private TimerTask mWakeTask = null;
+
+
+    /**
+     * @param in       Trace data. Closed when this reader is closed.
+     * @param speed    Replay speed relative to recording. {@code <= 0} to replay without delays.
+     * @param optClock Receives recorded clock events. May be {@code null}.
+     */
+    public PacketTraceReader( InputStream in, double speed, ClockControl optClock ) throws IOException {
+        mIn    = new DataInputStream( new BufferedInputStream( in, 64 * 1024 ) );
+        mSpeed = speed;
+        mClock = optClock;
+
+        if( mIn.readInt() != MAGIC ) {
+            throw new IOException( "Not a packet trace." );
+        }
+        int version = mIn.readInt();
+        if( version != VERSION ) {
+            throw new IOException( "Unsupported packet trace version: " + version );
+        }
+
+        readHead();
+        while( mHeadTag == TAG_STREAM ) {
+            int idx = mIn.readInt();
+            if( idx != mStreams.size() ) {
+                throw new IOException( "Invalid stream index in trace: " + idx );
+            }
+            mStreams.add( new BasicStream( readFormat( mIn ) ) );
+            readHead();
+        }
+    }
+
+
+    @Override
+    public int streamCount() {
+        return mStreams.size();
+    }
+
+    @Override
+    public Stream stream( int index ) {
+        return mStreams.get( index );
+    }
+
+    @Override
+    public List<Stream> streams() {
+        return Collections.unmodifiableList( mStreams );
+    }
+
+    @Override
+    public synchronized void openStream( Stream stream ) {
+        mClosed.remove( stream );
+    }
+
+    @Override
+    public synchronized void closeStream( Stream stream ) {
+        if( mStreams.contains( stream ) ) {
+            mClosed.add( stream );
+        }
+    }
+
+    @Override
+    public synchronized boolean isStreamOpen( Stream stream ) {
+        return mStreams.contains( stream ) && !mClosed.contains( stream );
+    }
+
+    /**
+     * Matches a seek from the graph against the next recorded seek. Records up to the recorded seek are
+     * skipped, with any clock events among them applied. If no recorded seek follows within a short span
+     * of trace time, the seek is treated as unmatched and replay continues from there.
+     */
+    @Override
+    public synchronized void seek( long micros ) throws IOException {
+        checkOpen();
+        startTime();
+        mSeekCalls++;
+        if( mHeadTag == TAG_SEEK ) {
+            // Replay is already waiting at the matching record.
+            mStalled = false;
+            return;
+        }
+
+        final long limit = mHeadNanos + SEEK_SKIP_NANOS;
+        while( mHeadTag != TAG_EOF && mHeadTag != TAG_SEEK && mHeadNanos <= limit ) {
+            if( mHeadTag == TAG_CLOCK ) {
+                applyClock();
+            } else {
+                skipRecord();
+            }
+        }
+
+        if( mHeadTag == TAG_SEEK ) {
+            rebaseTime( mHeadNanos );
+        } else {
+            // Unmatched seek.
+            mSeekCalls--;
+        }
+    }
+
+    @Override
+    public synchronized Packet readNext() throws IOException {
+        checkOpen();
+        startTime();
+
+        while( true ) {
+            long wait = waitNanos( mHeadNanos );
+            if( wait > 0 ) {
+                return stall( wait );
+            }
+
+            switch( mHeadTag ) {
+            case TAG_EOF:
+                throw new EOFException();
+
+            case TAG_CLOCK:
+                applyClock();
+                break;
+
+            case TAG_SEEK:
+                if( mSeekCalls > mSeekRecords || mClock == null || seekWaitExpired() ) {
+                    consumeSeek();
+                    break;
+                }
+                // Wait for graph to seek.
+                return stall( SEEK_WAIT_NANOS - ( System.nanoTime() - mSeekWaitStart ) );
+
+            case TAG_PACKET:
+            {
+                Packet p = readPacket();
+                if( p != null ) {
+                    mStalled = false;
+                    return p;
+                }
+                break;
+            }
+
+            default:
+                throw new IOException( "Invalid trace record: " + mHeadTag );
+            }
+        }
+    }
+
+    @Override
+    public void readyListener( Runnable optListener ) {
+        mListener = optListener;
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return !mStalled;
+    }
+
+    /**
+     * Applies any recorded clock events that are due and next in the trace.
+     */
+    @Override
+    public synchronized void tick() {
+        if( !mOpen ) {
+            return;
+        }
+        startTime();
+        try {
+            while( mHeadTag == TAG_CLOCK && waitNanos( mHeadNanos ) <= 0 ) {
+                applyClock();
+            }
+        } catch( IOException ignored ) {
+            // Reported on next readNext().
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized( this ) {
+            if( !mOpen ) {
+                return;
+            }
+            mOpen    = false;
+            mStalled = false;
+            if( mTimer != null ) {
+                mTimer.cancel();
+                mTimer    = null;
+                mWakeTask = null;
+            }
+        }
+        mPool.close();
+        mIn.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+
+
+    private void checkOpen() throws IOException {
+        if( !mOpen ) {
+            throw new IOException( "Reader closed." );
+        }
+    }
+
+
+    /**
+     * Marks reader as stalled and schedules ready listener for when replay may continue.
+     *
+     * @return null
+     */
+    private Packet stall( long waitNanos ) {
+        mStalled = true;
+        if( mListener == null ) {
+            return null;
+        }
+        if( mWakeTask != null ) {
+            mWakeTask.cancel();
+        }
+        if( mTimer == null ) {
+            mTimer = new Timer( "PacketTraceReader", true );
+        }
+        mWakeTask = new TimerTask() {
+            @Override
+            public void run() {
+                wake( this );
+            }
+        };
+        // Timer has millisecond resolution. Round up so that record is due when listener is called.
+        mTimer.schedule( mWakeTask, Math.max( 0L, waitNanos ) / 1000000L + 1L );
+        return null;
+    }
+
+
+    private void wake( TimerTask task ) {
+        Runnable listener;
+        synchronized( this ) {
+            if( task != mWakeTask ) {
+                return;
+            }
+            mWakeTask = null;
+            if( !mStalled ) {
+                return;
+            }
+            mStalled = false;
+            listener = mListener;
+        }
+        if( listener != null ) {
+            listener.run();
+        }
+    }
+
+
+    private void startTime() {
+        if( mStartNanos == -1 ) {
+            mStartNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Shifts replay time so that {@code traceNanos} is due now.
+     */
+    private void rebaseTime( long traceNanos ) {
+        if( mSpeed > 0 ) {
+            mStartNanos = System.nanoTime() - (long)( traceNanos / mSpeed );
+        }
+    }
+
+
+    private long waitNanos( long traceNanos ) {
+        if( mSpeed <= 0 ) {
+            return 0;
+        }
+        return (long)( traceNanos / mSpeed ) - ( System.nanoTime() - mStartNanos );
+    }
+
+
+    private boolean seekWaitExpired() {
+        long now = System.nanoTime();
+        if( mSeekWaitStart == -1 ) {
+            mSeekWaitStart = now;
+            return false;
+        }
+        return now - mSeekWaitStart >= SEEK_WAIT_NANOS;
+    }
+
+
+    private void readHead() throws IOException {
+        try {
+            mHeadTag   = mIn.readUnsignedByte();
+            mHeadNanos = mIn.readLong();
+        } catch( EOFException ex ) {
+            // Truncated traces end where data ends.
+            mHeadTag = TAG_EOF;
+        }
+    }
+
+
+    private void consumeSeek() throws IOException {
+        mIn.readLong();
+        mSeekRecords++;
+        if( mSeekCalls < mSeekRecords ) {
+            // Graph never requested this seek.
+            mSeekCalls = mSeekRecords;
+        } else {
+            rebaseTime( mHeadNanos );
+        }
+        mSeekWaitStart = -1;
+        readHead();
+    }
+
+
+    private void applyClock() throws IOException {
+        int id = mIn.readByte();
+        mIn.readLong(); // Original exec time is meaningless during replay.
+        long seek = mIn.readLong();
+        int num = mIn.readInt();
+        int den = mIn.readInt();
+        readHead();
+
+        if( mClock == null ) {
+            return;
+        }
+
+        switch( id ) {
+        case ClockEvent.CLOCK_START:
+            mClock.clockStart();
+            break;
+        case ClockEvent.CLOCK_STOP:
+            mClock.clockStop();
+            break;
+        case ClockEvent.CLOCK_SEEK:
+            mClock.clockSeek( seek );
+            break;
+        case ClockEvent.CLOCK_RATE:
+            if( den != 0 ) {
+                mClock.clockRate( new Frac( num, den ) );
+            }
+            break;
+        }
+    }
+
+
+    private Packet readPacket() throws IOException {
+        int idx      = mIn.readInt();
+        long start   = mIn.readLong();
+        long stop    = mIn.readLong();
+        int samples  = mIn.readInt();
+        int size     = mIn.readInt();
+        int flags    = mIn.readByte();
+        boolean data = ( flags & FLAG_PAYLOAD ) != 0;
+
+        Stream stream = idx >= 0 && idx < mStreams.size() ? mStreams.get( idx ) : null;
+        if( stream == null || mClosed.contains( stream ) ) {
+            if( data ) {
+                skipFully( size );
+            }
+            readHead();
+            return null;
+        }
+
+        BufferPacket p = BufferPacket.alloc( mPool, size );
+        p.init( stream, start, stop, samples );
+        if( data ) {
+            mIn.readFully( p.buffer().array(), p.buffer().arrayOffset(), size );
+        }
+        readHead();
+        return p;
+    }
+
+
+    private void skipRecord() throws IOException {
+        switch( mHeadTag ) {
+        case TAG_PACKET:
+        {
+            mIn.readInt();
+            mIn.readLong();
+            mIn.readLong();
+            mIn.readInt();
+            int size = mIn.readInt();
+            if( ( mIn.readByte() & FLAG_PAYLOAD ) != 0 ) {
+                skipFully( size );
+            }
+            break;
+        }
+        case TAG_CLOCK:
+            skipFully( 1 + 8 + 8 + 4 + 4 );
+            break;
+        case TAG_SEEK:
+            skipFully( 8 );
+            break;
+        default:
+            throw new IOException( "Invalid trace record: " + mHeadTag );
+        }
+        readHead();
+    }
+
+
+    private void skipFully( int len ) throws IOException {
+        while( len > 0 ) {
+            int n = mIn.skipBytes( len );
+            if( n <= 0 ) {
+                throw new EOFException();
+            }
+            len -= n;
+        }
+    }
+
+}
@@ -0,0 +1,254 @@
+package bits.drawjav;
+
+import bits.microtime.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static bits.drawjav.PacketTrace.*;
+
+
+/**
+ * PacketReader that records every packet read from an underlying reader into a compact binary trace,
+ * along with seeks and EOF. Place it between a reader and its PacketReaderUnit to capture the exact
+ * sequence of packets the unit emits. The recorder is also a SyncClockControl; add it as a listener to
+ * the graph clock to capture clock events.
+ * <p>
+ * Each packet is recorded with its stream, timestamps, sample count and data size. For DrawPackets,
+ * the size and optional payload cover the first data plane. Traces are replayed with
+ * {@link PacketTraceReader}.
+ *
+ * @author Philip DeCamp
+ */
+public class PacketTraceRecorder implements AsyncPacketReader, SyncClockControl {
+
+    private final PacketReader     mReader;
+    private final DataOutputStream mOut;
+    private final boolean          mRecordPayload;
+    private final long             mStartNanos;
+    private final Map<Stream, Integer> mStreamIndex = new IdentityHashMap<Stream, Integer>();
+
+    private byte[]  mCopyBuf = null;
+    private boolean mOpen = true;
+
+
+    /**
+     * @param reader        Reader to record. Closed when this recorder is closed.
+     * @param out           Destination for trace. Closed when this recorder is closed.
+     * @param recordPayload If true, packet data is written to the trace. Otherwise, only sizes are kept.
+     */
+    public PacketTraceRecorder( PacketReader reader, OutputStream out, boolean recordPayload ) throws IOException {
+        mReader = reader;
+        mOut = new DataOutputStream( new BufferedOutputStream( out, 64 * 1024 ) );
+        mRecordPayload = recordPayload;
+        mStartNanos = System.nanoTime();
+
+        mOut.writeInt( MAGIC );
+        mOut.writeInt( VERSION );
+
+        int len = reader.streamCount();
+        for( int i = 0; i < len; i++ ) {
+            Stream s = reader.stream( i );
+            mStreamIndex.put( s, i );
+            writeHead( TAG_STREAM );
+            mOut.writeInt( i );
+            writeFormat( mOut, s.format() );
+        }
+    }
+
+    @Override
+    public int streamCount() {
+        return mReader.streamCount();
+    }
+
+    @Override
+    public Stream stream( int index ) {
+        return mReader.stream( index );
+    }
+
+    @Override
+    public List<Stream> streams() {
+        return mReader.streams();
+    }
+
+    @Override
+    public void openStream( Stream stream ) throws IOException {
+        mReader.openStream( stream );
+    }
+
+    @Override
+    public void closeStream( Stream stream ) throws IOException {
+        mReader.closeStream( stream );
+    }
+
+    @Override
+    public boolean isStreamOpen( Stream stream ) {
+        return mReader.isStreamOpen( stream );
+    }
+
+    @Override
+    public void seek( long micros ) throws IOException {
+        synchronized( this ) {
+            if( mOpen ) {
+                writeHead( TAG_SEEK );
+                mOut.writeLong( micros );
+            }
+        }
+        mReader.seek( micros );
+    }
+
+    @Override
+    public Packet readNext() throws IOException {
+        Packet p;
+        try {
+            p = mReader.readNext();
+        } catch( EOFException ex ) {
+            synchronized( this ) {
+                if( mOpen ) {
+                    writeHead( TAG_EOF );
+                    mOut.flush();
+                }
+            }
+            throw ex;
+        }
+
+        if( p != null ) {
+            synchronized( this ) {
+                if( mOpen ) {
+                    writePacket( p );
+                }
+            }
+        }
+        return p;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized( this ) {
+            if( !mOpen ) {
+                return;
+            }
+            mOpen = false;
+            mOut.close();
+        }
+        mReader.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mReader.isOpen();
+    }
+
+    @Override
+    public void readyListener( Runnable optListener ) {
+        if( mReader instanceof AsyncPacketReader ) {
+            ( (AsyncPacketReader)mReader ).readyListener( optListener );
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return !( mReader instanceof AsyncPacketReader ) || ( (AsyncPacketReader)mReader ).isReady();
+    }
+
+    /**
+     * Writes buffered records to the underlying stream.
+     */
+    public synchronized void flush() throws IOException {
+        if( mOpen ) {
+            mOut.flush();
+        }
+    }
+
+    @Override
+    public void clockStart( long execMicros ) {
+        writeClock( ClockEvent.createClockStart( this, execMicros ) );
+    }
+
+    @Override
+    public void clockStop( long execMicros ) {
+        writeClock( ClockEvent.createClockStop( this, execMicros ) );
+    }
+
+    @Override
+    public void clockSeek( long execMicros, long seekMicros ) {
+        writeClock( ClockEvent.createClockSeek( this, execMicros, seekMicros ) );
+    }
+
+    @Override
+    public void clockRate( long execMicros, Frac rate ) {
+        writeClock( ClockEvent.createClockRate( this, execMicros, rate ) );
+    }
+
+
+
+    private void writeHead( int tag ) throws IOException {
+        mOut.writeByte( tag );
+        mOut.writeLong( System.nanoTime() - mStartNanos );
+    }
+
+
+    private void writePacket( Packet p ) throws IOException {
+        Integer idx = mStreamIndex.get( p.stream() );
+        ByteBuffer data = null;
+        int sampleNum = 0;
+        int size = 0;
+
+        if( p instanceof DrawPacket ) {
+            DrawPacket dp = (DrawPacket)p;
+            sampleNum = dp.nbSamples();
+            size = dp.useableBufElemSize( 0 );
+            if( mRecordPayload && size > 0 ) {
+                data = dp.javaBufElem( 0 );
+            }
+        } else if( p instanceof BufferPacket ) {
+            BufferPacket bp = (BufferPacket)p;
+            sampleNum = bp.sampleNum();
+            data = bp.buffer();
+            size = data.limit();
+        }
+
+        boolean payload = mRecordPayload && data != null;
+
+        writeHead( TAG_PACKET );
+        mOut.writeInt( idx == null ? -1 : idx );
+        mOut.writeLong( p.startMicros() );
+        mOut.writeLong( p.stopMicros() );
+        mOut.writeInt( sampleNum );
+        mOut.writeInt( size );
+        mOut.writeByte( payload ? FLAG_PAYLOAD : 0 );
+
+        if( payload ) {
+            if( mCopyBuf == null || mCopyBuf.length < size ) {
+                mCopyBuf = new byte[size];
+            }
+            ByteBuffer bb = data.duplicate();
+            bb.position( 0 ).limit( size );
+            bb.get( mCopyBuf, 0, size );
+            mOut.write( mCopyBuf, 0, size );
+        }
+    }
+
+
+    private synchronized void writeClock( ClockEvent e ) {
+        if( !mOpen ) {
+            return;
+        }
+        try {
+            writeHead( TAG_CLOCK );
+            mOut.writeByte( e.mId );
+            mOut.writeLong( e.mExec );
+            mOut.writeLong( e.mSeekMicros );
+            mOut.writeInt( e.mRate == null ? 0 : e.mRate.mNum );
+            mOut.writeInt( e.mRate == null ? 0 : e.mRate.mDen );
+        } catch( IOException ex ) {
+            // Clock listeners cannot throw. Close trace so that a partial record is not followed by more data.
+            mOpen = false;
+            try {
+                mOut.close();
+            } catch( IOException ignored ) {}
+        }
+    }
+
+}
@@ -128,7 +128,12 @@ public class PassiveDriver implements StreamDriver {
             mNeedClear = mClearOnSeek;
             
             try {
-                mReader.seek( mSeekMicros - mSeekWarmupMicros );
+                // An indexed reader lands on the keyframe preceding the target, so no warmup is needed.
+                long warmup = mSeekWarmupMicros;
+                if( mReader instanceof FormatReader && ((FormatReader)mReader).keyframeIndex() != null ) {
+                    warmup = 0;
+                }
+                mReader.seek( mSeekMicros - warmup );
             } catch( IOException ex ) {
                 mErrorState = ex;
                 updateStatus();
@@ -302,8 +307,9 @@ public class PassiveDriver implements StreamDriver {
      * After a seek() call, PassiveDriver may actually go
      * further back into the data stream and decode some
      * amount of data in order to warmup the decoder 
-     * (there's currently no support for finding correct keyframes).
-     * This method returns the number of micros of data processed
+     * (there's no support for finding correct keyframes unless the
+     * source is a FormatReader with a KeyframeIndex, in which case
+     * warmup is skipped). This method returns the number of micros of data processed
      * before PassiveDriver will begin returning packets.
      * 
      * @return Amount of data read after each seek operation before returning packets.
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import bits.jav.Jav;
+import bits.jav.format.JavFormatContext;
+
+import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+
+
+/**
+ * PacketReader that plays a list of files one after another on a single timeline. While an item plays,
+ * the next item is opened and primed in the background by a {@link FormatReaderPool}, so playback
+ * continues into it without a gap or decoder cold start.
+ * <p>
+ * The playlist has one video stream and one audio stream, taken from the first video and first audio
+ * stream of the first item. Packets from each item are remapped to these streams and shifted by the
+ * start of the item on the timeline. Items start at the end of the previous item, which is the duration
+ * of its container, or, if unknown, the end of its last packet once played.
+ * <p>
+ * Item formats may differ. The format of a playlist stream is that of the first item, and packets
+ * carry their own format, so downstream units convert them only as needed. All items allocate from one
+ * MemoryManager, so items with the same format share packet pools rather than replacing them.
+ * <p>
+ * Unlike FormatReader, streams of a playlist are open when it is created.
+ *
+ * @author Philip DeCamp
+ */
+public class PlaylistReader implements PacketReader {
+
+    private final List<File>       mFiles;
+    private final long[]           mDurations;
+    // End of last packet played from each item, and whether container duration has been probed.
+    private final long[]           mPlayedEnds;
+    private final boolean[]        mProbed;
+    private final FormatReaderPool mPool;
+
+    private final Stream       mVideo;
+    private final Stream       mAudio;
+    private final List<Stream> mStreams;
+    private boolean mVideoOpen = false;
+    private boolean mAudioOpen = false;
+
+    private int          mItem      = 0;
+    private long         mOffset    = 0;
+    private FormatReader mReader    = null;
+    private Stream       mItemVideo = null;
+    private Stream       mItemAudio = null;
+    private long         mItemEnd   = 0;
+
+    private boolean mIsOpen = true;
+
+
+    public PlaylistReader( List<File> files ) throws IOException {
+        this( files, null );
+    }
+
+    /**
+     * @param files  Items of playlist. Must not be empty.
+     * @param optMem Memory manager shared by all items, or {@code null} to use a default.
+     */
+    public PlaylistReader( List<File> files, MemoryManager optMem ) throws IOException {
+        if( files.isEmpty() ) {
+            throw new IllegalArgumentException( "Empty playlist." );
+        }
+        if( optMem == null ) {
+            optMem = new PoolPerFormatMemoryManager( 64, 32 );
+        }
+        mFiles     = new ArrayList<File>( files );
+        mDurations = new long[mFiles.size()];
+        Arrays.fill( mDurations, -1 );
+        mPlayedEnds = new long[mFiles.size()];
+        mProbed     = new boolean[mFiles.size()];
+        // Current item, next item, and one previous item for short back-seeks.
+        mPool = new FormatReaderPool( 3, Long.MAX_VALUE, true, optMem );
+
+        startItem( 0 );
+        Stream v = mItemVideo;
+        Stream a = mItemAudio;
+        mVideo = v == null ? null : new BasicStream( v.format() );
+        mAudio = a == null ? null : new BasicStream( a.format() );
+
+        List<Stream> streams = new ArrayList<Stream>( 2 );
+        if( mVideo != null ) {
+            streams.add( mVideo );
+        }
+        if( mAudio != null ) {
+            streams.add( mAudio );
+        }
+        mStreams = Collections.unmodifiableList( streams );
+        // Streams start open, as primed by the pool.
+        mVideoOpen = mVideo != null;
+        mAudioOpen = mAudio != null;
+        applyStreams();
+    }
+
+
+    @Override
+    public int streamCount() {
+        return mStreams.size();
+    }
+
+    @Override
+    public Stream stream( int index ) {
+        return mStreams.get( index );
+    }
+
+    @Override
+    public List<Stream> streams() {
+        return mStreams;
+    }
+
+    @Override
+    public void openStream( Stream stream ) throws IOException {
+        setOpen( stream, true );
+    }
+
+    @Override
+    public void closeStream( Stream stream ) throws IOException {
+        setOpen( stream, false );
+    }
+
+    @Override
+    public boolean isStreamOpen( Stream stream ) {
+        return stream != null && ( stream == mVideo && mVideoOpen || stream == mAudio && mAudioOpen );
+    }
+
+    /**
+     * Seeks to position on playlist timeline. Durations of items before the target are read from their
+     * containers. Items that have not been opened are probed without decoders, and only the target item
+     * is acquired from the pool. Items of unknown duration count as far as their packets have been played.
+     * If the duration of the current item is unknown, a target past its start stays within it.
+     */
+    @Override
+    public void seek( long micros ) throws IOException {
+        assertOpen();
+        long offset = 0;
+        int item = 0;
+        while( item < mFiles.size() - 1 ) {
+            if( item == mItem && mReader != null && mDurations[item] < 0 ) {
+                // End of current item is not known, so the target may lie within it.
+                break;
+            }
+            long dur = duration( item );
+            if( micros < offset + dur ) {
+                break;
+            }
+            offset += dur;
+            item++;
+        }
+
+        if( item != mItem || mReader == null ) {
+            endItem();
+            startItem( item );
+            applyStreams();
+        }
+        mOffset = offset;
+        mReader.seekAll( Math.max( 0, micros - offset ) );
+    }
+
+    @Override
+    public Packet readNext() throws IOException {
+        assertOpen();
+        if( mReader == null ) {
+            throw new EOFException();
+        }
+
+        Packet p;
+        try {
+            p = mReader.readNext();
+        } catch( EOFException ex ) {
+            nextItem();
+            return null;
+        }
+        if( p == null ) {
+            return null;
+        }
+
+        Stream s = p.stream();
+        Stream mapped = s == mItemVideo ? mVideo : s == mItemAudio ? mAudio : null;
+        if( mapped == null || !( p instanceof DrawPacket ) ) {
+            p.deref();
+            return null;
+        }
+
+        DrawPacket d = (DrawPacket)p;
+        long start = d.startMicros();
+        long stop  = d.stopMicros();
+        if( stop > mItemEnd ) {
+            mItemEnd = stop;
+        }
+        d.startMicros( start + mOffset );
+        d.stopMicros( stop + mOffset );
+        d.stream( mapped );
+        return d;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if( !mIsOpen ) {
+            return;
+        }
+        mIsOpen = false;
+        FormatReader r = mReader;
+        mReader = null;
+        try {
+            if( r != null ) {
+                r.close();
+            }
+        } finally {
+            mPool.close();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mIsOpen;
+    }
+
+    /**
+     * @return index of item currently being read.
+     */
+    public int currentItem() {
+        return mItem;
+    }
+
+    /**
+     * @return start of current item on playlist timeline.
+     */
+    public long currentItemStart() {
+        return mOffset;
+    }
+
+
+
+    private void setOpen( Stream stream, boolean open ) throws IOException {
+        assertOpen();
+        if( stream == null ) {
+            return;
+        }
+        if( stream == mVideo ) {
+            mVideoOpen = open;
+        } else if( stream == mAudio ) {
+            mAudioOpen = open;
+        } else {
+            return;
+        }
+        applyStreams();
+    }
+
+
+    private void applyStreams() throws IOException {
+        if( mReader == null ) {
+            return;
+        }
+        apply( mItemVideo, mVideoOpen );
+        apply( mItemAudio, mAudioOpen );
+    }
+
+
+    private void apply( Stream itemStream, boolean open ) throws IOException {
+        if( itemStream == null || mReader.isStreamOpen( itemStream ) == open ) {
+            return;
+        }
+        if( open ) {
+            mReader.openStream( itemStream );
+        } else {
+            mReader.closeStream( itemStream );
+        }
+    }
+
+
+    private void startItem( int item ) throws IOException {
+        mItem      = item;
+        mReader    = mPool.acquire( mFiles.get( item ) );
+        mItemVideo = mReader.stream( Jav.AVMEDIA_TYPE_VIDEO, 0 );
+        mItemAudio = mReader.stream( Jav.AVMEDIA_TYPE_AUDIO, 0 );
+        mItemEnd   = 0;
+        long dur = mReader.formatContext().duration();
+        if( dur > 0 && dur != Jav.AV_NOPTS_VALUE ) {
+            mDurations[item] = dur;
+        }
+        if( item + 1 < mFiles.size() ) {
+            mPool.hint( mFiles.get( item + 1 ) );
+        }
+    }
+
+
+    private void endItem() throws IOException {
+        FormatReader r = mReader;
+        mReader = null;
+        if( r != null ) {
+            mPlayedEnds[mItem] = Math.max( mPlayedEnds[mItem], mItemEnd );
+            mPool.release( r );
+        }
+    }
+
+
+    private void nextItem() throws IOException {
+        if( mDurations[mItem] < 0 ) {
+            mDurations[mItem] = mItemEnd;
+        }
+        long next = mOffset + mDurations[mItem];
+        endItem();
+        if( mItem + 1 >= mFiles.size() ) {
+            return;
+        }
+        // Pool positions readers at start, so no seek is needed.
+        startItem( mItem + 1 );
+        applyStreams();
+        mOffset = next;
+    }
+
+
+    private long duration( int item ) throws IOException {
+        if( mDurations[item] >= 0 ) {
+            return mDurations[item];
+        }
+        if( !mProbed[item] ) {
+            mProbed[item] = true;
+            // Probe container only. Acquiring from the pool would open and warm decoders for an item that
+            // may never play.
+            JavFormatContext format = JavFormatContext.openInput( mFiles.get( item ) );
+            long dur;
+            try {
+                dur = format.duration();
+            } finally {
+                format.close();
+            }
+            if( dur > 0 && dur != Jav.AV_NOPTS_VALUE ) {
+                mDurations[item] = dur;
+                return dur;
+            }
+        }
+        // Unknown until played to its end.
+        return mPlayedEnds[item];
+    }
+
+
+    private void assertOpen() throws IOException {
+        if( !mIsOpen ) {
+            throw new ClosedChannelException();
+        }
+    }
+
+}
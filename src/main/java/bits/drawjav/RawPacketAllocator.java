@@ -62,6 +62,19 @@ public class RawPacketAllocator extends AbstractRefable {
         return JavPacket.alloc( mPool );
     }
 
+    /**
+     * Allocates a packet without a data buffer, to be filled by {@code JavFormatContext.readPacket()}.
+     */
+    public JavPacket alloc() {
+        JavPacket ret = mPool.poll();
+        if( ret != null ) {
+            ret.freeData();
+            ret.init();
+            return ret;
+        }
+        return JavPacket.alloc( mPool );
+    }
+
     @Override
     protected void freeObject() {
         mPool.close();
@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import bits.jav.Jav;
+import bits.jav.codec.JavPacket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Byte-limited cache of compressed packets recently demuxed by a {@link FormatReader}. Packets are
+ * recorded in runs, in the order they were demuxed. A seek that lands inside a run is served from it,
+ * so that repeated seeks and loops over recently played material do not touch the demuxer. When a
+ * served run ends, the reader resumes demuxing after it and new packets extend the same run.
+ * <p>
+ * When over budget, packets at whichever end of a run is farthest from the playhead are evicted
+ * first. The playhead is the timestamp of the last packet recorded or served.
+ * <p>
+ * Packets are identified by stream index, and timestamps are given in micros by the reader.
+ * Not thread-safe. Used only from the thread that reads and seeks the FormatReader.
+ *
+ * @author Philip DeCamp
+ */
+class RawPacketCache {
+
+    // Cost of a packet in addition to its data.
+    private static final int PACKET_OVERHEAD = 64;
+
+    private final long               mMaxBytes;
+    private final RawPacketAllocator mAlloc;
+    private final List<Run>          mRuns = new ArrayList<Run>();
+
+    private long mBytes    = 0;
+    private long mPlayhead = 0;
+
+    // Run that demuxed packets are appended to.
+    private Run mRecording = null;
+
+    // Run being served, and absolute index of next entry.
+    private Run  mServing            = null;
+    private int  mCursor             = 0;
+    private long mServingStartMicros = Long.MIN_VALUE;
+
+    // Order timestamp of last packet served on each stream. Used to drop packets after resuming demux.
+    private final long[]    mServedTs;
+    private final boolean[] mSkipping;
+
+    private long mHits      = 0;
+    private long mMisses    = 0;
+    private long mEvictions = 0;
+
+
+    RawPacketCache( int streamNum, long maxBytes ) {
+        mMaxBytes = maxBytes;
+        mAlloc    = RawPacketAllocator.createPacketLimited( 256 );
+        mServedTs = new long[streamNum];
+        mSkipping = new boolean[streamNum];
+    }
+
+    /**
+     * Adds a copy of a demuxed packet to the current run, starting a new run if necessary.
+     *
+     * @param micros   Timestamp of packet, or {@code Long.MIN_VALUE} if unknown.
+     * @param openMask Bit mask of open streams.
+     */
+    void record( JavPacket packet, int stream, long micros, long openMask ) {
+        if( mRecording == null ) {
+            mRecording = new Run( openMask );
+            mRuns.add( mRecording );
+        }
+
+        JavPacket copy = mAlloc.alloc();
+        if( packet.copy( copy ) < 0 ) {
+            copy.deref();
+            mRecording = null;
+            return;
+        }
+
+        Entry e = new Entry( copy, stream, micros, orderTs( packet ), ( packet.flags() & Jav.AV_PKT_FLAG_KEY ) != 0 );
+        mRecording.mEntries.add( e );
+        mBytes += e.mCost;
+        if( micros != Long.MIN_VALUE ) {
+            mPlayhead = micros;
+        }
+        evict();
+    }
+
+    /**
+     * Marks current run as reaching the end of file and ends it.
+     */
+    void recordEof() {
+        if( mRecording != null ) {
+            mRecording.mEof = true;
+            mRecording = null;
+        }
+    }
+
+    /**
+     * Stops recording into current run, and stops serving. Call when the demuxer is repositioned
+     * without using the cache, or when the set of open streams changes.
+     */
+    void endRun() {
+        mRecording = null;
+        mServing   = null;
+        clearSkip();
+    }
+
+    /**
+     * Positions cache at latest keyframe at or before {@code micros}. If {@code all}, positions such that
+     * every open stream has a keyframe at or before {@code micros}, as {@link FormatReader#seekAll} does.
+     *
+     * @return true if seek will be served from cache.
+     */
+    boolean seek( int stream, long micros, long openMask, boolean all ) {
+        endRun();
+        mPlayhead = micros;
+
+        for( Run run : mRuns ) {
+            if( ( run.mMask & openMask ) != openMask ) {
+                continue;
+            }
+
+            int idx;
+            if( all ) {
+                idx = Integer.MAX_VALUE;
+                for( int s = 0; s < mServedTs.length && idx >= 0; s++ ) {
+                    if( ( openMask & ( 1L << s ) ) != 0 ) {
+                        int k = run.keyBefore( s, micros );
+                        idx = k < 0 ? -1 : Math.min( idx, k );
+                    }
+                }
+                if( idx == Integer.MAX_VALUE ) {
+                    idx = -1;
+                }
+            } else {
+                idx = run.keyBefore( stream, micros );
+            }
+
+            if( idx >= 0 && ( run.mEof || run.reaches( stream, micros ) ) ) {
+                mServing = run;
+                mCursor  = idx;
+                mServingStartMicros = run.mEntries.get( idx ).mMicros;
+                for( int s = 0; s < mServedTs.length; s++ ) {
+                    mServedTs[s] = Jav.AV_NOPTS_VALUE;
+                }
+                mHits++;
+                return true;
+            }
+        }
+
+        mMisses++;
+        return false;
+    }
+
+
+    boolean isServing() {
+        return mServing != null;
+    }
+
+    /**
+     * @return copy of next cached packet of an open stream, or {@code null} if the served run has ended.
+     *         Caller must deref returned packet.
+     */
+    JavPacket next( long openMask ) {
+        Run run = mServing;
+        if( run == null ) {
+            return null;
+        }
+
+        List<Entry> entries = run.mEntries;
+        while( mCursor < entries.size() ) {
+            Entry e = entries.get( mCursor++ );
+            if( e == null || ( openMask & ( 1L << e.mStream ) ) == 0 ) {
+                continue;
+            }
+
+            JavPacket ret = mAlloc.alloc();
+            if( e.mPacket.copy( ret ) < 0 ) {
+                ret.deref();
+                continue;
+            }
+            mServedTs[e.mStream] = e.mOrderTs;
+            if( e.mMicros != Long.MIN_VALUE ) {
+                mPlayhead = e.mMicros;
+            }
+            return ret;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if the served run ended at the end of file.
+     */
+    boolean servedEof() {
+        return mServing != null && mServing.mEof && mCursor >= mServing.mEntries.size();
+    }
+
+    /**
+     * Ends serving before the served run is exhausted.
+     *
+     * @return position at which demuxing should resume, as for {@link #resume()}.
+     */
+    long stopServing() {
+        if( mServing != null ) {
+            mCursor = mServing.mEntries.size();
+        }
+        return resume();
+    }
+
+    /**
+     * Stops appending to current run without affecting serving or dropping of served packets.
+     */
+    void endRecording() {
+        mRecording = null;
+    }
+
+    /**
+     * Ends serving after the served run is exhausted. Demuxed packets that were already served will be
+     * reported by {@link #skipResumed} and later packets are appended to the same run.
+     *
+     * @return earliest timestamp of the last packets served on each stream, at which demuxing should
+     *         resume, or {@code Long.MIN_VALUE} if unknown.
+     */
+    long resume() {
+        Run run = mServing;
+        mServing = null;
+        if( run == null ) {
+            return Long.MIN_VALUE;
+        }
+
+        long micros = Long.MAX_VALUE;
+        boolean[] found = new boolean[mServedTs.length];
+        List<Entry> entries = run.mEntries;
+        for( int i = entries.size() - 1; i >= run.mHead; i-- ) {
+            Entry e = entries.get( i );
+            if( e == null || found[e.mStream] || mServedTs[e.mStream] == Jav.AV_NOPTS_VALUE ) {
+                continue;
+            }
+            found[e.mStream] = true;
+            if( e.mMicros != Long.MIN_VALUE ) {
+                micros = Math.min( micros, e.mMicros );
+            }
+        }
+
+        for( int s = 0; s < mServedTs.length; s++ ) {
+            mSkipping[s] = mServedTs[s] != Jav.AV_NOPTS_VALUE;
+        }
+        mRecording = run.mEof ? null : run;
+        // If nothing was served, resume from start of served range.
+        return micros == Long.MAX_VALUE ? mServingStartMicros : micros;
+    }
+
+    /**
+     * @return true if a packet demuxed after {@link #resume()} was already served and should be dropped.
+     */
+    boolean skipResumed( JavPacket packet, int stream ) {
+        if( !mSkipping[stream] ) {
+            return false;
+        }
+        long ts = orderTs( packet );
+        if( ts != Jav.AV_NOPTS_VALUE && ts <= mServedTs[stream] ) {
+            return true;
+        }
+        mSkipping[stream] = false;
+        return false;
+    }
+
+
+    long bytes() {
+        return mBytes;
+    }
+
+
+    long hitNum() {
+        return mHits;
+    }
+
+
+    long missNum() {
+        return mMisses;
+    }
+
+
+    long evictionNum() {
+        return mEvictions;
+    }
+
+
+    void close() {
+        for( Run run : mRuns ) {
+            run.release();
+        }
+        mRuns.clear();
+        mRecording = null;
+        mServing   = null;
+        mBytes     = 0;
+        mAlloc.deref();
+    }
+
+
+
+    private void clearSkip() {
+        for( int s = 0; s < mSkipping.length; s++ ) {
+            mSkipping[s] = false;
+        }
+    }
+
+
+    private void evict() {
+        while( mBytes > mMaxBytes ) {
+            Run victim = null;
+            boolean victimHead = false;
+            long victimDist = -1;
+
+            for( Run run : mRuns ) {
+                // Keep at least the packet just recorded.
+                if( run.isEmpty() || run == mRecording && run.size() <= 1 ) {
+                    continue;
+                }
+                long dh = distance( run.head().mMicros );
+                if( dh > victimDist ) {
+                    victim = run;
+                    victimHead = true;
+                    victimDist = dh;
+                }
+                // Recording run grows at its tail.
+                if( run != mRecording ) {
+                    long dt = distance( run.tail().mMicros );
+                    if( dt > victimDist ) {
+                        victim = run;
+                        victimHead = false;
+                        victimDist = dt;
+                    }
+                }
+            }
+
+            if( victim == null ) {
+                return;
+            }
+
+            Entry e = victimHead ? victim.removeHead() : victim.removeTail();
+            mBytes -= e.mCost;
+            mEvictions++;
+            e.mPacket.deref();
+
+            if( victim.isEmpty() ) {
+                mRuns.remove( victim );
+                if( victim == mServing ) {
+                    mServing = null;
+                }
+                if( victim == mRecording ) {
+                    mRecording = null;
+                }
+            } else if( victim == mServing && mCursor < victim.mHead ) {
+                // Data being served was evicted. Reader resumes demuxing.
+                mCursor = victim.mEntries.size();
+            }
+        }
+    }
+
+
+    private long distance( long micros ) {
+        if( micros == Long.MIN_VALUE ) {
+            return Long.MAX_VALUE;
+        }
+        long d = micros - mPlayhead;
+        return d < 0 ? -d : d;
+    }
+
+
+    private static long orderTs( JavPacket p ) {
+        long ts = p.dts();
+        return ts != Jav.AV_NOPTS_VALUE ? ts : p.pts();
+    }
+
+
+    private static final class Entry {
+        final JavPacket mPacket;
+        final int       mStream;
+        final long      mMicros;
+        final long      mOrderTs;
+        final boolean   mKey;
+        final long      mCost;
+
+        Entry( JavPacket packet, int stream, long micros, long orderTs, boolean key ) {
+            mPacket  = packet;
+            mStream  = stream;
+            mMicros  = micros;
+            mOrderTs = orderTs;
+            mKey     = key;
+            mCost    = PACKET_OVERHEAD + packet.size();
+        }
+    }
+
+
+    private final class Run {
+        final long mMask;
+        // Entries before mHead have been evicted and are null.
+        final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+        int     mHead = 0;
+        boolean mEof  = false;
+
+        Run( long mask ) {
+            mMask = mask;
+        }
+
+
+        boolean isEmpty() {
+            return mHead >= mEntries.size();
+        }
+
+
+        int size() {
+            return mEntries.size() - mHead;
+        }
+
+
+        Entry head() {
+            return mEntries.get( mHead );
+        }
+
+
+        Entry tail() {
+            return mEntries.get( mEntries.size() - 1 );
+        }
+
+
+        Entry removeHead() {
+            Entry e = mEntries.set( mHead++, null );
+            if( mHead > 1024 && mHead > mEntries.size() / 2 ) {
+                compact();
+            }
+            return e;
+        }
+
+
+        Entry removeTail() {
+            // Run no longer reaches end of file. Serving it resumes demuxing after the remaining packets.
+            mEof = false;
+            return mEntries.remove( mEntries.size() - 1 );
+        }
+
+        /**
+         * @return index of last keyframe of stream at or before {@code micros}, or -1.
+         */
+        int keyBefore( int stream, long micros ) {
+            int ret = -1;
+            for( int i = mHead; i < mEntries.size(); i++ ) {
+                Entry e = mEntries.get( i );
+                if( e.mStream != stream || !e.mKey || e.mMicros == Long.MIN_VALUE ) {
+                    continue;
+                }
+                if( e.mMicros > micros ) {
+                    break;
+                }
+                ret = i;
+            }
+            return ret;
+        }
+
+        /**
+         * @return true if run contains a packet of stream at or after {@code micros}.
+         */
+        boolean reaches( int stream, long micros ) {
+            for( int i = mEntries.size() - 1; i >= mHead; i-- ) {
+                Entry e = mEntries.get( i );
+                if( e.mStream == stream && e.mMicros != Long.MIN_VALUE ) {
+                    return e.mMicros >= micros;
+                }
+            }
+            return false;
+        }
+
+
+        void release() {
+            for( int i = mHead; i < mEntries.size(); i++ ) {
+                mEntries.get( i ).mPacket.deref();
+            }
+            mEntries.clear();
+            mHead = 0;
+        }
+
+
+        private void compact() {
+            int shift = mHead;
+            mEntries.subList( 0, shift ).clear();
+            mHead = 0;
+            if( this == mServing ) {
+                // If the entry being served was removed, stop serving so that the reader resumes demuxing.
+                mCursor = mCursor < shift ? mEntries.size() : mCursor - shift;
+            }
+        }
+    }
+
+}
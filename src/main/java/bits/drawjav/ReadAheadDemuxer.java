@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import bits.jav.Jav;
+import bits.jav.JavException;
+import bits.jav.codec.JavPacket;
+import bits.jav.format.JavFormatContext;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.logging.Logger;
+
+
+/**
+ * Demuxes compressed packets from a JavFormatContext on a dedicated thread, keeping a
+ * byte-limited queue of packets ahead of the decoder. Used by {@link FormatReader} in read-ahead mode.
+ * <p>
+ * All access to the format context must be made while holding the format lock provided at construction.
+ * Any call that repositions the format context must call {@link #clear()} while holding that lock,
+ * so that packets demuxed from the previous position are discarded.
+ *
+ * @author Philip DeCamp
+ */
+class ReadAheadDemuxer {
+
+    private static final Logger sLog = Logger.getLogger( ReadAheadDemuxer.class.getName() );
+
+    // Queue cost of a packet in addition to its data.
+    private static final int PACKET_OVERHEAD = 64;
+
+
+    private final JavFormatContext   mFormat;
+    private final Object             mFormatLock;
+    private final long               mMaxBytes;
+    private final RawPacketAllocator mAlloc;
+    private final Thread             mThread;
+
+    private final ArrayDeque<JavPacket> vQueue = new ArrayDeque<JavPacket>();
+
+    private long    vBytes      = 0;
+    private long    vPeakBytes  = 0;
+    private long    vUnderruns  = 0;
+    private long    vGeneration = 0;
+    private boolean vEof        = false;
+    private int     vError      = 0;
+    private boolean vOpen       = true;
+    // Set when a poll found nothing ready. Cleared when the listener is called.
+    private boolean vStalled    = false;
+
+    private volatile Runnable vListener = null;
+
+
+    /**
+     * @param format     Format to demux.
+     * @param formatLock Lock that guards all access to {@code format}.
+     * @param maxBytes   Maximum number of bytes to queue. At least one packet is always queued.
+     */
+    ReadAheadDemuxer( JavFormatContext format, Object formatLock, long maxBytes ) {
+        mFormat     = format;
+        mFormatLock = formatLock;
+        mMaxBytes   = maxBytes;
+        mAlloc      = RawPacketAllocator.createByteLimited( maxBytes );
+        mThread     = new Thread( "FormatReader-ReadAhead" ) {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        };
+        mThread.setDaemon( true );
+    }
+
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * @param optListener Called on the demux thread when a packet, end of file or error becomes available
+     *                    after {@link #poll} found none.
+     */
+    void readyListener( Runnable optListener ) {
+        vListener = optListener;
+    }
+
+    /**
+     * @return false if the last call to {@link #poll} found nothing ready and the ready listener has not
+     *         been called since.
+     */
+    synchronized boolean isReady() {
+        return !vStalled;
+    }
+
+    /**
+     * Retrieves the next demuxed packet, waiting up to {@code timeoutNanos} if none is queued.
+     * Caller must deref the returned packet.
+     *
+     * @return next packet, or {@code null} if none became available in time, in which case the ready
+     *         listener is called once one does.
+     * @throws EOFException when all packets up to the end of the file have been retrieved.
+     * @throws JavException if the demuxer failed.
+     */
+    synchronized JavPacket poll( long timeoutNanos ) throws IOException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        boolean counted = false;
+
+        while( vOpen ) {
+            JavPacket ret = vQueue.poll();
+            if( ret != null ) {
+                vBytes -= costOf( ret );
+                notifyAll();
+                return ret;
+            }
+            if( vError != 0 ) {
+                int err = vError;
+                vError = 0;
+                vEof = true;
+                throw new JavException( err );
+            }
+            if( vEof ) {
+                throw new EOFException();
+            }
+            if( !counted ) {
+                counted = true;
+                vUnderruns++;
+            }
+
+            long wait = deadline - System.nanoTime();
+            if( wait <= 0 ) {
+                vStalled = true;
+                return null;
+            }
+            try {
+                wait( wait / 1000000L, (int)( wait % 1000000L ) );
+            } catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                vStalled = true;
+                return null;
+            }
+        }
+
+        throw new IOException( "Read-ahead closed." );
+    }
+
+    /**
+     * Discards all queued packets and restarts demuxing from the current position of the format.
+     * Must be called while holding the format lock.
+     */
+    synchronized void clear() {
+        vGeneration++;
+        vEof     = false;
+        vError   = 0;
+        vStalled = false;
+        drainQueue();
+        notifyAll();
+    }
+
+    /**
+     * Stops demux thread and releases queued packets. Blocks until the thread has finished
+     * any read in progress.
+     */
+    void close() {
+        synchronized( this ) {
+            if( !vOpen ) {
+                return;
+            }
+            vOpen = false;
+            notifyAll();
+        }
+
+        boolean interrupted = false;
+        while( mThread.isAlive() ) {
+            try {
+                mThread.join();
+            } catch( InterruptedException ex ) {
+                interrupted = true;
+            }
+        }
+        if( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized( this ) {
+            drainQueue();
+        }
+        mAlloc.deref();
+    }
+
+    /**
+     * @return number of packets currently queued.
+     */
+    synchronized int queuedPacketNum() {
+        return vQueue.size();
+    }
+
+    /**
+     * @return bytes currently queued, including a fixed overhead per packet.
+     */
+    synchronized long queuedBytes() {
+        return vBytes;
+    }
+
+    /**
+     * @return largest value of {@link #queuedBytes()} observed.
+     */
+    synchronized long peakQueuedBytes() {
+        return vPeakBytes;
+    }
+
+    /**
+     * @return number of calls to {@link #poll} that found the queue empty before the end of file.
+     */
+    synchronized long underrunNum() {
+        return vUnderruns;
+    }
+
+
+    long maxBytes() {
+        return mMaxBytes;
+    }
+
+
+
+    private void runLoop() {
+        while( true ) {
+            long gen;
+            boolean notify = false;
+
+            synchronized( this ) {
+                while( vOpen && ( vEof || vError != 0 || !vQueue.isEmpty() && vBytes >= mMaxBytes ) ) {
+                    try {
+                        wait();
+                    } catch( InterruptedException ignored ) {}
+                }
+                if( !vOpen ) {
+                    return;
+                }
+                gen = vGeneration;
+            }
+
+            JavPacket packet = mAlloc.alloc();
+            int err;
+
+            synchronized( mFormatLock ) {
+                synchronized( this ) {
+                    if( !vOpen ) {
+                        packet.deref();
+                        return;
+                    }
+                    if( gen != vGeneration ) {
+                        // Format was repositioned. Recheck queue state first.
+                        packet.deref();
+                        continue;
+                    }
+                }
+                err = mFormat.readPacket( packet );
+            }
+
+            synchronized( this ) {
+                if( gen != vGeneration || !vOpen ) {
+                    packet.deref();
+                    continue;
+                }
+                if( err != 0 ) {
+                    packet.deref();
+                    if( err == Jav.AVERROR_EOF ) {
+                        vEof = true;
+                    } else {
+                        sLog.fine( "Read-ahead demux failed: " + err );
+                        vError = err;
+                    }
+                } else {
+                    vQueue.offer( packet );
+                    vBytes += costOf( packet );
+                    if( vBytes > vPeakBytes ) {
+                        vPeakBytes = vBytes;
+                    }
+                }
+                notifyAll();
+                notify   = vStalled;
+                vStalled = false;
+            }
+
+            Runnable listener = vListener;
+            if( notify && listener != null ) {
+                listener.run();
+            }
+        }
+    }
+
+
+    private void drainQueue() {
+        JavPacket p;
+        while( ( p = vQueue.poll() ) != null ) {
+            p.deref();
+        }
+        vBytes = 0;
+    }
+
+
+    private static long costOf( JavPacket p ) {
+        return PACKET_OVERHEAD + p.size();
+    }
+
+}
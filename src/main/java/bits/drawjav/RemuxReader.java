@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import bits.jav.Jav;
+import bits.jav.JavException;
+import bits.jav.codec.JavPacket;
+import bits.jav.format.JavFormatContext;
+import bits.jav.format.JavStream;
+import bits.jav.util.Rational;
+
+import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+
+
+/**
+ * Reads the compressed packets of a range of a file without decoding them, to be copied into another
+ * container by {@link RemuxWriter}. Cost is that of demuxing, so a clip of an hour-long file is read in
+ * seconds rather than at decode speed.
+ * <p>
+ * Packets cannot be cut within a group of pictures without decoding, so a clip starts at the keyframe at
+ * or before the start of the range on the first selected video stream. Packets of other streams that
+ * start before that keyframe are dropped. Each stream ends at its first packet decoded at or after the
+ * stop of the range. Since frames are never decoded before the frames they reference, the clip can be
+ * decoded fully, and may show a few frames past stop on streams that reorder frames. If no video stream
+ * is selected, the clip starts at the first packet at or after start.
+ * <p>
+ * Times are embedded timestamps of the file in microseconds, as used by FormatReader by default.
+ * By default, all video and audio streams are selected. Packets are allocated from a
+ * {@link RawPacketAllocator} pool and must be dereferenced by the caller.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author Philip DeCamp
+ */
+public class RemuxReader {
+
+    private static final Rational MICROS = new Rational( 1, 1000000 );
+
+
+    public static RemuxReader openFile( File file ) throws IOException {
+        Jav.init();
+        if( !file.exists() ) {
+            throw new FileNotFoundException( file.getPath() );
+        }
+        return new RemuxReader( JavFormatContext.openInput( file ) );
+    }
+
+
+    private final JavFormatContext   mFormat;
+    private final JavStream[]        mStreams;
+    private final Rational[]         mTimeBases;
+    private final boolean[]          mSelected;
+    private final boolean[]          mEnded;
+    private final RawPacketAllocator mAlloc;
+
+    private KeyframeIndex mIndex = null;
+
+    private int  mSelectedNum = 0;
+    private int  mEndedNum    = 0;
+    private int  mKeyStream   = -1;
+    private long mStartMicros = Long.MIN_VALUE;
+    private long mStopMicros  = Long.MAX_VALUE;
+    private long mCutStart    = Long.MIN_VALUE;
+
+    private boolean mIsOpen = true;
+
+
+    /**
+     * @param format Input format. Closed when this reader is closed.
+     */
+    public RemuxReader( JavFormatContext format ) {
+        mFormat    = format;
+        int num    = format.streamCount();
+        mStreams   = new JavStream[num];
+        mTimeBases = new Rational[num];
+        mSelected  = new boolean[num];
+        mEnded     = new boolean[num];
+        mAlloc     = RawPacketAllocator.createPacketLimited( 64 );
+
+        for( int i = 0; i < num; i++ ) {
+            JavStream s = format.stream( i );
+            int type = s.codecContext().codecType();
+            mStreams[i]   = s;
+            mTimeBases[i] = s.timeBase();
+            select( i, type == Jav.AVMEDIA_TYPE_VIDEO || type == Jav.AVMEDIA_TYPE_AUDIO );
+        }
+        range( Long.MIN_VALUE, Long.MAX_VALUE, false );
+    }
+
+
+    public JavFormatContext formatContext() {
+        return mFormat;
+    }
+
+
+    public int streamCount() {
+        return mStreams.length;
+    }
+
+
+    public JavStream stream( int index ) {
+        return mStreams[index];
+    }
+
+    /**
+     * Selects or deselects a stream for copying. Deselected streams are discarded by the demuxer.
+     * Takes effect at the next call to {@link #range}.
+     */
+    public void select( int index, boolean select ) {
+        if( mSelected[index] == select ) {
+            return;
+        }
+        mSelected[index] = select;
+        mSelectedNum += select ? 1 : -1;
+        mStreams[index].discard( select ? Jav.AVDISCARD_DEFAULT : Jav.AVDISCARD_ALL );
+    }
+
+
+    public boolean isSelected( int index ) {
+        return mSelected[index];
+    }
+
+    /**
+     * Sets keyframe index used to find the start of a range without probing the file.
+     *
+     * @param index Index for this file, or {@code null} to seek without index.
+     */
+    public void keyframeIndex( KeyframeIndex index ) {
+        if( index != null && index.streamCount() != mStreams.length ) {
+            throw new IllegalArgumentException( "Keyframe index has wrong number of streams." );
+        }
+        mIndex = index;
+    }
+
+    /**
+     * Positions reader at start of a clip covering {@code [startMicros, stopMicros)}. The actual start is
+     * given by {@link #cutStartMicros()} once the first packet has been read.
+     */
+    public void range( long startMicros, long stopMicros ) throws IOException {
+        assertOpen();
+        range( startMicros, stopMicros, true );
+    }
+
+    /**
+     * @return start of clip, which is the start of its first keyframe, or {@code Long.MIN_VALUE} if no packet
+     *         has been read since the last call to {@link #range}.
+     */
+    public long cutStartMicros() {
+        return mCutStart;
+    }
+
+    /**
+     * @return next compressed packet of clip. Stream index of packet is that of input file.
+     * @throws EOFException at end of clip.
+     */
+    public JavPacket readNext() throws IOException {
+        assertOpen();
+        while( mEndedNum < mSelectedNum ) {
+            JavPacket p = mAlloc.alloc();
+            int err = mFormat.readPacket( p );
+            if( err != 0 ) {
+                p.deref();
+                if( err == Jav.AVERROR_EOF ) {
+                    mEndedNum = mSelectedNum;
+                    break;
+                }
+                throw new JavException( err );
+            }
+            if( accept( p ) ) {
+                return p;
+            }
+            p.deref();
+        }
+        throw new EOFException();
+    }
+
+
+    public void close() throws IOException {
+        if( !mIsOpen ) {
+            return;
+        }
+        mIsOpen = false;
+        mAlloc.deref();
+        mFormat.close();
+    }
+
+
+    public boolean isOpen() {
+        return mIsOpen;
+    }
+
+
+
+    private void range( long startMicros, long stopMicros, boolean seek ) {
+        mStartMicros = startMicros;
+        mStopMicros  = stopMicros;
+        mCutStart    = Long.MIN_VALUE;
+        mKeyStream   = -1;
+        Arrays.fill( mEnded, false );
+        mEndedNum = 0;
+
+        int seekStream = -1;
+        for( int i = 0; i < mStreams.length; i++ ) {
+            if( !mSelected[i] ) {
+                continue;
+            }
+            if( seekStream < 0 ) {
+                seekStream = i;
+            }
+            if( mStreams[i].codecContext().codecType() == Jav.AVMEDIA_TYPE_VIDEO ) {
+                mKeyStream = i;
+                seekStream = i;
+                break;
+            }
+        }
+
+        if( !seek || seekStream < 0 ) {
+            return;
+        }
+
+        long pts = Rational.rescaleQ( startMicros, MICROS, mTimeBases[seekStream] );
+        KeyframeIndex index = mIndex;
+        if( index != null ) {
+            int entry = index.entryBefore( seekStream, pts );
+            if( entry >= 0 ) {
+                pts = index.entryPts( seekStream, entry );
+            }
+        }
+        mFormat.seek( seekStream, pts, Jav.AVSEEK_FLAG_BACKWARD );
+    }
+
+
+    private boolean accept( JavPacket p ) {
+        int idx = p.streamIndex();
+        if( idx < 0 || idx >= mStreams.length || !mSelected[idx] || mEnded[idx] ) {
+            return false;
+        }
+
+        long pts = p.pts();
+        long dts = p.dts();
+        if( pts == Jav.AV_NOPTS_VALUE ) {
+            pts = dts;
+        }
+        if( pts == Jav.AV_NOPTS_VALUE ) {
+            // Untimed packets are kept once clip has started.
+            return mCutStart != Long.MIN_VALUE;
+        }
+        if( dts == Jav.AV_NOPTS_VALUE ) {
+            dts = pts;
+        }
+
+        Rational tb = mTimeBases[idx];
+        if( Rational.rescaleQ( dts, tb, MICROS ) >= mStopMicros ) {
+            mEnded[idx] = true;
+            mEndedNum++;
+            return false;
+        }
+
+        long startMicros = Rational.rescaleQ( pts, tb, MICROS );
+        if( mCutStart == Long.MIN_VALUE ) {
+            if( mKeyStream < 0 ? startMicros < mStartMicros :
+                idx != mKeyStream || ( p.flags() & Jav.AV_PKT_FLAG_KEY ) == 0 )
+            {
+                return false;
+            }
+            mCutStart = startMicros;
+            return true;
+        }
+        return startMicros >= mCutStart;
+    }
+
+
+    private void assertOpen() throws IOException {
+        if( !mIsOpen ) {
+            throw new ClosedChannelException();
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import bits.jav.Jav;
+import bits.jav.JavException;
+import bits.jav.codec.*;
+import bits.jav.format.*;
+import bits.jav.util.*;
+
+import java.io.*;
+import java.util.Arrays;
+
+
+/**
+ * Writes compressed packets from a {@link RemuxReader} into a new container without decoding or encoding
+ * them. Output streams copy the codec parameters of the selected input streams. Timestamps are shifted so
+ * that the clip starts at zero.
+ * <p>
+ * Typical use is {@link #trim(File, File, long, long)}, which copies a range of a file in roughly the time
+ * needed to read it.
+ *
+ * @author Philip DeCamp
+ */
+public class RemuxWriter {
+
+    private static final Rational MICROS = new Rational( 1, 1000000 );
+
+    /**
+     * Copies the clip of {@code in} covering {@code [startMicros, stopMicros)} into {@code out}, with the
+     * container format guessed from the name of {@code out}. See {@link RemuxReader} for how the clip is cut.
+     *
+     * @return start of clip in {@code in}, which is the keyframe at or before {@code startMicros},
+     *         or {@code Long.MIN_VALUE} if the clip is empty.
+     */
+    public static long trim( File in, File out, long startMicros, long stopMicros ) throws IOException {
+        RemuxReader reader = RemuxReader.openFile( in );
+        RemuxWriter writer = new RemuxWriter();
+        try {
+            reader.range( startMicros, stopMicros );
+            writer.open( out, null, reader );
+            while( true ) {
+                JavPacket p;
+                try {
+                    p = reader.readNext();
+                } catch( EOFException ex ) {
+                    break;
+                }
+                try {
+                    writer.write( p );
+                } finally {
+                    p.deref();
+                }
+            }
+            writer.close();
+            return reader.cutStartMicros();
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+
+    private JavFormatContext mFormat   = null;
+    private RemuxReader      mReader   = null;
+    private JavDict          mMetadata = null;
+
+    // Indexed by input stream.
+    private int[]      mOutIndex  = null;
+    private Rational[] mInRates   = null;
+    private Rational[] mOutRates  = null;
+    private long[]     mOffsetPts = null;
+    private boolean    mStarted   = false;
+
+
+    public RemuxWriter() {
+        Jav.init();
+    }
+
+
+    public RemuxWriter metadata( JavDict meta ) {
+        mMetadata = meta;
+        return this;
+    }
+
+    /**
+     * Opens output with one stream for each stream selected on {@code reader}, in input order.
+     *
+     * @param out           File to write.
+     * @param optFormatName Name of container format, or {@code null} to guess from name of {@code out}.
+     * @param reader        Source of packets.
+     */
+    public void open( File out, String optFormatName, RemuxReader reader ) throws IOException {
+        close();
+
+        int num = reader.streamCount();
+        mFormat    = JavFormatContext.openOutput( out, null, optFormatName );
+        mReader    = reader;
+        mOutIndex  = new int[num];
+        mInRates   = new Rational[num];
+        mOutRates  = new Rational[num];
+        mOffsetPts = new long[num];
+        mStarted   = false;
+        Arrays.fill( mOutIndex, -1 );
+
+        int outNum = 0;
+        for( int i = 0; i < num; i++ ) {
+            if( !reader.isSelected( i ) ) {
+                continue;
+            }
+            JavStream src = reader.stream( i );
+            JavCodecContext srcCc = src.codecContext();
+            JavCodec codec = JavCodec.findDecoder( srcCc.codecId() );
+            JavStream dst = codec == null ? null : mFormat.newStream( codec );
+            if( dst == null ) {
+                throw new JavException( "Could not create output stream for input stream " + i );
+            }
+            copyParams( src, dst.codecContext() );
+            mInRates[i]  = src.timeBase();
+            mOutIndex[i] = outNum++;
+        }
+
+        if( mMetadata != null ) {
+            mFormat.metadata( mMetadata );
+            mMetadata = null;
+        }
+
+        int err = mFormat.writeHeader();
+        if( err < 0 ) {
+            throw new JavException( err, "Writing header" );
+        }
+        for( int i = 0; i < num; i++ ) {
+            if( mOutIndex[i] >= 0 ) {
+                mOutRates[i] = mFormat.stream( mOutIndex[i] ).timeBase();
+            }
+        }
+    }
+
+    /**
+     * Writes packet read from the reader given to {@link #open}. The muxer takes the data of the packet,
+     * but the caller must still deref it. Packets of streams without output are ignored.
+     */
+    public void write( JavPacket packet ) throws IOException {
+        int in = packet.streamIndex();
+        if( mFormat == null || in < 0 || in >= mOutIndex.length || mOutIndex[in] < 0 ) {
+            return;
+        }
+
+        if( !mStarted ) {
+            mStarted = true;
+            long offset = mReader.cutStartMicros();
+            for( int i = 0; i < mOffsetPts.length; i++ ) {
+                if( mInRates[i] != null ) {
+                    mOffsetPts[i] = Rational.rescaleQ( offset, MICROS, mInRates[i] );
+                }
+            }
+        }
+
+        Rational inRate  = mInRates[in];
+        Rational outRate = mOutRates[in];
+        long off = mOffsetPts[in];
+        long pts = packet.pts();
+        long dts = packet.dts();
+
+        if( pts != Jav.AV_NOPTS_VALUE ) {
+            packet.pts( Rational.rescaleQ( pts - off, inRate, outRate ) );
+        }
+        if( dts != Jav.AV_NOPTS_VALUE ) {
+            packet.dts( Rational.rescaleQ( dts - off, inRate, outRate ) );
+        }
+        packet.duration( (int)Rational.rescaleQ( packet.duration(), inRate, outRate ) );
+        packet.pos( -1 );
+        packet.streamIndex( mOutIndex[in] );
+
+        int err = mFormat.writeInterleavedFrame( packet );
+        if( err < 0 ) {
+            throw new IOException( "Packet write failed: " + err );
+        }
+    }
+
+    /**
+     * Flushes interleaving queues, writes trailer and closes output. Has no effect if not open.
+     */
+    public void close() throws IOException {
+        if( mFormat == null ) {
+            return;
+        }
+        JavFormatContext format = mFormat;
+        mFormat = null;
+        mReader = null;
+
+        try {
+            format.writeInterleavedFrame( null );
+            int err = format.writeTrailer();
+            if( err < 0 ) {
+                throw new JavException( err, "Writing trailer" );
+            }
+        } finally {
+            format.close();
+        }
+    }
+
+
+
+    private static void copyParams( JavStream src, JavCodecContext dst ) {
+        JavCodecContext s = src.codecContext();
+        int type = s.codecType();
+        dst.codecType( type );
+        dst.codecId( s.codecId() );
+        dst.bitRate( s.bitRate() );
+        dst.timeBase( src.timeBase() );
+
+        if( type == Jav.AVMEDIA_TYPE_VIDEO ) {
+            dst.width( s.width() );
+            dst.height( s.height() );
+            dst.pixelFormat( s.pixelFormat() );
+            dst.sampleAspectRatio( s.sampleAspectRatio() );
+        } else if( type == Jav.AVMEDIA_TYPE_AUDIO ) {
+            dst.channels( s.channels() );
+            dst.channelLayout( s.channelLayout() );
+            dst.sampleRate( s.sampleRate() );
+            dst.sampleFormat( s.sampleFormat() );
+            dst.frameSize( s.frameSize() );
+        }
+
+        int size = s.extraDataSize();
+        if( size > 0 && s.extraData() != 0L ) {
+            // Demuxers pad extradata, and decoders of the output expect the same padding.
+            long buf = JavMem.memdup( s.extraData(), size + Jav.FF_INPUT_BUFFER_PADDING_SIZE );
+            dst.extraData( buf, size );
+        }
+    }
+
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+
+
+/**
+ * PacketReader that can play one stream of an underlying reader backward. In forward mode, calls pass
+ * directly to the underlying reader. In reverse mode, a background thread decodes one GOP at a time,
+ * moving backward from the playhead, and packets are returned in descending timestamp order. Each
+ * GOP is decoded once. While the current GOP is being returned, the preceding GOP is decoded.
+ * <p>
+ * Decoded packets are limited by a byte budget, measured with {@link PacketBytes}. Half of the budget
+ * is available to packets awaiting return, and half to the GOP being decoded. The next GOP is not
+ * decoded until buffered packets fall below half the budget. If a single GOP does not fit in half the
+ * budget, only its latest packets are kept, and the remainder is decoded again from the same keyframe
+ * afterward.
+ * <p>
+ * GOP boundaries are found by seeking the underlying reader, which must position at the keyframe at or
+ * before the seek target, as FormatReader does without accurate seeking. Accurate seeking is disabled on
+ * FormatReaders given to this class. In reverse mode, packets of streams other than the reversed stream
+ * are discarded. Audio may be reversed separately, e.g., by AudioPacketClipper.
+ * <p>
+ * In reverse mode, {@link #readNext()} does not wait for the background thread. If no decoded packet is
+ * ready, it returns {@code null} and the ready listener is called once the next GOP has been queued. If the
+ * underlying reader is an {@link AsyncPacketReader}, the background thread waits for its ready listener
+ * rather than polling it.
+ *
+ * @author Philip DeCamp
+ */
+public class ReverseReader implements AsyncPacketReader {
+
+    private static final Logger sLog = Logger.getLogger( ReverseReader.class.getName() );
+
+    // Distance before GOP end of first seek target when finding a GOP.
+    private static final long SEEK_BACKOFF_MICROS = 1000000L;
+    // No job in progress.
+    private static final long NO_JOB = Long.MIN_VALUE;
+
+
+    private final PacketReader mReader;
+    // Underlying reader if it is asynchronous, otherwise null.
+    private final AsyncPacketReader mAsync;
+    private final Stream       mStream;
+    private final long         mMaxBytes;
+
+    private Thread mThread = null;
+
+    private final ArrayDeque<Packet> vQueue = new ArrayDeque<Packet>();
+
+    private boolean     vReverse    = false;
+    private boolean     vOpen       = true;
+    private boolean     vBusy       = false;
+    private long        vGeneration = 0;
+    private long        vJobEnd     = NO_JOB;
+    private boolean     vBof        = false;
+    private IOException vError      = null;
+    private boolean     vStalled    = false;
+
+    private volatile Runnable vListener = null;
+
+    // Start of last packet returned from reversed stream, or last seek target.
+    private long vPlayhead = 0;
+    // True if vPlayhead is a seek target rather than a returned packet.
+    private boolean vPlayheadIsTarget = true;
+
+    private long vBytes      = 0;
+    private long vPeakBytes  = 0;
+    private long vGopNum     = 0;
+    private long vRedecodes  = 0;
+    private long vUnderruns  = 0;
+
+
+    /**
+     * @param reader   Underlying reader. Closed when this reader is closed.
+     * @param stream   Stream to play in reverse.
+     * @param maxBytes Byte budget of decoded packets held in reverse mode.
+     */
+    public ReverseReader( PacketReader reader, Stream stream, long maxBytes ) {
+        mReader   = reader;
+        mStream   = stream;
+        mMaxBytes = maxBytes;
+        if( reader instanceof FormatReader ) {
+            ( (FormatReader)reader ).accurateSeek( false );
+        }
+        mAsync = reader instanceof AsyncPacketReader ? (AsyncPacketReader)reader : null;
+        if( mAsync != null ) {
+            mAsync.readyListener( new InnerReady() );
+        }
+    }
+
+
+    @Override
+    public int streamCount() {
+        return mReader.streamCount();
+    }
+
+    @Override
+    public Stream stream( int index ) {
+        return mReader.stream( index );
+    }
+
+    @Override
+    public List<Stream> streams() {
+        return mReader.streams();
+    }
+
+    @Override
+    public synchronized void openStream( Stream stream ) throws IOException {
+        stopJob();
+        mReader.openStream( stream );
+        if( vReverse ) {
+            startJob( playheadEnd() );
+        }
+    }
+
+    @Override
+    public synchronized void closeStream( Stream stream ) throws IOException {
+        stopJob();
+        mReader.closeStream( stream );
+        if( vReverse ) {
+            startJob( playheadEnd() );
+        }
+    }
+
+    @Override
+    public boolean isStreamOpen( Stream stream ) {
+        return mReader.isStreamOpen( stream );
+    }
+
+    /**
+     * Sets playback direction. The new direction takes effect from the current playhead,
+     * which is the last packet returned on the reversed stream, or the last seek target.
+     * In forward mode, the packet at the playhead may be returned again.
+     */
+    public synchronized void reverse( boolean reverse ) throws IOException {
+        if( reverse == vReverse ) {
+            return;
+        }
+        stopJob();
+        vReverse = reverse;
+        if( reverse ) {
+            startJob( playheadEnd() );
+        } else {
+            mReader.seek( vPlayhead );
+            Runnable wake = wakeStalled();
+            if( wake != null ) {
+                wake.run();
+            }
+        }
+    }
+
+
+    public synchronized boolean isReverse() {
+        return vReverse;
+    }
+
+    /**
+     * In reverse mode, the next packet returned will be the one containing {@code micros},
+     * followed by earlier packets.
+     */
+    @Override
+    public synchronized void seek( long micros ) throws IOException {
+        stopJob();
+        vPlayhead = micros;
+        vPlayheadIsTarget = true;
+        if( vReverse ) {
+            startJob( playheadEnd() );
+        } else {
+            mReader.seek( micros );
+        }
+    }
+
+    @Override
+    public Packet readNext() throws IOException {
+        synchronized( this ) {
+            if( vReverse ) {
+                return pollReverse();
+            }
+        }
+
+        Packet p = mReader.readNext();
+        if( p != null && p.stream() == mStream ) {
+            synchronized( this ) {
+                vPlayhead = p.startMicros();
+                vPlayheadIsTarget = false;
+            }
+        }
+        return p;
+    }
+
+    @Override
+    public void readyListener( Runnable optListener ) {
+        vListener = optListener;
+    }
+
+    @Override
+    public boolean isReady() {
+        synchronized( this ) {
+            if( vReverse ) {
+                return !vStalled;
+            }
+        }
+        return mAsync == null || mAsync.isReady();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized( this ) {
+            if( !vOpen ) {
+                return;
+            }
+            vOpen = false;
+            vGeneration++;
+            notifyAll();
+            thread = mThread;
+        }
+
+        if( thread != null ) {
+            boolean interrupted = false;
+            while( thread.isAlive() ) {
+                try {
+                    thread.join();
+                } catch( InterruptedException ex ) {
+                    interrupted = true;
+                }
+            }
+            if( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized( this ) {
+            drainQueue();
+        }
+        mReader.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mReader.isOpen();
+    }
+
+    /**
+     * @return bytes of decoded packets awaiting return in reverse mode.
+     */
+    public synchronized long bufferedBytes() {
+        return vBytes;
+    }
+
+    /**
+     * @return largest value of {@link #bufferedBytes()} observed.
+     */
+    public synchronized long peakBufferedBytes() {
+        return vPeakBytes;
+    }
+
+
+    public synchronized int bufferedPacketNum() {
+        return vQueue.size();
+    }
+
+    /**
+     * @return number of GOPs, or parts of GOPs, decoded in reverse mode.
+     */
+    public synchronized long gopNum() {
+        return vGopNum;
+    }
+
+    /**
+     * @return number of GOPs that did not fit in budget and had to be partially decoded again.
+     */
+    public synchronized long redecodeNum() {
+        return vRedecodes;
+    }
+
+    /**
+     * @return number of times reverse reads ran out of decoded packets.
+     */
+    public synchronized long underrunNum() {
+        return vUnderruns;
+    }
+
+
+
+    private Packet pollReverse() throws IOException {
+        if( vOpen ) {
+            Packet p = vQueue.poll();
+            if( p != null ) {
+                vBytes -= PacketBytes.costOf( p );
+                vPlayhead = p.startMicros();
+                vPlayheadIsTarget = false;
+                notifyAll();
+                return p;
+            }
+            if( vError != null ) {
+                IOException err = vError;
+                vError = null;
+                vBof = true;
+                throw err;
+            }
+            if( vBof ) {
+                throw new EOFException();
+            }
+            if( !vStalled ) {
+                vStalled = true;
+                vUnderruns++;
+            }
+            return null;
+        }
+
+        throw new IOException( "Reader closed." );
+    }
+
+    /**
+     * Cancels reverse decoding and waits until the worker no longer uses the underlying reader.
+     */
+    private void stopJob() {
+        vGeneration++;
+        vJobEnd = NO_JOB;
+        vBof    = false;
+        vError  = null;
+        drainQueue();
+        notifyAll();
+
+        boolean interrupted = false;
+        while( vBusy ) {
+            try {
+                wait();
+            } catch( InterruptedException ex ) {
+                interrupted = true;
+            }
+        }
+        if( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return exclusive end of reverse decoding from playhead.
+     */
+    private long playheadEnd() {
+        if( vPlayheadIsTarget && vPlayhead != Long.MAX_VALUE ) {
+            // Packet containing target is returned first.
+            return vPlayhead + 1;
+        }
+        return vPlayhead;
+    }
+
+
+    private void startJob( long end ) {
+        vJobEnd = end;
+        vBof    = false;
+        if( mThread == null ) {
+            mThread = new Thread( "ReverseReader" ) {
+                @Override
+                public void run() {
+                    runLoop();
+                }
+            };
+            mThread.setDaemon( true );
+            mThread.start();
+        }
+        notifyAll();
+    }
+
+
+    /**
+     * Clears stalled flag. Calling thread must own lock.
+     *
+     * @return listener to call outside of lock, or null if reader was not stalled.
+     */
+    private Runnable wakeStalled() {
+        if( !vStalled ) {
+            return null;
+        }
+        vStalled = false;
+        return vListener;
+    }
+
+
+    private void drainQueue() {
+        Packet p;
+        while( ( p = vQueue.poll() ) != null ) {
+            p.deref();
+        }
+        vBytes = 0;
+    }
+
+
+    /**
+     * Waits until an asynchronous underlying reader may have a packet ready, or job is cancelled.
+     */
+    private synchronized void awaitReader( long gen ) {
+        if( mAsync == null ) {
+            return;
+        }
+        while( vOpen && gen == vGeneration && !mAsync.isReady() ) {
+            try {
+                wait();
+            } catch( InterruptedException ignored ) {}
+        }
+    }
+
+
+    private synchronized boolean isCurrent( long gen ) {
+        return vOpen && gen == vGeneration;
+    }
+
+
+    private void runLoop() {
+        final long gopBudget = mMaxBytes / 2;
+        List<Packet> gop = new ArrayList<Packet>();
+
+        while( true ) {
+            long gen;
+            long end;
+
+            synchronized( this ) {
+                while( vOpen && ( vJobEnd == NO_JOB || !vQueue.isEmpty() && vBytes >= gopBudget ) ) {
+                    try {
+                        wait();
+                    } catch( InterruptedException ignored ) {}
+                }
+                if( !vOpen ) {
+                    return;
+                }
+                gen   = vGeneration;
+                end   = vJobEnd;
+                vBusy = true;
+            }
+
+            IOException err = null;
+            boolean truncated = false;
+            try {
+                truncated = decodeGop( gen, end, gopBudget, gop );
+            } catch( IOException ex ) {
+                err = ex;
+            }
+
+            Runnable wake = null;
+            synchronized( this ) {
+                vBusy = false;
+                notifyAll();
+
+                if( gen != vGeneration || !vOpen ) {
+                    release( gop );
+                } else if( err != null ) {
+                    sLog.fine( "Reverse decode failed: " + err );
+                    release( gop );
+                    vError  = err;
+                    vJobEnd = NO_JOB;
+                    wake    = wakeStalled();
+                } else if( gop.isEmpty() ) {
+                    vBof    = true;
+                    vJobEnd = NO_JOB;
+                    wake    = wakeStalled();
+                } else {
+                    vGopNum++;
+                    if( truncated ) {
+                        vRedecodes++;
+                    }
+                    // Packets of GOP are in ascending order. Queue latest first.
+                    vJobEnd = gop.get( 0 ).startMicros();
+                    for( int i = gop.size() - 1; i >= 0; i-- ) {
+                        Packet p = gop.get( i );
+                        vQueue.offer( p );
+                        vBytes += PacketBytes.costOf( p );
+                    }
+                    gop.clear();
+                    if( vBytes > vPeakBytes ) {
+                        vPeakBytes = vBytes;
+                    }
+                    wake = wakeStalled();
+                }
+            }
+
+            if( wake != null ) {
+                wake.run();
+            }
+        }
+    }
+
+    /**
+     * Decodes all packets of reversed stream that start before {@code end}, beginning from the preceding
+     * keyframe. Packets are placed in {@code out} in ascending order. If packets exceed {@code budget},
+     * earliest packets are dropped.
+     *
+     * @return true if packets were dropped to stay in budget.
+     */
+    private boolean decodeGop( long gen, long end, long budget, List<Packet> out ) throws IOException {
+        long target  = end == Long.MIN_VALUE ? end : end - 1;
+        long backoff = SEEK_BACKOFF_MICROS;
+        long prevFirst = Long.MIN_VALUE;
+
+        while( true ) {
+            mReader.seek( target );
+            ArrayDeque<Packet> window = new ArrayDeque<Packet>();
+            long bytes = 0;
+            long first = Long.MIN_VALUE;
+            boolean truncated = false;
+
+            try {
+                while( isCurrent( gen ) ) {
+                    Packet p;
+                    try {
+                        p = mReader.readNext();
+                    } catch( EOFException ex ) {
+                        break;
+                    }
+                    if( p == null ) {
+                        awaitReader( gen );
+                        continue;
+                    }
+                    if( p.stream() != mStream ) {
+                        p.deref();
+                        continue;
+                    }
+                    if( first == Long.MIN_VALUE ) {
+                        first = p.startMicros();
+                    }
+                    if( p.startMicros() >= end ) {
+                        p.deref();
+                        break;
+                    }
+
+                    window.offer( p );
+                    bytes += PacketBytes.costOf( p );
+                    while( bytes > budget && window.size() > 1 ) {
+                        Packet drop = window.poll();
+                        bytes -= PacketBytes.costOf( drop );
+                        drop.deref();
+                        truncated = true;
+                    }
+                }
+            } catch( IOException ex ) {
+                release( window );
+                throw ex;
+            }
+
+            if( !window.isEmpty() || !isCurrent( gen ) ) {
+                out.addAll( window );
+                Collections.sort( out, START_ORDER );
+                return truncated;
+            }
+
+            // Seek landed after target. If an earlier seek lands at the same place, it is the start of the stream.
+            if( first == Long.MIN_VALUE || first == prevFirst || target == Long.MIN_VALUE ) {
+                return false;
+            }
+            prevFirst = first;
+            target    = target - backoff < target ? target - backoff : Long.MIN_VALUE;
+            backoff  *= 2;
+        }
+    }
+
+
+    private static void release( Collection<Packet> packets ) {
+        for( Packet p : packets ) {
+            p.deref();
+        }
+        packets.clear();
+    }
+
+
+    private static final Comparator<Packet> START_ORDER = new Comparator<Packet>() {
+        @Override
+        public int compare( Packet a, Packet b ) {
+            long sa = a.startMicros();
+            long sb = b.startMicros();
+            return sa < sb ? -1 : ( sa > sb ? 1 : 0 );
+        }
+    };
+
+
+    /**
+     * Listener of underlying reader. Wakes worker, and in forward mode, the reader's own listener.
+     */
+    private final class InnerReady implements Runnable {
+        @Override
+        public void run() {
+            Runnable forward;
+            synchronized( ReverseReader.this ) {
+                ReverseReader.this.notifyAll();
+                forward = vReverse ? null : vListener;
+            }
+            if( forward != null ) {
+                forward.run();
+            }
+        }
+    }
+
+}
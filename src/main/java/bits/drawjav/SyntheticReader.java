@@ -0,0 +1,513 @@
+package bits.drawjav;
+
+import bits.jav.Jav;
+import bits.jav.util.Rational;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+
+/**
+ * PacketReader that generates audio and video instead of reading a file. Audio streams carry tones,
+ * noise or silence. Video streams carry moving bars, noise or a solid color that cycles each frame.
+ * Packets are timestamped exactly from the sample rate or frame rate of each stream, and are returned
+ * in timestamp order across streams.
+ * <p>
+ * If a MemoryManager is provided, packets are DrawPackets allocated from that manager. Otherwise,
+ * packets are pooled {@link BufferPacket}s, which lets graphs run without the native jav libraries.
+ * <p>
+ * Supported audio formats are the packed formats listed in {@link bits.drawjav.audio.AudioSampleFormat}.
+ * Supported video formats are GRAY8 and the packed 24 and 32-bit RGB formats.
+ *
+ * @author Philip DeCamp
+ */
+public class SyntheticReader implements PacketReader {
+
+    public static final int SIGNAL_TONE    = 0;
+    public static final int SIGNAL_NOISE   = 1;
+    public static final int SIGNAL_SILENCE = 2;
+
+    public static final int PATTERN_BARS  = 0;
+    public static final int PATTERN_NOISE = 1;
+    public static final int PATTERN_SOLID = 2;
+
+    private static final double TONE_HZ  = 440.0;
+    private static final int    POOL_CAP = 64;
+
+    private static final int[] BAR_COLORS = { 0xFFC0C0C0,
+                                              0xFFC0C000,
+                                              0xFF00C0C0,
+                                              0xFF00C000,
+                                              0xFFC000C0,
+                                              0xFFC00000,
+                                              0xFF0000C0,
+                                              0xFF101010 };
+
+    private final MemoryManager mMem;
+    private final long          mDurationMicros;
+    private final List<Source>  mSources = new ArrayList<Source>();
+    private final List<Stream>  mStreams = new ArrayList<Stream>();
+
+    private boolean mOpen = true;
+
+
+    /**
+     * @param optMem         Memory manager used to allocate DrawPackets. If {@code null}, BufferPackets
+     *                       are generated instead.
+     * @param durationMicros Length of generated streams. After all streams reach this time,
+     *                       {@link #readNext()} throws EOFException.
+     */
+    public SyntheticReader( MemoryManager optMem, long durationMicros ) {
+        mMem = optMem;
+        mDurationMicros = durationMicros;
+    }
+
+
+    /**
+     * @param format           Format of stream. Must use a packed sample format.
+     * @param samplesPerPacket Number of samples per channel in each packet.
+     * @param signal           SIGNAL_TONE, SIGNAL_NOISE or SIGNAL_SILENCE.
+     * @return index of new stream.
+     */
+    public int addAudioStream( StreamFormat format, int samplesPerPacket, int signal ) {
+        if( format.mType != Jav.AVMEDIA_TYPE_AUDIO || format.mSampleRate <= 0 || format.mChannels <= 0 ) {
+            throw new IllegalArgumentException( "Invalid audio format." );
+        }
+        if( sampleSize( format.mSampleFormat ) <= 0 ) {
+            throw new IllegalArgumentException( "Unsupported sample format: " + format.mSampleFormat );
+        }
+        if( samplesPerPacket <= 0 ) {
+            throw new IllegalArgumentException( "samplesPerPacket must be positive." );
+        }
+        return addSource( new AudioSource( format, samplesPerPacket, signal ) );
+    }
+
+    /**
+     * @param format    Format of stream. Must specify width, height and a supported pixel format.
+     * @param frameRate Frames per second.
+     * @param pattern   PATTERN_BARS, PATTERN_NOISE or PATTERN_SOLID.
+     * @return index of new stream.
+     */
+    public int addVideoStream( StreamFormat format, Rational frameRate, int pattern ) {
+        if( format.mType != Jav.AVMEDIA_TYPE_VIDEO || format.mWidth <= 0 || format.mHeight <= 0 ) {
+            throw new IllegalArgumentException( "Invalid video format." );
+        }
+        if( pixelSize( format.mPixelFormat ) <= 0 ) {
+            throw new IllegalArgumentException( "Unsupported pixel format: " + format.mPixelFormat );
+        }
+        if( frameRate.num() <= 0 || frameRate.den() <= 0 ) {
+            throw new IllegalArgumentException( "Invalid frame rate: " + frameRate );
+        }
+        return addSource( new VideoSource( format, frameRate, pattern ) );
+    }
+
+    @Override
+    public int streamCount() {
+        return mSources.size();
+    }
+
+    @Override
+    public Stream stream( int index ) {
+        return mSources.get( index );
+    }
+
+    @Override
+    public List<Stream> streams() {
+        return Collections.unmodifiableList( mStreams );
+    }
+
+    @Override
+    public void openStream( Stream stream ) throws IOException {
+        sourceFor( stream ).mStreamOpen = true;
+    }
+
+    @Override
+    public void closeStream( Stream stream ) throws IOException {
+        sourceFor( stream ).mStreamOpen = false;
+    }
+
+    @Override
+    public boolean isStreamOpen( Stream stream ) {
+        return stream instanceof Source && ((Source)stream).mReader == this && ((Source)stream).mStreamOpen;
+    }
+
+    @Override
+    public void seek( long micros ) throws IOException {
+        if( !mOpen ) {
+            throw new IOException( "Reader closed." );
+        }
+        for( Source s: mSources ) {
+            s.seek( Math.max( 0, micros ) );
+        }
+    }
+
+    @Override
+    public Packet readNext() throws IOException {
+        if( !mOpen ) {
+            throw new IOException( "Reader closed." );
+        }
+
+        Source next = null;
+        for( Source s: mSources ) {
+            if( s.mStreamOpen && s.startMicros() < mDurationMicros &&
+                ( next == null || s.startMicros() < next.startMicros() ) )
+            {
+                next = s;
+            }
+        }
+
+        if( next == null ) {
+            throw new EOFException();
+        }
+
+        return next.generate();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if( !mOpen ) {
+            return;
+        }
+        mOpen = false;
+        for( Source s: mSources ) {
+            s.close();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+
+
+    private int addSource( Source source ) {
+        mSources.add( source );
+        mStreams.add( source );
+        return mSources.size() - 1;
+    }
+
+
+    private Source sourceFor( Stream stream ) throws IOException {
+        if( !( stream instanceof Source ) || ((Source)stream).mReader != this ) {
+            throw new IOException( "Stream does not belong to this reader." );
+        }
+        return (Source)stream;
+    }
+
+
+    private static int sampleSize( int sampleFormat ) {
+        switch( sampleFormat ) {
+        case Jav.AV_SAMPLE_FMT_U8:
+            return 1;
+        case Jav.AV_SAMPLE_FMT_S16:
+            return 2;
+        case Jav.AV_SAMPLE_FMT_S32:
+        case Jav.AV_SAMPLE_FMT_FLT:
+            return 4;
+        case Jav.AV_SAMPLE_FMT_DBL:
+            return 8;
+        default:
+            return -1;
+        }
+    }
+
+
+    private static int pixelSize( int pixelFormat ) {
+        switch( pixelFormat ) {
+        case Jav.AV_PIX_FMT_GRAY8:
+            return 1;
+        case Jav.AV_PIX_FMT_RGB24:
+        case Jav.AV_PIX_FMT_BGR24:
+            return 3;
+        case Jav.AV_PIX_FMT_ARGB:
+        case Jav.AV_PIX_FMT_RGBA:
+        case Jav.AV_PIX_FMT_ABGR:
+        case Jav.AV_PIX_FMT_BGRA:
+            return 4;
+        default:
+            return -1;
+        }
+    }
+
+
+
+    private abstract class Source extends BasicStream {
+        final SyntheticReader mReader = SyntheticReader.this;
+        final CostPool<BufferPacket> mPool;
+        final PacketAllocator<DrawPacket> mAlloc;
+
+        boolean mStreamOpen = true;
+        long    mIndex      = 0;
+        int     mSeed       = 0x2545F491;
+
+
+        Source( StreamFormat format ) {
+            super( format );
+            if( mMem != null ) {
+                mAlloc = mMem.allocator( format );
+                mPool  = null;
+            } else {
+                mAlloc = null;
+                mPool  = new CostPool<BufferPacket>( POOL_CAP, POOL_CAP * 100, null );
+            }
+        }
+
+
+        abstract long startMicros( long index );
+
+        abstract int packetSize();
+
+        abstract int bufferSize();
+
+        abstract void fill( ByteBuffer bb, int stride );
+
+
+        long startMicros() {
+            return startMicros( mIndex );
+        }
+
+
+        void seek( long micros ) {
+            // Find the packet containing micros.
+            long idx = indexFor( micros );
+            while( idx > 0 && startMicros( idx ) > micros ) {
+                idx--;
+            }
+            while( startMicros( idx + 1 ) <= micros ) {
+                idx++;
+            }
+            mIndex = idx;
+        }
+
+
+        abstract long indexFor( long micros );
+
+
+        Packet generate() {
+            long start = startMicros( mIndex );
+            long stop  = startMicros( mIndex + 1 );
+            Packet ret;
+
+            if( mAlloc != null ) {
+                DrawPacket p = mAlloc.alloc( mFormat, packetSize() );
+                p.init( mFormat, start, stop, false );
+                p.stream( this );
+                fill( p.javaBufElem( 0 ).duplicate().order( ByteOrder.nativeOrder() ), p.lineSize( 0 ) );
+                ret = p;
+            } else {
+                BufferPacket p = BufferPacket.alloc( mPool, bufferSize() );
+                p.init( this, start, stop, mFormat.mType == Jav.AVMEDIA_TYPE_AUDIO ? packetSize() : 0 );
+                fill( p.buffer().duplicate().order( ByteOrder.nativeOrder() ), -1 );
+                ret = p;
+            }
+
+            mIndex++;
+            return ret;
+        }
+
+
+        int nextRandom() {
+            // Xorshift. Cheap and deterministic.
+            int x = mSeed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            return mSeed = x;
+        }
+
+
+        void close() {
+            if( mAlloc != null ) {
+                mAlloc.deref();
+            }
+            if( mPool != null ) {
+                mPool.close();
+            }
+        }
+    }
+
+
+    private final class AudioSource extends Source {
+        final int mSamplesPerPacket;
+        final int mSignal;
+        final int mSampleSize;
+
+
+        AudioSource( StreamFormat format, int samplesPerPacket, int signal ) {
+            super( format );
+            mSamplesPerPacket = samplesPerPacket;
+            mSignal = signal;
+            mSampleSize = sampleSize( format.mSampleFormat );
+        }
+
+
+        @Override
+        long startMicros( long index ) {
+            return index * mSamplesPerPacket * 1000000L / mFormat.mSampleRate;
+        }
+
+        @Override
+        long indexFor( long micros ) {
+            return micros * mFormat.mSampleRate / ( 1000000L * mSamplesPerPacket );
+        }
+
+        @Override
+        int packetSize() {
+            return mSamplesPerPacket;
+        }
+
+        @Override
+        int bufferSize() {
+            return mSamplesPerPacket * mFormat.mChannels * mSampleSize;
+        }
+
+        @Override
+        void fill( ByteBuffer bb, int stride ) {
+            final int chans = mFormat.mChannels;
+            final long sample0 = mIndex * mSamplesPerPacket;
+            final double step = 2.0 * Math.PI * TONE_HZ / mFormat.mSampleRate;
+
+            for( int i = 0; i < mSamplesPerPacket; i++ ) {
+                double v;
+                switch( mSignal ) {
+                case SIGNAL_TONE:
+                    v = 0.5 * Math.sin( step * ( ( sample0 + i ) % mFormat.mSampleRate ) );
+                    break;
+                case SIGNAL_NOISE:
+                    v = nextRandom() / 4294967296.0;
+                    break;
+                default:
+                    v = 0.0;
+                }
+
+                for( int c = 0; c < chans; c++ ) {
+                    putSample( bb, v );
+                }
+            }
+        }
+
+
+        private void putSample( ByteBuffer bb, double v ) {
+            switch( mFormat.mSampleFormat ) {
+            case Jav.AV_SAMPLE_FMT_U8:
+                bb.put( (byte)( v * 127.0 + 128.0 ) );
+                break;
+            case Jav.AV_SAMPLE_FMT_S16:
+                bb.putShort( (short)( v * Short.MAX_VALUE ) );
+                break;
+            case Jav.AV_SAMPLE_FMT_S32:
+                bb.putInt( (int)( v * Integer.MAX_VALUE ) );
+                break;
+            case Jav.AV_SAMPLE_FMT_FLT:
+                bb.putFloat( (float)v );
+                break;
+            default:
+                bb.putDouble( v );
+            }
+        }
+    }
+
+
+    private final class VideoSource extends Source {
+        final Rational mRate;
+        final int      mPattern;
+        final int      mPixelSize;
+
+
+        VideoSource( StreamFormat format, Rational frameRate, int pattern ) {
+            super( format );
+            mRate = frameRate;
+            mPattern = pattern;
+            mPixelSize = pixelSize( format.mPixelFormat );
+        }
+
+
+        @Override
+        long startMicros( long index ) {
+            return index * 1000000L * mRate.den() / mRate.num();
+        }
+
+        @Override
+        long indexFor( long micros ) {
+            return micros * mRate.num() / ( 1000000L * mRate.den() );
+        }
+
+        @Override
+        int packetSize() {
+            return 0;
+        }
+
+        @Override
+        int bufferSize() {
+            return mFormat.mWidth * mFormat.mHeight * mPixelSize;
+        }
+
+        @Override
+        void fill( ByteBuffer bb, int stride ) {
+            final int w = mFormat.mWidth;
+            final int h = mFormat.mHeight;
+            final int off = bb.position();
+            if( stride <= 0 ) {
+                stride = w * mPixelSize;
+            }
+
+            final int barWidth = Math.max( 1, w / BAR_COLORS.length );
+            final int shift = (int)( mIndex * 4 % ( barWidth * BAR_COLORS.length ) );
+            final int solid = BAR_COLORS[(int)( mIndex % BAR_COLORS.length )];
+
+            for( int y = 0; y < h; y++ ) {
+                bb.position( off + y * stride );
+                for( int x = 0; x < w; x++ ) {
+                    int argb;
+                    switch( mPattern ) {
+                    case PATTERN_BARS:
+                        argb = BAR_COLORS[( ( x + shift ) / barWidth ) % BAR_COLORS.length];
+                        break;
+                    case PATTERN_NOISE:
+                        argb = nextRandom() | 0xFF000000;
+                        break;
+                    default:
+                        argb = solid;
+                    }
+                    putPixel( bb, argb );
+                }
+            }
+        }
+
+
+        private void putPixel( ByteBuffer bb, int argb ) {
+            byte a = (byte)( argb >>> 24 );
+            byte r = (byte)( argb >> 16 );
+            byte g = (byte)( argb >>  8 );
+            byte b = (byte)( argb       );
+
+            switch( mFormat.mPixelFormat ) {
+            case Jav.AV_PIX_FMT_GRAY8:
+                bb.put( (byte)( ( ( r & 0xFF ) * 77 + ( g & 0xFF ) * 150 + ( b & 0xFF ) * 29 ) >> 8 ) );
+                break;
+            case Jav.AV_PIX_FMT_RGB24:
+                bb.put( r ).put( g ).put( b );
+                break;
+            case Jav.AV_PIX_FMT_BGR24:
+                bb.put( b ).put( g ).put( r );
+                break;
+            case Jav.AV_PIX_FMT_ARGB:
+                bb.put( a ).put( r ).put( g ).put( b );
+                break;
+            case Jav.AV_PIX_FMT_RGBA:
+                bb.put( r ).put( g ).put( b ).put( a );
+                break;
+            case Jav.AV_PIX_FMT_ABGR:
+                bb.put( a ).put( b ).put( g ).put( r );
+                break;
+            default:
+                bb.put( b ).put( g ).put( r ).put( a );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import java.util.*;
+
+
+/**
+ * Intrusive hierarchical timer wheel. Nodes are filed into slots by deadline, so scheduling and
+ * cancelling are O(1) regardless of how many nodes are pending.
+ * <p>
+ * The inner wheel has {@code 256} slots of {@code tickMicros} each. The outer wheel has {@code 64}
+ * slots, each spanning one rotation of the inner wheel, and is cascaded into the inner wheel as
+ * time reaches each slot. Deadlines beyond the outer wheel are held in an overflow list that is
+ * refiled once per outer rotation.
+ * <p>
+ * Expiry has tick granularity: {@link #advance} returns every node whose deadline falls within the
+ * current tick, which may be up to one tick before the deadline itself. Nodes scheduled with
+ * deadlines that have already passed expire on the next advance.
+ * <p>
+ * Not thread-safe. As with {@link PrioHeap}, a node may only be a member of one wheel at a time.
+ *
+ * @author Philip DeCamp
+ */
+@SuppressWarnings( "unchecked" )
+public class TimerWheel<T extends TimerWheelNode> {
+
+    private static final int INNER_BITS = 8;
+    private static final int INNER_NUM  = 1 << INNER_BITS;
+    private static final int INNER_MASK = INNER_NUM - 1;
+    private static final int OUTER_NUM  = 64;
+    private static final int OUTER_MASK = OUTER_NUM - 1;
+
+    private static final int OVERFLOW_SLOT = INNER_NUM + OUTER_NUM;
+
+    private final long mTickMicros;
+
+    // Inner slots at [0, INNER_NUM), outer slots at [INNER_NUM, INNER_NUM + OUTER_NUM), then overflow.
+    private final TimerWheelNode[] mSlots = new TimerWheelNode[OVERFLOW_SLOT + 1];
+
+    // All ticks before mTick have been expired. Tick mTick may have been partially expired.
+    private long mTick;
+    private int  mSize     = 0;
+    private int  mInnerNum = 0;
+
+
+    /**
+     * @param tickMicros  Width of inner slot, in microseconds.
+     * @param startMicros Current time.
+     */
+    public TimerWheel( long tickMicros, long startMicros ) {
+        if( tickMicros <= 0 ) {
+            throw new IllegalArgumentException( "tickMicros must be positive: " + tickMicros );
+        }
+        mTickMicros = tickMicros;
+        mTick = tickOf( startMicros );
+    }
+
+
+
+    public long tickMicros() {
+        return mTickMicros;
+    }
+
+    /**
+     * Files node by deadline, removing it from its current slot if already scheduled.
+     * A deadline of {@code Long.MAX_VALUE} cancels the node.
+     */
+    public void schedule( T node, long deadlineMicros ) {
+        if( node.mWheelSlot >= 0 ) {
+            unlink( node );
+        }
+        node.mWheelDeadline = deadlineMicros;
+        if( deadlineMicros == Long.MAX_VALUE ) {
+            return;
+        }
+        file( node );
+        mSize++;
+    }
+
+
+    public boolean cancel( T node ) {
+        if( node.mWheelSlot < 0 ) {
+            return false;
+        }
+        unlink( node );
+        return true;
+    }
+
+
+    public boolean contains( T node ) {
+        return node.mWheelSlot >= 0;
+    }
+
+    /**
+     * Expires all ticks up to and including the tick containing {@code nowMicros}.
+     *
+     * @param nowMicros Current time.
+     * @param out       Receives expired nodes.
+     * @return number of nodes expired.
+     */
+    public int advance( long nowMicros, Collection<? super T> out ) {
+        final long target = tickOf( nowMicros );
+        int ret = 0;
+
+        if( target < mTick ) {
+            return 0;
+        }
+
+        while( mSize > 0 ) {
+            if( mInnerNum == 0 && ( mTick & INNER_MASK ) != 0 ) {
+                // Inner wheel is empty. Skip to next cascade.
+                long next = ( ( mTick >> INNER_BITS ) + 1 ) << INNER_BITS;
+                if( next > target ) {
+                    mTick = target;
+                    break;
+                }
+                mTick = next;
+                continue;
+            }
+
+            if( ( mTick & INNER_MASK ) == 0 ) {
+                long block = mTick >> INNER_BITS;
+                if( ( block & OUTER_MASK ) == 0 ) {
+                    cascade( OVERFLOW_SLOT );
+                }
+                cascade( INNER_NUM + (int)( block & OUTER_MASK ) );
+            }
+
+            int slot = (int)( mTick & INNER_MASK );
+            TimerWheelNode node = mSlots[slot];
+            while( node != null ) {
+                TimerWheelNode next = node.mWheelNext;
+                unlink( node );
+                out.add( (T)node );
+                ret++;
+                node = next;
+            }
+
+            // Current tick is left open so that overdue nodes filed into it expire on the next call.
+            if( mTick == target ) {
+                break;
+            }
+            mTick++;
+        }
+
+        if( mSize == 0 ) {
+            mTick = target;
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return earliest time at which {@link #advance} may expire a node, or {@code Long.MAX_VALUE}
+     *         if the wheel is empty. This is the start of a tick and may precede the actual deadline.
+     */
+    public long nextExpiryMicros() {
+        if( mSize == 0 ) {
+            return Long.MAX_VALUE;
+        }
+
+        if( mInnerNum > 0 ) {
+            for( int i = 0; i < INNER_NUM; i++ ) {
+                long t = mTick + i;
+                if( mSlots[(int)( t & INNER_MASK )] != null ) {
+                    return t * mTickMicros;
+                }
+                if( ( ( t + 1 ) & INNER_MASK ) == 0 ) {
+                    // Next tick cascades outer wheel.
+                    break;
+                }
+            }
+        }
+
+        return ( ( ( mTick >> INNER_BITS ) + 1 ) << INNER_BITS ) * mTickMicros;
+    }
+
+
+    public int size() {
+        return mSize;
+    }
+
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+
+    public void clear() {
+        for( int i = 0; i < mSlots.length; i++ ) {
+            TimerWheelNode node = mSlots[i];
+            mSlots[i] = null;
+            while( node != null ) {
+                TimerWheelNode next = node.mWheelNext;
+                node.mWheelSlot = -1;
+                node.mWheelPrev = null;
+                node.mWheelNext = null;
+                node = next;
+            }
+        }
+        mSize     = 0;
+        mInnerNum = 0;
+    }
+
+
+
+    private long tickOf( long micros ) {
+        long t = micros / mTickMicros;
+        return micros < 0 && t * mTickMicros != micros ? t - 1 : t;
+    }
+
+
+    private void file( TimerWheelNode node ) {
+        long t = Math.max( mTick, tickOf( node.mWheelDeadline ) );
+        int slot;
+
+        if( t - mTick < INNER_NUM ) {
+            slot = (int)( t & INNER_MASK );
+            mInnerNum++;
+        } else {
+            long block = t >> INNER_BITS;
+            if( block - ( mTick >> INNER_BITS ) < OUTER_NUM ) {
+                slot = INNER_NUM + (int)( block & OUTER_MASK );
+            } else {
+                slot = OVERFLOW_SLOT;
+            }
+        }
+
+        TimerWheelNode head = mSlots[slot];
+        node.mWheelSlot = slot;
+        node.mWheelPrev = null;
+        node.mWheelNext = head;
+        if( head != null ) {
+            head.mWheelPrev = node;
+        }
+        mSlots[slot] = node;
+    }
+
+
+    private void unlink( TimerWheelNode node ) {
+        int slot = node.mWheelSlot;
+        TimerWheelNode prev = node.mWheelPrev;
+        TimerWheelNode next = node.mWheelNext;
+
+        if( prev == null ) {
+            mSlots[slot] = next;
+        } else {
+            prev.mWheelNext = next;
+        }
+        if( next != null ) {
+            next.mWheelPrev = prev;
+        }
+
+        if( slot < INNER_NUM ) {
+            mInnerNum--;
+        }
+
+        node.mWheelSlot = -1;
+        node.mWheelPrev = null;
+        node.mWheelNext = null;
+        mSize--;
+    }
+
+
+    private void cascade( int slot ) {
+        TimerWheelNode node = mSlots[slot];
+        mSlots[slot] = null;
+        while( node != null ) {
+            TimerWheelNode next = node.mWheelNext;
+            file( node );
+            node = next;
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+/**
+ * Node for {@link TimerWheel}.
+ *
+ * @author Philip DeCamp
+ */
+public class TimerWheelNode {
+    public long mWheelDeadline;
+    public int  mWheelSlot = -1;
+    public TimerWheelNode mWheelPrev;
+    public TimerWheelNode mWheelNext;
+}
@@ -0,0 +1,49 @@
+package bits.drawjav;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Lock-free wakeup for a single waiting thread. Producers call {@code signal()} after publishing work.
+ * A consumer calls {@code await()}, which returns immediately if {@code signal()} has been called since
+ * the previous {@code await()}. Calling {@code signal()} never blocks.
+ *
+ * @author Philip DeCamp
+ */
+public final class WakeSignal {
+
+    private final AtomicBoolean mSignaled = new AtomicBoolean( false );
+    private volatile Thread mWaiter = null;
+
+
+    public WakeSignal() {}
+
+
+    public void signal() {
+        if( !mSignaled.getAndSet( true ) ) {
+            Thread t = mWaiter;
+            if( t != null ) {
+                LockSupport.unpark( t );
+            }
+        }
+    }
+
+    /**
+     * Waits until signaled or until timeout elapses. Like any park operation, may return spuriously.
+     *
+     * @param nanos Max time to wait.
+     */
+    public void await( long nanos ) {
+        if( mSignaled.getAndSet( false ) ) {
+            return;
+        }
+
+        mWaiter = Thread.currentThread();
+        if( !mSignaled.getAndSet( false ) ) {
+            LockSupport.parkNanos( this, nanos );
+        }
+        mWaiter = null;
+    }
+
+}
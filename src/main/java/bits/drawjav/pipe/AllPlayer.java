@@ -25,6 +25,9 @@ import java.util.List;
  */
 public final class AllPlayer implements Channel {
 
+    // Longest time frames are released ahead of presentation to cover texture upload.
+    private static final long MAX_LEAD_MICROS = 50000L;
+
     private final MemoryManager mMem;
     private final PlayClock     mClock;
     private final boolean       mStepping;
@@ -90,7 +93,13 @@ public final class AllPlayer implements Channel {
                 VideoResamplerUnit resampler = new VideoResamplerUnit( mMem );
                 VideoTextureUnit tex = new VideoTextureUnit();
                 
-                mScheduler.addStream( mClock, 24 );
+                int schedStream = mScheduler.addStream( mClock, 24 );
+                if( mScheduler instanceof ThreadedSchedulerUnit ) {
+                    // Release frames early by their measured upload time. Queue cap of 24 bounds memory.
+                    ThreadedSchedulerUnit sched = (ThreadedSchedulerUnit)mScheduler;
+                    sched.adaptiveLookahead( schedStream, MAX_LEAD_MICROS, 4 );
+                    tex.reportUploadLatency( sched, schedStream );
+                }
                 
                 graph.connect( mReader, mReader.output( i ), resampler, resampler.input( 0 ), null );
                 graph.connect( 
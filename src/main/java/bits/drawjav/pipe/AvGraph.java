@@ -21,9 +21,10 @@ public class AvGraph {
     public static final int WAIT     = 1;
     public static final int FINISHED = 2;
 
-    //private final ExecutionQueue mEventQueue = new ExecutionQueue();
-    private final EventBus mBus;
+    private final EventBus       mBus;
+    private final WakeSignal     mSignal   = new WakeSignal();
     private final ExecutionQueue mExecutor = new ExecutionQueue();
+    private final GraphStats     mStats    = new GraphStats();
 
     private final Map<AvUnit, FilterNode> mFilterMap = new LinkedHashMap<AvUnit, FilterNode>();
     private final Map<InPad, InNode>      mInMap     = new HashMap<InPad, InNode>();
@@ -68,21 +69,70 @@ public class AvGraph {
     }
 
 
-    public synchronized boolean waitForWork( long millis ) {
+    /**
+     * Signal that is raised whenever an event is posted to this graph. Other event sources
+     * may share this signal to wake a thread blocked in {@link #waitForWork}.
+     */
+    public WakeSignal wakeSignal() {
+        return mSignal;
+    }
+
+    /**
+     * Wakes any thread blocked in {@link #waitForWork}. Never blocks.
+     */
+    public void wakeup() {
+        mSignal.signal();
+    }
+
+    /**
+     * Must only be called by the thread driving this graph.
+     *
+     * @param millis Max time to wait for work.
+     * @return true if there are operations to perform.
+     */
+    public boolean waitForWork( long millis ) {
         processEvents();
         if( !mQueue.isEmpty() ) {
             return true;
         }
 
-        try {
-            wait( millis );
-        } catch( InterruptedException ignore ) {}
-
+        mSignal.await( millis * 1000000L );
         processEvents();
         return !mQueue.isEmpty();
     }
 
 
+    /**
+     * Must only be read by the thread driving this graph, or after that thread has stopped.
+     *
+     * @return counts of packets delivered to sink units of this graph.
+     */
+    public GraphStats stats() {
+        return mStats;
+    }
+
+
+    /**
+     * Must only be called by the thread driving this graph.
+     *
+     * @return true if every output of every source unit has closed or failed, so that no more packets
+     *         will enter the graph until it is cleared.
+     */
+    public boolean isSourceClosed() {
+        for( FilterNode filter: mFilterMap.values() ) {
+            if( !filter.isSource() ) {
+                continue;
+            }
+            for( OutNode out: filter.mOutputs ) {
+                if( out.mHealthy ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
     public int step() {
         if( mNeedInit ) {
             mNeedInit = false;
@@ -381,6 +431,9 @@ public class AvGraph {
             switch( err ) {
             case InPad.OKAY:
                 removeOp( this );
+                if( mPacket != null && mFilter.isSink() ) {
+                    mStats.addPacket( mPacket );
+                }
                 clearPacket();
                 // Activate outputs.
                 for( OutNode out : mFilter.mOutputs ) {
@@ -513,24 +566,22 @@ public class AvGraph {
     }
 
 
+    /**
+     * Events may be posted from any thread, but are only executed by the graph thread.
+     * Posting never blocks.
+     */
     private class ExecutionQueue implements Executor {
 
-        private Queue<Runnable> mQ = new LinkedList<Runnable>();
+        private final MpscQueue<Runnable> mQ = new MpscQueue<Runnable>();
 
         @Override
         public void execute( Runnable runnable ) {
-            synchronized( AvGraph.this ) {
-                if( mQ.isEmpty() ) {
-                    AvGraph.this.notify();
-                }
-                mQ.offer( runnable );
-            }
+            mQ.offer( runnable );
+            mSignal.signal();
         }
 
         Runnable poll() {
-            synchronized( AvGraph.this ) {
-                return mQ.poll();
-            }
+            return mQ.poll();
         }
 
     }
@@ -5,6 +5,9 @@ import bits.microtime.*;
 
 import java.io.IOException;
 import java.nio.channels.Channel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
 
 /**
  * Drives AvGraph processing operations. GraphDriver operates in one of two modes:
@@ -16,11 +19,18 @@ import java.nio.channels.Channel;
  * <b>Threaded Mode</b>: Entered by calling {@code startThreadedMode()}. GraphDriver will use an internal thread to
  * continuously process data until {@code close()} is called. In this mode, calling {@code tick()} will
  * call listener Tickers, but will have no other effect.
+ * <p>
+ * <b>Offline Mode</b>: Entered by calling {@code runOffline()}. GraphDriver processes data on the calling thread
+ * as fast as the graph's units allow and returns once every source has closed and no work remains. Graphs run
+ * offline should use an {@link OfflineSchedulerUnit} in place of clocked schedulers. Several independent graphs
+ * may be run on a worker pool with {@link #runOffline(Collection, int)}.
  *
  * @author Philip DeCamp
  */
 public final class GraphDriver implements Channel, Ticker {
 
+    private static final Logger sLog = Logger.getLogger( GraphDriver.class.getName() );
+
     final Object          mLock;
     final AvGraph         vGraph;
     final ClockEventQueue mEvents;
@@ -37,7 +47,7 @@ public final class GraphDriver implements Channel, Ticker {
 
         mLock   = graph;
         vGraph  = graph;
-        mEvents = new ClockEventQueue( graph, optClock, 1024 );
+        mEvents = new ClockEventQueue( graph.wakeSignal(), optClock, 1024 );
     }
 
 
@@ -58,6 +68,108 @@ public final class GraphDriver implements Channel, Ticker {
     }
 
 
+    /**
+     * Runs several independent graphs offline on a pool of worker threads. Each graph is driven
+     * by a single worker at a time.
+     *
+     * @param drivers   Drivers to run. None may be in threaded mode.
+     * @param threadNum Number of worker threads.
+     * @return combined stats for all graphs. Elapsed time is the wall time of the whole run.
+     */
+    public static GraphStats runOffline( Collection<GraphDriver> drivers, int threadNum )
+            throws InterruptedException, ExecutionException
+    {
+        ExecutorService exec = Executors.newFixedThreadPool( Math.max( 1, threadNum ) );
+        long startNanos = System.nanoTime();
+        try {
+            List<Future<GraphStats>> futures = new ArrayList<Future<GraphStats>>( drivers.size() );
+            for( final GraphDriver d: drivers ) {
+                futures.add( exec.submit( new Callable<GraphStats>() {
+                    public GraphStats call() {
+                        return d.runOffline();
+                    }
+                } ) );
+            }
+
+            GraphStats ret = new GraphStats();
+            for( Future<GraphStats> f: futures ) {
+                ret.add( f.get() );
+            }
+            ret.addNanos( System.nanoTime() - startNanos );
+            sLog.info( "Offline run complete. " + ret );
+            return ret;
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * Drives graph on the calling thread as fast as its units allow. Whenever the graph runs out of work,
+     * child Tickers are called, which flushes any OfflineSchedulerUnit. Returns once every output of every
+     * source unit has reported CLOSED or failed, and the graph remains idle after ticking. While a source is
+     * still open, an idle graph waits for units running on other threads to post more work, however long
+     * that takes, or until the driver is closed.
+     *
+     * @return stats for packets delivered to sinks of graph, with elapsed time of this call.
+     * @throws IllegalStateException if driver is in threaded mode.
+     */
+    public GraphStats runOffline() {
+        synchronized( mLock ) {
+            if( vThreaded ) {
+                throw new IllegalStateException( "GraphDriver is in threaded mode." );
+            }
+        }
+
+        final long startNanos = System.nanoTime();
+        boolean ticked = false;
+
+        while( true ) {
+            synchronized( mLock ) {
+                if( !vOpen ) {
+                    break;
+                }
+                while( true ) {
+                    Object e = mEvents.poll();
+                    if( e == null ) {
+                        break;
+                    }
+                    vGraph.postEvent( e );
+                }
+            }
+
+            if( vGraph.step() == AvGraph.OKAY || vGraph.waitForWork( 0L ) ) {
+                ticked = false;
+                continue;
+            }
+
+            if( !ticked ) {
+                ticked = true;
+                Ticker t = vTicker;
+                if( t != null ) {
+                    t.tick();
+                }
+                continue;
+            }
+
+            if( vGraph.isSourceClosed() ) {
+                break;
+            }
+
+            // Work is in flight on threaded units, which post readiness when done.
+            if( vGraph.waitForWork( 1000L ) ) {
+                ticked = false;
+            }
+        }
+
+        // Snapshot so repeated runs don't accumulate time in, or alias, the graph's own counters.
+        GraphStats ret = new GraphStats();
+        ret.add( vGraph.stats() );
+        ret.addNanos( System.nanoTime() - startNanos );
+        sLog.fine( "Offline graph complete. " + ret );
+        return ret;
+    }
+
+
     public void tick() {
         Ticker t = vTicker;
         if( t !=  null ) {
@@ -107,8 +219,8 @@ public final class GraphDriver implements Channel, Ticker {
                 return;
             }
             vOpen = false;
-            mLock.notifyAll();
         }
+        vGraph.wakeup();
     }
 
 
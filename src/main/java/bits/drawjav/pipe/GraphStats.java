@@ -0,0 +1,110 @@
+package bits.drawjav.pipe;
+
+import bits.drawjav.*;
+import bits.jav.Jav;
+
+
+/**
+ * Counts packets delivered to the sinks of an AvGraph. Audio packets are counted as samples,
+ * all other packets as frames. GraphStats are not thread safe; they are written by the thread
+ * driving the graph and should only be read once that thread has finished.
+ *
+ * @author Philip DeCamp
+ */
+public final class GraphStats {
+
+    private long mPacketNum = 0;
+    private long mFrameNum  = 0;
+    private long mSampleNum = 0;
+    private long mNanos     = 0;
+
+
+    public GraphStats() {}
+
+
+    public void addPacket( Packet packet ) {
+        mPacketNum++;
+
+        Stream stream = packet.stream();
+        StreamFormat format = stream == null ? null : stream.format();
+        if( format == null || format.mType != Jav.AVMEDIA_TYPE_AUDIO ) {
+            mFrameNum++;
+            return;
+        }
+
+        if( packet instanceof DrawPacket ) {
+            mSampleNum += ((DrawPacket)packet).nbSamples();
+        } else if( packet instanceof BufferPacket ) {
+            mSampleNum += ((BufferPacket)packet).sampleNum();
+        } else {
+            long dur = packet.stopMicros() - packet.startMicros();
+            mSampleNum += ( dur * format.mSampleRate + 500000L ) / 1000000L;
+        }
+    }
+
+
+    public void addNanos( long nanos ) {
+        mNanos += nanos;
+    }
+
+    /**
+     * Accumulates packet counts from another GraphStats object. Elapsed time is not changed, as combined
+     * stats usually describe graphs that ran concurrently.
+     */
+    public void add( GraphStats stats ) {
+        mPacketNum += stats.mPacketNum;
+        mFrameNum  += stats.mFrameNum;
+        mSampleNum += stats.mSampleNum;
+    }
+
+
+    public void clear() {
+        mPacketNum = 0;
+        mFrameNum  = 0;
+        mSampleNum = 0;
+        mNanos     = 0;
+    }
+
+
+    public long packetNum() {
+        return mPacketNum;
+    }
+
+
+    public long frameNum() {
+        return mFrameNum;
+    }
+
+
+    public long sampleNum() {
+        return mSampleNum;
+    }
+
+
+    public long elapsedNanos() {
+        return mNanos;
+    }
+
+
+    public double framesPerSecond() {
+        return mNanos <= 0 ? 0.0 : mFrameNum * 1000000000.0 / mNanos;
+    }
+
+
+    public double samplesPerSecond() {
+        return mNanos <= 0 ? 0.0 : mSampleNum * 1000000000.0 / mNanos;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format( "GraphStats[packets: %d, frames: %d (%.1f/s), samples: %d (%.1f/s), elapsed: %.3f s]",
+                              mPacketNum,
+                              mFrameNum,
+                              framesPerSecond(),
+                              mSampleNum,
+                              samplesPerSecond(),
+                              mNanos / 1000000000.0 );
+    }
+
+}
@@ -0,0 +1,75 @@
+package bits.drawjav.pipe;
+
+import bits.drawjav.DrawPacket;
+import bits.drawjav.Packet;
+
+
+/**
+ * Determines when a SchedulerUnit may discard a packet that has missed its presentation time,
+ * allowing an overloaded pipeline to catch up rather than fall further behind.
+ *
+ * @author Philip DeCamp
+ */
+public final class LateDropPolicy {
+
+    /**
+     * Never drops packets.
+     */
+    public static final LateDropPolicy NEVER = new LateDropPolicy( -1L, true, false );
+
+
+    /**
+     * @param maxLateMicros Packets later than this amount may be dropped.
+     * @return policy that drops late packets, but always keeps the newest packet.
+     */
+    public static LateDropPolicy dropLate( long maxLateMicros ) {
+        return new LateDropPolicy( maxLateMicros, true, false );
+    }
+
+
+    /**
+     * Packets that are released more than {@code mMaxLateMicros} after their scheduled time may be dropped.
+     * If negative, packets are never dropped.
+     */
+    public final long mMaxLateMicros;
+
+    /**
+     * If true, a late packet is only dropped if a newer packet for the same stream is already queued.
+     */
+    public final boolean mKeepNewest;
+
+    /**
+     * If true, packets that are key frames are never dropped.
+     */
+    public final boolean mKeepKeyFrames;
+
+
+    public LateDropPolicy( long maxLateMicros, boolean keepNewest, boolean keepKeyFrames ) {
+        mMaxLateMicros = maxLateMicros;
+        mKeepNewest    = keepNewest;
+        mKeepKeyFrames = keepKeyFrames;
+    }
+
+
+    /**
+     * @param packet     Packet being considered.
+     * @param lateMicros How late packet is.
+     * @param hasNewer   Whether a newer packet for the same stream is queued.
+     * @return true iff packet should be dropped.
+     */
+    public boolean shouldDrop( Packet packet, long lateMicros, boolean hasNewer ) {
+        if( mMaxLateMicros < 0 || lateMicros <= mMaxLateMicros ) {
+            return false;
+        }
+        if( mKeepNewest && !hasNewer ) {
+            return false;
+        }
+        return !mKeepKeyFrames || !isKeyFrame( packet );
+    }
+
+
+    private static boolean isKeyFrame( Packet packet ) {
+        return packet instanceof DrawPacket && ((DrawPacket)packet).isKeyFrame();
+    }
+
+}
@@ -0,0 +1,316 @@
+package bits.drawjav.pipe;
+
+import bits.drawjav.*;
+import bits.microtime.*;
+import bits.util.ref.Refable;
+import com.google.common.eventbus.EventBus;
+
+import java.io.IOException;
+import java.util.*;
+
+
+/**
+ * SchedulerUnit for offline processing. Packets are released in timestamp order across all streams
+ * as quickly as downstream units can accept them, without consulting any clock.
+ * <p>
+ * The packet with the earliest start time is released once every stream holds data, or once any
+ * stream's queue is full. When a graph runs dry, its driver calls {@link #tick()}, which flushes the
+ * unit: from then on the earliest packet is released whenever any stream holds data. This lets the
+ * unit drain after a source reaches the end of a stream. Flushing ends on {@link #clear()}.
+ * <p>
+ * Nothing is late when there is no clock, so drop policies are accepted but never applied.
+ *
+ * @author Philip DeCamp
+ */
+public final class OfflineSchedulerUnit implements SchedulerUnit {
+
+    private final Object               mLock    = this;
+    private final List<StreamNode>     vStreams = new ArrayList<StreamNode>();
+    // Streams holding data, ordered by start time of head packet.
+    private final LongHeap<StreamNode> vHeads   = new LongHeap<StreamNode>();
+
+    private volatile boolean vOpen = false;
+    private EventBus vBus;
+
+    private int        vFullNum = 0;
+    private boolean    vFlush   = false;
+    private StreamNode vReady   = null;
+
+
+    public OfflineSchedulerUnit() {}
+
+
+    /**
+     * @param optClock Ignored. May be {@code null}.
+     * @param queueCap Max number of packets held for stream.
+     * @return index of new stream.
+     */
+    @Override
+    public int addStream( PlayClock optClock, int queueCap ) {
+        if( queueCap < 1 ) {
+            throw new IllegalArgumentException( "queueCap must be positive." );
+        }
+        synchronized( mLock ) {
+            vStreams.add( new StreamNode( queueCap ) );
+            return vStreams.size() - 1;
+        }
+    }
+
+    @Override
+    public void dropPolicy( int stream, LateDropPolicy policy ) {
+        if( policy == null ) {
+            throw new NullPointerException();
+        }
+    }
+
+    @Override
+    public long droppedNum( int stream ) {
+        return 0;
+    }
+
+    /**
+     * Flushes unit. Called by GraphDriver when the graph has no other work.
+     */
+    @Override
+    public void tick() {
+        synchronized( mLock ) {
+            if( !vFlush ) {
+                vFlush = true;
+                vUpdateReady();
+            }
+        }
+    }
+
+    @Override
+    public void open( EventBus bus ) {
+        synchronized( mLock ) {
+            if( vOpen ) {
+                return;
+            }
+            vOpen = true;
+            vBus = bus;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized( mLock ) {
+            if( !vOpen ) {
+                return;
+            }
+            vOpen = false;
+            vClear();
+            vStreams.clear();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return vOpen;
+    }
+
+    @Override
+    public void clear() {
+        synchronized( mLock ) {
+            vClear();
+        }
+    }
+
+    @Override
+    public int inputNum() {
+        synchronized( mLock ) {
+            return vStreams.size();
+        }
+    }
+
+    @Override
+    public InPad input( int idx ) {
+        synchronized( mLock ) {
+            return vStreams.get( idx ).mIn;
+        }
+    }
+
+    @Override
+    public int outputNum() {
+        synchronized( mLock ) {
+            return vStreams.size();
+        }
+    }
+
+    @Override
+    public OutPad output( int idx ) {
+        synchronized( mLock ) {
+            return vStreams.get( idx ).mOut;
+        }
+    }
+
+
+    private void vClear() {
+        vHeads.clear();
+        for( StreamNode s: vStreams ) {
+            while( !s.vQueue.isEmpty() ) {
+                s.vQueue.remove().deref();
+            }
+            s.vCheckInReady();
+        }
+        vFullNum = 0;
+        vFlush   = false;
+        vReady   = null;
+    }
+
+    /**
+     * Determines which stream, if any, may release its head packet, and notifies that stream.
+     */
+    private void vUpdateReady() {
+        StreamNode next = vHeads.peek();
+        if( next != null && !vFlush && vFullNum == 0 && vHeads.size() < vStreams.size() ) {
+            next = null;
+        }
+
+        if( next == vReady ) {
+            return;
+        }
+
+        vReady = next;
+        if( next != null && vBus != null ) {
+            vBus.post( next.mOutReadyEvent );
+        }
+    }
+
+
+
+    private final class StreamNode extends LongHeapNode {
+        final InHandler        mIn            = new InHandler();
+        final OutHandler       mOut           = new OutHandler();
+        final InPadReadyEvent  mInReadyEvent  = new InPadReadyEvent( mIn );
+        final OutPadReadyEvent mOutReadyEvent = new OutPadReadyEvent( mOut );
+
+        final int mQueueCap;
+        final Deque<Packet> vQueue = new ArrayDeque<Packet>();
+
+        // True after input has been refused and no InPadReadyEvent has been posted since.
+        boolean vInWaiting = false;
+
+
+        StreamNode( int queueCap ) {
+            mQueueCap = queueCap;
+        }
+
+
+        void vCheckInReady() {
+            if( vInWaiting && vQueue.size() < mQueueCap ) {
+                vInWaiting = false;
+                if( vBus != null ) {
+                    vBus.post( mInReadyEvent );
+                }
+            }
+        }
+
+
+        private final class InHandler implements InPad<Packet> {
+            @Override
+            public int status() {
+                synchronized( mLock ) {
+                    return vQueue.size() < mQueueCap ? OKAY : WAIT;
+                }
+            }
+
+            @Override
+            public int offer( Packet packet ) {
+                synchronized( mLock ) {
+                    if( packet == null ) {
+                        return OKAY;
+                    }
+
+                    int size = vQueue.size();
+                    if( size >= mQueueCap ) {
+                        vInWaiting = true;
+                        return WAIT;
+                    }
+
+                    packet.ref();
+                    vQueue.offer( packet );
+                    if( size == 0 ) {
+                        vHeads.offer( StreamNode.this, packet.startMicros() );
+                    }
+                    if( size + 1 == mQueueCap ) {
+                        vFullNum++;
+                    }
+                    vUpdateReady();
+                    return OKAY;
+                }
+            }
+
+            @Override
+            public void config( StreamFormat stream ) throws IOException {}
+
+            @Override
+            public boolean isThreaded() {
+                return true;
+            }
+
+            @Override
+            public Object lock() {
+                return mLock;
+            }
+
+            @Override
+            public Exception exception() {
+                return null;
+            }
+        }
+
+
+        private final class OutHandler implements OutPad {
+            @Override
+            public int status() {
+                synchronized( mLock ) {
+                    return vReady == StreamNode.this ? OKAY : WAIT;
+                }
+            }
+
+            @Override
+            public int poll( Refable[] out ) {
+                synchronized( mLock ) {
+                    if( vReady != StreamNode.this ) {
+                        return WAIT;
+                    }
+
+                    if( vQueue.size() == mQueueCap ) {
+                        vFullNum--;
+                    }
+                    out[0] = vQueue.remove();
+
+                    if( vQueue.isEmpty() ) {
+                        vHeads.remove( StreamNode.this );
+                    } else {
+                        vHeads.update( StreamNode.this, vQueue.peek().startMicros() );
+                    }
+
+                    vUpdateReady();
+                    vCheckInReady();
+                    return OKAY;
+                }
+            }
+
+            @Override
+            public void config( StreamFormat stream ) throws IOException {}
+
+            @Override
+            public boolean isThreaded() {
+                return true;
+            }
+
+            @Override
+            public Object lock() {
+                return mLock;
+            }
+
+            @Override
+            public Exception exception() {
+                return null;
+            }
+        }
+    }
+
+}
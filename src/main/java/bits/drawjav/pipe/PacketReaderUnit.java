@@ -11,24 +11,69 @@ import java.util.*;
 
 
 /**
+ * Source unit that reads packets from a PacketReader. Polling any output reads the next packet from the
+ * reader. A packet for another stream is placed in that stream's interleave queue until that stream's
+ * output is polled.
+ * <p>
+ * Interleave queues are limited by a per-stream and a total byte budget, measured with {@link PacketBytes}.
+ * While any queue is over budget, polling an empty output returns {@link Pad#WAIT} rather than reading
+ * further. Outputs that waited are sent an OutPadReadyEvent once the queues drain below budget. Budgets
+ * must be large enough to cover the interleaving of the source. If the consumer of a full queue is itself
+ * waiting on another stream of this unit, the graph stalls.
+ * <p>
+ * If the reader is an {@link AsyncPacketReader} with no packet ready, polling returns {@link Pad#WAIT}, and
+ * waiting outputs are sent an OutPadReadyEvent once the reader calls its ready listener.
+ * <p>
+ * If the reader is a {@link ReverseReader}, its direction follows the sign of the clock rate. If the reader
+ * is a {@link FormatReader}, it is given the clock rate to select keyframe-only decoding.
+ *
  * @author Philip DeCamp
  */
 public final class PacketReaderUnit implements AvUnit, SyncClockControl {
 
-    private static final int MAX_QUEUE_SIZE = 64;
+    public static final long DEFAULT_STREAM_MAX_BYTES = 64L << 20;
+    public static final long DEFAULT_TOTAL_MAX_BYTES  = 256L << 20;
 
-    private final PacketReader mReader;
+    private static final int INIT_QUEUE_SIZE = 64;
+
+    private final PacketReader      mReader;
+    private final AsyncPacketReader mAsync;
+    private final ReaderReady       mReaderReady = new ReaderReady();
     private final OutHandler[] mSources;
     private final List<OutHandler>        mActive = new ArrayList<OutHandler>();
     private final Map<Stream, OutHandler> mMap    = new HashMap<Stream, OutHandler>();
 
+    private final long mStreamMaxBytes;
+    private final long mTotalMaxBytes;
+
+    private EventBus mBus = null;
+
     private Exception mException  = null;
+    private boolean   mEof        = false;
     private boolean   mNeedSeek   = false;
     private long      mSeekMicros = 0;
+    private boolean   mNeedRate   = false;
+    private boolean   mReverse    = false;
+
+    private long mQueuedBytes = 0;
+    private int  mFullNum     = 0;
+    private long mWaitNum     = 0;
 
 
     public PacketReaderUnit( PacketReader reader ) {
+        this( reader, DEFAULT_STREAM_MAX_BYTES, DEFAULT_TOTAL_MAX_BYTES );
+    }
+
+    /**
+     * @param reader         Source of packets.
+     * @param streamMaxBytes Byte budget of each stream's interleave queue.
+     * @param totalMaxBytes  Byte budget of all interleave queues combined.
+     */
+    public PacketReaderUnit( PacketReader reader, long streamMaxBytes, long totalMaxBytes ) {
         mReader = reader;
+        mAsync  = reader instanceof AsyncPacketReader ? (AsyncPacketReader)reader : null;
+        mStreamMaxBytes = streamMaxBytes;
+        mTotalMaxBytes  = totalMaxBytes;
         int len = reader.streamCount();
         mSources = new OutHandler[len];
         for( int i = 0; i < len; i++ ) {
@@ -61,11 +106,49 @@ public final class PacketReaderUnit implements AvUnit, SyncClockControl {
         return mActive.get( idx );
     }
 
+    /**
+     * @return number of packets in interleave queue of output {@code idx}.
+     */
+    public int queuedPacketNum( int idx ) {
+        return mActive.get( idx ).mQueue.size();
+    }
+
+    /**
+     * @return bytes in interleave queue of output {@code idx}.
+     */
+    public long queuedBytes( int idx ) {
+        return mActive.get( idx ).mBytes;
+    }
+
+    /**
+     * @return largest number of bytes held in interleave queue of output {@code idx}.
+     */
+    public long peakQueuedBytes( int idx ) {
+        return mActive.get( idx ).mPeakBytes;
+    }
+
+    /**
+     * @return bytes in all interleave queues.
+     */
+    public long queuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /**
+     * @return number of times an output returned WAIT because interleave queues were over budget.
+     */
+    public long waitNum() {
+        return mWaitNum;
+    }
 
 
     public void open( EventBus bus ) {
+        mBus = bus;
         if( bus != null ) {
             bus.register( this );
+            if( mAsync != null ) {
+                mAsync.readyListener( mReaderReady );
+            }
         }
     }
 
@@ -76,6 +159,9 @@ public final class PacketReaderUnit implements AvUnit, SyncClockControl {
 
 
     public void close() {
+        if( mAsync != null ) {
+            mAsync.readyListener( null );
+        }
         try {
             mReader.close();
         } catch( IOException e ) {
@@ -93,6 +179,16 @@ public final class PacketReaderUnit implements AvUnit, SyncClockControl {
         event.apply( this );
     }
 
+    /**
+     * Receives ready events of reader on graph thread.
+     */
+    @Subscribe
+    public void processReaderReady( ReaderReady event ) {
+        if( event == mReaderReady ) {
+            releaseWaiting();
+        }
+    }
+
     @Override
     public void clockStart( long execMicros ) {}
 
@@ -101,25 +197,68 @@ public final class PacketReaderUnit implements AvUnit, SyncClockControl {
 
     @Override
     public void clockSeek( long execMicros, long seekMicros ) {
+        // Packets queued for a previous target are stale. Release them now rather than holding
+        // them until the next poll. If another seek arrives before this one is performed,
+        // only the latest target is used.
+        doClear();
         mException  = null;
+        mEof        = false;
         mNeedSeek   = true;
         mSeekMicros = seekMicros;
     }
 
     @Override
-    public void clockRate( long execMicros, Frac rate ) {}
+    public void clockRate( long execMicros, Frac rate ) {
+        if( mReader instanceof FormatReader ) {
+            ( (FormatReader)mReader ).playbackRate( rate.toDouble() );
+        }
+        // Only a ReverseReader changes its output with playback direction.
+        boolean reverse = rate.mNum < 0;
+        if( mReader instanceof ReverseReader && reverse != mReverse ) {
+            doClear();
+            mReverse  = reverse;
+            mNeedRate = true;
+        }
+    }
 
 
     private void doClear() {
         for( OutHandler source : mActive ) {
             source.clear();
         }
+        releaseWaiting();
+    }
+
+
+    private boolean overBudget() {
+        return mFullNum > 0 || mQueuedBytes > 0 && mQueuedBytes >= mTotalMaxBytes;
+    }
+
+
+    private void releaseWaiting() {
+        if( overBudget() ) {
+            return;
+        }
+        for( OutHandler source : mActive ) {
+            if( source.mWaiting ) {
+                source.mWaiting = false;
+                if( mBus != null ) {
+                    mBus.post( source.mReady );
+                }
+            }
+        }
     }
 
 
     private final class OutHandler extends OutPadAdapter {
-        private Stream mStream;
-        private Queue<Refable> mQueue = new ArrayDeque<Refable>( MAX_QUEUE_SIZE );
+        private final Stream           mStream;
+        private final Queue<Packet>    mQueue = new ArrayDeque<Packet>( INIT_QUEUE_SIZE );
+        private final OutPadReadyEvent mReady = new OutPadReadyEvent( this );
+
+        private long    mBytes     = 0;
+        private long    mPeakBytes = 0;
+        private boolean mFull      = false;
+        private boolean mWaiting   = false;
 
         OutHandler( Stream stream ) {
             mStream = stream;
@@ -137,6 +276,14 @@ public final class PacketReaderUnit implements AvUnit, SyncClockControl {
                     return EXCEPTION;
                 }
 
+                if( mNeedRate ) {
+                    mNeedRate = false;
+                    mEof = false;
+                    doClear();
+                    ( (ReverseReader)mReader ).reverse( mReverse );
+                    return UNFINISHED;
+                }
+
                 if( mNeedSeek ) {
                     mNeedSeek = false;
                     doClear();
@@ -145,12 +292,26 @@ public final class PacketReaderUnit implements AvUnit, SyncClockControl {
                 }
 
                 if( !mQueue.isEmpty() ) {
-                    out[0] = mQueue.remove();
+                    out[0] = dequeue();
                     return OKAY;
                 }
 
+                if( mEof ) {
+                    return CLOSED;
+                }
+
+                if( overBudget() ) {
+                    mWaiting = true;
+                    mWaitNum++;
+                    return WAIT;
+                }
+
                 Packet packet = mReader.readNext();
                 if( packet == null ) {
+                    if( mAsync != null && !mAsync.isReady() ) {
+                        mWaiting = true;
+                        return WAIT;
+                    }
                     return UNFINISHED;
                 }
 
@@ -165,9 +326,13 @@ public final class PacketReaderUnit implements AvUnit, SyncClockControl {
                     return OKAY;
                 }
 
-                dest.mQueue.offer( packet );
+                dest.enqueue( packet );
                 return UNFINISHED;
 
+            } catch( EOFException e ) {
+                // Packets already routed to other streams are still delivered.
+                mEof = true;
+                return CLOSED;
             } catch( IOException e ) {
                 mException = e;
                 return EXCEPTION;
@@ -180,12 +345,66 @@ public final class PacketReaderUnit implements AvUnit, SyncClockControl {
         }
 
 
+        private void enqueue( Packet packet ) {
+            long cost = PacketBytes.costOf( packet );
+            mQueue.offer( packet );
+            mBytes += cost;
+            mQueuedBytes += cost;
+            if( mBytes > mPeakBytes ) {
+                mPeakBytes = mBytes;
+            }
+            updateFull();
+        }
+
+
+        private Packet dequeue() {
+            boolean wasOver = overBudget();
+            Packet packet = mQueue.remove();
+            long cost = PacketBytes.costOf( packet );
+            mBytes -= cost;
+            mQueuedBytes -= cost;
+            updateFull();
+            if( wasOver ) {
+                releaseWaiting();
+            }
+            return packet;
+        }
+
+
         private void clear() {
             while( !mQueue.isEmpty() ) {
                 (mQueue.remove()).deref();
             }
+            mQueuedBytes -= mBytes;
+            mBytes = 0;
+            updateFull();
+        }
+
+
+        private void updateFull() {
+            boolean full = !mQueue.isEmpty() && mBytes >= mStreamMaxBytes;
+            if( full != mFull ) {
+                mFull = full;
+                mFullNum += full ? 1 : -1;
+            }
         }
 
     }
 
+
+    /**
+     * Posted from reader thread when reader may have a packet ready.
+     */
+    private final class ReaderReady implements Runnable {
+        ReaderReady() {}
+
+        @Override
+        public void run() {
+            EventBus bus = mBus;
+            if( bus != null ) {
+                bus.post( this );
+            }
+        }
+    }
+
 }
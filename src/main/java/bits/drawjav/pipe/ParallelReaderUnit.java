@@ -0,0 +1,509 @@
+package bits.drawjav.pipe;
+
+import bits.drawjav.*;
+import bits.jav.codec.JavPacket;
+import bits.microtime.*;
+import bits.util.ref.Refable;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Source unit that reads from a FormatReader using one demux thread and one decode thread per stream.
+ * Compressed packets are dispatched into a bounded queue per stream, and each decode thread emits packets
+ * on its stream's OutPad independently, so a slow frame on one stream does not delay the others.
+ * <p>
+ * Seek and clear behave as in {@link PacketReaderUnit}. A clock seek discards all queued packets,
+ * compressed and decoded, and the seek is performed by the demux thread once no stream is decoding.
+ * {@link #clear()} has no effect.
+ * <p>
+ * Outputs return {@link Pad#WAIT} while no decoded packet is ready and post an OutPadReadyEvent when
+ * one arrives.
+ *
+ * @author Philip DeCamp
+ */
+public final class ParallelReaderUnit implements AvUnit, SyncClockControl {
+
+    private static final Logger sLog = Logger.getLogger( ParallelReaderUnit.class.getName() );
+
+    public static final int DEFAULT_RAW_QUEUE_CAP     = 32;
+    public static final int DEFAULT_DECODED_QUEUE_CAP = 4;
+
+
+    private final FormatReader mReader;
+    private final int          mRawCap;
+    private final int          mDecodedCap;
+
+    private final List<StreamNode>        mActive = new ArrayList<StreamNode>();
+    private final Map<Stream, StreamNode> mMap    = new HashMap<Stream, StreamNode>();
+
+    // All fields prefixed with "v" are guarded by mLock.
+    private final Object mLock = this;
+
+    private EventBus mBus = null;
+    private Thread   mDemuxThread = null;
+
+    private boolean   vOpen      = false;
+    private Exception vException = null;
+    private boolean   vEof       = false;
+    private long      vGen       = 0;
+    private boolean   vNeedSeek  = false;
+    private long      vSeekMicros = 0;
+    private int       vBusyNum    = 0;
+
+
+    public ParallelReaderUnit( FormatReader reader ) {
+        this( reader, DEFAULT_RAW_QUEUE_CAP, DEFAULT_DECODED_QUEUE_CAP );
+    }
+
+    /**
+     * @param reader         Reader to decode. Should not be used by any other object while unit is open.
+     * @param rawQueueCap    Maximum compressed packets queued per stream.
+     * @param decodedQueueCap Maximum decoded packets queued per stream before its decoder waits.
+     */
+    public ParallelReaderUnit( FormatReader reader, int rawQueueCap, int decodedQueueCap ) {
+        mReader     = reader;
+        mRawCap     = Math.max( 1, rawQueueCap );
+        mDecodedCap = Math.max( 1, decodedQueueCap );
+
+        int len = reader.streamCount();
+        for( int i = 0; i < len; i++ ) {
+            Stream stream = reader.stream( i );
+            if( reader.isStreamOpen( stream ) ) {
+                StreamNode node = new StreamNode( stream );
+                mActive.add( node );
+                mMap.put( stream, node );
+            }
+        }
+    }
+
+
+
+    public int inputNum() {
+        return 0;
+    }
+
+
+    public InPad input( int idx ) {
+        return null;
+    }
+
+
+    public int outputNum() {
+        return mActive.size();
+    }
+
+
+    public OutPad output( int idx ) {
+        return mActive.get( idx ).mOut;
+    }
+
+    /**
+     * @return number of compressed packets queued for stream at output {@code idx}.
+     */
+    public int rawQueueSize( int idx ) {
+        synchronized( mLock ) {
+            return mActive.get( idx ).vRaw.size();
+        }
+    }
+
+    /**
+     * @return number of decoded packets queued on output {@code idx}.
+     */
+    public int decodedQueueSize( int idx ) {
+        synchronized( mLock ) {
+            return mActive.get( idx ).vDecoded.size();
+        }
+    }
+
+
+    public void open( EventBus bus ) {
+        synchronized( mLock ) {
+            if( vOpen ) {
+                return;
+            }
+            vOpen = true;
+        }
+
+        mBus = bus;
+        if( bus != null ) {
+            bus.register( this );
+        }
+
+        for( StreamNode node : mActive ) {
+            node.start();
+        }
+        mDemuxThread = new Thread( "ParallelReaderUnit-Demux" ) {
+            @Override
+            public void run() {
+                runDemux();
+            }
+        };
+        mDemuxThread.setDaemon( true );
+        mDemuxThread.start();
+    }
+
+
+    public boolean isOpen() {
+        return mReader.isOpen();
+    }
+
+
+    public void close() {
+        synchronized( mLock ) {
+            vOpen = false;
+            mLock.notifyAll();
+        }
+
+        join( mDemuxThread );
+        for( StreamNode node : mActive ) {
+            join( node.mThread );
+        }
+
+        synchronized( mLock ) {
+            doClear();
+        }
+
+        try {
+            mReader.close();
+        } catch( IOException e ) {
+            synchronized( mLock ) {
+                vException = e;
+            }
+        }
+    }
+
+
+    public void clear() {}
+
+
+    @Subscribe
+    public void processClockEvent( ClockEvent event ) {
+        event.apply( this );
+    }
+
+    @Override
+    public void clockStart( long execMicros ) {}
+
+    @Override
+    public void clockStop( long execMicros ) {}
+
+    @Override
+    public void clockSeek( long execMicros, long seekMicros ) {
+        synchronized( mLock ) {
+            // Packets queued or being decoded for a previous target are stale.
+            // If another seek arrives before this one is performed, only the latest target is used.
+            vGen++;
+            doClear();
+            vException  = null;
+            vEof        = false;
+            vNeedSeek   = true;
+            vSeekMicros = seekMicros;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void clockRate( long execMicros, Frac rate ) {
+        mReader.playbackRate( rate.toDouble() );
+    }
+
+
+
+    private void runDemux() {
+        while( true ) {
+            long seekMicros;
+
+            synchronized( mLock ) {
+                while( vOpen && !vNeedSeek && ( vEof || vException != null ) ) {
+                    waitLock();
+                }
+                if( !vOpen ) {
+                    return;
+                }
+
+                if( vNeedSeek ) {
+                    // Reader may only seek while no stream is decoding.
+                    while( vOpen && vBusyNum > 0 ) {
+                        waitLock();
+                    }
+                    if( !vOpen ) {
+                        return;
+                    }
+                    vNeedSeek  = false;
+                    seekMicros = vSeekMicros;
+                } else {
+                    seekMicros = Long.MIN_VALUE;
+                }
+            }
+
+            if( seekMicros != Long.MIN_VALUE ) {
+                try {
+                    mReader.seek( seekMicros );
+                } catch( IOException e ) {
+                    fail( e );
+                }
+                continue;
+            }
+
+            JavPacket packet;
+            try {
+                packet = mReader.readRaw();
+            } catch( EOFException e ) {
+                synchronized( mLock ) {
+                    if( !vNeedSeek ) {
+                        vEof = true;
+                        mLock.notifyAll();
+                    }
+                }
+                continue;
+            } catch( IOException e ) {
+                fail( e );
+                continue;
+            }
+
+            if( packet == null ) {
+                continue;
+            }
+
+            int idx = packet.streamIndex();
+            StreamNode node = idx >= 0 && idx < mReader.streamCount() ? mMap.get( mReader.stream( idx ) ) : null;
+            if( node == null ) {
+                packet.deref();
+                continue;
+            }
+
+            synchronized( mLock ) {
+                while( vOpen && !vNeedSeek && node.vRaw.size() >= mRawCap ) {
+                    waitLock();
+                }
+                if( !vOpen || vNeedSeek ) {
+                    packet.deref();
+                    continue;
+                }
+                node.vRaw.offer( packet );
+                mLock.notifyAll();
+            }
+        }
+    }
+
+
+    private void fail( Exception e ) {
+        synchronized( mLock ) {
+            if( vNeedSeek || !vOpen ) {
+                // Error belongs to a stale position.
+                return;
+            }
+            vException = e;
+            mLock.notifyAll();
+        }
+        for( StreamNode node : mActive ) {
+            node.postReady();
+        }
+    }
+
+
+    private void doClear() {
+        for( StreamNode node : mActive ) {
+            node.vClear();
+        }
+    }
+
+
+    private void waitLock() {
+        try {
+            mLock.wait();
+        } catch( InterruptedException ignored ) {}
+    }
+
+
+    private static void join( Thread thread ) {
+        if( thread == null ) {
+            return;
+        }
+        boolean interrupted = false;
+        while( thread.isAlive() ) {
+            try {
+                thread.join();
+            } catch( InterruptedException e ) {
+                interrupted = true;
+            }
+        }
+        if( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+
+    private final class StreamNode {
+
+        final Stream           mStream;
+        final OutHandler       mOut   = new OutHandler();
+        final OutPadReadyEvent mReady = new OutPadReadyEvent( mOut );
+        final Thread           mThread;
+
+        final ArrayDeque<JavPacket> vRaw     = new ArrayDeque<JavPacket>();
+        final ArrayDeque<Packet>    vDecoded = new ArrayDeque<Packet>();
+
+        // Set once decoder has been flushed after end of file.
+        boolean vDone = false;
+
+
+        StreamNode( Stream stream ) {
+            mStream = stream;
+            mThread = new Thread( "ParallelReaderUnit-Decode-" + mActive.size() ) {
+                @Override
+                public void run() {
+                    runDecode();
+                }
+            };
+            mThread.setDaemon( true );
+        }
+
+
+        void start() {
+            mThread.start();
+        }
+
+
+        void postReady() {
+            EventBus bus = mBus;
+            if( bus != null ) {
+                bus.post( mReady );
+            }
+        }
+
+
+        void vClear() {
+            JavPacket raw;
+            while( ( raw = vRaw.poll() ) != null ) {
+                raw.deref();
+            }
+            Packet p;
+            while( ( p = vDecoded.poll() ) != null ) {
+                p.deref();
+            }
+            vDone = false;
+        }
+
+
+        private void runDecode() {
+            List<Packet> out = new ArrayList<Packet>();
+
+            while( true ) {
+                JavPacket packet;
+                long gen;
+
+                synchronized( mLock ) {
+                    while( vOpen && ( vNeedSeek ||
+                                      vDecoded.size() >= mDecodedCap ||
+                                      vRaw.isEmpty() && ( vDone || !vEof ) ) )
+                    {
+                        waitLock();
+                    }
+                    if( !vOpen ) {
+                        return;
+                    }
+                    // Null packet flushes decoder at end of file.
+                    packet = vRaw.poll();
+                    gen = vGen;
+                    vBusyNum++;
+                    mLock.notifyAll();
+                }
+
+                Exception err = null;
+                try {
+                    mReader.decode( mStream, packet, out );
+                } catch( Exception e ) {
+                    err = e;
+                } finally {
+                    if( packet != null ) {
+                        packet.deref();
+                    }
+                }
+
+                boolean post;
+                synchronized( mLock ) {
+                    vBusyNum--;
+                    mLock.notifyAll();
+
+                    if( gen != vGen || !vOpen ) {
+                        for( Packet p : out ) {
+                            p.deref();
+                        }
+                        out.clear();
+                        continue;
+                    }
+
+                    post = vDecoded.isEmpty();
+                    vDecoded.addAll( out );
+                    out.clear();
+
+                    if( err != null ) {
+                        sLog.log( Level.FINE, "Decode failed.", err );
+                        vException = err;
+                        post = true;
+                    } else if( packet == null ) {
+                        vDone = true;
+                        post = true;
+                    } else {
+                        post = post && !vDecoded.isEmpty();
+                    }
+                }
+
+                if( post ) {
+                    postReady();
+                }
+            }
+        }
+
+
+        private final class OutHandler extends OutPadAdapter {
+
+            @Override
+            public int status() {
+                synchronized( mLock ) {
+                    return vException == null ? OKAY : EXCEPTION;
+                }
+            }
+
+            @Override
+            public int poll( Refable[] out ) {
+                synchronized( mLock ) {
+                    if( vException != null ) {
+                        return EXCEPTION;
+                    }
+
+                    Packet p = vDecoded.poll();
+                    if( p != null ) {
+                        if( vDecoded.size() == mDecodedCap - 1 ) {
+                            mLock.notifyAll();
+                        }
+                        out[0] = p;
+                        return OKAY;
+                    }
+
+                    if( vDone ) {
+                        return CLOSED;
+                    }
+                    return WAIT;
+                }
+            }
+
+            @Override
+            public Exception exception() {
+                synchronized( mLock ) {
+                    return vException;
+                }
+            }
+        }
+
+    }
+
+}
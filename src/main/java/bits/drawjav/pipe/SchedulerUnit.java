@@ -7,4 +7,16 @@ import bits.microtime.*;
  */
 public interface SchedulerUnit extends AvUnit, Ticker {
     public int addStream( PlayClock clock, int queueCap );
+
+    /**
+     * @param stream Index of stream.
+     * @param policy Policy for dropping late packets on stream. Default is {@link LateDropPolicy#NEVER}.
+     */
+    public void dropPolicy( int stream, LateDropPolicy policy );
+
+    /**
+     * @param stream Index of stream.
+     * @return number of packets dropped for being late on stream.
+     */
+    public long droppedNum( int stream );
 }
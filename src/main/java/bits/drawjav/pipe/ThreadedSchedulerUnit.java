@@ -7,31 +7,211 @@ import com.google.common.eventbus.EventBus;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 
 /**
+ * SchedulerUnit that releases packets from its own thread as the packet presentation times are reached.
+ * <p>
+ * In the default mode, the scheduler thread uses {@code Object.wait(millis)} and releases any packet
+ * that is due within {@link #COARSE_WINDOW_MICROS}. In precise mode, the thread parks until shortly
+ * before the next deadline, then spins for the remaining {@code spinMicros}, releasing packets with
+ * sub-millisecond error at the cost of some CPU. The spin yields on each iteration and is limited to
+ * {@link #MAX_SPIN_MICROS}, after which the thread re-checks its deadlines.
+ * <p>
+ * For each stream, the scheduler records a histogram of release error: the master time at which a packet
+ * was actually released, minus the master time at which it was scheduled.
+ * <p>
+ * Late packets are dropped according to each stream's {@link LateDropPolicy}, both when released by the
+ * scheduler thread and when polled from the output. Lateness is measured in master time.
+ * <p>
+ * Streams may enable adaptive lookahead with {@link #adaptiveLookahead}. The consumer of the stream then
+ * reports the measured cost of preparing each packet, such as a texture upload, through
+ * {@link #reportLatency}. Packets are released early by a smoothed estimate of that cost, and the stream's
+ * queue is sized to cover the lead, bounded by the stream's configured queue cap. The reported cost must
+ * be work done after release and before presentation, so that releasing early by it makes packets ready
+ * at their timestamp. {@link bits.drawjav.video.VideoTextureUnit#reportUploadLatency} reports texture
+ * upload times this way.
+ * <p>
+ * The unit may run several scheduler threads. Each thread owns a shard with its own lock, clock heap
+ * and command pool. Streams are assigned to shards by group key, which defaults to the stream's clock,
+ * and new groups go to the shard with the fewest groups. A burst of releases on one shard does not
+ * delay streams on another.
+ *
  * @author Philip DeCamp
  */
 public final class ThreadedSchedulerUnit implements SchedulerUnit {
 
+    public static final long COARSE_WINDOW_MICROS = 10000L;
+    public static final long DEFAULT_SPIN_MICROS  = 500L;
+    public static final long MAX_SPIN_MICROS      = 2000L;
 
     private static final Logger sLog = Logger.getLogger( ThreadedSchedulerUnit.class.getName() );
 
 
-    private final Object                    mLock      = this;
-    private final Map<PlayClock, ClockNode> vClocks    = new HashMap<PlayClock, ClockNode>();
-    private final PrioHeap<ClockNode>       vClockHeap = new PrioHeap<ClockNode>();
-    private final List<StreamNode>          vStreams   = new ArrayList<StreamNode>();
+    // Guards stream list and group map. Lock order is mLock, then shard lock.
+    private final Object             mLock    = this;
+    private final Shard[]            mShards;
+    private final Map<Object, Shard> vGroups  = new HashMap<Object, Shard>();
+    private final List<StreamNode>   vStreams = new ArrayList<StreamNode>();
 
-    private Command vCommandPool     = null;
-    private int     vCommandPoolSize = 0;
-    private int     vCommandPoolCap  = 1024;
+    private final boolean mPrecise;
+    private final long    mSpinMicros;
 
     private volatile boolean vOpen = false;
     private EventBus mBus;
 
-    public ThreadedSchedulerUnit() {}
+
+    public ThreadedSchedulerUnit() {
+        this( false, DEFAULT_SPIN_MICROS );
+    }
+
+    /**
+     * @param precise    If true, use precise scheduling mode.
+     * @param spinMicros In precise mode, the amount of time before each deadline that the scheduler thread
+     *                   spins rather than parks. Limited to {@link #MAX_SPIN_MICROS}.
+     */
+    public ThreadedSchedulerUnit( boolean precise, long spinMicros ) {
+        this( precise, spinMicros, 1 );
+    }
+
+    /**
+     * @param precise    If true, use precise scheduling mode.
+     * @param spinMicros In precise mode, the amount of time before each deadline that the scheduler thread
+     *                   spins rather than parks. Limited to {@link #MAX_SPIN_MICROS}.
+     * @param threadNum  Number of scheduler threads.
+     */
+    public ThreadedSchedulerUnit( boolean precise, long spinMicros, int threadNum ) {
+        if( threadNum < 1 ) {
+            throw new IllegalArgumentException( "threadNum must be positive: " + threadNum );
+        }
+        mPrecise    = precise;
+        mSpinMicros = Math.max( 0L, Math.min( MAX_SPIN_MICROS, spinMicros ) );
+        mShards     = new Shard[threadNum];
+        for( int i = 0; i < threadNum; i++ ) {
+            mShards[i] = new Shard( threadNum == 1 ? "SchedulerUnit" : "SchedulerUnit-" + i );
+        }
+    }
+
+
+    public boolean isPrecise() {
+        return mPrecise;
+    }
+
+
+    public int threadNum() {
+        return mShards.length;
+    }
+
+    /**
+     * Enables adaptive lookahead on a stream. Lead starts at zero and follows latencies given to
+     * {@link #reportLatency}. Packets are released early by up to {@code maxLeadMicros}, and the stream
+     * accepts between {@code minQueueCap} packets and the queue cap given to {@link #addStream}, enough to
+     * cover the current lead.
+     *
+     * @param stream        Index of stream.
+     * @param maxLeadMicros Maximum lead, in master micros. Negative value disables adaptive lookahead.
+     * @param minQueueCap   Minimum number of packets queued on stream.
+     */
+    public void adaptiveLookahead( int stream, long maxLeadMicros, int minQueueCap ) {
+        synchronized( mLock ) {
+            StreamNode s = vStreams.get( stream );
+            synchronized( s.mLock ) {
+                s.vMaxLead = maxLeadMicros;
+                s.vMinCap  = Math.max( 1, Math.min( minQueueCap, s.mStreamCap ) );
+                s.vLead    = 0;
+                s.vLatency = -1;
+                s.vLatencyVar = 0;
+                s.vUpdateCap();
+            }
+        }
+    }
+
+    /**
+     * Reports measured processing latency for a stream with adaptive lookahead, such as the time taken
+     * to upload a frame. Has no effect on streams without adaptive lookahead.
+     */
+    public void reportLatency( int stream, long micros ) {
+        synchronized( mLock ) {
+            StreamNode s = vStreams.get( stream );
+            synchronized( s.mLock ) {
+                s.vAddLatency( micros );
+            }
+        }
+    }
+
+    /**
+     * @return how early packets are currently released on stream, in master micros.
+     */
+    public long leadMicros( int stream ) {
+        synchronized( mLock ) {
+            StreamNode s = vStreams.get( stream );
+            synchronized( s.mLock ) {
+                return s.vLead;
+            }
+        }
+    }
+
+    /**
+     * @return current queue cap of stream.
+     */
+    public int queueCap( int stream ) {
+        synchronized( mLock ) {
+            StreamNode s = vStreams.get( stream );
+            synchronized( s.mLock ) {
+                return s.vStreamCap;
+            }
+        }
+    }
+
+    /**
+     * @param stream Index of stream.
+     * @return copy of histogram of release errors for stream, in microseconds.
+     *         Positive values indicate packet was released late.
+     */
+    public MicrosHistogram releaseError( int stream ) {
+        synchronized( mLock ) {
+            StreamNode s = vStreams.get( stream );
+            synchronized( s.mLock ) {
+                return new MicrosHistogram( s.mReleaseError );
+            }
+        }
+    }
+
+
+    public void clearReleaseError( int stream ) {
+        synchronized( mLock ) {
+            StreamNode s = vStreams.get( stream );
+            synchronized( s.mLock ) {
+                s.mReleaseError.clear();
+            }
+        }
+    }
+
+    @Override
+    public void dropPolicy( int stream, LateDropPolicy policy ) {
+        if( policy == null ) {
+            throw new NullPointerException();
+        }
+        synchronized( mLock ) {
+            StreamNode s = vStreams.get( stream );
+            synchronized( s.mLock ) {
+                s.vDropPolicy = policy;
+            }
+        }
+    }
+
+    @Override
+    public long droppedNum( int stream ) {
+        synchronized( mLock ) {
+            StreamNode s = vStreams.get( stream );
+            synchronized( s.mLock ) {
+                return s.vDroppedNum;
+            }
+        }
+    }
+
 
 
     public int addStream( PlayClock clock, int queueCap ) {
@@ -40,14 +220,32 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
 
 
     public int addStream( PlayClock clock, int queueCap, boolean rushAfterClear ) {
+        return addStream( clock, queueCap, rushAfterClear, null );
+    }
+
+    /**
+     * @param clock          Clock that stream follows.
+     * @param queueCap       Max number of packets queued on stream.
+     * @param rushAfterClear If true, first packet after a clear is released immediately.
+     * @param groupKey       Streams with equal group keys share a scheduler thread.
+     *                       If null, streams are grouped by clock.
+     * @return index of new stream.
+     */
+    public int addStream( PlayClock clock, int queueCap, boolean rushAfterClear, Object groupKey ) {
         synchronized( mLock ) {
-            ClockNode node = vClocks.get( clock );
-            if( node == null ) {
-                node = new ClockNode( clock );
-                vClocks.put( clock, node );
+            Shard shard = vShardFor( groupKey != null ? groupKey : clock );
+            StreamNode stream;
+
+            synchronized( shard.mLock ) {
+                ClockNode node = shard.vClocks.get( clock );
+                if( node == null ) {
+                    node = new ClockNode( shard, clock );
+                    shard.vClocks.put( clock, node );
+                    shard.vClockHeap.offer( node, node.vNextExec );
+                }
+                stream = new StreamNode( node, queueCap, rushAfterClear );
             }
-            vClockHeap.offer( node );
-            StreamNode stream = new StreamNode( node, queueCap, rushAfterClear );
+
             vStreams.add( stream );
             return vStreams.size() - 1;
         }
@@ -61,11 +259,9 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
             }
             vOpen = true;
             mBus = bus;
-            new Thread( "SchedulerUnit" ) {
-                public void run() {
-                    runLoop();
-                }
-            }.start();
+            for( Shard shard: mShards ) {
+                shard.start();
+            }
         }
     }
 
@@ -76,20 +272,33 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
                 return;
             }
             vOpen = false;
-            mLock.notifyAll();
 
-            for( ClockNode c: vClocks.values() ) {
-                c.vClear();
+            for( Shard shard: mShards ) {
+                synchronized( shard.mLock ) {
+                    shard.vWake();
+                    for( ClockNode c: shard.vClocks.values() ) {
+                        c.vClear();
+                    }
+                    shard.vClocks.clear();
+                    shard.vClockHeap.clear();
+                }
             }
-            vClocks.clear();
-            vClockHeap.clear();
 
             for( StreamNode s: vStreams ) {
-                s.vClear();
+                synchronized( s.mLock ) {
+                    s.vClear();
+                }
             }
             vStreams.clear();
-            vCommandPool = null;
-            vCommandPoolSize = 0;
+            vGroups.clear();
+
+            for( Shard shard: mShards ) {
+                synchronized( shard.mLock ) {
+                    shard.vCommandPool = null;
+                    shard.vCommandPoolSize = 0;
+                    shard.vGroupNum = 0;
+                }
+            }
         }
     }
 
@@ -101,10 +310,14 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
     @Override
     public void clear() {
         synchronized( mLock ) {
-            int len = vClockHeap.size();
-            for( int i = 0; i < len; i++ ) {
-                ClockNode node = vClockHeap.get( i );
-                node.vClear();
+            for( Shard shard: mShards ) {
+                synchronized( shard.mLock ) {
+                    int len = shard.vClockHeap.size();
+                    for( int i = 0; i < len; i++ ) {
+                        ClockNode node = shard.vClockHeap.get( i );
+                        node.vClear();
+                    }
+                }
             }
         }
     }
@@ -141,78 +354,173 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
     public void tick() {}
 
 
-    private void runLoop() {
-        try {
-            synchronized( mLock ) {
-                while( vOpen ) {
-                    try {
-                        ClockNode n = vClockHeap.peek();
-                        if( n == null || n.vNextExec == Long.MAX_VALUE ) {
-                            mLock.wait();
-                            continue;
+    private Shard vShardFor( Object groupKey ) {
+        Shard shard = vGroups.get( groupKey );
+        if( shard != null ) {
+            return shard;
+        }
+
+        shard = mShards[0];
+        for( int i = 1; i < mShards.length; i++ ) {
+            if( mShards[i].vGroupNum < shard.vGroupNum ) {
+                shard = mShards[i];
+            }
+        }
+
+        shard.vGroupNum++;
+        vGroups.put( groupKey, shard );
+        return shard;
+    }
+
+
+
+    private final class Shard {
+        final Object mLock = new Object();
+        final String mName;
+
+        final Map<PlayClock, ClockNode> vClocks    = new HashMap<PlayClock, ClockNode>();
+        final LongHeap<ClockNode>       vClockHeap = new LongHeap<ClockNode>();
+        int vGroupNum = 0;
+
+        Command vCommandPool     = null;
+        int     vCommandPoolSize = 0;
+        int     vCommandPoolCap  = 1024;
+
+        Thread vThread = null;
+
+
+        Shard( String name ) {
+            mName = name;
+        }
+
+
+        void start() {
+            vThread = new Thread( mName ) {
+                public void run() {
+                    runLoop();
+                }
+            };
+            vThread.start();
+        }
+
+
+        private void runLoop() {
+            try {
+                while( true ) {
+                    PlayClock spinClock = null;
+                    long      spinUntil = 0;
+                    long      parkNanos = 0;
+
+                    synchronized( mLock ) {
+                        if( !vOpen ) {
+                            return;
                         }
 
-                        long waitFor = n.vComputeWaitMillis();
-                        if( waitFor > 10L ) {
-                            mLock.wait( waitFor );
+                        try {
+                            ClockNode n = vClockHeap.peek();
+                            if( n == null || n.vNextExec == Long.MAX_VALUE ) {
+                                mLock.wait();
+                                continue;
+                            }
+
+                            long waitMicros = n.vComputeWaitMicros();
+                            if( !mPrecise ) {
+                                if( waitMicros > COARSE_WINDOW_MICROS ) {
+                                    mLock.wait( waitMicros / 1000L );
+                                    continue;
+                                }
+                            } else if( waitMicros > mSpinMicros ) {
+                                parkNanos = ( waitMicros - mSpinMicros ) * 1000L;
+                            } else if( waitMicros > 0 ) {
+                                spinClock = n.mClock;
+                                spinUntil = n.vNextExec;
+                            }
+
+                            if( parkNanos == 0 && spinClock == null ) {
+                                n.vExecNext();
+                                continue;
+                            }
+                        } catch( InterruptedException ignore ) {
                             continue;
                         }
+                    }
 
-                        n.vExecNext();
-                    } catch( InterruptedException ignore ) {}
+                    // Precise mode. Wait without holding lock. Offers of earlier packets will unpark thread.
+                    if( parkNanos > 0 ) {
+                        LockSupport.parkNanos( this, parkNanos );
+                    } else {
+                        long spinStop = System.nanoTime() + MAX_SPIN_MICROS * 1000L;
+                        while( spinClock.masterMicros() < spinUntil && vOpen && System.nanoTime() < spinStop ) {
+                            Thread.yield();
+                        }
+                    }
                 }
+            } catch( RuntimeException ex ) {
+                ex.printStackTrace();
             }
-        } catch( RuntimeException ex ) {
-            ex.printStackTrace();
         }
-    }
-
 
 
-    private Command vCommandPoolGet() {
-        if( vCommandPoolSize-- > 0 ) {
-            Command ret = vCommandPool;
-            vCommandPool = ret.mNext;
-            ret.mNext = null;
-            ret.mPooled = false;
-            return ret;
+        private void vWake() {
+            mLock.notifyAll();
+            Thread t = vThread;
+            if( mPrecise && t != null ) {
+                LockSupport.unpark( t );
+            }
         }
 
-        vCommandPoolSize = 0;
-        return new Command();
-    }
 
 
-    private void vCommandPoolOffer( Command c ) {
-        c.mPooled = true;
-        if( c.mStream != null ) {
-            c.mStream.decrementCount();
-        }
+        private Command vCommandPoolGet() {
+            if( vCommandPoolSize-- > 0 ) {
+                Command ret = vCommandPool;
+                vCommandPool = ret.mNext;
+                ret.mNext = null;
+                ret.mPooled = false;
+                return ret;
+            }
 
-        if( c.mPacket != null ) {
-            c.mPacket.deref();
-            c.mPacket = null;
+            vCommandPoolSize = 0;
+            return new Command();
         }
 
-        if( vCommandPoolSize++ < vCommandPoolCap ) {
-            c.mNext = vCommandPool;
-            vCommandPool = c;
-        } else {
-            vCommandPoolSize--;
+
+        private void vCommandPoolOffer( Command c ) {
+            c.mPooled = true;
+            if( c.mStream != null ) {
+                c.mStream.decrementCount();
+            }
+
+            if( c.mPacket != null ) {
+                c.mPacket.deref();
+                c.mPacket = null;
+            }
+
+            if( vCommandPoolSize++ < vCommandPoolCap ) {
+                c.mNext = vCommandPool;
+                vCommandPool = c;
+            } else {
+                vCommandPoolSize--;
+            }
         }
+
     }
 
 
 
-    private final class ClockNode extends HeapNode implements SyncClockControl, Comparable<ClockNode> {
+    private final class ClockNode extends LongHeapNode implements SyncClockControl {
+        final Shard     mShard;
+        final Object    mLock;
         final PlayClock mClock;
-        final PrioHeap<Command> mHeap = new PrioHeap<Command>();
+        final LongHeap<Command> mHeap = new LongHeap<Command>( 4, 16 );
         int     vStreamNum = 0;
         long    vNextExec  = Long.MAX_VALUE;
         boolean vForward   = true;
 
 
-        ClockNode( PlayClock clock ) {
+        ClockNode( Shard shard, PlayClock clock ) {
+            mShard = shard;
+            mLock  = shard.mLock;
             mClock = clock;
             clock.addListener( this );
         }
@@ -255,14 +563,15 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
 
 
 
-        long vComputeWaitMillis() {
+        long vComputeWaitMicros() {
             long now = mClock.masterMicros();
-            return vNextExec < now ? 0 : ( vNextExec - now ) / 1000L;
+            return vNextExec < now ? 0 : vNextExec - now;
         }
 
 
         void vOffer( Command c ) {
-            mHeap.offer( c );
+            // Reverse playback releases latest timestamp first. Complement avoids overflow.
+            mHeap.offer( c, c.mForward ? c.mDue : ~c.mDue );
             if( mHeap.peek() == c ) {
                 vUpdate();
             }
@@ -276,7 +585,9 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
             }
 
             for( int i = 0; i < len; i++ ) {
-                vCommandPoolOffer( mHeap.remove() );
+                Command c = mHeap.remove();
+                c.mStream.vHeapNum--;
+                mShard.vCommandPoolOffer( c );
             }
 
             mHeap.clear();
@@ -286,15 +597,15 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
 
         private void vUpdate() {
             Command c = mHeap.peek();
-            long pts = c == null ? Long.MAX_VALUE : mClock.toMaster( c.mDts );
+            long pts = c == null ? Long.MAX_VALUE : mClock.toMaster( c.mDue );
 
             if( pts == vNextExec ) {
                 return;
             }
 
             vNextExec = pts;
-            vClockHeap.reschedule( this );
-            mLock.notify();
+            mShard.vClockHeap.update( this, pts );
+            mShard.vWake();
         }
 
 
@@ -303,19 +614,29 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
             // Command c = mHeap.remove();
             Command c = mHeap.poll();
             if( c != null ) {
+                StreamNode stream = c.mStream;
+                long scheduled = vNextExec;
+                long now = mClock.masterMicros();
+                // Lateness for dropping is measured against presentation time, not early release time.
+                long present = c.mDue == c.mDts ? scheduled : mClock.toMaster( c.mDts );
                 vUpdate();
-                c.mStream.vQueueOutput( c );
+
+                stream.vHeapNum--;
+                stream.mReleaseError.add( now - scheduled );
+                if( stream.vDropPolicy.shouldDrop( c.mPacket, now - present, stream.vHeapNum > 0 ) ) {
+                    stream.vDroppedNum++;
+                    mShard.vCommandPoolOffer( c );
+                    return;
+                }
+
+                c.mScheduled = present;
+                stream.vQueueOutput( c );
                 return;
             }
 
             vNextExec = Long.MAX_VALUE;
-            vClockHeap.reschedule( this );
-            mLock.notify();
-        }
-
-
-        public int compareTo( ClockNode node ) {
-            return vNextExec < node.vNextExec ? -1 : 1;
+            mShard.vClockHeap.update( this, Long.MAX_VALUE );
+            mShard.vWake();
         }
 
     }
@@ -323,27 +644,112 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
 
     private final class StreamNode {
         final ClockNode mNode;
+        final Object    mLock;
 
         final InHandler        mIn       = new InHandler();
         final OutHandler       mOut      = new OutHandler();
         final InPadReadyEvent  mInReady  = new InPadReadyEvent( mIn );
         final OutPadReadyEvent mOutReady = new OutPadReadyEvent( mOut );
 
+        final MicrosHistogram  mReleaseError = new MicrosHistogram();
+
         final boolean mRushAfterClear;
         final int mStreamCap;
+        int vStreamCap;
         int vStreamSize;
+        int vHeapNum = 0;
         boolean mClear = true;
 
+        // Adaptive lookahead. Disabled while vMaxLead is negative.
+        long vMaxLead     = -1;
+        int  vMinCap      = 1;
+        long vLead        = 0;
+        long vLatency     = -1;
+        long vLatencyVar  = 0;
+        long vFrameMicros = 0;
+        long vLastDue     = Long.MIN_VALUE;
+
+        LateDropPolicy vDropPolicy = LateDropPolicy.NEVER;
+        long vDroppedNum = 0;
+
         Command vReadyHead = null;
         Command vReadyTail = null;
 
 
         StreamNode( ClockNode node, int queueCap, boolean rushAfterClear ) {
             mNode = node;
+            mLock = node.mLock;
             mStreamCap = queueCap;
+            vStreamCap = queueCap;
             mRushAfterClear = rushAfterClear;
         }
 
+        /**
+         * Adds latency sample. Smoothed like a TCP round-trip estimate; lead covers mean plus four
+         * mean deviations.
+         */
+        void vAddLatency( long micros ) {
+            if( vMaxLead < 0 ) {
+                return;
+            }
+            micros = Math.max( 0L, micros );
+            if( vLatency < 0 ) {
+                vLatency    = micros;
+                vLatencyVar = micros / 2;
+            } else {
+                long err = micros - vLatency;
+                vLatency    += err / 8;
+                vLatencyVar += ( Math.abs( err ) - vLatencyVar ) / 4;
+            }
+            vLead = Math.min( vMaxLead, vLatency + 4 * vLatencyVar );
+            vUpdateCap();
+        }
+
+
+        void vAddFrame( Packet p ) {
+            long dur = p.stopMicros() - p.startMicros();
+            if( vMaxLead < 0 || dur <= 0 ) {
+                return;
+            }
+            long prev = vFrameMicros;
+            vFrameMicros = prev == 0 ? dur : prev + ( dur - prev ) / 8;
+            if( vFrameMicros != prev ) {
+                vUpdateCap();
+            }
+        }
+
+
+        void vUpdateCap() {
+            int cap = mStreamCap;
+            if( vMaxLead >= 0 ) {
+                cap = vMinCap;
+                if( vFrameMicros > 0 ) {
+                    long extra = ( vLead + vFrameMicros - 1 ) / vFrameMicros;
+                    cap = (int)Math.min( mStreamCap, vMinCap + extra );
+                }
+            }
+
+            int prev = vStreamCap;
+            vStreamCap = cap;
+            if( prev <= vStreamSize && vStreamSize < cap && mBus != null ) {
+                mBus.post( mInReady );
+            }
+        }
+
+        /**
+         * @return lead converted to stream time at current clock rate.
+         */
+        long vStreamLead() {
+            if( vLead <= 0 ) {
+                return 0;
+            }
+            Frac rate = mNode.mClock.rate();
+            if( rate.mNum == 0 || rate.mDen == 0 ) {
+                return 0;
+            }
+            return vLead * Math.abs( rate.mNum ) / rate.mDen;
+        }
+
 
         void vQueueOutput( Command c ) {
             c.mNext = null;
@@ -364,7 +770,7 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
 
             while( head != null ) {
                 Command next = head.mNext;
-                vCommandPoolOffer( next );
+                mNode.mShard.vCommandPoolOffer( head );
                 head = next;
             }
 
@@ -372,8 +778,34 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
         }
 
 
+        /**
+         * Drops late commands from head of ready queue.
+         */
+        void vDropLate() {
+            if( vDropPolicy.mMaxLateMicros < 0 ) {
+                return;
+            }
+
+            long now = mNode.mClock.masterMicros();
+            Command head = vReadyHead;
+            while( head != null ) {
+                boolean hasNewer = head.mNext != null || vHeapNum > 0;
+                if( !vDropPolicy.shouldDrop( head.mPacket, now - head.mScheduled, hasNewer ) ) {
+                    break;
+                }
+                vReadyHead = head.mNext;
+                if( vReadyHead == null ) {
+                    vReadyTail = null;
+                }
+                vDroppedNum++;
+                mNode.mShard.vCommandPoolOffer( head );
+                head = vReadyHead;
+            }
+        }
+
+
         void decrementCount() {
-            if( vStreamSize-- == mStreamCap ) {
+            if( vStreamSize-- >= vStreamCap && vStreamSize < vStreamCap ) {
                 mBus.post( mInReady );
             }
         }
@@ -383,7 +815,7 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
             @Override
             public int status() {
                 synchronized( mLock ) {
-                    return vStreamSize < mStreamCap ? OKAY : WAIT;
+                    return vStreamSize < vStreamCap ? OKAY : WAIT;
                 }
             }
 
@@ -394,16 +826,17 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
                         return OKAY;
                     }
 
-                    if( vStreamSize++ > mStreamCap ) {
+                    if( vStreamSize++ > vStreamCap ) {
                         vStreamSize--;
                         return WAIT;
                     }
 
-                    Command c = vCommandPoolGet();
+                    Command c = mNode.mShard.vCommandPoolGet();
                     c.vInit( StreamNode.this, packet, mNode.vForward );
 
                     if( mClear ) {
                         mClear = false;
+                        vLastDue = mNode.vForward ? Long.MIN_VALUE : Long.MAX_VALUE;
                         if( mRushAfterClear ) {
                             // If we haven't sent any packets, send first packet immediately.
                             c.mDts = mNode.mClock.micros();
@@ -413,6 +846,20 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
                         }
                     }
 
+                    c.mDue = c.mDts;
+                    if( vMaxLead >= 0 ) {
+                        vAddFrame( packet );
+                        long lead = vStreamLead();
+                        // Lead may have grown since last packet. Never release ahead of earlier packets.
+                        if( mNode.vForward ) {
+                            c.mDue = vLastDue == Long.MIN_VALUE ? c.mDts - lead : Math.max( c.mDts - lead, vLastDue + 1 );
+                        } else {
+                            c.mDue = vLastDue == Long.MAX_VALUE ? c.mDts + lead : Math.min( c.mDts + lead, vLastDue - 1 );
+                        }
+                        vLastDue = c.mDue;
+                    }
+
+                    vHeapNum++;
                     mNode.vOffer( c );
                     return OKAY;
                 }
@@ -449,6 +896,7 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
             @Override
             public int poll( Refable[] out ) {
                 synchronized( mLock ) {
+                    vDropLate();
                     Command head = vReadyHead;
                     if( head == null ) {
                         return WAIT;
@@ -463,7 +911,7 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
                         vReadyTail = null;
                     }
 
-                    vCommandPoolOffer( head );
+                    mNode.mShard.vCommandPoolOffer( head );
                     return OKAY;
                 }
             }
@@ -489,12 +937,14 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
     }
 
 
-    private class Command extends HeapNode implements Comparable<Command> {
+    private class Command extends LongHeapNode {
         StreamNode mStream = null;
         Packet     mPacket = null;
 
         boolean mForward;
         long    mDts;
+        long    mDue;
+        long    mScheduled;
         Command mNext   = null;
         boolean mPooled = false;
 
@@ -507,15 +957,6 @@ public final class ThreadedSchedulerUnit implements SchedulerUnit {
             mDts = forward ? p.startMicros() : p.stopMicros();
         }
 
-        @Override
-        public int compareTo( Command command ) {
-            if( mForward ) {
-                return mDts < command.mDts ? -1 : 1;
-            } else {
-                return mDts >= command.mDts ? -1 : 1;
-            }
-        }
-
         @Override
         protected void finalize() throws Throwable {
             if( !mPooled ) {
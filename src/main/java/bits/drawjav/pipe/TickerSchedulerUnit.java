@@ -12,13 +12,25 @@ import java.util.*;
 /**
  * This is the stepping version of SchedulerUnit. It must be updated on each tick before the
  * graph driver and will determine how many frames to pass through.
+ * <p>
+ * Late packets are dropped according to each stream's {@link LateDropPolicy} when output is polled.
+ * Lateness is measured in stream time, as of the most recent tick.
+ * <p>
+ * Streams are grouped by clock. Each group keeps a heap of streams ordered by the timestamp of
+ * their head packets, so {@link #tick()} reads each clock once and only visits streams that
+ * have become due. Readiness changes cost O(log n) in the number of streams, which keeps ticking
+ * cheap when a unit carries hundreds of streams.
  *
  * @author Philip DeCamp
  */
 public final class TickerSchedulerUnit implements SchedulerUnit {
 
-    private final Object           mLock    = this;
-    private final List<StreamNode> vStreams = new ArrayList<StreamNode>();
+    private final Object                          mLock      = this;
+    private final List<StreamNode>                vStreams   = new ArrayList<StreamNode>();
+    private final Map<PlayClock, ClockGroup>      vGroupMap  = new IdentityHashMap<PlayClock, ClockGroup>();
+    private final List<ClockGroup>                vGroups    = new ArrayList<ClockGroup>();
+    // Streams refused input while every stream held data.
+    private final List<StreamNode>                vInWaiters = new ArrayList<StreamNode>();
 
     private volatile boolean vOpen = false;
     private EventBus vBus;
@@ -31,13 +43,42 @@ public final class TickerSchedulerUnit implements SchedulerUnit {
 
     public int addStream( PlayClock clock, int queueCap ) {
         synchronized( mLock ) {
-            StreamNode stream = new StreamNode( clock, queueCap );
+            ClockGroup group = vGroupMap.get( clock );
+            if( group == null ) {
+                group = new ClockGroup( clock );
+                vGroupMap.put( clock, group );
+                vGroups.add( group );
+            }
+
+            StreamNode stream = new StreamNode( group, queueCap );
             vStreams.add( stream );
-            stream.vFireDataUpdate();
+            group.mStreams.add( stream );
+
+            // An empty stream unblocks input if all other streams held data.
+            if( vNumNodesWithData == vStreams.size() - 1 ) {
+                vReleaseInWaiters();
+            }
             return vStreams.size() - 1;
         }
     }
 
+    @Override
+    public void dropPolicy( int stream, LateDropPolicy policy ) {
+        if( policy == null ) {
+            throw new NullPointerException();
+        }
+        synchronized( mLock ) {
+            vStreams.get( stream ).vDropPolicy = policy;
+        }
+    }
+
+    @Override
+    public long droppedNum( int stream ) {
+        synchronized( mLock ) {
+            return vStreams.get( stream ).vDroppedNum;
+        }
+    }
+
     @Override
     public void open( EventBus bus ) {
         synchronized( mLock ) {
@@ -60,6 +101,9 @@ public final class TickerSchedulerUnit implements SchedulerUnit {
                 s.vClear();
             }
             vStreams.clear();
+            vGroupMap.clear();
+            vGroups.clear();
+            vInWaiters.clear();
         }
     }
 
@@ -110,53 +154,153 @@ public final class TickerSchedulerUnit implements SchedulerUnit {
     @Override
     public void tick() {
         synchronized( mLock ) {
-            final int len = vStreams.size();
+            final int len = vGroups.size();
             for( int i = 0; i < len; i++ ) {
-                vStreams.get( i ).vTick();
+                vGroups.get( i ).vTick();
             }
         }
     }
 
 
+    private void vReleaseInWaiters() {
+        final List<StreamNode> list = vInWaiters;
+        final int len = list.size();
+        int keep = 0;
+
+        for( int i = 0; i < len; i++ ) {
+            StreamNode s = list.get( i );
+            s.vCheckInReady();
+            if( s.vInWaiting ) {
+                // Still blocked by its own queue. Keep listed in case the unit fills again
+                // before that queue drains.
+                list.set( keep++, s );
+            } else {
+                s.vInListed = false;
+            }
+        }
 
-    private final class StreamNode {
-        final PlayClock        mClock;
-        final InHandler        mIn            = new InHandler();
-        final OutHandler       mOut           = new OutHandler();
-        final InPadReadyEvent  mInReadyEvent  = new InPadReadyEvent( mIn );
-        final OutPadReadyEvent mOutReadyEvent = new OutPadReadyEvent( mOut );
+        list.subList( keep, len ).clear();
+    }
 
-        final int mQueueCap;
-        final Deque<Packet> vQueue = new ArrayDeque<Packet>();
-        long vQueueMicros;
 
-        long    vClockMicros;
-        boolean vClockForward;
 
-        boolean vHasData  = false;
+    private final class ClockGroup {
+        final PlayClock        mClock;
+        final List<StreamNode> mStreams = new ArrayList<StreamNode>();
+        // Streams with data whose head packet is not yet due.
+        final LongHeap<StreamNode> mPending = new LongHeap<StreamNode>();
 
-        boolean vInReady  = true;
-        boolean vOutReady = false;
+        long    vClockMicros;
+        boolean vClockForward;
 
 
-        StreamNode( PlayClock clock, int queueCap ) {
+        ClockGroup( PlayClock clock ) {
             mClock        = clock;
-            mQueueCap     = queueCap;
             vClockMicros  = clock.micros();
             vClockForward = clock.rate().mNum > 0;
         }
 
 
         void vTick() {
+            final long prev = vClockMicros;
             vClockMicros = mClock.micros();
             boolean forward = mClock.rate().mNum >= 0;
+
             if( forward != vClockForward ) {
                 vClockForward = forward;
-                vClear();
+                // Heap order depends on direction. Empty it before clearing streams.
+                mPending.clear();
+                for( StreamNode s: mStreams ) {
+                    s.vClear();
+                }
+                return;
+            }
+
+            if( forward ? vClockMicros < prev : vClockMicros > prev ) {
+                // Clock jumped backward in playback direction. Ready streams may no longer be due.
+                for( StreamNode s: mStreams ) {
+                    if( s.vOutReady ) {
+                        s.vUpdateHead();
+                    }
+                }
+            }
+
+            while( !mPending.isEmpty() ) {
+                StreamNode s = mPending.peek();
+                if( !isDue( s.vQueueMicros ) ) {
+                    break;
+                }
+                mPending.remove();
+                s.vSetOutReady( true );
+            }
+        }
+
+
+        boolean isDue( long micros ) {
+            return vClockForward ? micros <= vClockMicros : micros > vClockMicros;
+        }
+
+    }
+
+
+
+    private final class StreamNode extends LongHeapNode {
+        final ClockGroup       mGroup;
+        final InHandler        mIn            = new InHandler();
+        final OutHandler       mOut           = new OutHandler();
+        final InPadReadyEvent  mInReadyEvent  = new InPadReadyEvent( mIn );
+        final OutPadReadyEvent mOutReadyEvent = new OutPadReadyEvent( mOut );
+
+        final int mQueueCap;
+        final Deque<Packet> vQueue = new ArrayDeque<Packet>();
+        long vQueueMicros;
+
+        boolean vHasData   = false;
+        boolean vOutReady  = false;
+
+        // True after input has been refused and no InPadReadyEvent has been posted since.
+        boolean vInWaiting = false;
+        // True while listed in vInWaiters.
+        boolean vInListed  = false;
+
+        LateDropPolicy vDropPolicy = LateDropPolicy.NEVER;
+        long vDroppedNum = 0;
+
+
+        StreamNode( ClockGroup group, int queueCap ) {
+            mGroup    = group;
+            mQueueCap = queueCap;
+        }
+
+
+        boolean vCanAccept() {
+            return vQueue.size() < mQueueCap && vNumNodesWithData < vStreams.size();
+        }
+
+
+        void vWaitIn() {
+            vInWaiting = true;
+            if( !vInListed ) {
+                vInListed = true;
+                vInWaiters.add( this );
             }
+        }
+
+
+        void vCheckInReady() {
+            if( vInWaiting && vCanAccept() ) {
+                vInWaiting = false;
+                vBus.post( mInReadyEvent );
+            }
+        }
 
-            if( vHasData ) {
-                vFireUnitUpdate();
+
+        void vSetOutReady( boolean ready ) {
+            if( ready != vOutReady ) {
+                vOutReady = ready;
+                if( ready ) {
+                    vBus.post( mOutReadyEvent );
+                }
             }
         }
 
@@ -172,59 +316,79 @@ public final class TickerSchedulerUnit implements SchedulerUnit {
         }
 
 
-        void vFireUnitUpdate() {
-            boolean ready;
-            int size = vQueue.size();
+        /**
+         * Drops late packets from head of queue.
+         *
+         * @return true if any packets were dropped.
+         */
+        boolean vDropLate() {
+            if( vDropPolicy.mMaxLateMicros < 0 ) {
+                return false;
+            }
 
-            ready = size < mQueueCap && vNumNodesWithData < vStreams.size();
-            if( ready != vInReady ) {
-                vInReady = ready;
-                if( ready ) {
-                    vBus.post( mInReadyEvent );
+            final long clockMicros = mGroup.vClockMicros;
+            final boolean forward  = mGroup.vClockForward;
+            boolean dropped = false;
+
+            while( !vQueue.isEmpty() ) {
+                Packet p = vQueue.peek();
+                long late = forward ? clockMicros - p.startMicros() : p.stopMicros() - clockMicros;
+                if( !vDropPolicy.shouldDrop( p, late, vQueue.size() > 1 ) ) {
+                    break;
                 }
+                vQueue.remove().deref();
+                vDroppedNum++;
+                dropped = true;
             }
 
-            ready = size > 0 && ( vClockForward ? vQueueMicros <= vClockMicros : vQueueMicros > vClockMicros );
-            if( ready != vOutReady ) {
-                vOutReady = ready;
-                if( ready ) {
-                    vBus.post( mOutReadyEvent );
-                }
+            return dropped;
+        }
+
+
+        /**
+         * Recomputes head timestamp and output readiness, moving this stream into or out of
+         * its group's pending heap as needed.
+         */
+        void vUpdateHead() {
+            mGroup.mPending.remove( this );
+
+            if( vQueue.isEmpty() ) {
+                vSetOutReady( false );
+                return;
+            }
+
+            Packet head  = vQueue.peek();
+            vQueueMicros = mGroup.vClockForward ? head.startMicros() : head.stopMicros();
+
+            if( mGroup.isDue( vQueueMicros ) ) {
+                vSetOutReady( true );
+            } else {
+                vSetOutReady( false );
+                // Reverse playback releases latest timestamp first.
+                mGroup.mPending.offer( this, mGroup.vClockForward ? vQueueMicros : ~vQueueMicros );
             }
         }
 
 
         private void vFireDataUpdate() {
             boolean hasData = !vQueue.isEmpty();
-            if( hasData ) {
-                vQueueMicros = vClockForward ? vQueue.peek().startMicros() : vQueue.peek().stopMicros();
-            }
 
             if( hasData != vHasData ) {
                 vHasData = hasData;
 
                 if( hasData ) {
-                    // If all nodes in this unit have data, none of the nodes can accept more data
-                    // and all must be updated.
-                    if( ++vNumNodesWithData == vStreams.size() ) {
-                        for( StreamNode node : vStreams ) {
-                            node.vFireUnitUpdate();
-                        }
-                        return;
-                    }
-                } else {
+                    // Once all nodes in this unit have data, none can accept more. Streams are
+                    // not notified; they are refused on their next offer.
+                    ++vNumNodesWithData;
+                } else if( vNumNodesWithData-- == vStreams.size() ) {
                     // If all nodes in this unit had data, they were unable to accept more data.
-                    // Now that one of the nodes can accept input, they must all be updated.
-                    if( vNumNodesWithData-- == vStreams.size() ) {
-                        for( StreamNode node: vStreams ) {
-                            node.vFireUnitUpdate();
-                        }
-                        return;
-                    }
+                    // Only streams that have since been refused need to be notified.
+                    vReleaseInWaiters();
                 }
             }
 
-            vFireUnitUpdate();
+            vUpdateHead();
+            vCheckInReady();
         }
 
 
@@ -232,7 +396,7 @@ public final class TickerSchedulerUnit implements SchedulerUnit {
             @Override
             public int status() {
                 synchronized( mLock ) {
-                    return vInReady ? OKAY : WAIT;
+                    return vCanAccept() ? OKAY : WAIT;
                 }
             }
 
@@ -243,14 +407,14 @@ public final class TickerSchedulerUnit implements SchedulerUnit {
                         return OKAY;
                     }
 
-                    if( !vInReady ) {
+                    if( !vCanAccept() ) {
+                        vWaitIn();
                         return WAIT;
                     }
 
                     packet.ref();
                     vQueue.offer( packet );
-                    int size = vQueue.size();
-                    if( size == 1 || size == mQueueCap ) {
+                    if( vQueue.size() == 1 ) {
                         vFireDataUpdate();
                     }
 
@@ -293,12 +457,15 @@ public final class TickerSchedulerUnit implements SchedulerUnit {
                         return WAIT;
                     }
 
-                    int size = vQueue.size();
-                    out[0] = vQueue.remove();
-                    if( size == 1 || size == mQueueCap ) {
+                    if( vDropLate() ) {
                         vFireDataUpdate();
+                        if( !vOutReady ) {
+                            return WAIT;
+                        }
                     }
 
+                    out[0] = vQueue.remove();
+                    vFireDataUpdate();
                     return OKAY;
                 }
             }
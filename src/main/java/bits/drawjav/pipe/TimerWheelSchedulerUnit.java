@@ -0,0 +1,681 @@
+package bits.drawjav.pipe;
+
+import bits.drawjav.*;
+import bits.microtime.*;
+import bits.util.ref.Refable;
+import com.google.common.eventbus.EventBus;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+
+
+/**
+ * SchedulerUnit for dense layouts with many streams across many clocks. Packets are released from
+ * a single scheduler thread, as in {@link ThreadedSchedulerUnit}, but state is striped by clock:
+ * each clock and the streams that follow it share a lock, so offers, polls and clock events on
+ * different clocks do not contend with each other.
+ * <p>
+ * Each clock keeps its pending packets in a heap ordered by stream time, and only the master time of
+ * its earliest packet is filed into a {@link TimerWheel}. Rescheduling a clock after an offer or
+ * clock event is O(1) and touches the wheel lock only briefly. Packets are released up to one wheel
+ * tick early.
+ * <p>
+ * All clocks added to a unit are expected to share a master timebase, as do clocks created from one
+ * PlayController.
+ * <p>
+ * Late packets are dropped according to each stream's {@link LateDropPolicy}, both when released by the
+ * scheduler thread and when polled from the output. Lateness is measured in master time.
+ *
+ * @author Philip DeCamp
+ */
+public final class TimerWheelSchedulerUnit implements SchedulerUnit {
+
+    public static final long DEFAULT_TICK_MICROS = 1000L;
+
+    private static final Logger sLog = Logger.getLogger( TimerWheelSchedulerUnit.class.getName() );
+
+    private static final int COMMAND_POOL_CAP = 256;
+
+
+    // Guards stream and clock lists. Lock order is mLock, then clock lock, then mWheelLock.
+    private final Object                    mLock      = this;
+    private final Object                    mWheelLock = new Object();
+    private final Map<PlayClock, ClockNode> vClocks    = new LinkedHashMap<PlayClock, ClockNode>();
+    private final List<StreamNode>          vStreams   = new ArrayList<StreamNode>();
+
+    private final long mTickMicros;
+
+    // Guarded by mWheelLock.
+    private TimerWheel<ClockNode> vWheel      = null;
+    private Clock                 vMaster     = null;
+    private long                  vWakeMicros = Long.MIN_VALUE;
+
+    private volatile boolean vOpen = false;
+    private EventBus mBus;
+    private Thread   vThread = null;
+
+
+    public TimerWheelSchedulerUnit() {
+        this( DEFAULT_TICK_MICROS );
+    }
+
+    /**
+     * @param tickMicros Resolution of timer wheel. Packets may be released up to this much early.
+     */
+    public TimerWheelSchedulerUnit( long tickMicros ) {
+        if( tickMicros <= 0 ) {
+            throw new IllegalArgumentException( "tickMicros must be positive: " + tickMicros );
+        }
+        mTickMicros = tickMicros;
+    }
+
+
+
+    public int addStream( PlayClock clock, int queueCap ) {
+        return addStream( clock, queueCap, false );
+    }
+
+
+    public int addStream( PlayClock clock, int queueCap, boolean rushAfterClear ) {
+        synchronized( mLock ) {
+            ClockNode node = vClocks.get( clock );
+            if( node == null ) {
+                synchronized( mWheelLock ) {
+                    if( vWheel == null ) {
+                        vMaster = clock.masterClock();
+                        vWheel  = new TimerWheel<ClockNode>( mTickMicros, vMaster.micros() );
+                    }
+                }
+                node = new ClockNode( clock );
+                vClocks.put( clock, node );
+            }
+            StreamNode stream = new StreamNode( node, queueCap, rushAfterClear );
+            vStreams.add( stream );
+            return vStreams.size() - 1;
+        }
+    }
+
+    @Override
+    public void dropPolicy( int stream, LateDropPolicy policy ) {
+        if( policy == null ) {
+            throw new NullPointerException();
+        }
+        StreamNode s;
+        synchronized( mLock ) {
+            s = vStreams.get( stream );
+        }
+        synchronized( s.mNode.mStripe ) {
+            s.vDropPolicy = policy;
+        }
+    }
+
+    @Override
+    public long droppedNum( int stream ) {
+        StreamNode s;
+        synchronized( mLock ) {
+            s = vStreams.get( stream );
+        }
+        synchronized( s.mNode.mStripe ) {
+            return s.vDroppedNum;
+        }
+    }
+
+    @Override
+    public void open( EventBus bus ) {
+        synchronized( mLock ) {
+            if( vOpen ) {
+                return;
+            }
+            vOpen = true;
+            mBus = bus;
+            vThread = new Thread( "SchedulerUnit" ) {
+                public void run() {
+                    runLoop();
+                }
+            };
+            vThread.start();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized( mLock ) {
+            if( !vOpen ) {
+                return;
+            }
+            vOpen = false;
+
+            for( ClockNode c: vClocks.values() ) {
+                c.mClock.removeListener( c );
+                synchronized( c.mStripe ) {
+                    c.vClear();
+                    for( StreamNode s: c.mStreams ) {
+                        s.vClear();
+                    }
+                    c.vPool = null;
+                    c.vPoolSize = 0;
+                }
+            }
+            vClocks.clear();
+            vStreams.clear();
+
+            synchronized( mWheelLock ) {
+                if( vWheel != null ) {
+                    vWheel.clear();
+                }
+                mWheelLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return vOpen;
+    }
+
+    @Override
+    public void clear() {
+        synchronized( mLock ) {
+            for( ClockNode c: vClocks.values() ) {
+                synchronized( c.mStripe ) {
+                    if( c.vClear() ) {
+                        c.vUpdate();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int inputNum() {
+        synchronized( mLock ) {
+            return vStreams.size();
+        }
+    }
+
+    @Override
+    public InPad input( int idx ) {
+        synchronized( mLock ) {
+            return vStreams.get( idx ).mIn;
+        }
+    }
+
+    @Override
+    public int outputNum() {
+        synchronized( mLock ) {
+            return vStreams.size();
+        }
+    }
+
+    @Override
+    public OutPad output( int idx ) {
+        synchronized( mLock ) {
+            return vStreams.get( idx ).mOut;
+        }
+    }
+
+    @Override
+    public void tick() {}
+
+
+    private void runLoop() {
+        final List<ClockNode> due = new ArrayList<ClockNode>();
+
+        try {
+            while( true ) {
+                long limit;
+
+                synchronized( mWheelLock ) {
+                    if( !vOpen ) {
+                        return;
+                    }
+
+                    try {
+                        if( vWheel == null ) {
+                            vWakeMicros = Long.MAX_VALUE;
+                            mWheelLock.wait();
+                            continue;
+                        }
+
+                        long now = vMaster.micros();
+                        vWheel.advance( now, due );
+
+                        if( due.isEmpty() ) {
+                            long next = vWheel.nextExpiryMicros();
+                            if( next <= now ) {
+                                continue;
+                            }
+                            vWakeMicros = next;
+                            if( next == Long.MAX_VALUE ) {
+                                mWheelLock.wait();
+                            } else {
+                                mWheelLock.wait( Math.max( 1L, ( next - now ) / 1000L ) );
+                            }
+                            continue;
+                        }
+
+                        // Awake. Clocks rescheduled while processing are picked up on next advance.
+                        vWakeMicros = Long.MIN_VALUE;
+                        limit = ( floorDiv( now, mTickMicros ) + 1 ) * mTickMicros;
+                    } catch( InterruptedException ignore ) {
+                        continue;
+                    }
+                }
+
+                for( int i = 0; i < due.size(); i++ ) {
+                    due.get( i ).vExecDue( limit );
+                }
+                due.clear();
+            }
+        } catch( RuntimeException ex ) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    private static long floorDiv( long a, long b ) {
+        long q = a / b;
+        return a < 0 && q * b != a ? q - 1 : q;
+    }
+
+
+
+    private final class ClockNode extends TimerWheelNode implements SyncClockControl {
+        final PlayClock        mClock;
+        final Object           mStripe  = new Object();
+        final List<StreamNode> mStreams = new ArrayList<StreamNode>();
+        final LongHeap<Command> mHeap   = new LongHeap<Command>( 4, 16 );
+
+        long    vNextExec = Long.MAX_VALUE;
+        boolean vForward  = true;
+
+        Command vPool     = null;
+        int     vPoolSize = 0;
+
+
+        ClockNode( PlayClock clock ) {
+            mClock = clock;
+            clock.addListener( this );
+        }
+
+
+        @Override
+        public void clockStart( long execMicros ) {
+            synchronized( mStripe ) {
+                vUpdate();
+            }
+        }
+
+        @Override
+        public void clockStop( long execMicros ) {
+            synchronized( mStripe ) {
+                vUpdate();
+            }
+        }
+
+        @Override
+        public void clockSeek( long execMicros, long seekMicros ) {
+            synchronized( mStripe ) {
+                if( vClear() ) {
+                    vUpdate();
+                }
+            }
+        }
+
+        @Override
+        public void clockRate( long execMicros, Frac rate ) {
+            synchronized( mStripe ) {
+                boolean forward = rate.mNum >= 0;
+                if( forward != vForward ) {
+                    vForward = forward;
+                    vClear();
+                }
+                vUpdate();
+            }
+        }
+
+
+        void vOffer( Command c ) {
+            // Reverse playback releases latest timestamp first. Complement avoids overflow.
+            mHeap.offer( c, c.mForward ? c.mDts : ~c.mDts );
+            if( mHeap.peek() == c ) {
+                vUpdate();
+            }
+        }
+
+
+        boolean vClear() {
+            if( mHeap.isEmpty() ) {
+                return false;
+            }
+            while( !mHeap.isEmpty() ) {
+                Command c = mHeap.remove();
+                c.mStream.vHeapNum--;
+                vPoolOffer( c );
+            }
+            return true;
+        }
+
+
+        void vUpdate() {
+            Command c = mHeap.peek();
+            long pts = c == null ? Long.MAX_VALUE : mClock.toMaster( c.mDts );
+            if( pts == vNextExec ) {
+                return;
+            }
+
+            vNextExec = pts;
+            synchronized( mWheelLock ) {
+                vWheel.schedule( this, pts );
+                if( pts < vWakeMicros ) {
+                    mWheelLock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Releases every pending packet scheduled before {@code limit}, then refiles this clock.
+         * Called from scheduler thread after this node has expired from the wheel.
+         */
+        void vExecDue( long limit ) {
+            synchronized( mStripe ) {
+                final long now = mClock.masterMicros();
+
+                while( !mHeap.isEmpty() ) {
+                    Command c = mHeap.peek();
+                    long pts = mClock.toMaster( c.mDts );
+                    if( pts >= limit ) {
+                        break;
+                    }
+
+                    mHeap.remove();
+                    StreamNode stream = c.mStream;
+                    stream.vHeapNum--;
+
+                    if( stream.vDropPolicy.shouldDrop( c.mPacket, now - pts, stream.vHeapNum > 0 ) ) {
+                        stream.vDroppedNum++;
+                        vPoolOffer( c );
+                        continue;
+                    }
+
+                    c.mScheduled = pts;
+                    stream.vQueueOutput( c );
+                }
+
+                // Node was removed from wheel on expiry. Force refiling.
+                vNextExec = Long.MIN_VALUE;
+                vUpdate();
+            }
+        }
+
+
+        Command vPoolGet() {
+            Command ret = vPool;
+            if( ret == null ) {
+                return new Command();
+            }
+            vPool = ret.mNext;
+            vPoolSize--;
+            ret.mNext = null;
+            ret.mPooled = false;
+            return ret;
+        }
+
+
+        void vPoolOffer( Command c ) {
+            c.mPooled = true;
+            if( c.mStream != null ) {
+                c.mStream.decrementCount();
+                c.mStream = null;
+            }
+
+            if( c.mPacket != null ) {
+                c.mPacket.deref();
+                c.mPacket = null;
+            }
+
+            if( vPoolSize < COMMAND_POOL_CAP ) {
+                c.mNext = vPool;
+                vPool = c;
+                vPoolSize++;
+            }
+        }
+
+    }
+
+
+    private final class StreamNode {
+        final ClockNode mNode;
+
+        final InHandler        mIn       = new InHandler();
+        final OutHandler       mOut      = new OutHandler();
+        final InPadReadyEvent  mInReady  = new InPadReadyEvent( mIn );
+        final OutPadReadyEvent mOutReady = new OutPadReadyEvent( mOut );
+
+        final boolean mRushAfterClear;
+        final int mStreamCap;
+        int vStreamSize = 0;
+        int vHeapNum    = 0;
+        boolean mClear  = true;
+
+        LateDropPolicy vDropPolicy = LateDropPolicy.NEVER;
+        long vDroppedNum = 0;
+
+        Command vReadyHead = null;
+        Command vReadyTail = null;
+
+
+        StreamNode( ClockNode node, int queueCap, boolean rushAfterClear ) {
+            mNode = node;
+            mStreamCap = queueCap;
+            mRushAfterClear = rushAfterClear;
+            synchronized( node.mStripe ) {
+                node.mStreams.add( this );
+            }
+        }
+
+
+        void vQueueOutput( Command c ) {
+            c.mNext = null;
+            if( vReadyHead == null ) {
+                vReadyHead = vReadyTail = c;
+                mBus.post( mOutReady );
+            } else {
+                vReadyTail.mNext = c;
+                vReadyTail = c;
+            }
+        }
+
+
+        void vClear() {
+            Command head = vReadyHead;
+            vReadyHead = null;
+            vReadyTail = null;
+
+            while( head != null ) {
+                Command next = head.mNext;
+                mNode.vPoolOffer( head );
+                head = next;
+            }
+
+            vStreamSize = 0;
+        }
+
+        /**
+         * Drops late commands from head of ready queue.
+         */
+        void vDropLate() {
+            if( vDropPolicy.mMaxLateMicros < 0 ) {
+                return;
+            }
+
+            long now = mNode.mClock.masterMicros();
+            Command head = vReadyHead;
+            while( head != null ) {
+                boolean hasNewer = head.mNext != null || vHeapNum > 0;
+                if( !vDropPolicy.shouldDrop( head.mPacket, now - head.mScheduled, hasNewer ) ) {
+                    break;
+                }
+                vReadyHead = head.mNext;
+                if( vReadyHead == null ) {
+                    vReadyTail = null;
+                }
+                vDroppedNum++;
+                mNode.vPoolOffer( head );
+                head = vReadyHead;
+            }
+        }
+
+
+        void decrementCount() {
+            if( vStreamSize-- == mStreamCap ) {
+                mBus.post( mInReady );
+            }
+        }
+
+
+        private final class InHandler implements InPad<Packet> {
+            @Override
+            public int status() {
+                synchronized( mNode.mStripe ) {
+                    return vStreamSize < mStreamCap ? OKAY : WAIT;
+                }
+            }
+
+            @Override
+            public int offer( Packet packet ) {
+                synchronized( mNode.mStripe ) {
+                    if( packet == null ) {
+                        return OKAY;
+                    }
+
+                    if( vStreamSize >= mStreamCap ) {
+                        return WAIT;
+                    }
+                    vStreamSize++;
+
+                    Command c = mNode.vPoolGet();
+                    c.vInit( StreamNode.this, packet, mNode.vForward );
+
+                    if( mClear ) {
+                        mClear = false;
+                        if( mRushAfterClear ) {
+                            // If we haven't sent any packets, send first packet immediately.
+                            c.mDts = mNode.mClock.micros();
+                            if( !mNode.vForward && c.mDts < Long.MAX_VALUE ) {
+                                c.mDts++;
+                            }
+                        }
+                    }
+
+                    vHeapNum++;
+                    mNode.vOffer( c );
+                    return OKAY;
+                }
+            }
+
+            @Override
+            public void config( StreamFormat stream ) throws IOException {}
+
+            @Override
+            public boolean isThreaded() {
+                return true;
+            }
+
+            @Override
+            public Object lock() {
+                return mNode.mStripe;
+            }
+
+            @Override
+            public Exception exception() {
+                return null;
+            }
+        }
+
+
+        private final class OutHandler implements OutPad {
+            @Override
+            public int status() {
+                synchronized( mNode.mStripe ) {
+                    return vReadyHead == null ? WAIT : OKAY;
+                }
+            }
+
+            @Override
+            public int poll( Refable[] out ) {
+                synchronized( mNode.mStripe ) {
+                    vDropLate();
+                    Command head = vReadyHead;
+                    if( head == null ) {
+                        return WAIT;
+                    }
+
+                    out[0] = head.mPacket;
+                    // Set packet to null before disposing command to avoid unnecessary packet ref()/deref()
+                    head.mPacket = null;
+
+                    vReadyHead = head.mNext;
+                    if( vReadyHead == null ) {
+                        vReadyTail = null;
+                    }
+
+                    mNode.vPoolOffer( head );
+                    return OKAY;
+                }
+            }
+
+            @Override
+            public void config( StreamFormat stream ) throws IOException {}
+
+            @Override
+            public boolean isThreaded() {
+                return true;
+            }
+
+            @Override
+            public Object lock() {
+                return mNode.mStripe;
+            }
+
+            @Override
+            public Exception exception() {
+                return null;
+            }
+        }
+    }
+
+
+    private final class Command extends LongHeapNode {
+        StreamNode mStream = null;
+        Packet     mPacket = null;
+
+        boolean mForward;
+        long    mDts;
+        long    mScheduled;
+        Command mNext   = null;
+        boolean mPooled = false;
+
+
+        void vInit( StreamNode stream, Packet p, boolean forward ) {
+            mStream = stream;
+            mPacket = p;
+            p.ref();
+            mForward = forward;
+            mDts = forward ? p.startMicros() : p.stopMicros();
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            if( !mPooled ) {
+                synchronized( DrawPacket.class ) {
+                    sLog.warning( "Command finalized without being destroyed." );
+                }
+            }
+
+            super.finalize();
+        }
+    }
+
+}
@@ -17,6 +17,9 @@ import java.nio.channels.Channel;
  */
 public final class VideoPlayer implements Channel {
 
+    // Longest time frames are released ahead of presentation to cover texture upload.
+    private static final long MAX_LEAD_MICROS = 50000L;
+
     private final MemoryManager mMem;
     private final PlayClock     mClock;
     private final boolean       mStepping;
@@ -51,7 +54,13 @@ public final class VideoPlayer implements Channel {
         mScheduler = stepping ? new TickerSchedulerUnit() : new ThreadedSchedulerUnit();
         mTexture   = new VideoTextureUnit();
 
-        mScheduler.addStream( mClock, 16 );
+        int schedStream = mScheduler.addStream( mClock, 16 );
+        if( mScheduler instanceof ThreadedSchedulerUnit ) {
+            // Release frames early by their measured upload time. Queue cap of 16 bounds memory.
+            ThreadedSchedulerUnit sched = (ThreadedSchedulerUnit)mScheduler;
+            sched.adaptiveLookahead( schedStream, MAX_LEAD_MICROS, 4 );
+            mTexture.reportUploadLatency( sched, schedStream );
+        }
 
         AvGraph graph = new AvGraph();
         graph.connect( mReader,    mReader.output( 0 ),    mResampler, mResampler.input( 0 ), null );
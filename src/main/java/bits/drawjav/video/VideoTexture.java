@@ -44,6 +44,8 @@ public class VideoTexture implements Texture, Sink<DrawPacket>, InPad<DrawPacket
 
     private Exception mEx = null;
 
+    private volatile UploadListener mUploadListener = null;
+
 
     public VideoTexture() {
         param( GL_TEXTURE_MIN_FILTER, GL_LINEAR );
@@ -51,6 +53,15 @@ public class VideoTexture implements Texture, Sink<DrawPacket>, InPad<DrawPacket
     }
 
 
+    /**
+     * @param optListener Receives time taken to upload each frame, called from thread that binds texture.
+     *                    {@code null} to remove listener.
+     */
+    public void uploadListener( UploadListener optListener ) {
+        mUploadListener = optListener;
+    }
+
+
     //==========================
     // InPad/Sink methods
     //==========================
@@ -247,7 +258,12 @@ public class VideoTexture implements Texture, Sink<DrawPacket>, InPad<DrawPacket
         boolean buffer = queueBuffer();
         d.mGl.glBindTexture( GL_TEXTURE_2D, mId[0] );
         if( buffer ) {
+            UploadListener listener = mUploadListener;
+            long start = listener == null ? 0 : System.nanoTime();
             doBuffer( d );
+            if( listener != null ) {
+                listener.frameUploaded( ( System.nanoTime() - start ) / 1000L );
+            }
         }
     }
 
@@ -327,4 +343,9 @@ public class VideoTexture implements Texture, Sink<DrawPacket>, InPad<DrawPacket
         d.mGl.glPixelStorei( GL_PACK_ROW_LENGTH, 0 );
     }
 
+
+    public static interface UploadListener {
+        public void frameUploaded( long micros );
+    }
+
 }
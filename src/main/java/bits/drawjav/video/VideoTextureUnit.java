@@ -22,6 +22,22 @@ public class VideoTextureUnit implements AvUnit {
         return mTex;
     }
 
+    /**
+     * Reports the upload time of each frame to a scheduler stream with adaptive lookahead, so that
+     * frames are released early enough to be uploaded by their presentation time.
+     *
+     * @param scheduler Scheduler feeding this unit.
+     * @param stream    Index of scheduler stream feeding this unit.
+     */
+    public void reportUploadLatency( final ThreadedSchedulerUnit scheduler, final int stream ) {
+        mTex.uploadListener( new VideoTexture.UploadListener() {
+            @Override
+            public void frameUploaded( long micros ) {
+                scheduler.reportLatency( stream, micros );
+            }
+        } );
+    }
+
 
     @Override
     public void open( EventBus bus ) {}
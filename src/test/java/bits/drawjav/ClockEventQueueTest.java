@@ -0,0 +1,94 @@
+package bits.drawjav;
+
+import bits.drawjav.pipe.ClearGraphEvent;
+import bits.microtime.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class ClockEventQueueTest {
+
+    @Test
+    public void testCoalesceSeeks() {
+        ClockEventQueue queue = new ClockEventQueue( null, null, 1024 );
+        for( int i = 0; i < 10; i++ ) {
+            queue.clockSeek( i, i * 100 );
+        }
+
+        ClockEvent e = (ClockEvent)queue.poll();
+        assertEquals( ClockEvent.CLOCK_SEEK, e.mId );
+        assertEquals( 900, e.mSeekMicros );
+        assertTrue( queue.poll() instanceof ClearGraphEvent );
+        assertNull( queue.poll() );
+        assertEquals( 9, queue.coalescedSeekNum() );
+    }
+
+    @Test
+    public void testPreserveOrder() {
+        ClockEventQueue queue = new ClockEventQueue( null, null, 1024 );
+        queue.clockSeek( 0, 100 );
+        queue.clockStart( 1 );
+        queue.clockSeek( 2, 200 );
+        queue.clockSeek( 3, 300 );
+
+        assertEquals( 100, ((ClockEvent)queue.poll()).mSeekMicros );
+        assertTrue( queue.poll() instanceof ClearGraphEvent );
+        assertEquals( ClockEvent.CLOCK_START, ((ClockEvent)queue.poll()).mId );
+        assertEquals( 300, ((ClockEvent)queue.poll()).mSeekMicros );
+        assertTrue( queue.poll() instanceof ClearGraphEvent );
+        assertNull( queue.poll() );
+    }
+
+    @Test
+    public void testNoCoalesceAfterPoll() {
+        ClockEventQueue queue = new ClockEventQueue( null, null, 1024 );
+        queue.clockSeek( 0, 100 );
+        assertEquals( 100, ((ClockEvent)queue.poll()).mSeekMicros );
+        queue.clockSeek( 1, 200 );
+
+        assertTrue( queue.poll() instanceof ClearGraphEvent );
+        assertEquals( 200, ((ClockEvent)queue.poll()).mSeekMicros );
+        assertTrue( queue.poll() instanceof ClearGraphEvent );
+        assertNull( queue.poll() );
+        assertEquals( 0, queue.coalescedSeekNum() );
+    }
+
+    @Test
+    public void testCapacity() {
+        ClockEventQueue queue = new ClockEventQueue( null, null, 4 );
+        assertTrue( queue.offer( "a" ) );
+        assertTrue( queue.offer( "b" ) );
+        queue.clockSeek( 0, 100 );
+        assertEquals( 4, queue.size() );
+        assertFalse( queue.offer( "c" ) );
+
+        // Coalesced seek does not require room.
+        queue.clockSeek( 1, 200 );
+        assertEquals( 4, queue.size() );
+
+        assertEquals( "a", queue.poll() );
+        assertTrue( queue.offer( "c" ) );
+        assertEquals( "b", queue.poll() );
+        assertEquals( 200, ((ClockEvent)queue.poll()).mSeekMicros );
+        assertTrue( queue.poll() instanceof ClearGraphEvent );
+        assertEquals( "c", queue.poll() );
+    }
+
+
+    @Test
+    public void testSignal() {
+        WakeSignal signal = new WakeSignal();
+        ClockEventQueue queue = new ClockEventQueue( signal, null, 16 );
+        queue.clockStart( 0 );
+
+        // Signal raised by offer should prevent wait.
+        long t = System.nanoTime();
+        signal.await( 5000000000L );
+        assertTrue( System.nanoTime() - t < 1000000000L );
+    }
+
+}
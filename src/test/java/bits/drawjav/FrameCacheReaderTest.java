@@ -0,0 +1,152 @@
+package bits.drawjav;
+
+import bits.jav.Jav;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class FrameCacheReaderTest {
+
+    private static final long FRAME = 40000L;
+
+
+    @Test
+    public void testSeekIntoCache() throws Exception {
+        GopReader src = new GopReader( 100, 10 );
+        FrameCacheReader reader = new FrameCacheReader( src, 1000 * PacketBytes.OVERHEAD );
+
+        assertEquals( range( 0, 30 ), read( reader, 30 ) );
+        assertEquals( 30, src.mReadNum );
+
+        // Step back inside cached range.
+        reader.seek( 10 * FRAME + 5 );
+        assertEquals( 1, reader.seekHits() );
+        assertEquals( 0, src.mSeekNum );
+        assertEquals( range( 10, 30 ), read( reader, 20 ) );
+        assertEquals( 30, src.mReadNum );
+        assertEquals( 20, reader.packetHits() );
+
+        // Continue past cached run. Source resumes without repeating frames.
+        assertEquals( range( 30, 35 ), read( reader, 5 ) );
+        assertEquals( 1, src.mSeekNum );
+        assertEquals( 35, src.mReadNum );
+
+        // Seek outside cache.
+        reader.seek( 80 * FRAME );
+        assertEquals( 1, reader.seekMisses() );
+        assertEquals( range( 80, 82 ), read( reader, 2 ) );
+        assertEquals( 0.5, reader.seekHitRate(), 1e-9 );
+
+        // Runs are joined when source rereads cached frames.
+        reader.seek( 25 * FRAME );
+        assertEquals( range( 25, 40 ), read( reader, 15 ) );
+        reader.close();
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        GopReader src = new GopReader( 100, 10 );
+        FrameCacheReader reader = new FrameCacheReader( src, 5 * PacketBytes.OVERHEAD );
+        read( reader, 20 );
+        assertEquals( 5, reader.cachedPacketNum() );
+        assertEquals( 5 * PacketBytes.OVERHEAD, reader.cachedBytes() );
+        assertEquals( 15, reader.evictionNum() );
+
+        reader.seek( 2 * FRAME );
+        assertEquals( 1, reader.seekMisses() );
+        reader.seek( 17 * FRAME );
+        assertEquals( 1, reader.seekHits() );
+        reader.close();
+    }
+
+
+    private static List<Long> range( int start, int stop ) {
+        List<Long> ret = new ArrayList<Long>();
+        for( int i = start; i < stop; i++ ) {
+            ret.add( i * FRAME );
+        }
+        return ret;
+    }
+
+
+    private static List<Long> read( PacketReader reader, int num ) throws IOException {
+        List<Long> ret = new ArrayList<Long>();
+        while( ret.size() < num ) {
+            Packet p = reader.readNext();
+            if( p != null ) {
+                ret.add( p.startMicros() );
+                p.deref();
+            }
+        }
+        return ret;
+    }
+
+
+    /**
+     * One video stream of fixed-length frames. Seeks land on the preceding keyframe.
+     */
+    static final class GopReader implements PacketReader {
+        final Stream mStream = new BasicStream( StreamFormat.createVideo( 16, 16, Jav.AV_PIX_FMT_RGB24, null ) );
+        final int mFrameNum;
+        final int mGop;
+
+        int mPos = 0;
+        int mReadNum = 0;
+        int mSeekNum = 0;
+
+        GopReader( int frameNum, int gop ) {
+            mFrameNum = frameNum;
+            mGop = gop;
+        }
+
+        public int streamCount() {
+            return 1;
+        }
+
+        public Stream stream( int index ) {
+            return mStream;
+        }
+
+        public List<Stream> streams() {
+            return Collections.singletonList( mStream );
+        }
+
+        public void openStream( Stream stream ) {}
+
+        public void closeStream( Stream stream ) {}
+
+        public boolean isStreamOpen( Stream stream ) {
+            return true;
+        }
+
+        public void seek( long micros ) {
+            mSeekNum++;
+            int frame = (int)Math.max( 0, Math.min( mFrameNum, micros / FRAME ) );
+            mPos = frame / mGop * mGop;
+        }
+
+        public Packet readNext() throws IOException {
+            if( mPos >= mFrameNum ) {
+                throw new EOFException();
+            }
+            mReadNum++;
+            long t = mPos++ * FRAME;
+            return new StubPacket( mStream, t, t + FRAME );
+        }
+
+        public void close() {}
+
+        public boolean isOpen() {
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package bits.drawjav;
+
+import bits.jav.util.Rational;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class KeyframeIndexTest {
+
+    @Test
+    public void testLookup() {
+        KeyframeIndex index = newIndex();
+        assertEquals( -1, index.entryBefore( 0, -1 ) );
+        assertEquals( 0, index.entryBefore( 0, 0 ) );
+        assertEquals( 0, index.entryBefore( 0, 47 ) );
+        assertEquals( 1, index.entryBefore( 0, 48 ) );
+        assertEquals( 2, index.entryBefore( 0, 1000000 ) );
+        assertEquals( 96000L, index.entryPos( 0, 2 ) );
+        assertEquals( -1, index.entryBefore( 1, 5 ) );
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        KeyframeIndex index = newIndex();
+        File file = File.createTempFile( "kfi", KeyframeIndex.SIDECAR_SUFFIX );
+        try {
+            index.write( file );
+            KeyframeIndex copy = KeyframeIndex.read( file );
+            assertEquals( 2, copy.streamCount() );
+            assertEquals( new Rational( 1, 24 ), copy.timeBase( 0 ) );
+            assertEquals( new Rational( 1, 48000 ), copy.timeBase( 1 ) );
+            for( int s = 0; s < 2; s++ ) {
+                assertEquals( index.entryCount( s ), copy.entryCount( s ) );
+                for( int i = 0; i < index.entryCount( s ); i++ ) {
+                    assertEquals( index.entryPts( s, i ), copy.entryPts( s, i ) );
+                    assertEquals( index.entryPos( s, i ), copy.entryPos( s, i ) );
+                }
+            }
+            assertFalse( copy.matches( file ) );
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    private static KeyframeIndex newIndex() {
+        Rational[] tbs = { new Rational( 1, 24 ), new Rational( 1, 48000 ) };
+        long[][] pts = { { 0, 48, 96 }, { 4800, 9600, Long.MAX_VALUE / 4 } };
+        long[][] pos = { { 48, 48000, 96000 }, { 100, 50000, 1L << 40 } };
+        return new KeyframeIndex( 1234, 5678, tbs, pts, pos );
+    }
+
+}
@@ -0,0 +1,93 @@
+package bits.drawjav;
+
+import bits.drawjav.pipe.*;
+import bits.microtime.*;
+import com.google.common.eventbus.EventBus;
+import org.junit.Test;
+
+import static bits.drawjav.pipe.Pad.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+@SuppressWarnings( "unchecked" )
+public class LateDropTest {
+
+    @Test
+    public void testPolicy() {
+        Packet p = new StubPacket( null, 0, 1 );
+        LateDropPolicy policy = LateDropPolicy.dropLate( 100 );
+        assertFalse( policy.shouldDrop( p, 100, true ) );
+        assertTrue( policy.shouldDrop( p, 101, true ) );
+        assertFalse( policy.shouldDrop( p, 101, false ) );
+        assertFalse( LateDropPolicy.NEVER.shouldDrop( p, Long.MAX_VALUE, true ) );
+        assertTrue( new LateDropPolicy( 0, false, true ).shouldDrop( p, 1, false ) );
+    }
+
+    @Test
+    public void testTicker() {
+        ManualClock clock = new ManualClock( 0 );
+        FullClock full = new FullClock( clock );
+        full.clockStart( 0 );
+
+        TickerSchedulerUnit unit = new TickerSchedulerUnit();
+        unit.addStream( full, 10 );
+        unit.addStream( full, 10 );
+        unit.dropPolicy( 0, LateDropPolicy.dropLate( 50000L ) );
+        unit.open( new EventBus() );
+
+        for( int i = 0; i < 10; i++ ) {
+            assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, i * 100000L, ( i + 1 ) * 100000L ) ) );
+        }
+
+        // Packets 0-7 are more than 50ms late. 8 is not late enough.
+        clock.micros( 850000L );
+        unit.tick();
+
+        Packet[] out = { null };
+        assertEquals( OKAY, unit.output( 0 ).poll( out ) );
+        assertEquals( 800000L, out[0].startMicros() );
+        assertEquals( 8, unit.droppedNum( 0 ) );
+        out[0].deref();
+
+        // Last packet is very late, but is always kept.
+        clock.micros( 5000000L );
+        unit.tick();
+        assertEquals( OKAY, unit.output( 0 ).poll( out ) );
+        assertEquals( 900000L, out[0].startMicros() );
+        assertEquals( 8, unit.droppedNum( 0 ) );
+        assertEquals( 0, unit.droppedNum( 1 ) );
+    }
+
+    @Test
+    public void testThreaded() throws Exception {
+        FullClock clock = new FullClock( Clock.SYSTEM_CLOCK );
+        clock.clockSeek( 1000000L );
+        clock.clockStart();
+
+        ThreadedSchedulerUnit unit = new ThreadedSchedulerUnit();
+        unit.addStream( clock, 16 );
+        unit.dropPolicy( 0, LateDropPolicy.dropLate( 5000L ) );
+
+        for( int i = 0; i < 10; i++ ) {
+            unit.input( 0 ).offer( new StubPacket( null, i * 10000L, ( i + 1 ) * 10000L ) );
+        }
+
+        unit.open( new EventBus() );
+
+        Packet[] out = { null };
+        long timeout = System.currentTimeMillis() + 5000L;
+        while( unit.output( 0 ).poll( out ) != OKAY ) {
+            assertTrue( System.currentTimeMillis() < timeout );
+            Thread.sleep( 1L );
+        }
+
+        assertEquals( 90000L, out[0].startMicros() );
+        assertEquals( 9, unit.droppedNum( 0 ) );
+        out[0].deref();
+        unit.close();
+    }
+
+}
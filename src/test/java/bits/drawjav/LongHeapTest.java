@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.drawjav;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class LongHeapTest {
+
+    @Test
+    public void testOrder() {
+        for( int arity = 2; arity <= 4; arity += 2 ) {
+            LongHeap<LongHeapNode> heap = new LongHeap<LongHeapNode>( arity, 1 );
+            for( int j = 0; j < 100; j++ ) {
+                Random rand = new Random( j );
+                for( int i = 0; i < 1000; i++ ) {
+                    heap.offer( new LongHeapNode(), rand.nextInt( 10000 ) - 5000 );
+                }
+                check( heap, 1000 );
+
+                long prev = Long.MIN_VALUE;
+                while( !heap.isEmpty() ) {
+                    long key = heap.peekKey();
+                    LongHeapNode n = heap.remove();
+                    assertEquals( key, n.mHeapKey );
+                    assertEquals( -1, n.mHeapIndex );
+                    assertTrue( prev <= key );
+                    prev = key;
+                }
+            }
+            assertEquals( Long.MAX_VALUE, heap.peekKey() );
+            assertNull( heap.poll() );
+        }
+    }
+
+
+    @Test
+    public void testRemove() {
+        for( int arity = 2; arity <= 4; arity += 2 ) {
+            LongHeap<LongHeapNode> heap = new LongHeap<LongHeapNode>( arity, 16 );
+            List<LongHeapNode> nodes = new ArrayList<LongHeapNode>();
+            Random rand = new Random( arity );
+
+            for( int i = 0; i < 500; i++ ) {
+                LongHeapNode n = new LongHeapNode();
+                nodes.add( n );
+                heap.offer( n, rand.nextInt( 100 ) );
+            }
+
+            Collections.shuffle( nodes, rand );
+            for( int i = 0; i < nodes.size(); i++ ) {
+                LongHeapNode n = nodes.get( i );
+                assertTrue( heap.contains( n ) );
+                assertTrue( heap.remove( n ) );
+                assertFalse( heap.contains( n ) );
+                assertFalse( heap.remove( n ) );
+                check( heap, nodes.size() - i - 1 );
+            }
+        }
+    }
+
+
+    @Test
+    public void testUpdate() {
+        for( int arity = 2; arity <= 4; arity += 2 ) {
+            LongHeap<LongHeapNode> heap = new LongHeap<LongHeapNode>( arity, 16 );
+            List<LongHeapNode> nodes = new ArrayList<LongHeapNode>();
+            Random rand = new Random( arity );
+
+            for( int i = 0; i < 500; i++ ) {
+                LongHeapNode n = new LongHeapNode();
+                nodes.add( n );
+                heap.offer( n, rand.nextLong() );
+            }
+
+            for( int i = 0; i < 5000; i++ ) {
+                LongHeapNode n = nodes.get( rand.nextInt( nodes.size() ) );
+                long key = i % 10 == 0 ? Long.MAX_VALUE : rand.nextLong();
+                heap.update( n, key );
+                assertEquals( key, n.mHeapKey );
+                check( heap, nodes.size() );
+            }
+        }
+    }
+
+
+    @Test( expected = NoSuchElementException.class )
+    public void testUpdateMissing() {
+        LongHeap<LongHeapNode> heap = new LongHeap<LongHeapNode>();
+        heap.offer( new LongHeapNode(), 0 );
+        heap.update( new LongHeapNode(), 1 );
+    }
+
+
+    static void check( LongHeap<?> heap, int size ) {
+        int shift = heap.arity() == 4 ? 2 : 1;
+        for( int i = heap.size() - 1; i > 0; i-- ) {
+            assertEquals( i, heap.get( i ).mHeapIndex );
+            assertEquals( heap.key( i ), heap.get( i ).mHeapKey );
+            assertTrue( heap.key( ( i - 1 ) >> shift ) <= heap.key( i ) );
+        }
+        assertEquals( size, heap.size() );
+    }
+
+}
@@ -0,0 +1,58 @@
+package bits.drawjav;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class MicrosHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        MicrosHistogram h = new MicrosHistogram();
+        long[] values = { 0, 1, -1, 2, 3, -3, 1000, -1000, 123456789L };
+        for( long v: values ) {
+            h.add( v );
+        }
+
+        assertEquals( values.length, h.count() );
+        assertEquals( -1000, h.min() );
+        assertEquals( 123456789L, h.max() );
+
+        long total = 0;
+        for( int i = 0; i < h.bucketNum(); i++ ) {
+            total += h.bucketCount( i );
+            assertTrue( h.bucketMin( i ) <= h.bucketMax( i ) );
+            if( i > 0 ) {
+                assertEquals( h.bucketMax( i - 1 ) + 1, h.bucketMin( i ) );
+            }
+        }
+        assertEquals( values.length, total );
+    }
+
+    @Test
+    public void testStats() {
+        MicrosHistogram h = new MicrosHistogram();
+        for( int i = 1; i <= 1000; i++ ) {
+            h.add( i );
+        }
+
+        assertEquals( 500.5, h.mean(), 1e-9 );
+        assertEquals( 288.67, h.stdDev(), 0.01 );
+
+        // Percentiles are accurate to within one power-of-two bucket.
+        long p50 = h.percentile( 0.5 );
+        assertTrue( p50 >= 500 && p50 < 1024 );
+        assertEquals( 1, h.percentile( 0.0 ) );
+        assertEquals( 1000, h.percentile( 1.0 ) );
+
+        MicrosHistogram copy = new MicrosHistogram( h );
+        h.clear();
+        assertEquals( 0, h.count() );
+        assertEquals( 1000, copy.count() );
+    }
+
+}
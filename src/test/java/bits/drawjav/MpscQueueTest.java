@@ -0,0 +1,90 @@
+package bits.drawjav;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class MpscQueueTest {
+
+    @Test
+    public void testOrder() {
+        MpscQueue<Integer> q = new MpscQueue<Integer>();
+        assertTrue( q.isEmpty() );
+        assertNull( q.poll() );
+
+        for( int i = 0; i < 100; i++ ) {
+            assertTrue( q.offer( i ) );
+        }
+        assertEquals( 100, q.size() );
+        assertEquals( 0, (int)q.peek() );
+
+        for( int i = 0; i < 100; i++ ) {
+            assertEquals( i, (int)q.poll() );
+        }
+        assertTrue( q.isEmpty() );
+        assertEquals( 0, q.size() );
+    }
+
+    @Test
+    public void testCapacity() {
+        MpscQueue<Integer> q = new MpscQueue<Integer>( 3 );
+        assertTrue( q.offer( 0 ) );
+        assertTrue( q.offer( 1 ) );
+        assertTrue( q.offer( 2 ) );
+        assertFalse( q.offer( 3 ) );
+        assertEquals( 0, (int)q.poll() );
+        assertTrue( q.offer( 3 ) );
+        assertEquals( 3, q.size() );
+    }
+
+    @Test
+    public void testProducers() throws Exception {
+        final int producerNum = 4;
+        final int itemNum     = 100000;
+        final MpscQueue<Integer> q = new MpscQueue<Integer>();
+        final CountDownLatch start = new CountDownLatch( 1 );
+
+        for( int p = 0; p < producerNum; p++ ) {
+            final int id = p;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch( InterruptedException ignore ) {}
+                    for( int i = 0; i < itemNum; i++ ) {
+                        q.offer( id * itemNum + i );
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+        int[] last = new int[producerNum];
+        Arrays.fill( last, -1 );
+        int count = 0;
+
+        while( count < producerNum * itemNum ) {
+            Integer v = q.poll();
+            if( v == null ) {
+                Thread.yield();
+                continue;
+            }
+            int id  = v / itemNum;
+            int seq = v % itemNum;
+            // Items from each producer must arrive in order.
+            assertEquals( last[id] + 1, seq );
+            last[id] = seq;
+            count++;
+        }
+
+        assertTrue( q.isEmpty() );
+    }
+
+}
@@ -0,0 +1,372 @@
+package bits.drawjav;
+
+import bits.drawjav.pipe.*;
+import bits.util.ref.Refable;
+import com.google.common.eventbus.EventBus;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.*;
+
+import static bits.drawjav.pipe.Pad.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class OfflineSchedulerUnitTest {
+
+    @Test
+    public void testOrder() {
+        OfflineSchedulerUnit unit = new OfflineSchedulerUnit();
+        unit.addStream( null, 4 );
+        unit.addStream( null, 4 );
+        unit.open( new EventBus() );
+
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 0, 20 ) ) );
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 20, 40 ) ) );
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 40, 60 ) ) );
+        // Nothing released until every stream holds data.
+        assertEquals( WAIT, unit.output( 0 ).status() );
+
+        assertEquals( OKAY, unit.input( 1 ).offer( new StubPacket( null, 10, 30 ) ) );
+        assertEquals( OKAY, unit.output( 0 ).status() );
+        assertEquals( WAIT, unit.output( 1 ).status() );
+
+        Packet[] out = { null };
+        assertEquals( OKAY, unit.output( 0 ).poll( out ) );
+        assertEquals( 0, out[0].startMicros() );
+        out[0].deref();
+        assertEquals( WAIT, unit.output( 0 ).poll( out ) );
+        assertEquals( OKAY, unit.output( 1 ).poll( out ) );
+        assertEquals( 10, out[0].startMicros() );
+        out[0].deref();
+
+        // Stream 1 is empty. Stream 0 holds until flushed.
+        assertEquals( WAIT, unit.output( 0 ).status() );
+        unit.tick();
+        assertEquals( OKAY, unit.output( 0 ).poll( out ) );
+        assertEquals( 20, out[0].startMicros() );
+        out[0].deref();
+
+        // Clear ends flush.
+        unit.clear();
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 0, 20 ) ) );
+        assertEquals( WAIT, unit.output( 0 ).status() );
+        unit.close();
+    }
+
+    @Test
+    public void testFullQueueReleases() {
+        OfflineSchedulerUnit unit = new OfflineSchedulerUnit();
+        unit.addStream( null, 2 );
+        unit.addStream( null, 2 );
+        unit.open( new EventBus() );
+
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 0, 20 ) ) );
+        assertEquals( WAIT, unit.output( 0 ).status() );
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 20, 40 ) ) );
+        assertEquals( WAIT, unit.input( 0 ).offer( new StubPacket( null, 40, 60 ) ) );
+        assertEquals( OKAY, unit.output( 0 ).status() );
+
+        Packet[] out = { null };
+        assertEquals( OKAY, unit.output( 0 ).poll( out ) );
+        out[0].deref();
+        assertEquals( OKAY, unit.input( 0 ).status() );
+        assertEquals( WAIT, unit.output( 0 ).status() );
+        unit.close();
+    }
+
+    @Test
+    public void testRunOffline() throws Exception {
+        List<GraphDriver> drivers = new ArrayList<GraphDriver>();
+        List<CollectSink> sinks   = new ArrayList<CollectSink>();
+
+        for( int i = 0; i < 3; i++ ) {
+            ListReader reader = new ListReader( 2, 500, 3 );
+            PacketReaderUnit src = new PacketReaderUnit( reader );
+            OfflineSchedulerUnit scheduler = new OfflineSchedulerUnit();
+            CollectSink sink = new CollectSink();
+
+            AvGraph graph = new AvGraph();
+            for( int s = 0; s < 2; s++ ) {
+                scheduler.addStream( null, 4 );
+                graph.connect( src, src.output( s ), scheduler, scheduler.input( s ), null );
+                graph.connect( scheduler, scheduler.output( s ), sink, sink.input( s ), null );
+            }
+
+            GraphDriver driver = new GraphDriver( null, graph );
+            driver.addTicker( scheduler );
+            drivers.add( driver );
+            sinks.add( sink );
+        }
+
+        GraphStats stats = GraphDriver.runOffline( drivers, 2 );
+        assertEquals( 3 * 2 * 500, stats.packetNum() );
+        assertEquals( 3 * 2 * 500, stats.frameNum() );
+        assertTrue( stats.elapsedNanos() > 0 );
+
+        for( CollectSink sink: sinks ) {
+            assertEquals( 1000, sink.mTimes.size() );
+            for( int i = 1; i < sink.mTimes.size(); i++ ) {
+                assertTrue( sink.mTimes.get( i - 1 ) <= sink.mTimes.get( i ) );
+            }
+        }
+
+        for( GraphDriver d: drivers ) {
+            d.close();
+        }
+    }
+
+
+    @Test
+    public void testRunOfflineWaitsForThreadedSource() throws Exception {
+        // Gaps between packets are longer than any idle timeout a driver might use.
+        SlowSource src = new SlowSource( 5, 30L );
+        CollectSink sink = new CollectSink();
+        AvGraph graph = new AvGraph();
+        graph.connect( src, src.output( 0 ), sink, sink.input( 0 ), null );
+
+        GraphDriver driver = new GraphDriver( null, graph );
+        GraphStats stats = driver.runOffline();
+        driver.close();
+        src.close();
+
+        assertEquals( 5, stats.packetNum() );
+        assertEquals( 5, sink.mTimes.size() );
+        assertNotSame( graph.stats(), stats );
+        assertEquals( 0, graph.stats().elapsedNanos() );
+        assertEquals( 5, graph.stats().packetNum() );
+    }
+
+
+    /**
+     * Produces interleaved packets for several streams, with streams drifting apart by up to
+     * {@code skew} packets, then throws EOFException.
+     */
+    static final class ListReader implements PacketReader {
+        final List<Stream> mStreams = new ArrayList<Stream>();
+        final Deque<Packet> mPackets = new ArrayDeque<Packet>();
+        boolean mOpen = true;
+
+        ListReader( int streamNum, int packetNum, int skew ) {
+            for( int s = 0; s < streamNum; s++ ) {
+                mStreams.add( new Stream() {
+                    public StreamFormat format() {
+                        return null;
+                    }
+                } );
+            }
+
+            for( int i = 0; i < packetNum + skew * streamNum; i++ ) {
+                for( int s = 0; s < streamNum; s++ ) {
+                    int idx = i - s * skew;
+                    if( idx >= 0 && idx < packetNum ) {
+                        mPackets.add( new StubPacket( mStreams.get( s ), idx * 1000L, idx * 1000L + 1000L ) );
+                    }
+                }
+            }
+        }
+
+        public int streamCount() {
+            return mStreams.size();
+        }
+
+        public Stream stream( int index ) {
+            return mStreams.get( index );
+        }
+
+        public List<Stream> streams() {
+            return mStreams;
+        }
+
+        public void openStream( Stream stream ) {}
+
+        public void closeStream( Stream stream ) {}
+
+        public boolean isStreamOpen( Stream stream ) {
+            return true;
+        }
+
+        public void seek( long micros ) {}
+
+        public Packet readNext() throws IOException {
+            if( mPackets.isEmpty() ) {
+                throw new EOFException();
+            }
+            return mPackets.remove();
+        }
+
+        public void close() {
+            mOpen = false;
+        }
+
+        public boolean isOpen() {
+            return mOpen;
+        }
+    }
+
+
+    /**
+     * Produces packets on its own thread, posting readiness as each arrives, then closes.
+     */
+    static final class SlowSource implements AvUnit {
+        final int  mPacketNum;
+        final long mDelayMillis;
+        final Out  mOut = new Out();
+        final OutPadReadyEvent mReady = new OutPadReadyEvent( mOut );
+        final Deque<Packet> vQueue = new ArrayDeque<Packet>();
+        boolean vDone = false;
+        Thread mThread = null;
+
+        SlowSource( int packetNum, long delayMillis ) {
+            mPacketNum = packetNum;
+            mDelayMillis = delayMillis;
+        }
+
+        public int inputNum() {
+            return 0;
+        }
+
+        public InPad input( int idx ) {
+            return null;
+        }
+
+        public int outputNum() {
+            return 1;
+        }
+
+        public OutPad output( int idx ) {
+            return mOut;
+        }
+
+        public void open( final EventBus bus ) {
+            mThread = new Thread() {
+                public void run() {
+                    try {
+                        for( int i = 0; i < mPacketNum; i++ ) {
+                            Thread.sleep( mDelayMillis );
+                            synchronized( SlowSource.this ) {
+                                vQueue.offer( new StubPacket( null, i * 1000L, i * 1000L + 1000L ) );
+                            }
+                            bus.post( mReady );
+                        }
+                    } catch( InterruptedException ignored ) {}
+                    synchronized( SlowSource.this ) {
+                        vDone = true;
+                    }
+                    bus.post( mReady );
+                }
+            };
+            mThread.setDaemon( true );
+            mThread.start();
+        }
+
+        public void close() {
+            if( mThread != null ) {
+                mThread.interrupt();
+            }
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void clear() {}
+
+
+        private final class Out extends OutPadAdapter {
+            @Override
+            public int status() {
+                synchronized( SlowSource.this ) {
+                    return vQueue.isEmpty() && !vDone ? WAIT : OKAY;
+                }
+            }
+
+            @Override
+            public int poll( Refable[] out ) {
+                synchronized( SlowSource.this ) {
+                    if( !vQueue.isEmpty() ) {
+                        out[0] = vQueue.remove();
+                        return OKAY;
+                    }
+                    return vDone ? CLOSED : WAIT;
+                }
+            }
+
+            @Override
+            public boolean isThreaded() {
+                return true;
+            }
+        }
+    }
+
+
+    static final class CollectSink implements AvUnit {
+        final List<Long> mTimes = new ArrayList<Long>();
+        final InPad[] mInputs = { new In(), new In() };
+
+        public int inputNum() {
+            return mInputs.length;
+        }
+
+        public InPad input( int idx ) {
+            return mInputs[idx];
+        }
+
+        public int outputNum() {
+            return 0;
+        }
+
+        public OutPad output( int idx ) {
+            return null;
+        }
+
+        public void open( EventBus bus ) {}
+
+        public void close() {}
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void clear() {}
+
+
+        private final class In implements InPad<Packet> {
+            @Override
+            public int status() {
+                return OKAY;
+            }
+
+            @Override
+            public int offer( Packet packet ) {
+                if( packet != null ) {
+                    mTimes.add( packet.startMicros() );
+                }
+                return OKAY;
+            }
+
+            @Override
+            public void config( StreamFormat stream ) {}
+
+            @Override
+            public boolean isThreaded() {
+                return false;
+            }
+
+            @Override
+            public Object lock() {
+                return null;
+            }
+
+            @Override
+            public Exception exception() {
+                return null;
+            }
+        }
+    }
+
+}
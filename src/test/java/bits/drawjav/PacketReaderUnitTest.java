@@ -0,0 +1,91 @@
+package bits.drawjav;
+
+import bits.drawjav.pipe.*;
+import bits.microtime.ClockEvent;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import org.junit.Test;
+
+import java.util.*;
+
+import static bits.drawjav.pipe.Pad.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class PacketReaderUnitTest {
+
+    @Test
+    public void testBackpressure() {
+        OfflineSchedulerUnitTest.ListReader reader = new OfflineSchedulerUnitTest.ListReader( 2, 100, 0 );
+        PacketReaderUnit unit = new PacketReaderUnit( reader, 4 * PacketBytes.OVERHEAD, 100 * PacketBytes.OVERHEAD );
+        final List<OutPad> ready = new ArrayList<OutPad>();
+        EventBus bus = new EventBus();
+        bus.register( new Object() {
+            @Subscribe
+            public void process( OutPadReadyEvent e ) {
+                ready.add( e.mPad );
+            }
+        } );
+        unit.open( bus );
+
+        // Only poll stream 0. Packets for stream 1 queue up until budget is reached.
+        OutPad out0 = unit.output( 0 );
+        OutPad out1 = unit.output( 1 );
+        Packet[] out = { null };
+        int count = 0;
+        int err;
+        while( ( err = out0.poll( out ) ) != WAIT ) {
+            if( err == OKAY ) {
+                out[0].deref();
+                count++;
+            }
+            assertTrue( count < 100 );
+        }
+
+        assertEquals( 4, unit.queuedPacketNum( 1 ) );
+        assertEquals( 4 * PacketBytes.OVERHEAD, unit.queuedBytes( 1 ) );
+        assertEquals( 4 * PacketBytes.OVERHEAD, unit.queuedBytes() );
+        assertEquals( 1, unit.waitNum() );
+        assertTrue( ready.isEmpty() );
+
+        // Draining stream 1 releases stream 0.
+        assertEquals( OKAY, out1.poll( out ) );
+        out[0].deref();
+        assertEquals( Arrays.asList( out0 ), ready );
+        assertEquals( 3, unit.queuedPacketNum( 1 ) );
+        assertEquals( 4 * PacketBytes.OVERHEAD, unit.peakQueuedBytes( 1 ) );
+        unit.close();
+    }
+
+    @Test
+    public void testTotalBudgetAndSeek() {
+        OfflineSchedulerUnitTest.ListReader reader = new OfflineSchedulerUnitTest.ListReader( 3, 100, 0 );
+        PacketReaderUnit unit = new PacketReaderUnit( reader, 100 * PacketBytes.OVERHEAD, 6 * PacketBytes.OVERHEAD );
+        unit.open( new EventBus() );
+
+        OutPad out0 = unit.output( 0 );
+        Packet[] out = { null };
+        int err;
+        while( ( err = out0.poll( out ) ) != WAIT ) {
+            if( err == OKAY ) {
+                out[0].deref();
+            }
+        }
+        assertEquals( 6 * PacketBytes.OVERHEAD, unit.queuedBytes() );
+        assertEquals( 3, unit.queuedPacketNum( 1 ) );
+        assertEquals( 3, unit.queuedPacketNum( 2 ) );
+
+        // Seek discards queues.
+        unit.processClockEvent( ClockEvent.createClockSeek( this, 0, 0 ) );
+        assertEquals( 0, unit.queuedBytes() );
+        assertEquals( 0, unit.queuedBytes( 1 ) );
+        assertEquals( UNFINISHED, out0.poll( out ) );
+        assertEquals( OKAY, out0.poll( out ) );
+        out[0].deref();
+        unit.close();
+    }
+
+}
@@ -0,0 +1,199 @@
+package bits.drawjav;
+
+import bits.jav.Jav;
+import bits.jav.util.Rational;
+import bits.microtime.*;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class PacketTraceTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PacketTraceRecorder rec = new PacketTraceRecorder( newSource(), bytes, true );
+        List<String> recorded = new ArrayList<String>();
+
+        rec.clockStart( 0 );
+        for( int i = 0; i < 20; i++ ) {
+            recorded.add( describe( rec, rec.readNext() ) );
+        }
+        rec.clockSeek( 0, 500000L );
+        rec.seek( 500000L );
+        recorded.add( "seek" );
+        drain( rec, recorded );
+        rec.close();
+
+        // Replay without timing. Graph seeks when the replayed clock does.
+        final List<String> clockCalls = new ArrayList<String>();
+        final PacketTraceReader[] replay = { null };
+        ClockControl control = new ClockControlAdapter() {
+            @Override
+            public void clockStart() {
+                clockCalls.add( "start" );
+            }
+
+            @Override
+            public void clockSeek( long micros ) {
+                clockCalls.add( "seek " + micros );
+            }
+        };
+
+        replay[0] = new PacketTraceReader( new ByteArrayInputStream( bytes.toByteArray() ), 0, control );
+        assertEquals( 2, replay[0].streamCount() );
+        assertEquals( Jav.AVMEDIA_TYPE_AUDIO, replay[0].stream( 0 ).format().mType );
+        assertEquals( 32, replay[0].stream( 1 ).format().mWidth );
+
+        List<String> replayed = new ArrayList<String>();
+        for( int i = 0; i < 20; i++ ) {
+            replayed.add( describe( replay[0], replay[0].readNext() ) );
+        }
+        replay[0].seek( 500000L );
+        replayed.add( "seek" );
+        drain( replay[0], replayed );
+        replay[0].close();
+
+        assertEquals( recorded, replayed );
+        assertEquals( Arrays.asList( "start", "seek 500000" ), clockCalls );
+    }
+
+    @Test
+    public void testPayloadAndTiming() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PacketTraceRecorder rec = new PacketTraceRecorder( newSource(), bytes, true );
+        BufferPacket first = (BufferPacket)rec.readNext();
+        byte[] expect = new byte[first.buffer().limit()];
+        first.buffer().duplicate().get( expect );
+        first.deref();
+        Thread.sleep( 60 );
+        rec.readNext().deref();
+        rec.close();
+
+        // Original timing. Second packet is not available until about 60 ms after the first.
+        PacketTraceReader replay = new PacketTraceReader( new ByteArrayInputStream( bytes.toByteArray() ), 1.0, null );
+        long start = System.nanoTime();
+        BufferPacket p = null;
+        while( p == null ) {
+            p = (BufferPacket)replay.readNext();
+        }
+        byte[] actual = new byte[p.buffer().limit()];
+        p.buffer().duplicate().get( actual );
+        assertArrayEquals( expect, actual );
+        p.deref();
+
+        Packet q = null;
+        while( q == null ) {
+            q = replay.readNext();
+        }
+        assertTrue( System.nanoTime() - start >= 50000000L );
+        q.deref();
+        replay.close();
+
+        // Accelerated.
+        replay = new PacketTraceReader( new ByteArrayInputStream( bytes.toByteArray() ), 0, null );
+        start = System.nanoTime();
+        replay.readNext().deref();
+        replay.readNext().deref();
+        assertTrue( System.nanoTime() - start < 50000000L );
+        replay.close();
+    }
+
+    @Test
+    public void testReadyListener() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PacketTraceRecorder rec = new PacketTraceRecorder( newSource(), bytes, false );
+        rec.readNext().deref();
+        Thread.sleep( 60 );
+        rec.readNext().deref();
+        rec.close();
+
+        PacketTraceReader replay = new PacketTraceReader( new ByteArrayInputStream( bytes.toByteArray() ), 1.0, null );
+        Packet p = null;
+        while( p == null ) {
+            p = replay.readNext();
+        }
+        p.deref();
+
+        final CountDownLatch ready = new CountDownLatch( 1 );
+        replay.readyListener( new Runnable() {
+            @Override
+            public void run() {
+                ready.countDown();
+            }
+        } );
+
+        // Second record is not due. Reader returns without waiting for it and notifies when it is.
+        long start = System.nanoTime();
+        assertNull( replay.readNext() );
+        assertTrue( System.nanoTime() - start < 40000000L );
+        assertFalse( replay.isReady() );
+        assertTrue( ready.await( 2, TimeUnit.SECONDS ) );
+        assertTrue( replay.isReady() );
+        replay.readNext().deref();
+        replay.close();
+    }
+
+
+    private static SyntheticReader newSource() {
+        SyntheticReader ret = new SyntheticReader( null, 1000000L );
+        ret.addAudioStream( StreamFormat.createAudio( 2, 48000, Jav.AV_SAMPLE_FMT_S16 ),
+                            960,
+                            SyntheticReader.SIGNAL_TONE );
+        ret.addVideoStream( StreamFormat.createVideo( 32, 16, Jav.AV_PIX_FMT_RGB24, null ),
+                            new Rational( 25, 1 ),
+                            SyntheticReader.PATTERN_BARS );
+        return ret;
+    }
+
+
+    private static void drain( PacketReader reader, List<String> out ) throws IOException {
+        while( true ) {
+            try {
+                Packet p = reader.readNext();
+                if( p != null ) {
+                    out.add( describe( reader, p ) );
+                }
+            } catch( EOFException ex ) {
+                return;
+            }
+        }
+    }
+
+
+    private static String describe( PacketReader reader, Packet p ) {
+        String ret = reader.streams().indexOf( p.stream() ) + ":" + p.startMicros() + "-" + p.stopMicros() +
+                     ":" + ((BufferPacket)p).sampleNum() + ":" + ((BufferPacket)p).buffer().limit();
+        p.deref();
+        return ret;
+    }
+
+
+    private static class ClockControlAdapter implements ClockControl {
+        public void clockStart() {}
+
+        public void clockStop() {}
+
+        public void clockSeek( long micros ) {}
+
+        public void clockRate( Frac rate ) {}
+
+        public void clockStart( long exec ) {}
+
+        public void clockStop( long exec ) {}
+
+        public void clockSeek( long exec, long micros ) {}
+
+        public void clockRate( long exec, Frac rate ) {}
+    }
+
+}
@@ -0,0 +1,131 @@
+package bits.drawjav;
+
+import bits.jav.Jav;
+import bits.jav.codec.JavPacket;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class RawPacketCacheTest {
+
+    private static final int  SIZE = 100;
+    private static final long COST = 64 + SIZE;
+
+
+    @Test
+    public void testEvictServedEntry() throws Exception {
+        Jav.init();
+        RawPacketCache cache = new RawPacketCache( 1, 2000 * COST );
+        for( int i = 0; i < 2000; i++ ) {
+            record( cache, i );
+        }
+        assertEquals( 0, cache.evictionNum() );
+
+        // Every packet is a keyframe, so the cursor is placed on entry 1024.
+        assertTrue( cache.seek( 0, 1024000L, 1L, false ) );
+        assertTrue( cache.isServing() );
+
+        // Packets far from the served run evict its head, up to and including the entry at the cursor.
+        // The last eviction also compacts the run.
+        for( int i = 0; i < 1025; i++ ) {
+            record( cache, 100000 + i );
+        }
+        assertEquals( 1025, cache.evictionNum() );
+
+        // The packet at the cursor is gone. Serving must end rather than skip it.
+        assertNull( cache.next( 1L ) );
+        cache.close();
+    }
+
+    @Test
+    public void testEvictBeforeServedEntry() throws Exception {
+        Jav.init();
+        RawPacketCache cache = new RawPacketCache( 1, 2000 * COST );
+        for( int i = 0; i < 2000; i++ ) {
+            record( cache, i );
+        }
+        assertTrue( cache.seek( 0, 1500000L, 1L, false ) );
+        for( int i = 0; i < 1025; i++ ) {
+            record( cache, 100000 + i );
+        }
+
+        // Run was compacted, but the packet at the cursor remains.
+        JavPacket p = cache.next( 1L );
+        assertNotNull( p );
+        assertEquals( 1500, p.pts() );
+        p.deref();
+        cache.close();
+    }
+
+    @Test
+    public void testEvictEofTail() throws Exception {
+        Jav.init();
+        RawPacketCache cache = new RawPacketCache( 1, 100 * COST );
+        for( int i = 0; i < 100; i++ ) {
+            record( cache, i );
+        }
+        cache.recordEof();
+
+        // Miss, then record far before the run so that its tail is farthest from the playhead.
+        assertFalse( cache.seek( 0, -1000000L, 1L, false ) );
+        for( int i = 0; i < 10; i++ ) {
+            record( cache, -100000 + i );
+        }
+        assertEquals( 10, cache.evictionNum() );
+
+        // Loop back to start. Served run ends at the evicted tail rather than at end of file.
+        assertTrue( cache.seek( 0, 0L, 1L, false ) );
+        for( int i = 0; i < 90; i++ ) {
+            JavPacket p = cache.next( 1L );
+            assertNotNull( p );
+            assertEquals( i, p.pts() );
+            p.deref();
+        }
+        assertNull( cache.next( 1L ) );
+        assertFalse( cache.servedEof() );
+
+        // Reader resumes demuxing after the last served packet and reaches the real end of file.
+        assertEquals( 89000L, cache.resume() );
+        JavPacket served = packet( 89 );
+        assertTrue( cache.skipResumed( served, 0 ) );
+        served.deref();
+        for( int i = 90; i < 100; i++ ) {
+            record( cache, i );
+        }
+        cache.recordEof();
+
+        // Demuxed packets extend the run, which again ends at end of file.
+        assertTrue( cache.seek( 0, 0L, 1L, false ) );
+        for( int i = 0; i < 100; i++ ) {
+            JavPacket p = cache.next( 1L );
+            assertNotNull( p );
+            assertEquals( i, p.pts() );
+            p.deref();
+        }
+        assertNull( cache.next( 1L ) );
+        assertTrue( cache.servedEof() );
+        cache.close();
+    }
+
+
+    private static void record( RawPacketCache cache, int i ) throws Exception {
+        JavPacket p = packet( i );
+        cache.record( p, 0, i * 1000L, 1L );
+        p.deref();
+    }
+
+
+    private static JavPacket packet( int i ) throws Exception {
+        JavPacket p = JavPacket.alloc();
+        p.allocData( SIZE );
+        p.pts( i );
+        p.dts( i );
+        p.flags( Jav.AV_PKT_FLAG_KEY );
+        return p;
+    }
+
+}
@@ -0,0 +1,226 @@
+package bits.drawjav;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class ReverseReaderTest {
+
+    private static final long FRAME = 40000L;
+
+
+    @Test
+    public void testReverse() throws Exception {
+        FrameCacheReaderTest.GopReader src = new FrameCacheReaderTest.GopReader( 100, 10 );
+        ReverseReader reader = new ReverseReader( src, src.mStream, 1000 * PacketBytes.OVERHEAD );
+        reader.reverse( true );
+        reader.seek( 25 * FRAME + 5 );
+
+        assertEquals( range( 25, -1 ), readAll( reader ) );
+        assertEquals( 3, reader.gopNum() );
+        assertEquals( 0, reader.redecodeNum() );
+        reader.close();
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        FrameCacheReaderTest.GopReader src = new FrameCacheReaderTest.GopReader( 100, 10 );
+        ReverseReader reader = new ReverseReader( src, src.mStream, 8 * PacketBytes.OVERHEAD );
+        reader.reverse( true );
+        reader.seek( 39 * FRAME );
+
+        assertEquals( range( 39, -1 ), readAll( reader ) );
+        assertTrue( reader.redecodeNum() > 0 );
+        assertTrue( reader.peakBufferedBytes() <= 8 * PacketBytes.OVERHEAD );
+        reader.close();
+    }
+
+    @Test
+    public void testDirectionChange() throws Exception {
+        FrameCacheReaderTest.GopReader src = new FrameCacheReaderTest.GopReader( 100, 10 );
+        ReverseReader reader = new ReverseReader( src, src.mStream, 1000 * PacketBytes.OVERHEAD );
+        reader.seek( 50 * FRAME );
+        assertEquals( range( 50, 55 ), read( reader, 5 ) );
+
+        reader.reverse( true );
+        assertEquals( range( 53, 48 ), read( reader, 5 ) );
+
+        reader.reverse( false );
+        List<Long> fwd = read( reader, 12 );
+        assertEquals( range( 40, 52 ), fwd );
+        reader.close();
+    }
+
+    @Test
+    public void testAsyncSource() throws Exception {
+        FrameCacheReaderTest.GopReader gops = new FrameCacheReaderTest.GopReader( 100, 10 );
+        StallingReader src = new StallingReader( gops );
+        ReverseReader reader = new ReverseReader( src, gops.mStream, 1000 * PacketBytes.OVERHEAD );
+        reader.reverse( true );
+        reader.seek( 25 * FRAME + 5 );
+
+        assertEquals( range( 25, -1 ), readAll( reader ) );
+        // Worker waits for the source to become ready instead of polling it again. The job cancelled by
+        // the seek may poll once more.
+        assertTrue( src.mStalls > 0 );
+        assertTrue( src.mNulls <= src.mStalls + 1 );
+        reader.close();
+    }
+
+
+
+    private static List<Long> range( int start, int stop ) {
+        List<Long> ret = new ArrayList<Long>();
+        int step = start <= stop ? 1 : -1;
+        for( int i = start; i != stop; i += step ) {
+            ret.add( i * FRAME );
+        }
+        return ret;
+    }
+
+
+    private static List<Long> read( PacketReader reader, int num ) throws IOException {
+        List<Long> ret = new ArrayList<Long>();
+        while( ret.size() < num ) {
+            Packet p = reader.readNext();
+            if( p != null ) {
+                ret.add( p.startMicros() );
+                p.deref();
+            }
+        }
+        return ret;
+    }
+
+
+    private static List<Long> readAll( PacketReader reader ) throws IOException {
+        List<Long> ret = new ArrayList<Long>();
+        while( true ) {
+            Packet p;
+            try {
+                p = reader.readNext();
+            } catch( EOFException ex ) {
+                return ret;
+            }
+            if( p != null ) {
+                ret.add( p.startMicros() );
+                p.deref();
+            }
+        }
+    }
+
+
+    /**
+     * Returns null before every packet, and becomes ready again shortly after on another thread.
+     */
+    private static final class StallingReader implements AsyncPacketReader {
+
+        private final PacketReader mReader;
+
+        private volatile Runnable mListener = null;
+        private boolean mReady  = true;
+        private boolean mStall  = true;
+        private int     mStalls = 0;
+        private int     mNulls  = 0;
+
+        StallingReader( PacketReader reader ) {
+            mReader = reader;
+        }
+
+        @Override
+        public int streamCount() {
+            return mReader.streamCount();
+        }
+
+        @Override
+        public Stream stream( int index ) {
+            return mReader.stream( index );
+        }
+
+        @Override
+        public List<Stream> streams() {
+            return mReader.streams();
+        }
+
+        @Override
+        public void openStream( Stream stream ) throws IOException {
+            mReader.openStream( stream );
+        }
+
+        @Override
+        public void closeStream( Stream stream ) throws IOException {
+            mReader.closeStream( stream );
+        }
+
+        @Override
+        public boolean isStreamOpen( Stream stream ) {
+            return mReader.isStreamOpen( stream );
+        }
+
+        @Override
+        public void seek( long micros ) throws IOException {
+            mReader.seek( micros );
+        }
+
+        @Override
+        public Packet readNext() throws IOException {
+            synchronized( this ) {
+                if( !mReady ) {
+                    mNulls++;
+                    return null;
+                }
+                mStall = !mStall;
+                if( mStall ) {
+                    mReady = false;
+                    mStalls++;
+                    mNulls++;
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                Thread.sleep( 1 );
+                            } catch( InterruptedException ignored ) {}
+                            synchronized( StallingReader.this ) {
+                                mReady = true;
+                            }
+                            Runnable r = mListener;
+                            if( r != null ) {
+                                r.run();
+                            }
+                        }
+                    }.start();
+                    return null;
+                }
+            }
+            return mReader.readNext();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mReader.isOpen();
+        }
+
+        @Override
+        public void readyListener( Runnable optListener ) {
+            mListener = optListener;
+        }
+
+        @Override
+        public synchronized boolean isReady() {
+            return mReady;
+        }
+    }
+
+}
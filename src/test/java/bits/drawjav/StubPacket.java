@@ -0,0 +1,42 @@
+package bits.drawjav;
+
+import bits.util.ref.AbstractRefable;
+
+
+/**
+ * Packet implementation that does not require native libraries.
+ *
+ * @author Philip DeCamp
+ */
+public class StubPacket extends AbstractRefable implements Packet {
+
+    private final Stream mStream;
+    private final long mStart;
+    private final long mStop;
+
+
+    public StubPacket( Stream stream, long start, long stop ) {
+        mStream = stream;
+        mStart  = start;
+        mStop   = stop;
+    }
+
+    @Override
+    public Stream stream() {
+        return mStream;
+    }
+
+    @Override
+    public long startMicros() {
+        return mStart;
+    }
+
+    @Override
+    public long stopMicros() {
+        return mStop;
+    }
+
+    @Override
+    protected void freeObject() {}
+
+}
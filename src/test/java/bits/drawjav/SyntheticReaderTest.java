@@ -0,0 +1,128 @@
+package bits.drawjav;
+
+import bits.drawjav.pipe.*;
+import bits.jav.Jav;
+import bits.jav.util.Rational;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class SyntheticReaderTest {
+
+    @Test
+    public void testTimestamps() throws Exception {
+        SyntheticReader reader = new SyntheticReader( null, 1000000L );
+        int audio = reader.addAudioStream( StreamFormat.createAudio( 2, 48000, Jav.AV_SAMPLE_FMT_FLT ),
+                                           1024,
+                                           SyntheticReader.SIGNAL_TONE );
+        int video = reader.addVideoStream( StreamFormat.createVideo( 64, 32, Jav.AV_PIX_FMT_BGRA, null ),
+                                           new Rational( 30000, 1001 ),
+                                           SyntheticReader.PATTERN_BARS );
+
+        long[] next = new long[2];
+        long last = Long.MIN_VALUE;
+        int[] count = new int[2];
+        long samples = 0;
+
+        while( true ) {
+            Packet p;
+            try {
+                p = reader.readNext();
+            } catch( EOFException ex ) {
+                break;
+            }
+
+            int idx = p.stream() == reader.stream( audio ) ? audio : video;
+            // Each stream is contiguous, and streams are interleaved in timestamp order.
+            assertEquals( next[idx], p.startMicros() );
+            assertTrue( p.startMicros() >= last );
+            assertTrue( p.stopMicros() > p.startMicros() );
+            next[idx] = p.stopMicros();
+            last = p.startMicros();
+            count[idx]++;
+
+            BufferPacket bp = (BufferPacket)p;
+            if( idx == audio ) {
+                assertEquals( 1024, bp.sampleNum() );
+                assertEquals( 1024 * 2 * 4, bp.buffer().limit() );
+                samples += bp.sampleNum();
+            } else {
+                assertEquals( 64 * 32 * 4, bp.buffer().limit() );
+            }
+            p.deref();
+        }
+
+        assertEquals( 47, count[audio] );
+        assertEquals( 30, count[video] );
+        assertEquals( 47 * 1024, samples );
+        assertTrue( next[audio] >= 1000000L );
+        assertTrue( next[video] >= 1000000L );
+        reader.close();
+    }
+
+    @Test
+    public void testSeekAndPooling() throws Exception {
+        SyntheticReader reader = new SyntheticReader( null, 10000000L );
+        reader.addVideoStream( StreamFormat.createVideo( 8, 8, Jav.AV_PIX_FMT_RGB24, null ),
+                               new Rational( 25, 1 ),
+                               SyntheticReader.PATTERN_SOLID );
+
+        reader.seek( 1030000L );
+        Packet p = reader.readNext();
+        assertEquals( 1000000L, p.startMicros() );
+        assertEquals( 1040000L, p.stopMicros() );
+
+        // Solid pattern at frame 25 uses color 1.
+        ByteBuffer bb = ((BufferPacket)p).buffer();
+        assertEquals( (byte)0xC0, bb.get( 0 ) );
+        assertEquals( (byte)0xC0, bb.get( 1 ) );
+        assertEquals( (byte)0x00, bb.get( 2 ) );
+
+        // Released packets are reused.
+        p.deref();
+        Packet q = reader.readNext();
+        assertSame( p, q );
+        assertEquals( 1040000L, q.startMicros() );
+        q.deref();
+        reader.close();
+    }
+
+    @Test
+    public void testOfflineGraph() throws Exception {
+        SyntheticReader reader = new SyntheticReader( null, 2000000L );
+        reader.addAudioStream( StreamFormat.createAudio( 1, 44100, Jav.AV_SAMPLE_FMT_S16 ),
+                               441,
+                               SyntheticReader.SIGNAL_NOISE );
+        reader.addVideoStream( StreamFormat.createVideo( 16, 16, Jav.AV_PIX_FMT_GRAY8, null ),
+                               new Rational( 50, 1 ),
+                               SyntheticReader.PATTERN_NOISE );
+
+        PacketReaderUnit src = new PacketReaderUnit( reader );
+        OfflineSchedulerUnit scheduler = new OfflineSchedulerUnit();
+        OfflineSchedulerUnitTest.CollectSink sink = new OfflineSchedulerUnitTest.CollectSink();
+
+        AvGraph graph = new AvGraph();
+        for( int s = 0; s < 2; s++ ) {
+            scheduler.addStream( null, 8 );
+            graph.connect( src, src.output( s ), scheduler, scheduler.input( s ), null );
+            graph.connect( scheduler, scheduler.output( s ), sink, sink.input( s ), null );
+        }
+
+        GraphDriver driver = new GraphDriver( null, graph );
+        driver.addTicker( scheduler );
+        GraphStats stats = driver.runOffline();
+        driver.close();
+
+        assertEquals( 100, stats.frameNum() );
+        assertEquals( 88200, stats.sampleNum() );
+        assertEquals( 300, sink.mTimes.size() );
+    }
+
+}
@@ -0,0 +1,196 @@
+package bits.drawjav;
+
+import bits.drawjav.pipe.*;
+import bits.microtime.*;
+import com.google.common.eventbus.EventBus;
+import org.junit.Test;
+
+import static bits.drawjav.pipe.Pad.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+@SuppressWarnings( "unchecked" )
+public class ThreadedSchedulerUnitTest {
+
+    @Test
+    public void testPreciseRelease() throws Exception {
+        FullClock clock = new FullClock( Clock.SYSTEM_CLOCK );
+        clock.clockSeek( 0 );
+        clock.clockStart();
+
+        ThreadedSchedulerUnit unit = new ThreadedSchedulerUnit( true, ThreadedSchedulerUnit.DEFAULT_SPIN_MICROS );
+        unit.addStream( clock, 64 );
+        unit.open( new EventBus() );
+
+        final int num = 20;
+        for( int i = 0; i < num; i++ ) {
+            long t = 20000L + i * 5000L;
+            assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, t, t + 5000L ) ) );
+        }
+
+        Packet[] out = { null };
+        long prev = Long.MIN_VALUE;
+        int count = 0;
+        long timeout = System.currentTimeMillis() + 5000L;
+
+        while( count < num && System.currentTimeMillis() < timeout ) {
+            if( unit.output( 0 ).poll( out ) != OKAY ) {
+                Thread.sleep( 1L );
+                continue;
+            }
+            assertTrue( out[0].startMicros() > prev );
+            // Packet should not be released before its start time.
+            assertTrue( clock.micros() >= out[0].startMicros() );
+            prev = out[0].startMicros();
+            out[0].deref();
+            count++;
+        }
+
+        assertEquals( num, count );
+        MicrosHistogram err = unit.releaseError( 0 );
+        assertEquals( num, err.count() );
+        assertTrue( err.min() >= 0 );
+        unit.close();
+    }
+
+
+    @Test
+    public void testShards() throws Exception {
+        final int clockNum  = 4;
+        final int packetNum = 10;
+
+        FullClock[] clocks = new FullClock[clockNum];
+        for( int i = 0; i < clockNum; i++ ) {
+            clocks[i] = new FullClock( Clock.SYSTEM_CLOCK );
+            clocks[i].clockSeek( 0 );
+            clocks[i].clockStart();
+        }
+
+        ThreadedSchedulerUnit unit = new ThreadedSchedulerUnit( false, ThreadedSchedulerUnit.DEFAULT_SPIN_MICROS, 3 );
+        assertEquals( 3, unit.threadNum() );
+        for( int i = 0; i < clockNum; i++ ) {
+            unit.addStream( clocks[i], packetNum );
+        }
+        // Same clock in an explicit group. Gets its own clock node on whichever shard holds the group.
+        unit.addStream( clocks[0], packetNum, false, "group" );
+        unit.open( new EventBus() );
+
+        final int streamNum = unit.inputNum();
+        for( int i = 0; i < streamNum; i++ ) {
+            for( int j = 0; j < packetNum; j++ ) {
+                long t = 10000L + j * 5000L;
+                assertEquals( OKAY, unit.input( i ).offer( new StubPacket( null, t, t + 5000L ) ) );
+            }
+        }
+
+        Packet[] out = { null };
+        int[] counts = new int[streamNum];
+        int total = 0;
+        long timeout = System.currentTimeMillis() + 5000L;
+
+        while( total < streamNum * packetNum && System.currentTimeMillis() < timeout ) {
+            boolean any = false;
+            for( int i = 0; i < streamNum; i++ ) {
+                if( unit.output( i ).poll( out ) != OKAY ) {
+                    continue;
+                }
+                assertEquals( 10000L + counts[i] * 5000L, out[0].startMicros() );
+                out[0].deref();
+                counts[i]++;
+                total++;
+                any = true;
+            }
+            if( !any ) {
+                Thread.sleep( 1L );
+            }
+        }
+
+        assertEquals( streamNum * packetNum, total );
+        unit.close();
+    }
+
+
+    @Test
+    public void testAdaptiveLookahead() throws Exception {
+        // Master time only moves when the test advances it.
+        ManualClock master = new ManualClock();
+        FullClock clock = new FullClock( master );
+        clock.clockSeek( 0, 0 );
+        clock.clockStart( 0 );
+
+        ThreadedSchedulerUnit unit = new ThreadedSchedulerUnit( false, ThreadedSchedulerUnit.DEFAULT_SPIN_MICROS );
+        unit.addStream( clock, 24 );
+        unit.addStream( clock, 24 );
+        unit.adaptiveLookahead( 0, 100000L, 2 );
+        unit.adaptiveLookahead( 1, 100000L, 2 );
+        unit.open( new EventBus() );
+
+        final long frame = 20000L;
+        assertEquals( 2, unit.queueCap( 0 ) );
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 0, frame ) ) );
+        for( int j = 0; j < 2; j++ ) {
+            assertEquals( OKAY, unit.input( 1 ).offer( new StubPacket( null, j * frame, ( j + 1 ) * frame ) ) );
+        }
+
+        // Polling alone does not create lead.
+        assertEquals( 0L, pollNext( unit, 1 ) );
+        assertEquals( 0L, unit.leadMicros( 1 ) );
+        assertEquals( 2, unit.queueCap( 1 ) );
+
+        // First sample: lead is latency plus four mean deviations of half the latency.
+        unit.reportLatency( 0, 15000L );
+        assertEquals( 45000L, unit.leadMicros( 0 ) );
+        // Min cap plus enough 20ms frames to cover lead.
+        assertEquals( 5, unit.queueCap( 0 ) );
+        for( int j = 1; j < 5; j++ ) {
+            assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, j * frame, ( j + 1 ) * frame ) ) );
+        }
+
+        // Packets starting within lead of current time are released.
+        assertEquals( 0L, pollNext( unit, 0 ) );
+        assertEquals( frame, pollNext( unit, 0 ) );
+        assertEquals( 2 * frame, pollNext( unit, 0 ) );
+        assertEquals( WAIT, unit.output( 0 ).status() );
+
+        master.mMicros = frame;
+        assertEquals( 3 * frame, pollNext( unit, 0 ) );
+
+        for( int i = 0; i < 50; i++ ) {
+            unit.reportLatency( 1, 1000000L );
+        }
+        assertEquals( 100000L, unit.leadMicros( 1 ) );
+        assertEquals( 7, unit.queueCap( 1 ) );
+        unit.close();
+    }
+
+
+    /**
+     * Waits for next packet released on stream.
+     *
+     * @return start of packet.
+     */
+    private static long pollNext( ThreadedSchedulerUnit unit, int stream ) throws Exception {
+        Packet[] out = { null };
+        long timeout = System.currentTimeMillis() + 5000L;
+        while( unit.output( stream ).poll( out ) != OKAY ) {
+            assertTrue( "Packet not released.", System.currentTimeMillis() < timeout );
+            Thread.sleep( 1L );
+        }
+        long ret = out[0].startMicros();
+        out[0].deref();
+        return ret;
+    }
+
+
+    private static final class ManualClock implements Clock {
+        volatile long mMicros = 0;
+
+        public long micros() {
+            return mMicros;
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package bits.drawjav;
+
+import bits.drawjav.pipe.*;
+import bits.microtime.*;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import org.junit.Test;
+
+import static bits.drawjav.pipe.Pad.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+@SuppressWarnings( "unchecked" )
+public class TickerSchedulerUnitTest {
+
+    @Test
+    public void testFill() {
+        ManualClock clock = new ManualClock( 0 );
+        FullClock full = new FullClock( clock );
+        full.clockStart( 0 );
+
+        TickerSchedulerUnit unit = new TickerSchedulerUnit();
+        unit.addStream( full, 2 );
+        unit.addStream( full, 2 );
+        unit.open( new EventBus() );
+
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 0, 100 ) ) );
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 100, 200 ) ) );
+        assertEquals( WAIT, unit.input( 0 ).offer( new StubPacket( null, 200, 300 ) ) );
+        assertEquals( OKAY, unit.input( 1 ).offer( new StubPacket( null, 0, 100 ) ) );
+        assertPadStatus( unit, WAIT, OKAY, WAIT, OKAY );
+
+        Packet[] out = { null };
+        assertEquals( OKAY, unit.output( 0 ).poll( out ) );
+        out[0].deref();
+        assertPadStatus( unit, WAIT, WAIT, WAIT, OKAY );
+
+        clock.micros( 1000L );
+        unit.tick();
+        assertPadStatus( unit, WAIT, OKAY, WAIT, OKAY );
+        assertEquals( OKAY, unit.output( 0 ).poll( out ) );
+        out[0].deref();
+        assertPadStatus( unit, OKAY, WAIT, OKAY, OKAY );
+
+        // Clock moving back must revoke output readiness.
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 500, 600 ) ) );
+        assertPadStatus( unit, WAIT, OKAY, WAIT, OKAY );
+        clock.micros( 0L );
+        unit.tick();
+        assertPadStatus( unit, WAIT, WAIT, WAIT, OKAY );
+    }
+
+    @Test
+    public void testManyStreams() {
+        final int num = 256;
+        ManualClock clock = new ManualClock( 0 );
+        FullClock full = new FullClock( clock );
+        full.clockStart( 0 );
+
+        TickerSchedulerUnit unit = new TickerSchedulerUnit();
+        for( int i = 0; i < num; i++ ) {
+            unit.addStream( full, 4 );
+        }
+
+        EventBus bus = new EventBus();
+        EventCounter counter = new EventCounter();
+        bus.register( counter );
+        unit.open( bus );
+
+        // Stagger streams so that stream i is due at time i * 10.
+        for( int i = 0; i < num; i++ ) {
+            long t = 10L + i * 10L;
+            assertEquals( OKAY, unit.input( i ).offer( new StubPacket( null, t, t + 10 ) ) );
+        }
+
+        // Unit is full. Every input refuses.
+        for( int i = 0; i < num; i++ ) {
+            assertEquals( WAIT, unit.input( i ).offer( new StubPacket( null, 0, 0 ) ) );
+        }
+
+        for( int step = 1; step <= num; step++ ) {
+            counter.mOut = 0;
+            clock.micros( step * 10L );
+            unit.tick();
+            // Exactly one stream becomes due on each tick.
+            assertEquals( 1, counter.mOut );
+            assertEquals( OKAY, unit.output( step - 1 ).status() );
+            if( step < num ) {
+                assertEquals( WAIT, unit.output( step ).status() );
+            }
+        }
+
+        // Draining one stream releases every refused input.
+        Packet[] out = { null };
+        counter.mIn = 0;
+        assertEquals( OKAY, unit.output( 0 ).poll( out ) );
+        out[0].deref();
+        assertEquals( num, counter.mIn );
+
+        // Inputs are not notified twice.
+        assertEquals( OKAY, unit.output( 1 ).poll( out ) );
+        out[0].deref();
+        assertEquals( num, counter.mIn );
+        unit.close();
+    }
+
+
+    static void assertPadStatus( TickerSchedulerUnit unit, int... states ) {
+        for( int i = 0; i < states.length / 2; i++ ) {
+            assertEquals( states[i*2  ], unit.input( i ).status() );
+            assertEquals( states[i*2+1], unit.output( i ).status() );
+        }
+    }
+
+
+    public static final class EventCounter {
+        int mIn  = 0;
+        int mOut = 0;
+
+        @Subscribe
+        public void process( InPadReadyEvent e ) {
+            mIn++;
+        }
+
+        @Subscribe
+        public void process( OutPadReadyEvent e ) {
+            mOut++;
+        }
+    }
+
+}
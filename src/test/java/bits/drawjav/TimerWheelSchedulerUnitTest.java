@@ -0,0 +1,139 @@
+package bits.drawjav;
+
+import bits.drawjav.pipe.*;
+import bits.microtime.*;
+import com.google.common.eventbus.EventBus;
+import org.junit.Test;
+
+import static bits.drawjav.pipe.Pad.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+@SuppressWarnings( "unchecked" )
+public class TimerWheelSchedulerUnitTest {
+
+    @Test
+    public void testRelease() throws Exception {
+        final int clockNum  = 4;
+        final int streamNum = 16;
+        final int packetNum = 10;
+
+        FullClock[] clocks = new FullClock[clockNum];
+        for( int i = 0; i < clockNum; i++ ) {
+            clocks[i] = new FullClock( Clock.SYSTEM_CLOCK );
+            clocks[i].clockSeek( -i * 10000L );
+            clocks[i].clockStart();
+        }
+
+        TimerWheelSchedulerUnit unit = new TimerWheelSchedulerUnit();
+        for( int i = 0; i < streamNum; i++ ) {
+            unit.addStream( clocks[i % clockNum], packetNum );
+        }
+        unit.open( new EventBus() );
+
+        for( int i = 0; i < streamNum; i++ ) {
+            for( int j = 0; j < packetNum; j++ ) {
+                long t = 20000L + j * 5000L;
+                assertEquals( OKAY, unit.input( i ).offer( new StubPacket( null, t, t + 5000L ) ) );
+            }
+            assertEquals( WAIT, unit.input( i ).status() );
+        }
+
+        Packet[] out = { null };
+        long[] prev = new long[streamNum];
+        int[] counts = new int[streamNum];
+        int total = 0;
+        long timeout = System.currentTimeMillis() + 5000L;
+
+        while( total < streamNum * packetNum && System.currentTimeMillis() < timeout ) {
+            boolean any = false;
+            for( int i = 0; i < streamNum; i++ ) {
+                if( unit.output( i ).poll( out ) != OKAY ) {
+                    continue;
+                }
+                FullClock clock = clocks[i % clockNum];
+                assertTrue( counts[i] == 0 || out[0].startMicros() > prev[i] );
+                // Packets may be released up to one tick early.
+                assertTrue( clock.micros() + TimerWheelSchedulerUnit.DEFAULT_TICK_MICROS >= out[0].startMicros() );
+                prev[i] = out[0].startMicros();
+                out[0].deref();
+                counts[i]++;
+                total++;
+                any = true;
+            }
+            if( !any ) {
+                Thread.sleep( 1L );
+            }
+        }
+
+        assertEquals( streamNum * packetNum, total );
+        for( int i = 0; i < streamNum; i++ ) {
+            assertEquals( OKAY, unit.input( i ).status() );
+        }
+        unit.close();
+    }
+
+
+    @Test
+    public void testSeekClearsClock() throws Exception {
+        FullClock a = new FullClock( Clock.SYSTEM_CLOCK );
+        FullClock b = new FullClock( Clock.SYSTEM_CLOCK );
+        a.clockSeek( 0 );
+        b.clockSeek( 0 );
+
+        TimerWheelSchedulerUnit unit = new TimerWheelSchedulerUnit();
+        unit.addStream( a, 4 );
+        unit.addStream( b, 4 );
+        unit.open( new EventBus() );
+
+        assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, 50000L, 60000L ) ) );
+        assertEquals( OKAY, unit.input( 1 ).offer( new StubPacket( null, 50000L, 60000L ) ) );
+
+        // Seeking one clock must drop only that clock's packets.
+        a.clockSeek( 5000000L );
+        b.clockStart();
+
+        Packet[] out = { null };
+        long timeout = System.currentTimeMillis() + 2000L;
+        while( unit.output( 1 ).poll( out ) != OKAY && System.currentTimeMillis() < timeout ) {
+            Thread.sleep( 1L );
+        }
+        assertNotNull( out[0] );
+        out[0].deref();
+        assertEquals( WAIT, unit.output( 0 ).poll( out ) );
+        unit.close();
+    }
+
+
+    @Test
+    public void testDropLate() throws Exception {
+        FullClock clock = new FullClock( Clock.SYSTEM_CLOCK );
+        clock.clockSeek( 1000000L );
+        clock.clockStart();
+
+        TimerWheelSchedulerUnit unit = new TimerWheelSchedulerUnit();
+        unit.addStream( clock, 16 );
+        unit.dropPolicy( 0, LateDropPolicy.dropLate( 50000L ) );
+        unit.open( new EventBus() );
+
+        for( int i = 0; i < 10; i++ ) {
+            assertEquals( OKAY, unit.input( 0 ).offer( new StubPacket( null, i * 1000L, ( i + 1 ) * 1000L ) ) );
+        }
+
+        Packet[] out = { null };
+        long timeout = System.currentTimeMillis() + 2000L;
+        while( unit.output( 0 ).poll( out ) != OKAY && System.currentTimeMillis() < timeout ) {
+            Thread.sleep( 1L );
+        }
+
+        // All packets are about one second late. Only the newest is kept.
+        assertEquals( 9000L, out[0].startMicros() );
+        assertEquals( 9, unit.droppedNum( 0 ) );
+        out[0].deref();
+        unit.close();
+    }
+
+}
@@ -0,0 +1,110 @@
+package bits.drawjav;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * @author Philip DeCamp
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void testExpiryOrder() {
+        final long tick = 1000L;
+        Random rand = new Random( 0 );
+
+        for( int trial = 0; trial < 20; trial++ ) {
+            long start = rand.nextInt( 1000000 );
+            TimerWheel<TimerWheelNode> wheel = new TimerWheel<TimerWheelNode>( tick, start );
+            List<TimerWheelNode> nodes = new ArrayList<TimerWheelNode>();
+
+            // Cover inner wheel, outer wheel and overflow.
+            for( int i = 0; i < 1000; i++ ) {
+                TimerWheelNode n = new TimerWheelNode();
+                long range = i % 3 == 0 ? 256 * tick : i % 3 == 1 ? 256 * 64 * tick : 256 * 64 * 10 * tick;
+                wheel.schedule( n, start + ( rand.nextLong() & Long.MAX_VALUE ) % range );
+                nodes.add( n );
+            }
+
+            List<TimerWheelNode> out = new ArrayList<TimerWheelNode>();
+            long now = start;
+            int count = 0;
+
+            while( !wheel.isEmpty() ) {
+                now += 1 + rand.nextInt( (int)( 3 * tick ) );
+                out.clear();
+                count += wheel.advance( now, out );
+                for( TimerWheelNode n: out ) {
+                    // Never expired more than one tick early, and never left behind.
+                    assertTrue( n.mWheelDeadline / tick <= now / tick );
+                    assertFalse( wheel.contains( n ) );
+                }
+            }
+
+            assertEquals( nodes.size(), count );
+            for( TimerWheelNode n: nodes ) {
+                assertTrue( n.mWheelDeadline / tick <= now / tick );
+            }
+        }
+    }
+
+
+    @Test
+    public void testNoLateExpiry() {
+        final long tick = 1000L;
+        TimerWheel<TimerWheelNode> wheel = new TimerWheel<TimerWheelNode>( tick, 0 );
+        Random rand = new Random( 1 );
+        List<TimerWheelNode> out = new ArrayList<TimerWheelNode>();
+        long now = 0;
+
+        for( int i = 0; i < 10000; i++ ) {
+            TimerWheelNode n = new TimerWheelNode();
+            long deadline = now + rand.nextInt( 300 * 1000 ) - 1000;
+            wheel.schedule( n, deadline );
+
+            // Jump directly to next expiry, as a scheduler thread would.
+            long next = wheel.nextExpiryMicros();
+            assertTrue( next <= Math.max( now, deadline ) );
+
+            now += rand.nextInt( 2000 );
+            out.clear();
+            wheel.advance( now, out );
+            for( TimerWheelNode e: out ) {
+                assertTrue( e.mWheelDeadline < ( now / tick + 1 ) * tick );
+            }
+            if( deadline < now / tick * tick ) {
+                // Overdue nodes must not linger.
+                assertFalse( wheel.contains( n ) );
+            }
+        }
+    }
+
+
+    @Test
+    public void testCancelAndReschedule() {
+        TimerWheel<TimerWheelNode> wheel = new TimerWheel<TimerWheelNode>( 10, 0 );
+        TimerWheelNode a = new TimerWheelNode();
+        TimerWheelNode b = new TimerWheelNode();
+
+        wheel.schedule( a, 100 );
+        wheel.schedule( b, 50000 );
+        assertEquals( 2, wheel.size() );
+        assertEquals( 100, wheel.nextExpiryMicros() );
+
+        wheel.schedule( a, 200 );
+        assertEquals( 2, wheel.size() );
+        assertEquals( 200, wheel.nextExpiryMicros() );
+
+        assertTrue( wheel.cancel( a ) );
+        assertFalse( wheel.cancel( a ) );
+        assertEquals( 1, wheel.size() );
+
+        wheel.schedule( b, Long.MAX_VALUE );
+        assertTrue( wheel.isEmpty() );
+        assertEquals( Long.MAX_VALUE, wheel.nextExpiryMicros() );
+    }
+
+}
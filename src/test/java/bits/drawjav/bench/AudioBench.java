@@ -0,0 +1,147 @@
+package bits.drawjav.bench;
+
+import bits.drawjav.audio.AudioSampleFormat;
+import bits.drawjav.audio.SincResampler;
+import bits.drawjav.pipe.Sola;
+import bits.microtime.Frac;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+
+/**
+ * Throughput of audio processing stages. Operations are input samples per channel.
+ *
+ * @author Philip DeCamp
+ */
+public final class AudioBench extends Benchmark {
+
+    public static final int SOLA     = 0;
+    public static final int SINC     = 1;
+    public static final int TRANSFER = 2;
+
+    private static final int BLOCK = 1024;
+
+
+    public static AudioBench sola( Frac rate ) {
+        return new AudioBench( SOLA, "Sola.process", "rate=" + rate.toDouble(), rate, 44100, 48000, 1, null );
+    }
+
+
+    public static AudioBench sinc( int inFreq, int outFreq, int channels ) {
+        return new AudioBench( SINC,
+                               "SincResampler.process",
+                               inFreq + "->" + outFreq + ",channels=" + channels,
+                               null,
+                               inFreq,
+                               outFreq,
+                               channels,
+                               null );
+    }
+
+
+    public static AudioBench transfer( AudioSampleFormat format ) {
+        return new AudioBench( TRANSFER, "AudioSampleFormat.transfer", "format=" + format, null, 0, 0, 1, format );
+    }
+
+
+    private final int               mKind;
+    private final Frac              mRate;
+    private final int               mInFreq;
+    private final int               mOutFreq;
+    private final int               mChannels;
+    private final AudioSampleFormat mFormat;
+
+    private float[]       mIn;
+    private float[]       mOut;
+    private FloatBuffer   mInBuf;
+    private FloatBuffer   mOutBuf;
+    private ByteBuffer    mBytes;
+    private Sola          mSola;
+    private SincResampler mSinc;
+
+
+    private AudioBench( int kind,
+                        String name,
+                        String params,
+                        Frac rate,
+                        int inFreq,
+                        int outFreq,
+                        int channels,
+                        AudioSampleFormat format )
+    {
+        super( name, params, 1 << 20 );
+        mKind     = kind;
+        mRate     = rate;
+        mInFreq   = inFreq;
+        mOutFreq  = outFreq;
+        mChannels = channels;
+        mFormat   = format;
+    }
+
+
+    @Override
+    public void setup() {
+        Random rand = new Random( 0 );
+        mIn = new float[BLOCK * mChannels];
+        for( int i = 0; i < mIn.length; i++ ) {
+            mIn[i] = (float)Math.sin( i * 0.0627 ) * 0.5f + ( rand.nextFloat() - 0.5f ) * 0.01f;
+        }
+
+        switch( mKind ) {
+        case SOLA:
+            mSola = new Sola( mInFreq );
+            mSola.rate( mRate );
+            mInBuf  = FloatBuffer.wrap( mIn );
+            mOutBuf = FloatBuffer.allocate( BLOCK * 4 + mSola.minFlushBufferSize() );
+            break;
+
+        case SINC:
+            mSinc = new SincResampler( mInFreq, mOutFreq, mChannels );
+            mOut  = new float[mSinc.recommendOutBufferSize( BLOCK ) * mChannels];
+            break;
+
+        default:
+            mOut   = new float[BLOCK];
+            mBytes = ByteBuffer.allocateDirect( BLOCK * mFormat.sampleSize() ).order( ByteOrder.nativeOrder() );
+            for( int i = 0; i < mBytes.capacity(); i++ ) {
+                mBytes.put( i, (byte)rand.nextInt() );
+            }
+        }
+    }
+
+    @Override
+    public long run( int ops ) {
+        long sum = 0;
+        int remaining = ops;
+
+        while( remaining > 0 ) {
+            int len = Math.min( BLOCK, remaining );
+            remaining -= len;
+
+            switch( mKind ) {
+            case SOLA:
+                mInBuf.clear().limit( len );
+                while( mInBuf.hasRemaining() ) {
+                    mOutBuf.clear();
+                    sum += mSola.process( mInBuf, mOutBuf );
+                }
+                break;
+
+            case SINC:
+                sum += mSinc.process( mIn, 0, mOut, 0, len );
+                break;
+
+            default:
+                mBytes.clear();
+                mFormat.transfer( mBytes, mOut, len );
+                sum += Float.floatToRawIntBits( mOut[len - 1] );
+            }
+        }
+
+        return sum;
+    }
+
+}
@@ -0,0 +1,109 @@
+package bits.drawjav.bench;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+
+/**
+ * Timing results for one benchmark, in nanoseconds per operation.
+ *
+ * @author Philip DeCamp
+ */
+public final class BenchResult {
+
+    public final String mName;
+    public final String mParams;
+    public final int    mOps;
+    public final double mMin;
+    public final double mMedian;
+    public final double mMax;
+    public final int    mRounds;
+    public final String mSkipped;
+
+
+    public static BenchResult skipped( Benchmark bench, String reason ) {
+        return new BenchResult( bench, 0, 0, 0, 0, reason );
+    }
+
+
+    public static BenchResult fromRounds( Benchmark bench, double[] nsPerOp ) {
+        double[] sorted = nsPerOp.clone();
+        Arrays.sort( sorted );
+        return new BenchResult( bench,
+                                sorted[0],
+                                sorted[sorted.length / 2],
+                                sorted[sorted.length - 1],
+                                sorted.length,
+                                null );
+    }
+
+
+    private BenchResult( Benchmark bench, double min, double median, double max, int rounds, String skipped ) {
+        mName    = bench.name();
+        mParams  = bench.params();
+        mOps     = bench.ops();
+        mMin     = min;
+        mMedian  = median;
+        mMax     = max;
+        mRounds  = rounds;
+        mSkipped = skipped;
+    }
+
+
+    public double opsPerSecond() {
+        return mMedian <= 0 ? 0 : 1000000000.0 / mMedian;
+    }
+
+    /**
+     * @return result as a single line of JSON.
+     */
+    public String toJson() {
+        StringBuilder s = new StringBuilder( 192 );
+        s.append( "{\"name\":" ).append( quote( mName ) );
+        s.append( ",\"params\":" ).append( quote( mParams ) );
+        if( mSkipped != null ) {
+            s.append( ",\"skipped\":" ).append( quote( mSkipped ) ).append( '}' );
+            return s.toString();
+        }
+        s.append( String.format( Locale.US,
+                                 ",\"ops\":%d,\"rounds\":%d,\"nsPerOpMin\":%.3f,\"nsPerOpMedian\":%.3f,\"nsPerOpMax\":%.3f,\"opsPerSec\":%.1f}",
+                                 mOps, mRounds, mMin, mMedian, mMax, opsPerSecond() ) );
+        return s.toString();
+    }
+
+
+    @Override
+    public String toString() {
+        String label = mParams.length() == 0 ? mName : mName + " [" + mParams + "]";
+        if( mSkipped != null ) {
+            return String.format( "%-48s skipped: %s", label, mSkipped );
+        }
+        return String.format( Locale.US, "%-48s %12.1f ns/op  (min %.1f, max %.1f)", label, mMedian, mMin, mMax );
+    }
+
+
+    private static String quote( String str ) {
+        StringBuilder s = new StringBuilder( str.length() + 2 );
+        s.append( '"' );
+        for( int i = 0; i < str.length(); i++ ) {
+            char c = str.charAt( i );
+            switch( c ) {
+            case '"':
+            case '\\':
+                s.append( '\\' ).append( c );
+                break;
+            case '\n':
+                s.append( "\\n" );
+                break;
+            default:
+                if( c < 0x20 ) {
+                    s.append( String.format( "\\u%04x", (int)c ) );
+                } else {
+                    s.append( c );
+                }
+            }
+        }
+        return s.append( '"' ).toString();
+    }
+
+}
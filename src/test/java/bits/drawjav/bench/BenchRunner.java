@@ -0,0 +1,64 @@
+package bits.drawjav.bench;
+
+
+/**
+ * Runs benchmarks with a fixed number of warmup and measured rounds.
+ *
+ * @author Philip DeCamp
+ */
+public final class BenchRunner {
+
+    private final int mWarmupRounds;
+    private final int mRounds;
+
+    // Accumulates benchmark return values so that the JIT cannot discard their work.
+    private long mSink = 0;
+
+
+    public BenchRunner( int warmupRounds, int rounds ) {
+        if( rounds < 1 ) {
+            throw new IllegalArgumentException( "rounds must be positive." );
+        }
+        mWarmupRounds = warmupRounds;
+        mRounds = rounds;
+    }
+
+
+    public BenchResult run( Benchmark bench ) {
+        try {
+            bench.setup();
+        } catch( Throwable t ) {
+            return BenchResult.skipped( bench, String.valueOf( t ) );
+        }
+
+        try {
+            final int ops = bench.ops();
+            for( int i = 0; i < mWarmupRounds; i++ ) {
+                mSink += bench.run( ops );
+            }
+
+            double[] results = new double[mRounds];
+            for( int i = 0; i < mRounds; i++ ) {
+                long start = System.nanoTime();
+                mSink += bench.run( ops );
+                long elapsed  = System.nanoTime() - start;
+                long measured = bench.measuredNanos();
+                results[i] = (double)( measured >= 0 ? measured : elapsed ) / ops;
+            }
+            return BenchResult.fromRounds( bench, results );
+
+        } catch( Throwable t ) {
+            return BenchResult.skipped( bench, "failed: " + t );
+        } finally {
+            try {
+                bench.teardown();
+            } catch( Throwable ignored ) {}
+        }
+    }
+
+
+    long sink() {
+        return mSink;
+    }
+
+}
@@ -0,0 +1,115 @@
+package bits.drawjav.bench;
+
+import bits.drawjav.audio.AudioSampleFormat;
+import bits.jav.Jav;
+import bits.microtime.Frac;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Runs the drawjav benchmark suite. Results print to stdout in readable form and, if an output file
+ * is given, are written there as one JSON object per line for tracking regressions between builds.
+ * <p>
+ * Usage: {@code BenchSuite [-o outFile] [-quick] [nameFilter ...]}
+ * <br>
+ * Only benchmarks whose names contain one of the filters are run. With no filters, all are run.
+ *
+ * @author Philip DeCamp
+ */
+public class BenchSuite {
+
+    public static List<Benchmark> all() {
+        List<Benchmark> ret = new ArrayList<Benchmark>();
+        for( int threads: new int[]{ 1, 4 } ) {
+            ret.add( new CostPoolBench( threads, false ) );
+            ret.add( new CostPoolBench( threads, true ) );
+        }
+        for( int depth: new int[]{ 16, 256, 4096, 65536 } ) {
+            ret.add( PrioHeapBench.prio( depth ) );
+            ret.add( PrioHeapBench.longHeap( depth, 2 ) );
+            ret.add( PrioHeapBench.longHeap( depth, 4 ) );
+        }
+        for( int streams: new int[]{ 16, 64, 256, 1024 } ) {
+            ret.add( new TickerSchedulerBench( streams, false ) );
+            ret.add( new TickerSchedulerBench( streams, true ) );
+        }
+        ret.add( new SchedulerContentionBench( false, 4 ) );
+        ret.add( new SchedulerContentionBench( true, 4 ) );
+        ret.add( new GraphStepBench( 0 ) );
+        ret.add( new GraphStepBench( 4 ) );
+        ret.add( AudioBench.sola( new Frac( 3, 2 ) ) );
+        ret.add( AudioBench.sinc( 44100, 48000, 2 ) );
+        ret.add( AudioBench.transfer( AudioSampleFormat.SIGNED_SHORT ) );
+        ret.add( AudioBench.transfer( AudioSampleFormat.FLOAT ) );
+        ret.add( new ToArgbBench( 1280, 720, Jav.AV_PIX_FMT_BGRA ) );
+        ret.add( new ToArgbBench( 1280, 720, Jav.AV_PIX_FMT_RGB24 ) );
+        ret.add( new SeekBench( false, false ) );
+        ret.add( new SeekBench( true, false ) );
+        ret.add( new SeekBench( true, true ) );
+        ret.add( new ScrubBench() );
+        return ret;
+    }
+
+
+    public static void main( String[] args ) throws IOException {
+        File outFile = null;
+        boolean quick = false;
+        List<String> filters = new ArrayList<String>();
+
+        for( int i = 0; i < args.length; i++ ) {
+            if( args[i].equals( "-o" ) && i + 1 < args.length ) {
+                outFile = new File( args[++i] );
+            } else if( args[i].equals( "-quick" ) ) {
+                quick = true;
+            } else if( args[i].length() > 0 ) {
+                filters.add( args[i] );
+            }
+        }
+
+        BenchRunner runner = quick ? new BenchRunner( 1, 3 ) : new BenchRunner( 5, 10 );
+        PrintStream json = null;
+        if( outFile != null ) {
+            File parent = outFile.getAbsoluteFile().getParentFile();
+            if( parent != null ) {
+                parent.mkdirs();
+            }
+            json = new PrintStream( new FileOutputStream( outFile ), true, "UTF-8" );
+        }
+
+        try {
+            for( Benchmark b: all() ) {
+                if( !matches( b.name(), filters ) ) {
+                    continue;
+                }
+                BenchResult r = runner.run( b );
+                System.out.println( r );
+                if( json != null ) {
+                    json.println( r.toJson() );
+                }
+            }
+        } finally {
+            if( json != null ) {
+                json.close();
+            }
+        }
+
+        // Printed so that benchmark work is observably used.
+        System.out.println( "checksum: " + runner.sink() );
+    }
+
+
+    private static boolean matches( String name, List<String> filters ) {
+        if( filters.isEmpty() ) {
+            return true;
+        }
+        for( String f: filters ) {
+            if( name.contains( f ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
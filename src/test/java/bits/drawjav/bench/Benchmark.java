@@ -0,0 +1,69 @@
+package bits.drawjav.bench;
+
+
+/**
+ * A single benchmark case. Each round calls {@link #run(int)} once and is timed as a whole, so
+ * per-round overhead should be small compared to {@code ops} operations.
+ *
+ * @author Philip DeCamp
+ */
+public abstract class Benchmark {
+
+    private final String mName;
+    private final String mParams;
+    private final int    mOps;
+
+
+    /**
+     * @param name   Name of benchmark. Used for filtering and reporting.
+     * @param params Short description of parameters, such as "threads=4". May be empty.
+     * @param ops    Number of operations performed by each call to {@link #run(int)}.
+     */
+    protected Benchmark( String name, String params, int ops ) {
+        mName   = name;
+        mParams = params;
+        mOps    = ops;
+    }
+
+
+    public String name() {
+        return mName;
+    }
+
+
+    public String params() {
+        return mParams;
+    }
+
+
+    public int ops() {
+        return mOps;
+    }
+
+    /**
+     * Called once before any rounds. Benchmarks that cannot run in the current environment,
+     * for example because native libraries are missing, may throw to be reported as skipped.
+     */
+    public void setup() throws Exception {}
+
+    /**
+     * Performs {@code ops} operations.
+     *
+     * @return value derived from the work performed, which the runner consumes so that the work
+     *         cannot be optimized away.
+     */
+    public abstract long run( int ops ) throws Exception;
+
+    /**
+     * @return nanoseconds measured during the last call to {@link #run(int)}, or -1 to time the call as a
+     *         whole. Benchmarks whose rounds include waits that are not part of the measurement, such as
+     *         simulated user input, report only the measured part.
+     */
+    public long measuredNanos() {
+        return -1;
+    }
+
+
+    public void teardown() throws Exception {}
+
+}
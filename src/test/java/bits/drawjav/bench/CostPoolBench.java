@@ -0,0 +1,105 @@
+package bits.drawjav.bench;
+
+import bits.drawjav.*;
+
+import java.util.concurrent.CyclicBarrier;
+
+
+/**
+ * Poll/offer cycles on a shared CostPool or MultiCostPool from several threads, as allocators
+ * and decoder threads do when recycling packets.
+ *
+ * @author Philip DeCamp
+ */
+public final class CostPoolBench extends Benchmark {
+
+    private final int     mThreads;
+    private final boolean mMulti;
+
+    private CostPool<CostItem>      mPool;
+    private MultiCostPool<CostItem> mMultiPool;
+
+
+    public CostPoolBench( int threads, boolean multi ) {
+        super( multi ? "MultiCostPool.pollOffer" : "CostPool.pollOffer", "threads=" + threads, 1 << 20 );
+        mThreads = threads;
+        mMulti = multi;
+    }
+
+
+    @Override
+    public void setup() {
+        mPool = new CostPool<CostItem>( 1024, -1, CostItem.METRIC );
+        mMultiPool = new MultiCostPool<CostItem>( 1024, -1, CostItem.METRIC );
+    }
+
+    @Override
+    public long run( final int ops ) throws Exception {
+        final int perThread = ops / mThreads;
+        final long[] sums = new long[mThreads];
+        final CyclicBarrier barrier = new CyclicBarrier( mThreads );
+        Thread[] threads = new Thread[mThreads];
+
+        for( int t = 0; t < mThreads; t++ ) {
+            final int idx = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch( Exception ex ) {
+                        return;
+                    }
+                    sums[idx] = mMulti ? cycleMulti( idx, perThread ) : cycle( perThread );
+                }
+            };
+            threads[t].start();
+        }
+
+        long ret = 0;
+        for( int t = 0; t < mThreads; t++ ) {
+            threads[t].join();
+            ret += sums[t];
+        }
+        return ret;
+    }
+
+    @Override
+    public void teardown() {
+        mPool.close();
+        mMultiPool.close();
+    }
+
+
+    private long cycle( int ops ) {
+        long sum = 0;
+        for( int i = 0; i < ops; i++ ) {
+            CostItem item = mPool.poll();
+            if( item == null ) {
+                item = new CostItem( 1, mPool );
+                mPool.allocated( item );
+            }
+            sum += item.mCost;
+            item.deref();
+        }
+        return sum;
+    }
+
+
+    private long cycleMulti( int thread, int ops ) {
+        // Each thread cycles through a few formats, some of which are shared with other threads.
+        final Object[] keys = { "k" + thread, "k" + ( thread + 1 ), "shared" };
+        long sum = 0;
+        for( int i = 0; i < ops; i++ ) {
+            Object key = keys[i % keys.length];
+            CostItem item = mMultiPool.poll( key );
+            if( item == null ) {
+                item = new CostItem( 1, mMultiPool.pool( key ) );
+                mMultiPool.allocated( item );
+            }
+            sum += item.mCost;
+            item.deref();
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,212 @@
+package bits.drawjav.bench;
+
+import bits.drawjav.*;
+import bits.drawjav.pipe.*;
+import bits.util.ref.Refable;
+import com.google.common.eventbus.EventBus;
+
+import java.io.IOException;
+
+
+/**
+ * Per-packet overhead of AvGraph.step() on a chain of trivial units: a source that always has a
+ * packet, some number of pass-through units and a sink. Operations are packets delivered to the sink.
+ *
+ * @author Philip DeCamp
+ */
+public final class GraphStepBench extends Benchmark {
+
+    private final int mDepth;
+
+    private AvGraph mGraph;
+    private Sink    mSink;
+
+
+    public GraphStepBench( int depth ) {
+        super( "AvGraph.step", "passThroughUnits=" + depth, 1 << 18 );
+        mDepth = depth;
+    }
+
+
+    @Override
+    public void setup() throws IOException {
+        mGraph = new AvGraph();
+        mSink  = new Sink();
+
+        Source src = new Source();
+        AvUnit prev = src;
+        OutPad prevOut = src;
+        for( int i = 0; i < mDepth; i++ ) {
+            PassThrough p = new PassThrough();
+            BasicUnit unit = new BasicUnit( p.mIn, p.mOut );
+            mGraph.connect( prev, prevOut, unit, p.mIn, null );
+            prev = unit;
+            prevOut = p.mOut;
+        }
+        mGraph.connect( prev, prevOut, mSink, mSink, null );
+    }
+
+    @Override
+    public long run( int ops ) {
+        final AvGraph graph = mGraph;
+        final long stop = mSink.mCount + ops;
+        long steps = 0;
+        while( mSink.mCount < stop ) {
+            graph.step();
+            steps++;
+        }
+        return steps;
+    }
+
+
+
+    private static final class Source extends OutPadAdapter implements AvUnit {
+        final Packet mPacket = new StubPacket( null, 0, 0 );
+
+        @Override
+        public int status() {
+            return OKAY;
+        }
+
+        @Override
+        public int poll( Refable[] out ) {
+            mPacket.ref();
+            out[0] = mPacket;
+            return OKAY;
+        }
+
+        public int inputNum() {
+            return 0;
+        }
+
+        public InPad input( int idx ) {
+            return null;
+        }
+
+        public int outputNum() {
+            return 1;
+        }
+
+        public OutPad output( int idx ) {
+            return this;
+        }
+
+        public void open( EventBus bus ) {}
+
+        public void close() {}
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void clear() {}
+    }
+
+
+    private static final class PassThrough {
+        Packet mHeld = null;
+
+        final InPad<Packet> mIn = new InPad<Packet>() {
+            public int status() {
+                return mHeld == null ? OKAY : DRAIN_UNIT;
+            }
+
+            public int offer( Packet packet ) {
+                if( mHeld != null ) {
+                    return DRAIN_UNIT;
+                }
+                if( packet != null ) {
+                    packet.ref();
+                    mHeld = packet;
+                }
+                return OKAY;
+            }
+
+            public void config( StreamFormat format ) {}
+
+            public boolean isThreaded() {
+                return false;
+            }
+
+            public Object lock() {
+                return null;
+            }
+
+            public Exception exception() {
+                return null;
+            }
+        };
+
+        final OutPad mOut = new OutPadAdapter() {
+            @Override
+            public int status() {
+                return mHeld != null ? OKAY : FILL_UNIT;
+            }
+
+            @Override
+            public int poll( Refable[] out ) {
+                if( mHeld == null ) {
+                    return FILL_UNIT;
+                }
+                out[0] = mHeld;
+                mHeld = null;
+                return OKAY;
+            }
+        };
+    }
+
+
+    private static final class Sink implements AvUnit, InPad<Packet> {
+        long mCount = 0;
+
+        public int status() {
+            return OKAY;
+        }
+
+        public int offer( Packet packet ) {
+            mCount++;
+            return OKAY;
+        }
+
+        public void config( StreamFormat format ) {}
+
+        public boolean isThreaded() {
+            return false;
+        }
+
+        public Object lock() {
+            return null;
+        }
+
+        public Exception exception() {
+            return null;
+        }
+
+        public int inputNum() {
+            return 1;
+        }
+
+        public InPad input( int idx ) {
+            return this;
+        }
+
+        public int outputNum() {
+            return 0;
+        }
+
+        public OutPad output( int idx ) {
+            return null;
+        }
+
+        public void open( EventBus bus ) {}
+
+        public void close() {}
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void clear() {}
+    }
+
+}
@@ -0,0 +1,98 @@
+package bits.drawjav.bench;
+
+import bits.drawjav.*;
+
+import java.util.Random;
+
+
+/**
+ * PrioHeap and LongHeap on the hold model: at steady depth, the head is removed and reinserted
+ * with a later key, as a scheduler does when releasing one packet and accepting the next.
+ *
+ * @author Philip DeCamp
+ */
+public final class PrioHeapBench extends Benchmark {
+
+    public static PrioHeapBench prio( int depth ) {
+        return new PrioHeapBench( "PrioHeap.hold", "depth=" + depth, depth, 0 );
+    }
+
+    /**
+     * @param arity Branching factor of LongHeap.
+     */
+    public static PrioHeapBench longHeap( int depth, int arity ) {
+        return new PrioHeapBench( "LongHeap.hold", "depth=" + depth + ",arity=" + arity, depth, arity );
+    }
+
+
+    private final int mDepth;
+    // Zero for PrioHeap.
+    private final int mArity;
+
+    private PrioHeap<Node>         mHeap;
+    private LongHeap<LongHeapNode> mLongHeap;
+    private Random                 mRand;
+
+
+    private PrioHeapBench( String name, String params, int depth, int arity ) {
+        super( name, params, 1 << 20 );
+        mDepth = depth;
+        mArity = arity;
+    }
+
+
+    @Override
+    public void setup() {
+        mRand = new Random( 0 );
+        if( mArity == 0 ) {
+            mHeap = new PrioHeap<Node>();
+            for( int i = 0; i < mDepth; i++ ) {
+                Node n = new Node();
+                n.mKey = mRand.nextInt( 1 << 20 );
+                mHeap.offer( n );
+            }
+        } else {
+            mLongHeap = new LongHeap<LongHeapNode>( mArity, 16 );
+            for( int i = 0; i < mDepth; i++ ) {
+                mLongHeap.offer( new LongHeapNode(), mRand.nextInt( 1 << 20 ) );
+            }
+        }
+    }
+
+    @Override
+    public long run( int ops ) {
+        final Random rand = mRand;
+        long sum = 0;
+
+        if( mArity != 0 ) {
+            final LongHeap<LongHeapNode> heap = mLongHeap;
+            for( int i = 0; i < ops; i++ ) {
+                long key = heap.peekKey();
+                LongHeapNode n = heap.remove();
+                sum += key;
+                heap.offer( n, key + 1 + rand.nextInt( 1 << 20 ) );
+            }
+        } else {
+            final PrioHeap<Node> heap = mHeap;
+            for( int i = 0; i < ops; i++ ) {
+                Node n = heap.remove();
+                sum += n.mKey;
+                n.mKey += 1 + rand.nextInt( 1 << 20 );
+                heap.offer( n );
+            }
+        }
+
+        return sum;
+    }
+
+
+    private static final class Node extends HeapNode implements Comparable<Node> {
+        long mKey;
+
+        @Override
+        public int compareTo( Node n ) {
+            return mKey < n.mKey ? -1 : mKey > n.mKey ? 1 : 0;
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package bits.drawjav.bench;
+
+import bits.drawjav.*;
+import bits.drawjav.pipe.*;
+import bits.microtime.*;
+import com.google.common.eventbus.EventBus;
+
+import java.util.concurrent.CyclicBarrier;
+
+
+/**
+ * Packet throughput of scheduler units when many streams across many clocks are fed and drained
+ * concurrently, as in a dense multi-clip layout. Each thread owns a disjoint set of clocks and their
+ * streams. All packets are due on arrival, so the cost measured is locking and bookkeeping rather than
+ * waiting. Operations are released packets.
+ *
+ * @author Philip DeCamp
+ */
+public final class SchedulerContentionBench extends Benchmark {
+
+    private static final int CLOCK_NUM  = 32;
+    private static final int STREAM_NUM = 256;
+
+    private final boolean mWheel;
+    private final int     mThreads;
+
+    private SchedulerUnit mUnit;
+    // Next packet time of each thread.
+    private long[] mTimes;
+
+
+    /**
+     * @param wheel If true, measure TimerWheelSchedulerUnit, otherwise ThreadedSchedulerUnit.
+     */
+    public SchedulerContentionBench( boolean wheel, int threads ) {
+        super( wheel ? "TimerWheelSchedulerUnit.contention" : "ThreadedSchedulerUnit.contention",
+               "threads=" + threads + ",streams=" + STREAM_NUM + ",clocks=" + CLOCK_NUM,
+               1 << 16 );
+        mWheel   = wheel;
+        mThreads = threads;
+    }
+
+
+    @Override
+    public void setup() {
+        FullClock[] clocks = new FullClock[CLOCK_NUM];
+        for( int i = 0; i < CLOCK_NUM; i++ ) {
+            clocks[i] = new FullClock( Clock.SYSTEM_CLOCK );
+            clocks[i].clockSeek( Long.MAX_VALUE / 2 );
+            clocks[i].clockStart();
+        }
+
+        mUnit = mWheel ? new TimerWheelSchedulerUnit() : new ThreadedSchedulerUnit();
+        for( int i = 0; i < STREAM_NUM; i++ ) {
+            mUnit.addStream( clocks[i % CLOCK_NUM], 8 );
+        }
+        mUnit.open( new EventBus() );
+        mTimes = new long[mThreads];
+    }
+
+    @Override
+    public long run( int ops ) throws Exception {
+        final int perThread = ops / mThreads;
+        final long[] counts = new long[mThreads];
+        final CyclicBarrier barrier = new CyclicBarrier( mThreads );
+        Thread[] threads = new Thread[mThreads];
+
+        for( int t = 0; t < mThreads; t++ ) {
+            final int idx = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch( Exception ex ) {
+                        return;
+                    }
+                    counts[idx] = cycle( idx, perThread );
+                }
+            };
+            threads[t].start();
+        }
+
+        long ret = 0;
+        for( int t = 0; t < mThreads; t++ ) {
+            threads[t].join();
+            ret += counts[t];
+        }
+        return ret;
+    }
+
+    @Override
+    public void teardown() {
+        mUnit.close();
+    }
+
+
+    @SuppressWarnings( "unchecked" )
+    private long cycle( int thread, int ops ) {
+        final SchedulerUnit unit = mUnit;
+        Packet[] out = { null };
+        long count = 0;
+        long time  = mTimes[thread];
+
+        // Thread owns clocks thread, thread + mThreads, ... and every stream on those clocks.
+        while( count < ops ) {
+            for( int s = thread; s < STREAM_NUM; s += mThreads ) {
+                InPad<Packet> in = unit.input( s );
+                while( in.offer( new StubPacket( null, time, time + 1 ) ) == Pad.OKAY ) {
+                    time++;
+                }
+                while( unit.output( s ).poll( out ) == Pad.OKAY ) {
+                    out[0].deref();
+                    count++;
+                }
+            }
+        }
+
+        mTimes[thread] = time;
+        return count;
+    }
+
+}
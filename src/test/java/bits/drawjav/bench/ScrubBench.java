@@ -0,0 +1,213 @@
+package bits.drawjav.bench;
+
+import bits.drawjav.*;
+import bits.drawjav.pipe.*;
+import bits.jav.Jav;
+import bits.microtime.*;
+import com.google.common.eventbus.EventBus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+
+/**
+ * Simulates a user dragging a scrub bar and measures the time between the last seek of each drag and
+ * the arrival of the first frame covering its target. Operations are drags. Only the time after the last
+ * seek is measured. Requires the native jav libraries and a media file named by the
+ * {@code bench.media} system property, and is skipped otherwise.
+ *
+ * @author Philip DeCamp
+ */
+public final class ScrubBench extends Benchmark {
+
+    private static final int  SEEKS_PER_DRAG = 30;
+    private static final long SEEK_INTERVAL  = 1000L / 60L;
+    private static final long TIMEOUT_MILLIS = 5000L;
+
+    private PlayController mPlayCont;
+    private GraphDriver    mDriver;
+    private FrameSink      mSink;
+    private long           mRange;
+    private Random         mRand;
+    private long           mMeasured = -1;
+
+
+    public ScrubBench() {
+        super( "Scrub.firstFrame", "seeksPerDrag=" + SEEKS_PER_DRAG, 2 );
+    }
+
+
+    @Override
+    @SuppressWarnings( "unchecked" )
+    public void setup() throws Exception {
+        String path = System.getProperty( SeekBench.MEDIA_PROPERTY );
+        if( path == null || path.length() == 0 ) {
+            throw new IllegalStateException( "No media file. Set -D" + SeekBench.MEDIA_PROPERTY + "=<file>" );
+        }
+
+        File file = new File( path );
+        Jav.init();
+        MemoryManager mem   = new PoolMemoryManager( -1, -1 );
+        FormatReader format = FormatReader.openFile( file, true, 0, mem );
+        Stream video = format.stream( Jav.AVMEDIA_TYPE_VIDEO, 0 );
+        if( video == null ) {
+            format.close();
+            throw new IllegalStateException( "No video stream in " + file );
+        }
+        format.openStream( video );
+        // Scrub within the first ten seconds, or the whole file if shorter.
+        long dur = format.formatContext().duration();
+        mRange = dur > 0 ? Math.min( dur, 10000000L ) : 10000000L;
+
+        mPlayCont = PlayController.createRealtime();
+        PlayClock clock = mPlayCont.clock();
+        PacketReaderUnit src = new PacketReaderUnit( format );
+        ThreadedSchedulerUnit scheduler = new ThreadedSchedulerUnit();
+        mSink = new FrameSink();
+        scheduler.addStream( clock, 16, true );
+
+        AvGraph graph = new AvGraph();
+        graph.connect( src, src.output( 0 ), scheduler, scheduler.input( 0 ), null );
+        graph.connect( scheduler, scheduler.output( 0 ), mSink, mSink.input( 0 ), null );
+
+        mDriver = new GraphDriver( clock, graph );
+        mDriver.startThreadedMode();
+        mPlayCont.control().clockSeek( 0 );
+        mPlayCont.control().clockStart();
+        mRand = new Random( 0 );
+    }
+
+    @Override
+    public long run( int ops ) throws Exception {
+        long measured = 0;
+        long sum = 0;
+
+        for( int drag = 0; drag < ops; drag++ ) {
+            long target = 0;
+            for( int i = 0; i < SEEKS_PER_DRAG; i++ ) {
+                target = ( mRand.nextLong() & Long.MAX_VALUE ) % mRange;
+                if( i == SEEKS_PER_DRAG - 1 ) {
+                    mSink.expect( target );
+                }
+                mPlayCont.control().clockSeek( target );
+                if( i < SEEKS_PER_DRAG - 1 ) {
+                    Thread.sleep( SEEK_INTERVAL );
+                }
+            }
+            measured += mSink.awaitNanos( TIMEOUT_MILLIS );
+            sum += target;
+        }
+
+        mMeasured = measured;
+        return sum;
+    }
+
+    @Override
+    public long measuredNanos() {
+        return mMeasured;
+    }
+
+    @Override
+    public void teardown() throws Exception {
+        if( mDriver != null ) {
+            mDriver.close();
+        }
+    }
+
+
+    private static final class FrameSink implements AvUnit, InPad<Packet> {
+
+        private long mTarget    = Long.MIN_VALUE;
+        private long mSeekNanos = 0;
+        private long mElapsed   = -1;
+
+
+        synchronized void expect( long target ) {
+            mTarget    = target;
+            mSeekNanos = System.nanoTime();
+            mElapsed   = -1;
+        }
+
+
+        synchronized long awaitNanos( long timeoutMillis ) throws InterruptedException {
+            long stop = System.currentTimeMillis() + timeoutMillis;
+            while( mElapsed < 0 ) {
+                long now = System.currentTimeMillis();
+                if( now >= stop ) {
+                    return System.nanoTime() - mSeekNanos;
+                }
+                wait( stop - now );
+            }
+            return mElapsed;
+        }
+
+        @Override
+        public synchronized int offer( Packet packet ) {
+            if( packet != null && mElapsed < 0 && packet.startMicros() <= mTarget && mTarget < packet.stopMicros() ) {
+                mElapsed = System.nanoTime() - mSeekNanos;
+                notifyAll();
+            }
+            return OKAY;
+        }
+
+        @Override
+        public int status() {
+            return OKAY;
+        }
+
+        @Override
+        public void config( StreamFormat stream ) throws IOException {}
+
+        @Override
+        public boolean isThreaded() {
+            return false;
+        }
+
+        @Override
+        public Object lock() {
+            return null;
+        }
+
+        @Override
+        public Exception exception() {
+            return null;
+        }
+
+        @Override
+        public int inputNum() {
+            return 1;
+        }
+
+        @Override
+        public InPad input( int idx ) {
+            return this;
+        }
+
+        @Override
+        public int outputNum() {
+            return 0;
+        }
+
+        @Override
+        public OutPad output( int idx ) {
+            return null;
+        }
+
+        @Override
+        public void open( EventBus bus ) {}
+
+        @Override
+        public void close() {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void clear() {}
+
+    }
+
+}
@@ -0,0 +1,100 @@
+package bits.drawjav.bench;
+
+import bits.drawjav.*;
+import bits.jav.Jav;
+
+import java.io.*;
+
+
+/**
+ * Seek latency of FormatReader: time from seek until the first video packet at or after the target
+ * is returned. Operations are seeks. Requires the native jav libraries and a media file named by the
+ * {@code bench.media} system property, and is skipped otherwise.
+ *
+ * @author Philip DeCamp
+ */
+public final class SeekBench extends Benchmark {
+
+    public static final String MEDIA_PROPERTY = "bench.media";
+
+    private static final int SEEKS = 16;
+
+    private final boolean mAccurate;
+    private final boolean mIndexed;
+
+    private FormatReader mReader;
+    private Stream       mVideo;
+    private long         mDuration;
+    private int          mCount = 0;
+
+
+    public SeekBench( boolean accurate, boolean indexed ) {
+        super( "FormatReader.seek", "accurate=" + accurate + ",indexed=" + indexed, SEEKS );
+        mAccurate = accurate;
+        mIndexed  = indexed;
+    }
+
+
+    @Override
+    public void setup() throws Exception {
+        String path = System.getProperty( MEDIA_PROPERTY );
+        if( path == null || path.length() == 0 ) {
+            throw new IllegalStateException( "No media file. Set -D" + MEDIA_PROPERTY + "=<file>" );
+        }
+
+        File file = new File( path );
+        Jav.init();
+        mReader = FormatReader.openFile( file );
+        mVideo  = mReader.stream( Jav.AVMEDIA_TYPE_VIDEO, 0 );
+        if( mVideo == null ) {
+            throw new IllegalStateException( "No video stream in " + file );
+        }
+        mReader.openStream( mVideo );
+        mReader.accurateSeek( mAccurate );
+        if( mIndexed ) {
+            mReader.keyframeIndex( KeyframeIndex.build( file ) );
+        }
+
+        mDuration = mReader.formatContext().duration();
+        if( mDuration <= 0 ) {
+            throw new IllegalStateException( "Unknown duration: " + file );
+        }
+    }
+
+    @Override
+    public long run( int ops ) throws IOException {
+        long sum = 0;
+        for( int i = 0; i < ops; i++ ) {
+            // Deterministic, scattered targets.
+            long target = ( mCount++ * 7919L % 97L ) * mDuration / 100L;
+            mReader.seek( target );
+
+            while( true ) {
+                Packet p;
+                try {
+                    p = mReader.readNext();
+                } catch( EOFException ex ) {
+                    break;
+                }
+                if( p == null ) {
+                    continue;
+                }
+                long stop = p.stopMicros();
+                p.deref();
+                if( stop > target ) {
+                    sum += stop;
+                    break;
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public void teardown() throws Exception {
+        if( mReader != null ) {
+            mReader.close();
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package bits.drawjav.bench;
+
+import bits.drawjav.*;
+import bits.drawjav.pipe.*;
+import bits.microtime.*;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+import java.util.*;
+
+
+/**
+ * Cost of driving a TickerSchedulerUnit that carries many streams. Each stream produces 30 fps frames
+ * with staggered phase, the clock advances at 60 Hz, and pads are serviced from ready events the way
+ * AvGraph services them. Operations are ticks. In idle mode, the clock does not advance, so no stream
+ * is due on any tick.
+ *
+ * @author Philip DeCamp
+ */
+public final class TickerSchedulerBench extends Benchmark {
+
+    private static final long TICK_MICROS  = 1000000L / 60L;
+    private static final long FRAME_MICROS = 1000000L / 30L;
+
+    private final int     mStreamNum;
+    private final boolean mIdle;
+
+    private ManualClock         mClock;
+    private TickerSchedulerUnit mUnit;
+    private Driver              mDriver;
+    private long                mTick;
+
+
+    public TickerSchedulerBench( int streamNum, boolean idle ) {
+        super( "TickerSchedulerUnit.tick", "streams=" + streamNum + ",idle=" + idle, 4096 );
+        mStreamNum = streamNum;
+        mIdle      = idle;
+    }
+
+
+    @Override
+    @SuppressWarnings( "unchecked" )
+    public void setup() {
+        mClock = new ManualClock( 0 );
+        FullClock full = new FullClock( mClock );
+        full.clockStart( 0 );
+
+        mUnit = new TickerSchedulerUnit();
+        for( int i = 0; i < mStreamNum; i++ ) {
+            mUnit.addStream( full, 4 );
+        }
+
+        mDriver = new Driver( mUnit, mStreamNum );
+        EventBus bus = new EventBus();
+        bus.register( mDriver );
+        mUnit.open( bus );
+
+        for( int i = 0; i < mStreamNum; i++ ) {
+            mDriver.fill( i );
+        }
+        mTick = 0;
+    }
+
+    @Override
+    public long run( int ops ) {
+        final ManualClock clock = mClock;
+        final TickerSchedulerUnit unit = mUnit;
+        final Driver driver = mDriver;
+
+        for( int i = 0; i < ops; i++ ) {
+            clock.micros( mIdle ? -1L : ++mTick * TICK_MICROS );
+            unit.tick();
+            driver.service();
+        }
+        return driver.mReleased;
+    }
+
+    @Override
+    public void teardown() {
+        mUnit.close();
+    }
+
+
+    private static final class Driver {
+        final TickerSchedulerUnit  mUnit;
+        final Map<Object, Integer> mIndex = new IdentityHashMap<Object, Integer>();
+        final long[]   mNext;
+        final Packet[] mOut = { null };
+
+        final ArrayDeque<Integer> mInReady  = new ArrayDeque<Integer>();
+        final ArrayDeque<Integer> mOutReady = new ArrayDeque<Integer>();
+
+        long mReleased = 0;
+
+
+        Driver( TickerSchedulerUnit unit, int num ) {
+            mUnit = unit;
+            mNext = new long[num];
+            for( int i = 0; i < num; i++ ) {
+                mIndex.put( unit.input( i ), i );
+                mIndex.put( unit.output( i ), i );
+                mNext[i] = FRAME_MICROS * i / num;
+            }
+        }
+
+
+        @SuppressWarnings( "unchecked" )
+        void fill( int idx ) {
+            while( mUnit.input( idx ).offer( new StubPacket( null, mNext[idx], mNext[idx] + FRAME_MICROS ) ) == Pad.OKAY ) {
+                mNext[idx] += FRAME_MICROS;
+            }
+        }
+
+
+        void service() {
+            while( !mOutReady.isEmpty() || !mInReady.isEmpty() ) {
+                Integer idx = mOutReady.poll();
+                if( idx != null ) {
+                    OutPad out = mUnit.output( idx );
+                    while( out.poll( mOut ) == Pad.OKAY ) {
+                        mOut[0].deref();
+                        mReleased++;
+                    }
+                }
+                idx = mInReady.poll();
+                if( idx != null ) {
+                    fill( idx );
+                }
+            }
+        }
+
+        @Subscribe
+        public void process( InPadReadyEvent e ) {
+            mInReady.offer( mIndex.get( e.mPad ) );
+        }
+
+        @Subscribe
+        public void process( OutPadReadyEvent e ) {
+            mOutReady.offer( mIndex.get( e.mPad ) );
+        }
+    }
+
+}
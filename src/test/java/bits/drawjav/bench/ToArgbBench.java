@@ -0,0 +1,67 @@
+package bits.drawjav.bench;
+
+import bits.drawjav.*;
+import bits.drawjav.video.IntFrame;
+import bits.drawjav.video.VideoPackets;
+import bits.jav.Jav;
+import bits.jav.util.Rational;
+
+
+/**
+ * VideoPackets.toArgb on frames generated by SyntheticReader. Operations are pixels. Requires the
+ * native jav libraries and is skipped where they are unavailable.
+ *
+ * @author Philip DeCamp
+ */
+public final class ToArgbBench extends Benchmark {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mPixFmt;
+
+    private SyntheticReader mReader;
+    private DrawPacket      mFrame;
+    private IntFrame        mOut;
+
+
+    public ToArgbBench( int width, int height, int pixFmt ) {
+        super( "VideoPackets.toArgb", width + "x" + height + ",pixFmt=" + pixFmt, width * height * 16 );
+        mWidth  = width;
+        mHeight = height;
+        mPixFmt = pixFmt;
+    }
+
+
+    @Override
+    public void setup() throws Exception {
+        Jav.init();
+        mReader = new SyntheticReader( new PoolMemoryManager(), Long.MAX_VALUE );
+        mReader.addVideoStream( StreamFormat.createVideo( mWidth, mHeight, mPixFmt, null ),
+                                new Rational( 30, 1 ),
+                                SyntheticReader.PATTERN_NOISE );
+        mFrame = (DrawPacket)mReader.readNext();
+        mOut = new IntFrame( null );
+    }
+
+    @Override
+    public long run( int ops ) {
+        final int frames = Math.max( 1, ops / ( mWidth * mHeight ) );
+        long sum = 0;
+        for( int i = 0; i < frames; i++ ) {
+            VideoPackets.toArgb( mFrame, ( i & 1 ) == 0, mOut );
+            sum += mOut.mPix[i % mOut.mPix.length];
+        }
+        return sum;
+    }
+
+    @Override
+    public void teardown() throws Exception {
+        if( mFrame != null ) {
+            mFrame.deref();
+        }
+        if( mReader != null ) {
+            mReader.close();
+        }
+    }
+
+}